@@ -0,0 +1,45 @@
+package com.imontero.circuit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a circuit wire by wire with {@link Circuit#addWire(Wire)}, including the
+ * incremental loop discovery of each mode. Branches are only derived eagerly with
+ * {@link LoopDiscovery#ALL}, which {@link LoopEnumerationBenchmark} measures on small circuits.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AddWireBenchmark {
+    @Param({"SERIES", "PARALLEL", "LADDER", "GRID", "RANDOM"})
+    public CircuitGenerator topology;
+    @Param({"100", "1000", "10000"})
+    public int size;
+    @Param({"FUNDAMENTAL", "NONE"})
+    public LoopDiscovery loopDiscovery;
+
+    private CircuitGenerator.Blueprint blueprint;
+    private CircuitGenerator.Instance instance;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        blueprint = topology.generate(size, new Random(1));
+    }
+
+    @Setup(Level.Invocation)
+    public void instantiate() {
+        // Elements remember their wires, so every invocation needs fresh ones.
+        instance = blueprint.instantiate();
+    }
+
+    @Benchmark
+    public Circuit addWires() {
+        return instance.build(loopDiscovery);
+    }
+}
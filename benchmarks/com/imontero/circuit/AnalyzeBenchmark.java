@@ -0,0 +1,44 @@
+package com.imontero.circuit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures deriving the branches and junctions of a freshly built circuit with
+ * {@link Circuit#analyze()}, separately from adding its wires.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AnalyzeBenchmark {
+    @Param({"SERIES", "PARALLEL", "LADDER", "GRID", "RANDOM"})
+    public CircuitGenerator topology;
+    @Param({"100", "1000", "10000"})
+    public int size;
+    @Param({"FUNDAMENTAL", "NONE"})
+    public LoopDiscovery loopDiscovery;
+
+    private CircuitGenerator.Blueprint blueprint;
+    private Circuit circuit;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        blueprint = topology.generate(size, new Random(1));
+    }
+
+    @Setup(Level.Invocation)
+    public void build() {
+        circuit = blueprint.build(loopDiscovery);
+    }
+
+    @Benchmark
+    public int findBranches() {
+        circuit.analyze();
+        return circuit.branches.size();
+    }
+}
@@ -0,0 +1,227 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * Generators of circuits with characteristic topologies for the benchmarks. Each generates a
+ * Blueprint, from which fresh, unconnected elements and wires can be created repeatedly, so the
+ * construction of the blueprint is never measured.
+ */
+public enum CircuitGenerator {
+    /** A battery and a chain of resistors in series, which form a single loop. */
+    SERIES {
+        @Override
+        Blueprint generate(int size, Random random) {
+            Blueprint bp = new Blueprint();
+            int battery = bp.battery(5.0);
+            int prev = battery;
+            for (int i = 0; i < size; i++) {
+                int r = bp.resistor(resistance(random));
+                bp.wire(prev, r);
+                prev = r;
+            }
+            bp.wire(prev, battery);
+            return bp;
+        }
+    },
+    /** A battery across a bank of resistors in parallel between two junctions. */
+    PARALLEL {
+        @Override
+        Blueprint generate(int size, Random random) {
+            Blueprint bp = new Blueprint();
+            int top = bp.junction();
+            int bottom = bp.junction();
+            bp.connect(top, bp.battery(5.0), bottom);
+            for (int i = 0; i < size; i++) {
+                bp.connect(top, bp.resistor(resistance(random)), bottom);
+            }
+            return bp;
+        }
+    },
+    /** A battery driving a ladder of series and shunt resistors, with two per stage. */
+    LADDER {
+        @Override
+        Blueprint generate(int size, Random random) {
+            Blueprint bp = new Blueprint();
+            int top = bp.junction();
+            int bottom = bp.junction();
+            bp.connect(bottom, bp.battery(5.0), top);
+            for (int i = 0; i < Math.max(1, size / 2); i++) {
+                int nextTop = bp.junction();
+                int nextBottom = bp.junction();
+                bp.connect(top, bp.resistor(resistance(random)), nextTop);
+                bp.connect(nextTop, bp.resistor(resistance(random)), nextBottom);
+                bp.wire(nextBottom, bottom);
+                top = nextTop;
+                bottom = nextBottom;
+            }
+            return bp;
+        }
+    },
+    /** A square grid of junctions with a resistor on every edge, and a battery across corners. */
+    GRID {
+        @Override
+        Blueprint generate(int size, Random random) {
+            Blueprint bp = new Blueprint();
+            int side = Math.max(2, (int) Math.round(Math.sqrt(size / 2.0)));
+            int[][] junctions = new int[side][side];
+            for (int x = 0; x < side; x++) {
+                for (int y = 0; y < side; y++) {
+                    junctions[x][y] = bp.junction();
+                }
+            }
+            for (int x = 0; x < side; x++) {
+                for (int y = 0; y < side; y++) {
+                    if (x + 1 < side) {
+                        bp.connect(junctions[x][y], bp.resistor(resistance(random)),
+                                junctions[x + 1][y]);
+                    }
+                    if (y + 1 < side) {
+                        bp.connect(junctions[x][y], bp.resistor(resistance(random)),
+                                junctions[x][y + 1]);
+                    }
+                }
+            }
+            bp.connect(junctions[0][0], bp.battery(5.0), junctions[side - 1][side - 1]);
+            return bp;
+        }
+    },
+    /**
+     * A random sparse graph of junctions joined by resistors: a random spanning tree plus random
+     * extra edges, for an average of three resistors per junction, and a battery.
+     */
+    RANDOM {
+        @Override
+        Blueprint generate(int size, Random random) {
+            Blueprint bp = new Blueprint();
+            int n = Math.max(2, 2 * size / 3);
+            int[] junctions = new int[n];
+            for (int i = 0; i < n; i++) {
+                junctions[i] = bp.junction();
+                if (i > 0) {
+                    bp.connect(junctions[random.nextInt(i)], bp.resistor(resistance(random)),
+                            junctions[i]);
+                }
+            }
+            for (int i = n - 1; i < size; i++) {
+                int a = random.nextInt(n), b = random.nextInt(n - 1);
+                bp.connect(junctions[a], bp.resistor(resistance(random)),
+                        junctions[b >= a ? b + 1 : b]);
+            }
+            bp.connect(junctions[0], bp.battery(5.0), junctions[n - 1]);
+            return bp;
+        }
+    };
+
+    /**
+     * Generates a circuit of about the given number of resistors.
+     *
+     * @param size The number of resistors.
+     * @param random The source of the circuit's random values and connections.
+     */
+    abstract Blueprint generate(int size, Random random);
+
+    private static double resistance(Random random) {
+        return 50 + random.nextInt(100);
+    }
+
+    /**
+     * A description of a circuit's elements and the wires between them.
+     */
+    public static class Blueprint {
+        private final List<CircuitElementType> types = new ArrayList<>();
+        private final List<Double> values = new ArrayList<>();
+        private final List<int[]> wires = new ArrayList<>();
+
+        int junction() {
+            return element(CircuitElementType.JUNCTION, 0);
+        }
+
+        int battery(double potentialDifference) {
+            return element(CircuitElementType.BATTERY, potentialDifference);
+        }
+
+        int resistor(double resistance) {
+            return element(CircuitElementType.RESISTOR, resistance);
+        }
+
+        void wire(int a, int b) {
+            wires.add(new int[]{a, b});
+        }
+
+        // Connects a two pin element between two other elements.
+        void connect(int a, int element, int b) {
+            wire(a, element);
+            wire(element, b);
+        }
+
+        private int element(CircuitElementType type, double value) {
+            types.add(type);
+            values.add(value);
+            return types.size() - 1;
+        }
+
+        /**
+         * @return The number of wires of the circuit.
+         */
+        public int wireCount() {
+            return wires.size();
+        }
+
+        /**
+         * Creates fresh elements, and wires between them, that have not been added to any circuit.
+         */
+        public Instance instantiate() {
+            CircuitElement[] elements = new CircuitElement[types.size()];
+            for (int i = 0; i < elements.length; i++) {
+                CircuitElement.CircuitElementBuilder builder =
+                        new CircuitElement.CircuitElementBuilder().type(types.get(i));
+                if (types.get(i) == CircuitElementType.BATTERY) {
+                    builder.potentialDifference(values.get(i));
+                } else {
+                    builder.resistance(values.get(i));
+                }
+                elements[i] = builder.build();
+            }
+            Wire[] w = new Wire[wires.size()];
+            for (int i = 0; i < w.length; i++) {
+                w[i] = new Wire(elements[wires.get(i)[0]], elements[wires.get(i)[1]]);
+            }
+            return new Instance(elements, w);
+        }
+
+        /**
+         * Creates a fresh circuit from this blueprint.
+         */
+        public Circuit build(LoopDiscovery loopDiscovery) {
+            return instantiate().build(loopDiscovery);
+        }
+    }
+
+    /**
+     * Fresh elements and wires created from a blueprint.
+     */
+    public static class Instance {
+        public final CircuitElement[] elements;
+        public final Wire[] wires;
+
+        Instance(CircuitElement[] elements, Wire[] wires) {
+            this.elements = elements;
+            this.wires = wires;
+        }
+
+        /**
+         * Adds the elements, then the wires, to a new circuit.
+         */
+        public Circuit build(LoopDiscovery loopDiscovery) {
+            Circuit c = new Circuit(loopDiscovery);
+            for (CircuitElement ce : elements) {
+                c.addCircuitElement(ce);
+            }
+            for (Wire w : wires) {
+                c.addWire(w);
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.imontero.circuit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building a circuit with {@link LoopDiscovery#ALL}, which enumerates every simple loop
+ * and derives the branches with findBranches after each wire that closes one. The cost grows
+ * exponentially with the number of loops on meshy topologies, so only small sizes are measured;
+ * the growth between them is what this benchmark is meant to expose.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LoopEnumerationBenchmark {
+    @Param({"SERIES", "PARALLEL", "LADDER", "GRID", "RANDOM"})
+    public CircuitGenerator topology;
+    @Param({"4", "8", "16", "32"})
+    public int size;
+
+    private CircuitGenerator.Blueprint blueprint;
+    private CircuitGenerator.Instance instance;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        blueprint = topology.generate(size, new Random(1));
+    }
+
+    @Setup(Level.Invocation)
+    public void instantiate() {
+        instance = blueprint.instantiate();
+    }
+
+    @Benchmark
+    public Circuit addWires() {
+        return instance.build(LoopDiscovery.ALL);
+    }
+}
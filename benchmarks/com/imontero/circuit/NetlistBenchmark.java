@@ -0,0 +1,44 @@
+package com.imontero.circuit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the netlist of a generated circuit with {@link Netlist#read}, from parsing its
+ * bytes to adding its elements and wires to a circuit.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NetlistBenchmark {
+    @Param({"LADDER", "GRID", "RANDOM"})
+    public CircuitGenerator topology;
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private byte[] netlist;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        Circuit circuit = topology.generate(size, new Random(1)).build(LoopDiscovery.NONE);
+        StringWriter out = new StringWriter();
+        Netlist.write(circuit, out);
+        netlist = out.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public Circuit read() throws IOException {
+        return Netlist.read(Channels.newChannel(new ByteArrayInputStream(netlist)),
+                LoopDiscovery.NONE);
+    }
+}
@@ -0,0 +1,47 @@
+package com.imontero.circuit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures loading the snapshot of a generated circuit with {@link CircuitSnapshot#read}, whose
+ * topology was analyzed when it was saved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+    @Param({"LADDER", "GRID", "RANDOM"})
+    public CircuitGenerator topology;
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+    @Param({"FUNDAMENTAL", "NONE"})
+    public LoopDiscovery loopDiscovery;
+
+    private Path snapshot;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        Circuit circuit = topology.generate(size, new Random(1)).build(loopDiscovery);
+        snapshot = Files.createTempFile("snapshot", ".bin");
+        CircuitSnapshot.write(circuit, snapshot);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Files.delete(snapshot);
+    }
+
+    @Benchmark
+    public Circuit read() throws IOException {
+        return CircuitSnapshot.read(snapshot);
+    }
+}
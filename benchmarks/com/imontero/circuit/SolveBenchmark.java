@@ -0,0 +1,70 @@
+package com.imontero.circuit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures solving an analyzed circuit, both from scratch and after changing only a potential
+ * difference, which reuses the factorization of the equations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SolveBenchmark {
+    /** The equations to solve. */
+    public enum Equations {
+        /** The loop and junction equations of {@link Circuit#solve()}. */
+        LOOP,
+        /** The modified nodal equations of {@link Circuit#solveNodal()}. */
+        NODAL
+    }
+
+    @Param({"SERIES", "PARALLEL", "LADDER", "GRID", "RANDOM"})
+    public CircuitGenerator topology;
+    @Param({"100", "1000", "5000"})
+    public int size;
+    @Param({"LOOP", "NODAL"})
+    public Equations equations;
+
+    private Circuit circuit;
+    private CircuitElement battery;
+
+    @Setup(Level.Trial)
+    public void build() {
+        circuit = topology.generate(size, new Random(1)).build(LoopDiscovery.FUNDAMENTAL);
+        circuit.analyze();
+        for (CircuitElement ce : circuit.elements) {
+            if (ce.type == CircuitElementType.BATTERY) {
+                battery = ce;
+            }
+        }
+        solve();
+    }
+
+    @Benchmark
+    public Circuit factorAndSolve() {
+        circuit.invalidateSolvers();
+        solve();
+        return circuit;
+    }
+
+    @Benchmark
+    public Circuit resolveSources() {
+        battery.potentialDifference = -battery.potentialDifference;
+        solve();
+        return circuit;
+    }
+
+    private void solve() {
+        if (equations == Equations.LOOP) {
+            circuit.solve();
+        } else {
+            circuit.solveNodal();
+        }
+    }
+}
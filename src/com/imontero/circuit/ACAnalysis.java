@@ -0,0 +1,380 @@
+package com.imontero.circuit;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * A small signal analysis of a circuit driven by its AC sources, which finds the amplitude and
+ * phase of the current of every branch over a sweep of frequencies. At each frequency, capacitors
+ * and inductors are the imaginary admittances and impedances of their value times the angular
+ * frequency, batteries are shorts, and the complex nodal equations are solved.
+ *
+ * Complex values are kept as separate arrays of real and imaginary parts, and the complex system
+ * is solved as a real system of twice the size, so no complex number is ever boxed. The structure
+ * of the system is the same at every frequency, so its ordering is found once.
+ *
+ * Like a {@link ToleranceAnalysis}, the equations and values are captured when the analysis is
+ * built, and running it never touches the circuit or its branches. The frequencies are
+ * independent, so they are solved in parallel on a fork-join pool, and each can be handed to a
+ * listener as soon as it is solved.
+ */
+public class ACAnalysis {
+    // The number of frequencies each task solves before it splits.
+    private static final int LEAF_POINTS = 2;
+
+    private final NodalEquations equations;
+    private final FillReducingOrdering ordering;
+    private final double[] resistances;
+    private final double[] capacitances;
+    private final double[] inductances;
+    private final double[] amplitudes;
+    private final double[] phases;
+    private final double[] frequencies;
+    // The recorded branches, and their indices in the equations.
+    private final List<Branch> recorded;
+    private final int[] recordedIndices;
+
+    private ACAnalysis(Builder builder) {
+        builder.circuit.analyze();
+        this.equations = new NodalEquations(builder.circuit);
+        this.resistances = equations.resistances();
+        this.capacitances = new double[equations.capacitors.size()];
+        for (int i = 0; i < capacitances.length; i++) {
+            capacitances[i] = equations.capacitors.get(i).capacitance;
+        }
+        this.inductances = new double[equations.inductors.size()];
+        for (int i = 0; i < inductances.length; i++) {
+            inductances[i] = equations.inductors.get(i).inductance;
+        }
+        this.amplitudes = new double[equations.acSources.size()];
+        this.phases = new double[equations.acSources.size()];
+        for (int i = 0; i < amplitudes.length; i++) {
+            amplitudes[i] = equations.acSources.get(i).amplitude;
+            phases[i] = equations.acSources.get(i).phase;
+        }
+        this.frequencies = builder.frequencies.clone();
+        this.ordering = FillReducingOrdering.of(matrix(frequencies[0]));
+
+        this.recorded = new ArrayList<>();
+        this.recordedIndices = equations.recordedIndices(builder.branches, recorded);
+    }
+
+    /**
+     * Runs the analysis on the common fork-join pool.
+     *
+     * @return The current of each recorded branch at every frequency.
+     */
+    public Result run() {
+        return run(ForkJoinPool.commonPool(), null);
+    }
+
+    /**
+     * Runs the analysis on the given pool.
+     *
+     * @param pool The pool to solve the frequencies on.
+     * @param listener Called with each frequency as soon as it is solved, in no particular order
+     *                 and from the threads of the pool, or null.
+     * @return The current of each recorded branch at every frequency.
+     */
+    public Result run(ForkJoinPool pool, Consumer<Point> listener) {
+        Result result = new Result(frequencies, recorded);
+        pool.invoke(new SweepTask(0, frequencies.length, result, listener));
+        return result;
+    }
+
+    private SparseMatrix matrix(double frequency) {
+        double omega = 2 * Math.PI * frequency;
+        double[] susceptances = new double[capacitances.length];
+        for (int i = 0; i < susceptances.length; i++) {
+            susceptances[i] = capacitances[i] * omega;
+        }
+        double[] reactances = new double[inductances.length];
+        for (int i = 0; i < reactances.length; i++) {
+            reactances[i] = inductances[i] * omega;
+        }
+        return equations.complexMatrix(resistances, susceptances, reactances);
+    }
+
+    /**
+     * Solves the frequencies in [from, to).
+     */
+    private class SweepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final Result result;
+        private final Consumer<Point> listener;
+
+        SweepTask(int from, int to, Result result, Consumer<Point> listener) {
+            this.from = from;
+            this.to = to;
+            this.result = result;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_POINTS) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SweepTask(from, mid, result, listener),
+                        new SweepTask(mid, to, result, listener));
+                return;
+            }
+            int n = equations.size();
+            double[] rhs = new double[2 * n];
+            double[] x = new double[2 * n];
+            double[] work = new double[2 * n];
+            double[] real = new double[n];
+            double[] imaginary = new double[n];
+            double[] zero = new double[capacitances.length];
+            double[] realSources = new double[capacitances.length];
+            double[] imaginarySources = new double[capacitances.length];
+            double[] realCurrents = new double[equations.branches.size()];
+            double[] imaginaryCurrents = new double[equations.branches.size()];
+            equations.complexRightHandSide(amplitudes, phases, rhs);
+            for (int f = from; f < to; f++) {
+                try {
+                    new SparseLU(matrix(frequencies[f]), ordering).solve(rhs, x, work);
+                } catch (ArithmeticException e) {
+                    for (int i = 0; i < recordedIndices.length; i++) {
+                        result.real[i][f] = result.imaginary[i][f] = Double.NaN;
+                    }
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    real[i] = x[2 * i];
+                    imaginary[i] = x[2 * i + 1];
+                }
+                // The current of a capacitor is its susceptance times i times its voltage, which
+                // the currents of the branches take as the source of a companion model without
+                // conductance.
+                double omega = 2 * Math.PI * frequencies[f];
+                int[] nodes = equations.capacitorNodes;
+                for (int i = 0; i < capacitances.length; i++) {
+                    double b = capacitances[i] * omega;
+                    realSources[i] = -b * (equations.potential(imaginary, nodes[2 * i])
+                            - equations.potential(imaginary, nodes[2 * i + 1]));
+                    imaginarySources[i] = b * (equations.potential(real, nodes[2 * i])
+                            - equations.potential(real, nodes[2 * i + 1]));
+                }
+                equations.branchCurrents(real, resistances, zero, realSources, realCurrents);
+                equations.branchCurrents(imaginary, resistances, zero, imaginarySources,
+                        imaginaryCurrents);
+                for (int i = 0; i < recordedIndices.length; i++) {
+                    result.real[i][f] = realCurrents[recordedIndices[i]];
+                    result.imaginary[i][f] = imaginaryCurrents[recordedIndices[i]];
+                }
+                if (listener != null) {
+                    listener.accept(new Point(result, f));
+                }
+            }
+        }
+    }
+
+    /**
+     * The currents of the recorded branches at a single frequency of a sweep.
+     */
+    public static class Point {
+        private final Result result;
+        /** The index of the frequency in the sweep. */
+        public final int index;
+        /** The frequency, in hertz. */
+        public final double frequency;
+
+        private Point(Result result, int index) {
+            this.result = result;
+            this.index = index;
+            this.frequency = result.frequencies[index];
+        }
+
+        /**
+         * @return The amplitude of the current of the given branch, or NaN if it is not recorded
+         * or the circuit is singular at the frequency.
+         */
+        public double magnitude(Branch br) {
+            int i = result.indexOf(br);
+            return i < 0 ? Double.NaN
+                    : Math.hypot(result.real[i][index], result.imaginary[i][index]);
+        }
+
+        /**
+         * @return The phase of the current of the given branch in radians, or NaN if it is not
+         * recorded or the circuit is singular at the frequency.
+         */
+        public double phase(Branch br) {
+            int i = result.indexOf(br);
+            return i < 0 ? Double.NaN
+                    : Math.atan2(result.imaginary[i][index], result.real[i][index]);
+        }
+    }
+
+    /**
+     * The results of an analysis. The current of a branch at a frequency for which the circuit is
+     * singular, e.g. at the resonance of an ideal tank, is NaN.
+     */
+    public static class Result {
+        private final double[] frequencies;
+        private final Map<Branch, Integer> indices;
+        // The real and imaginary parts of the current of each recorded branch at each frequency.
+        private final double[][] real;
+        private final double[][] imaginary;
+
+        private Result(double[] frequencies, List<Branch> recorded) {
+            this.frequencies = frequencies;
+            this.indices = new LinkedHashMap<>();
+            for (int i = 0; i < recorded.size(); i++) {
+                indices.put(recorded.get(i), i);
+            }
+            this.real = new double[recorded.size()][frequencies.length];
+            this.imaginary = new double[recorded.size()][frequencies.length];
+        }
+
+        /**
+         * @return The recorded branches.
+         */
+        public Set<Branch> branches() {
+            return Collections.unmodifiableSet(indices.keySet());
+        }
+
+        /**
+         * @return The frequencies of the sweep, in hertz.
+         */
+        public double[] frequencies() {
+            return frequencies.clone();
+        }
+
+        /**
+         * @return The real part of the current of the given branch at each frequency, or null if
+         * it was not recorded.
+         */
+        public double[] real(Branch br) {
+            int i = indexOf(br);
+            return i < 0 ? null : real[i].clone();
+        }
+
+        /**
+         * @return The imaginary part of the current of the given branch at each frequency, or null
+         * if it was not recorded.
+         */
+        public double[] imaginary(Branch br) {
+            int i = indexOf(br);
+            return i < 0 ? null : imaginary[i].clone();
+        }
+
+        /**
+         * @return The amplitude of the current of the given branch at each frequency, or null if
+         * it was not recorded.
+         */
+        public double[] magnitude(Branch br) {
+            int i = indexOf(br);
+            if (i < 0) {
+                return null;
+            }
+            double[] magnitude = new double[frequencies.length];
+            for (int f = 0; f < magnitude.length; f++) {
+                magnitude[f] = Math.hypot(real[i][f], imaginary[i][f]);
+            }
+            return magnitude;
+        }
+
+        /**
+         * @return The phase of the current of the given branch at each frequency, in radians, or
+         * null if it was not recorded.
+         */
+        public double[] phase(Branch br) {
+            int i = indexOf(br);
+            if (i < 0) {
+                return null;
+            }
+            double[] phase = new double[frequencies.length];
+            for (int f = 0; f < phase.length; f++) {
+                phase[f] = Math.atan2(imaginary[i][f], real[i][f]);
+            }
+            return phase;
+        }
+
+        private int indexOf(Branch br) {
+            Integer i = indices.get(br);
+            return i == null ? -1 : i;
+        }
+    }
+
+    /**
+     * A builder of an analysis of a circuit as it is when the analysis is built.
+     */
+    public static class Builder {
+        private final Circuit circuit;
+        private double[] frequencies;
+        private Collection<Branch> branches;
+
+        public Builder(Circuit circuit) {
+            this.circuit = circuit;
+            this.frequencies = logarithmic(1, 1e6, 10);
+        }
+
+        /**
+         * Sets the frequencies of the sweep, in hertz. By default, it sweeps from 1 hertz to 1
+         * megahertz with 10 frequencies per decade.
+         */
+        public Builder frequencies(double... frequencies) {
+            if (frequencies.length == 0) {
+                throw new IllegalArgumentException("There must be a frequency.");
+            }
+            for (double f : frequencies) {
+                checkFrequency(f);
+            }
+            this.frequencies = frequencies.clone();
+            return this;
+        }
+
+        /**
+         * Sweeps the frequencies from start to stop, in hertz, spaced evenly on a logarithmic
+         * scale.
+         */
+        public Builder decades(double start, double stop, int pointsPerDecade) {
+            checkFrequency(start);
+            checkFrequency(stop);
+            if (stop < start) {
+                throw new IllegalArgumentException("Stop must not be below start.");
+            }
+            if (pointsPerDecade <= 0) {
+                throw new IllegalArgumentException("Points per decade must be positive.");
+            }
+            this.frequencies = logarithmic(start, stop, pointsPerDecade);
+            return this;
+        }
+
+        /**
+         * Records the currents of only the given branches, rather than of every branch.
+         */
+        public Builder branches(Collection<Branch> branches) {
+            this.branches = new ArrayList<>(branches);
+            return this;
+        }
+
+        public ACAnalysis build() {
+            return new ACAnalysis(this);
+        }
+
+        private static void checkFrequency(double f) {
+            if (!(f > 0) || Double.isInfinite(f)) {
+                throw new IllegalArgumentException("Frequencies must be positive.");
+            }
+        }
+
+        private static double[] logarithmic(double start, double stop, int pointsPerDecade) {
+            double decades = Math.log10(stop / start);
+            // The stop frequency is included, whether or not it is a whole number of steps away.
+            int points = (int) Math.ceil(decades * pointsPerDecade - 1e-9) + 1;
+            double[] frequencies = new double[points];
+            for (int k = 0; k < points; k++) {
+                frequencies[k] = start * Math.pow(10, Math.min(decades,
+                        (double) k / pointsPerDecade));
+            }
+            return frequencies;
+        }
+    }
+}
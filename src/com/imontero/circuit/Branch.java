@@ -59,6 +59,15 @@ public class Branch {
         return wires.indexOf(b) - wires.indexOf(a) > 0;
     }
 
+    /**
+     * Returns the wire through which this branch's current leaves the given element, or null if
+     * the element is the end of this branch.
+     */
+    public Wire getNextWire(CircuitElement ce) {
+        int i = elements.indexOf(ce);
+        return i >= 0 && i < wires.size() ? wires.get(i) : null;
+    }
+
     @Override
     public boolean equals(Object other) {
         return other instanceof Branch && ((Branch)other).ID == this.ID;
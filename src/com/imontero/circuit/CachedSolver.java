@@ -0,0 +1,309 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * A solver of the equations of a circuit's topology that reuses a single factorization of their
+ * matrix as the values of the circuit's elements change. Changing potential differences only
+ * changes the right hand side, which costs a forward and back substitution. Changing a few
+ * resistances changes the matrix by a rank one term each, which is applied to every solution with
+ * the Sherman-Morrison-Woodbury formula instead of factoring the matrix again. Only once more than
+ * {@link #MAX_UPDATES} resistances differ from the factored ones is the matrix factored anew.
+ * Solving again with the same values as the last time returns the same currents without solving.
+ * The fill-reducing ordering of the matrix only depends on the topology, so it is computed once.
+ */
+class CachedSolver {
+    /** The most resistance changes applied as updates before the matrix is factored again. */
+    static final int MAX_UPDATES = 8;
+    /** The number of right hand sides substituted together when solving a batch. */
+    static final int BLOCK = 16;
+
+    /** The equations this solves. */
+    final CircuitEquations equations;
+    private FillReducingOrdering ordering;
+    private SparseLU lu;
+    // The resistances the factorization was computed with.
+    private double[] factored;
+    // The update of each resistor whose resistance differs from the factored one.
+    private final Map<Integer, Term> terms;
+    private final List<Term> order;
+    // The LU factorization of the capacitance matrix I + V^T A^-1 U of the updates, row-major and
+    // in place, with the row chosen at each pivot step.
+    private double[] capacitance;
+    private int[] capacitancePivots;
+    private int factorizations;
+    // The values of the last solve with the circuit's values, and the currents it found.
+    private double[] lastResistances;
+    private double[] lastPotentialDifferences;
+    private double[] lastCurrents;
+    private int solves;
+
+    CachedSolver(CircuitEquations equations) {
+        this.equations = equations;
+        this.terms = new HashMap<>();
+        this.order = new ArrayList<>();
+    }
+
+    /**
+     * @return The number of times the matrix has been factored.
+     */
+    int factorizations() {
+        return factorizations;
+    }
+
+    /**
+     * @return The number of times the equations have been solved with a single right hand side.
+     */
+    int solves() {
+        return solves;
+    }
+
+    /**
+     * @return The number of resistance changes currently applied as updates.
+     */
+    int updates() {
+        return order.size();
+    }
+
+    /**
+     * Solves the equations with the current values of the circuit's elements.
+     *
+     * @return The current of each branch of the equations.
+     * @throws ArithmeticException if the equations are singular.
+     */
+    double[] solve() {
+        double[] resistances = equations.resistances();
+        double[] potentialDifferences = equations.potentialDifferences();
+        if (lastCurrents == null || !Arrays.equals(resistances, lastResistances)
+                || !Arrays.equals(potentialDifferences, lastPotentialDifferences)) {
+            lastCurrents = solve(resistances, potentialDifferences);
+            lastResistances = resistances;
+            lastPotentialDifferences = potentialDifferences;
+        }
+        return lastCurrents.clone();
+    }
+
+    /**
+     * Solves the equations with the given values of the circuit's elements.
+     *
+     * @param resistances The resistance of each resistor of the equations.
+     * @param potentialDifferences The potential difference of each battery of the equations.
+     * @requires The equations accept the resistances.
+     * @return The current of each branch of the equations.
+     * @throws ArithmeticException if the equations are singular.
+     */
+    double[] solve(double[] resistances, double[] potentialDifferences) {
+        prepare(resistances);
+        solves++;
+        double[] x = solveMatrix(equations.rightHandSide(potentialDifferences));
+        return equations.branchCurrents(x, resistances);
+    }
+
+    /**
+     * Solves the equations with the given resistances for a batch of potential differences. The
+     * matrix is factored at most once, and blocks of right hand sides share each substitution.
+     *
+     * @param resistances The resistance of each resistor of the equations.
+     * @param potentialDifferences The potential difference of each battery of the equations, in
+     *                             each scenario.
+     * @requires The equations accept the resistances.
+     * @return The current of each branch of the equations, in each scenario.
+     * @throws ArithmeticException if the equations are singular.
+     */
+    double[][] solve(double[] resistances, double[][] potentialDifferences) {
+        prepare(resistances);
+        int n = equations.size();
+        double[][] currents = new double[potentialDifferences.length][];
+        double[] y = new double[n];
+        for (int start = 0; start < currents.length; start += BLOCK) {
+            int count = Math.min(BLOCK, currents.length - start);
+            double[] b = new double[n * count];
+            for (int r = 0; r < count; r++) {
+                double[] rhs = equations.rightHandSide(potentialDifferences[start + r]);
+                for (int i = 0; i < n; i++) {
+                    b[i * count + r] = rhs[i];
+                }
+            }
+            double[] x = lu.solve(b, count);
+            for (int r = 0; r < count; r++) {
+                for (int i = 0; i < n; i++) {
+                    y[i] = x[i * count + r];
+                }
+                applyUpdates(y);
+                currents[start + r] = equations.branchCurrents(y, resistances);
+            }
+        }
+        return currents;
+    }
+
+    /**
+     * Helper method to bring the factorization and its updates up to date with the given
+     * resistances.
+     */
+    private void prepare(double[] resistances) {
+        if (!equations.diodes.isEmpty()) {
+            throw new IllegalStateException("Diodes need a nonlinear solve.");
+        }
+        if (lu == null) {
+            factor(resistances);
+            return;
+        }
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < resistances.length; i++) {
+            if (resistances[i] != factored[i]) {
+                changed.add(i);
+                if (changed.size() > MAX_UPDATES) {
+                    factor(resistances);
+                    return;
+                }
+            }
+        }
+        boolean same = changed.size() == order.size();
+        for (int i : changed) {
+            Term t = terms.get(i);
+            same &= t != null && t.resistance == resistances[i];
+        }
+        if (same) {
+            return;
+        }
+
+        terms.keySet().retainAll(changed);
+        order.clear();
+        for (int i : changed) {
+            Term t = terms.get(i);
+            if (t == null || t.resistance != resistances[i]) {
+                t = new Term(resistances[i],
+                        equations.resistanceUpdate(i, factored[i], resistances[i]));
+                terms.put(i, t);
+            }
+            order.add(t);
+        }
+        if (!factorCapacitance()) {
+            // The updates cancel out the factored matrix; only a new factorization can tell
+            // whether the updated one is singular.
+            factor(resistances);
+        }
+    }
+
+    /**
+     * Helper method to factor the matrix with the given resistances, discarding all updates.
+     */
+    private void factor(double[] resistances) {
+        SparseMatrix matrix = equations.matrix(resistances);
+        if (ordering == null) {
+            ordering = FillReducingOrdering.of(matrix);
+        }
+        lu = new SparseLU(matrix, ordering);
+        factored = resistances.clone();
+        terms.clear();
+        order.clear();
+        factorizations++;
+    }
+
+    /**
+     * Helper method to factor the capacitance matrix of the current updates.
+     *
+     * @return false iff it is singular.
+     */
+    private boolean factorCapacitance() {
+        int k = order.size();
+        capacitance = new double[k * k];
+        capacitancePivots = new int[k];
+        for (int i = 0; i < k; i++) {
+            for (int j = 0; j < k; j++) {
+                capacitance[i * k + j] = (i == j ? 1 : 0)
+                        + order.get(i).update.dotV(order.get(j).z);
+            }
+        }
+        // Gaussian elimination with partial pivoting
+        for (int p = 0; p < k; p++) {
+            int max = p;
+            for (int i = p + 1; i < k; i++) {
+                if (Math.abs(capacitance[i * k + p]) > Math.abs(capacitance[max * k + p])) {
+                    max = i;
+                }
+            }
+            capacitancePivots[p] = max;
+            if (max != p) {
+                for (int j = 0; j < k; j++) {
+                    double temp = capacitance[p * k + j];
+                    capacitance[p * k + j] = capacitance[max * k + j];
+                    capacitance[max * k + j] = temp;
+                }
+            }
+            double pivot = capacitance[p * k + p];
+            if (Math.abs(pivot) < 1e-12) {
+                return false;
+            }
+            for (int i = p + 1; i < k; i++) {
+                double factor = capacitance[i * k + p] / pivot;
+                capacitance[i * k + p] = factor;
+                for (int j = p + 1; j < k; j++) {
+                    capacitance[i * k + j] -= factor * capacitance[p * k + j];
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Helper method to solve the updated system (A + U V^T) x = b.
+     */
+    private double[] solveMatrix(double[] b) {
+        double[] y = lu.solve(b);
+        applyUpdates(y);
+        return y;
+    }
+
+    /**
+     * Helper method to turn the solution y = A^-1 b of the factored matrix into the solution of
+     * the updated system, x = y - Z (I + V^T Z)^-1 V^T y, where Z = A^-1 U.
+     */
+    private void applyUpdates(double[] y) {
+        int k = order.size();
+        if (k == 0) {
+            return;
+        }
+        double[] w = new double[k];
+        for (int i = 0; i < k; i++) {
+            w[i] = order.get(i).update.dotV(y);
+        }
+        for (int p = 0; p < k; p++) {
+            int max = capacitancePivots[p];
+            double temp = w[p];
+            w[p] = w[max];
+            w[max] = temp;
+            for (int i = p + 1; i < k; i++) {
+                w[i] -= capacitance[i * k + p] * w[p];
+            }
+        }
+        for (int p = k - 1; p >= 0; p--) {
+            for (int j = p + 1; j < k; j++) {
+                w[p] -= capacitance[p * k + j] * w[j];
+            }
+            w[p] /= capacitance[p * k + p];
+        }
+        for (int i = 0; i < k; i++) {
+            double[] z = order.get(i).z;
+            for (int j = 0; j < y.length; j++) {
+                y[j] -= w[i] * z[j];
+            }
+        }
+    }
+
+    /**
+     * The update of the factored matrix for a resistor whose resistance changed.
+     */
+    private class Term {
+        final double resistance;
+        final CircuitEquations.Update update;
+        // A^-1 u, for the factored matrix A.
+        final double[] z;
+
+        Term(double resistance, CircuitEquations.Update update) {
+            this.resistance = resistance;
+            this.update = update;
+            this.z = lu.solve(update.u(lu.n));
+        }
+    }
+}
@@ -26,14 +26,59 @@ public class Circuit {
     public Set<Branch> branches;
     /** The junctions in this circuit that contain more than two active wires */
     public Set<CircuitElement> junctions;
+    /** The strategy used to discover the loops of this circuit. */
+    public final LoopDiscovery loopDiscovery;
+
+    // The spanning forest whose fundamental loops are maintained as wires change, or null with
+    // LoopDiscovery.NONE.
+    final SpanningForest forest;
+    // The elements whose connected parts changed since their branches were last derived, in modes
+    // other than ALL.
+    private final Set<CircuitElement> staleElements;
+    // The elements and wires of this circuit, indexed densely for the analysis of its topology.
+    final CompactCircuit compact;
+    // The solvers of the loop and nodal equations of each connected component of this circuit.
+    final PartitionedSolver loopSolvers;
+    final PartitionedSolver nodalSolvers;
+    // The solver of the nodal equations of the whole circuit by conjugate gradients, which is
+    // rebuilt after the topology changes, starting from its last solution.
+    private IterativeSolver iterativeSolver;
+    private boolean iterativeSolverStale;
+    private NonlinearSolver nonlinearSolver;
+    private boolean nonlinearSolverStale;
 
     /**
-     * Instantiates a new, empty circuit.
+     * Instantiates a new, empty circuit that enumerates all of its loops.
      */
     public Circuit() {
-        this.wires = new HashSet<>();
-        this.elements = new HashSet<>();
+        this(LoopDiscovery.ALL);
+    }
+
+    /**
+     * Instantiates a new, empty circuit.
+     *
+     * @param loopDiscovery The strategy used to discover the loops of this circuit.
+     */
+    public Circuit(LoopDiscovery loopDiscovery) {
+        this(loopDiscovery, 16, 16);
+    }
+
+    /**
+     * Instantiates a new, empty circuit with room for the given numbers of elements and wires.
+     */
+    Circuit(LoopDiscovery loopDiscovery, int elementCapacity, int wireCapacity) {
+        this.loopDiscovery = loopDiscovery;
+        this.wires = new HashSet<>(wireCapacity);
+        this.elements = new HashSet<>(elementCapacity);
         this.loops = new HashSet<>();
+        this.wireToBranch = new HashMap<>(wireCapacity);
+        this.branches = new HashSet<>();
+        this.junctions = new HashSet<>();
+        this.forest = loopDiscovery == LoopDiscovery.NONE ? null : new SpanningForest();
+        this.staleElements = new HashSet<>();
+        this.compact = new CompactCircuit();
+        this.loopSolvers = new PartitionedSolver(this, part -> new LoopEquations(this, part));
+        this.nodalSolvers = new PartitionedSolver(this, part -> new NodalEquations(this, part));
     }
 
     /**
@@ -43,6 +88,7 @@ public class Circuit {
      */
     public void addCircuitElement(CircuitElement ce) {
         this.elements.add(ce);
+        this.compact.addElement(ce);
     }
 
     /**
@@ -56,10 +102,24 @@ public class Circuit {
             return;
         }
         this.wires.add(w);
+        this.compact.addWire(w);
+        invalidateSolvers(w.a);
+        invalidateSolvers(w.b);
 
         w.b.connections.add(w);
         w.a.connections.add(w);
 
+        // A wire that joins two separate parts of the circuit cannot create any loops.
+        Loop fundamental = forest == null ? null : forest.addWire(w);
+        if (loopDiscovery != LoopDiscovery.ALL) {
+            if (fundamental != null) {
+                loops.add(fundamental);
+            }
+            staleElements.add(w.a);
+            return;
+        } else if (fundamental == null) {
+            return;
+        }
         // When a wire is added, it's possible that new loops were created in the circuit. We will
         // search for all the loops created by this wire.
         findLoops(w, new Loop.LoopBuilder());
@@ -68,6 +128,46 @@ public class Circuit {
         findBranches();
     }
 
+    /**
+     * Adds the given elements and wires to this at once. This is equivalent to adding each element
+     * and then each wire in order, but the solvers are only discarded once and, with
+     * {@link LoopDiscovery#ALL}, the branches are only derived once, after every loop was found.
+     *
+     * @requires The endpoints of every wire exist in this, or among the given elements.
+     * @param elements The circuit elements to insert into the circuit.
+     * @param wires The wires to insert into the circuit.
+     */
+    public void addAll(Collection<CircuitElement> elements, Collection<Wire> wires) {
+        for (CircuitElement ce : elements) {
+            this.elements.add(ce);
+            this.compact.addElement(ce);
+        }
+        invalidateSolvers();
+        boolean closedLoop = false;
+        for (Wire w : wires) {
+            if (!this.wires.add(w)) {
+                continue;
+            }
+            this.compact.addWire(w);
+            w.b.connections.add(w);
+            w.a.connections.add(w);
+
+            Loop fundamental = forest == null ? null : forest.addWire(w);
+            if (loopDiscovery != LoopDiscovery.ALL) {
+                if (fundamental != null) {
+                    loops.add(fundamental);
+                }
+                staleElements.add(w.a);
+            } else if (fundamental != null) {
+                findLoops(w, new Loop.LoopBuilder());
+                closedLoop = true;
+            }
+        }
+        if (closedLoop) {
+            findBranches();
+        }
+    }
+
     /**
      * Removes the given CircuitElement and all connected wires from this.
      *
@@ -75,11 +175,32 @@ public class Circuit {
      */
     public void removeCircuitElement(CircuitElement ce) {
         this.elements.remove(ce);
+        invalidateSolvers(ce);
 
-        this.wires.removeIf(wire -> wire.containsEndpoint(ce));
-        this.loops.removeIf(loop -> loop.elements.contains(ce));
+        // Detach the removed wires from the elements on their other end.
+        for (Wire w : new ArrayList<>(ce.connections)) {
+            CircuitElement other = w.next(ce);
+            if (other != null && other != ce) {
+                other.connections.remove(w);
+            }
+            this.wires.remove(w);
+            this.compact.removeWire(w);
+            detachWire(w);
+        }
+        this.compact.removeElement(ce);
+        if (forest != null) {
+            forest.removeElement(ce);
+        }
+        this.junctions.remove(ce);
+        this.staleElements.remove(ce);
 
-        findBranches();
+        if (loopDiscovery != LoopDiscovery.ALL) {
+            return;
+        }
+        // Only the loops through the element could have been broken.
+        if (this.loops.removeIf(loop -> loop.hasCircuitElement(ce))) {
+            findBranches();
+        }
     }
 
     /**
@@ -88,21 +209,55 @@ public class Circuit {
      * @param w The wire to remove from this circuit.
      */
     public void removeWire(Wire w) {
-        // TODO: Test
         if (!this.wires.contains(w)) {
             return;
         }
         this.wires.remove(w);
+        this.compact.removeWire(w);
+        invalidateSolvers(w.a);
+        invalidateSolvers(w.b);
 
         w.b.connections.remove(w);
         w.a.connections.remove(w);
+        detachWire(w);
 
+        if (loopDiscovery != LoopDiscovery.ALL) {
+            return;
+        }
         // When a wire is removed, it's possible that loops have been broken. We will remove all
         // loops which depended on the removed wire.
-        this.loops.removeIf(loop -> loop.wires.contains(w));
-        // With the possibly removed loops, we will find all the active branches in this new
-        // configuration.
-        findBranches();
+        if (this.loops.removeIf(loop -> loop.hasWire(w))) {
+            // With the removed loops, we will find all the active branches in this new
+            // configuration. If no loop was broken, the wire was not active, and the branches
+            // remain the same.
+            findBranches();
+        }
+    }
+
+    /**
+     * Helper method to update the spanning forest, and in modes other than ALL the loops and
+     * branches, after the given wire was removed from this.
+     *
+     * @param w The removed wire.
+     */
+    private void detachWire(Wire w) {
+        if (forest != null) {
+            List<Loop> removed = new ArrayList<>();
+            List<Loop> added = new ArrayList<>();
+            forest.removeWire(w, removed, added);
+            if (loopDiscovery == LoopDiscovery.FUNDAMENTAL) {
+                loops.removeAll(removed);
+                loops.addAll(added);
+            }
+        }
+        if (loopDiscovery != LoopDiscovery.ALL) {
+            Branch br = wireToBranch.get(w);
+            if (br != null) {
+                forgetBranch(br);
+            }
+            staleElements.add(w.a);
+            staleElements.add(w.b);
+        }
     }
 
     /**
@@ -148,6 +303,7 @@ public class Circuit {
         wireToBranch = new HashMap<>();
         junctions = new HashSet<>();
         branches = new HashSet<>();
+        invalidateSolvers();
         // Since the first wire in a loop HAS to have a current, we will
         // add it to the list.
         for (Loop l : loops) {
@@ -234,201 +390,367 @@ public class Circuit {
     }
 
     /**
-     * Evaluates the current circuit configuration and determines the electric current through
-     * each branch and element, which, then, potential difference can be determined from.
-     *
-     * @requires loops and branches of the current circuit configuration have been found.
+     * Brings the branches and junctions of this circuit up to date with its wires. With
+     * {@link LoopDiscovery#ALL} they are always up to date; otherwise they are derived lazily, only
+     * for the connected parts of the circuit that changed, and this must be called before
+     * inspecting them. The solve methods call this themselves.
      */
-    public void solve() {
-        // Always evaluate before accessing current values / potential
-        // differences
-        //
-        // We know that, in given complete circuit, the amount of unknowns
-        // we have are the currents (voltages can be then derived from the
-        // current), which equal to the number of active branches B. Let J
-        // equal to the amount of junctions. We will use Gaussian
-        // Elimination on the linear Kirchhoff equations to solve for
-        // these unknowns. We will need B independent equations, which we
-        // can obtain by using J-1 different junction equations and
-        // B-(J-1) different loop rule equations.
-
-        // Get independent equations
-        int b = branches.size(), j = junctions.size();
-
-        List<CircuitElement> iJunctions = new ArrayList<>();
-        ArrayList<Loop> iLoops = new ArrayList<>();
-        Iterator<CircuitElement> jIter = junctions.iterator();
-        while (j > 0 && iJunctions.size() < j-1) {
-            iJunctions.add(jIter.next());
-        }
-        Iterator<Loop> lIter = loops.iterator();
-        while (iLoops.size() + iJunctions.size() < branches.size()) {
-            iLoops.add(lIter.next());
-        }
-        assert branches.size() == iJunctions.size() + iLoops.size();
-
-        // Create augmented matrix to solve.
-        // Bx(B+1) matrix, last column is the "solution" part.
-        double[][] mat = new double[b][b+1];
-        // We will map branches (currents) to a specific index.
-        List<Branch> bMappings = new ArrayList<>();
-        Iterator<Branch> bIter = branches.iterator();
-        for (int i = 0; i < b; i++) {
-            bMappings.add(i, bIter.next());
-        }
-
-        // Populate the matrix
-
-        // Start with loop equations
-        for (int i = 0; i < iLoops.size(); i++) {
-            Loop l = iLoops.get(i);
-            for (CircuitElement ce : l.elements) {
-                if (ce.type.PINS != 2) {
-                    continue;
+    public void analyze() {
+        if (staleElements.isEmpty()) {
+            return;
+        }
+        int[] offsets = compact.offsets();
+        int[] adjacency = compact.adjacency();
+        // Find the connected parts containing the changed elements, and forget their branches.
+        compact.startTraversal();
+        int[] part = new int[16];
+        int size = 0;
+        for (CircuitElement ce : staleElements) {
+            int i = compact.indexOf(ce);
+            if (i >= 0 && compact.markElement(i)) {
+                part = ensureCapacity(part, size + 1);
+                part[size++] = i;
+            }
+        }
+        for (int head = 0; head < size; head++) {
+            int v = part[head];
+            junctions.remove(compact.elements[v]);
+            for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                int w = adjacency[p];
+                Branch br = wireToBranch.get(compact.wires[w]);
+                if (br != null) {
+                    forgetBranch(br);
                 }
-                Branch br = wireToBranch.get(l.getNextWire(ce));
-                switch (ce.type) {
-                    case BATTERY:
-                        // Negative, since we are putting it on the other side
-                        // of the equality (the "equal" side)
-                        mat[i][b] +=
-                                -ce.potentialDifference
-                                        * ce.getPotentialDifferenceSign(l, br);
-                        break;
-                    case RESISTOR:
-                        mat[i][bMappings.indexOf(br)] +=
-                                ce.resistance * ce.getPotentialDifferenceSign(l, br);
-                    default:
-                        break;
+                int u = compact.other(w, v);
+                if (compact.markElement(u)) {
+                    part = ensureCapacity(part, size + 1);
+                    part[size++] = u;
                 }
             }
         }
+        findBranchesFromWires(Arrays.copyOf(part, size));
+        staleElements.clear();
+    }
 
-        // Add junction equations
-        for (int i = 0; i < iJunctions.size(); i++) {
-            CircuitElement ce = iJunctions.get(i);
-            // Find currents that are in and out.
-            for (Wire w : ce.connections) {
-                if (wireToBranch.containsKey(w)) {
-                    Branch br = wireToBranch.get(w);
-                    int row = iLoops.size() + i;
-                    if (br.getDirection(ce, w.next(ce))) {
-                        // If in same direction as going out from junction
-                        mat[row][bMappings.indexOf(br)] = -1;
-                    } else {
-                        mat[row][bMappings.indexOf(br)] = 1;
-                    }
+    private static int[] ensureCapacity(int[] array, int size) {
+        return size <= array.length ? array : Arrays.copyOf(array, 2 * array.length);
+    }
+
+    /**
+     * Helper method to remove the given branch from this.
+     */
+    private void forgetBranch(Branch br) {
+        branches.remove(br);
+        for (Wire w : br.wires) {
+            wireToBranch.remove(w);
+        }
+    }
+
+    /**
+     * Helper method to find the active branches in the current circuit configuration directly from
+     * its wires, without depending on its loops. A wire is active iff it is not a bridge (e.g. it
+     * lies on some loop), and a junction iff it joins more than two active wires. Runs in
+     * O(elements + wires) of the given connected parts.
+     *
+     * @param part The indices of the elements of the connected parts to find the branches of.
+     * @requires The part has no branches or junctions.
+     */
+    private void findBranchesFromWires(int[] part) {
+        int[] offsets = compact.offsets();
+        int[] adjacency = compact.adjacency();
+        // The active wires are marked by the search, and unmarked as they are assigned to branches.
+        int[] local = findActiveWires(part);
+        boolean[] isJunction = new boolean[part.length];
+        for (int k = 0; k < part.length; k++) {
+            int v = part[k];
+            CircuitElement ce = compact.elements[v];
+            int activeDegree = 0;
+            for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                if (compact.isWireMarked(adjacency[p])) {
+                    activeDegree++;
                 }
             }
+            if (ce.type.PINS != 2 && activeDegree > 2) {
+                isJunction[k] = true;
+                junctions.add(ce);
+            }
         }
 
-        // Run gauss elimination on the Kirchhoff equations
-        gaussianElimination(mat);
-
-        // Through back substitution, get the currents
-        double[] currents = backSubstitution(mat);
+        // Every branch runs from a junction to a junction through elements with exactly two
+        // active wires.
+        for (int k = 0; k < part.length; k++) {
+            if (!isJunction[k]) {
+                continue;
+            }
+            int v = part[k];
+            for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                int w = adjacency[p];
+                if (compact.isWireMarked(w)) {
+                    traceBranch(v, w, local, isJunction);
+                }
+            }
+        }
+        // The remaining active wires form loops without any junction; each is a single branch.
+        for (int v : part) {
+            for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                int w = adjacency[p];
+                if (compact.isWireMarked(w)) {
+                    traceBranch(v, w, local, isJunction);
+                }
+            }
+        }
+    }
 
-        // Now, set the currents for the branches
-        for (int i = 0; i < bMappings.size(); i++) {
-            bMappings.get(i).current = currents[i];
+    /**
+     * Helper method to walk a new branch starting at the given element along the given wire,
+     * until a junction or the start of the branch is reached.
+     *
+     * @param start The index of the element the branch starts at.
+     * @param first The index of the first wire of the branch.
+     * @param local The position of each element in the part being analyzed.
+     * @param isJunction Whether each element of the part is a junction.
+     * @requires The active wires not yet assigned to a branch are exactly the marked ones.
+     */
+    private void traceBranch(int start, int first, int[] local, boolean[] isJunction) {
+        int[] offsets = compact.offsets();
+        int[] adjacency = compact.adjacency();
+        Branch br = new Branch();
+        int curr = start;
+        int w = first;
+        while (w >= 0 && compact.isWireMarked(w)) {
+            compact.unmarkWire(w);
+            associateWireWithBranch(compact.wires[w], br);
+            curr = compact.other(w, curr);
+            if (isJunction[local[curr]]) {
+                break;
+            }
+            int next = -1;
+            for (int p = offsets[curr]; p < offsets[curr + 1]; p++) {
+                int o = adjacency[p];
+                if (o != w && compact.isWireMarked(o)) {
+                    next = o;
+                    break;
+                }
+            }
+            w = next;
         }
     }
 
     /**
-     * Performs gaussian elimination on the given augmented matrix
+     * Helper method to find the wires of the given connected parts that lie on a loop, using an
+     * iterative version of Tarjan's bridge-finding algorithm. The active wires are left marked in
+     * the compact form of this circuit.
      *
-     * @param mat A square matrix with an extra column at the end representing the equality section.
+     * @param part The indices of the elements of the connected parts to search.
+     * @return The position of each element in the part, by index.
      */
-    private void gaussianElimination(double[][] mat) {
-        // Assumes square matrix w/ additional last column as the
-        // equal side. Assumes there is a single answer, and that
-        // the rows are independent.
-        int n = mat.length;
+    private int[] findActiveWires(int[] part) {
+        int[] offsets = compact.offsets();
+        int[] adjacency = compact.adjacency();
+        int n = part.length;
+        int[] local = compact.elementScratch();
         for (int k = 0; k < n; k++) {
-            // Step 1: find the kth pivot, which we will use the element
-            // the largest absolute value for computational stability.
-            int iMax = k;
-            double vMax = mat[iMax][k];
-            for (int i = k+1; i < n; i++) {
-                if(Math.abs(mat[i][k]) > vMax) {
-                    iMax = i;
-                    vMax = Math.abs(mat[i][k]);
+            local[part[k]] = k;
+        }
+        // All by position in the part
+        int[] discovered = new int[n];
+        int[] low = new int[n];
+        int[] parentWire = new int[n];
+        int[] nextConnection = new int[n];
+        int[] stack = new int[n];
+        Arrays.fill(discovered, -1);
+        // A spanning tree has fewer wires than elements, so neither do its bridges.
+        int[] bridges = new int[n];
+        int bridgeCount = 0;
+        int time = 0;
+        for (int root = 0; root < n; root++) {
+            if (discovered[root] >= 0) {
+                continue;
+            }
+            discovered[root] = low[root] = time++;
+            parentWire[root] = -1;
+            nextConnection[root] = offsets[part[root]];
+            int head = 0;
+            stack[0] = root;
+            while (head >= 0) {
+                int v = stack[head];
+                int i = nextConnection[v];
+                if (i < offsets[part[v] + 1]) {
+                    nextConnection[v] = i + 1;
+                    int w = adjacency[i];
+                    if (w == parentWire[v]) {
+                        continue;
+                    }
+                    int u = local[compact.other(w, part[v])];
+                    if (discovered[u] >= 0) {
+                        low[v] = Math.min(low[v], discovered[u]);
+                    } else {
+                        discovered[u] = low[u] = time++;
+                        nextConnection[u] = offsets[part[u]];
+                        parentWire[u] = w;
+                        stack[++head] = u;
+                    }
+                } else {
+                    head--;
+                    int w = parentWire[v];
+                    if (w >= 0) {
+                        int parent = local[compact.other(w, part[v])];
+                        low[parent] = Math.min(low[parent], low[v]);
+                        if (low[v] > discovered[parent]) {
+                            bridges[bridgeCount++] = w;
+                        }
+                    }
                 }
             }
-
-            // Swap the current row with the max row
-            if (iMax != k) {
-                swapRows(mat, k, iMax);
+        }
+        // Mark every wire of the part but the bridges.
+        compact.startTraversal();
+        for (int v : part) {
+            for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                compact.markWire(adjacency[p]);
             }
+        }
+        for (int k = 0; k < bridgeCount; k++) {
+            compact.unmarkWire(bridges[k]);
+        }
+        return local;
+    }
 
-            // Row elimination
-            for (int i = k+1; i < n; i++) {
-                // Factor f to set the kth element of the current
-                // row to zero.
-                double f = mat[i][k] / mat[k][k];
+    /**
+     * Evaluates the current circuit configuration using modified nodal analysis and determines the
+     * electric current through each branch. Unlike {@link #solve()}, this does not depend on the
+     * loops of the circuit, so it may be used with any {@link LoopDiscovery}.
+     *
+     * Each electrically isolated part of the circuit is solved as a separate system, and the
+     * parts are solved concurrently. The factorization of a part's equations is reused until its
+     * topology changes, so solving again after changing only potential differences or a few
+     * resistances is cheap, and parts whose elements did not change are not solved again at all.
+     *
+     * @throws IllegalStateException if this has a diode, which only
+     *                               {@link #solveNonlinear(NewtonRaphson)} can model.
+     */
+    public void solveNodal() {
+        analyze();
+        nodalSolvers.solve();
+    }
 
-                // Subtract the kth row element times f from the
-                // current row.
-                for (int j = k+1; j < n+1; j++) {
-                    mat[i][j] -= mat[k][j]*f;
-                }
+    /**
+     * Evaluates the current circuit configuration like {@link #solveNodal()}, but solves the
+     * equations iteratively with the preconditioned conjugate gradient method instead of factoring
+     * them. This needs memory proportional to the size of the circuit, so it suits large
+     * resistive meshes whose factors would fill in, and each solve starts from the previous
+     * solution, so it converges in few iterations after small edits, including edits of the
+     * topology.
+     *
+     * @param settings The tolerance, iteration cap and preconditioner of the solve.
+     * @return The number of iterations run and the final residual.
+     * @throws ArithmeticException if the equations are singular, e.g. batteries form a loop.
+     * @throws IllegalStateException if this has a diode.
+     */
+    public ConjugateGradient.Result solveIterative(ConjugateGradient settings) {
+        analyze();
+        if (iterativeSolver == null || iterativeSolverStale
+                || !iterativeSolver.equations.isCurrent()) {
+            iterativeSolver = new IterativeSolver(new NodalEquations(this), iterativeSolver);
+            iterativeSolverStale = false;
+        }
+        return iterativeSolver.solve(settings);
+    }
 
-                // Fill lower triangular matrix with zero
-                // (To rid of floating point error)
-                mat[i][k] = 0.0;
-            }
+    /**
+     * Evaluates the current circuit configuration with its diodes like {@link #solveNodal()}, by
+     * iterating the nodal equations of the circuit with each diode linearized around the last
+     * iterate. Each solve starts from the last solution, and reuses its factored matrix while it
+     * converges quickly, so solving again after a small change is cheap.
+     *
+     * @param settings The tolerance, iteration cap and optimizations of the solve.
+     * @return The number of iterations, factorizations and diode evaluations, and the time taken.
+     * @throws ArithmeticException if the equations are singular, e.g. batteries form a loop.
+     * @throws IllegalArgumentException if a diode has no positive saturation current or emission
+     *                                  coefficient.
+     */
+    public NewtonRaphson.Result solveNonlinear(NewtonRaphson settings) {
+        analyze();
+        if (nonlinearSolver == null || nonlinearSolverStale
+                || !nonlinearSolver.equations.isCurrent()) {
+            nonlinearSolver = new NonlinearSolver(new NodalEquations(this), nonlinearSolver);
+            nonlinearSolverStale = false;
         }
+        return nonlinearSolver.solve(settings);
     }
 
     /**
-     * A helper method to swap rows in the given augmented matrix.
+     * Evaluates the current circuit configuration and determines the electric current through
+     * each branch and element, which, then, potential difference can be determined from.
      *
-     * @param mat A square matrix with an extra column at the end representing the equality section.
-     * @param r1 The index of one of the rows to swap.
-     * @param r2 The index of the other row to swap.
+     * Like {@link #solveNodal()}, each isolated part of the circuit is solved separately, and the
+     * factorization of its equations is reused until its topology changes.
+     *
+     * @requires loops and branches of the current circuit configuration have been found.
+     * @throws IllegalStateException if this does not discover loops, or has a capacitor, which
+     *                               only {@link #solveNodal()} can model, or a diode, which only
+     *                               {@link #solveNonlinear(NewtonRaphson)} can model.
      */
-    private void swapRows(double[][] mat, int r1, int r2) {
-        // Assumes square matrix w/ additional last column as the
-        // equal side.
-        int n = mat.length;
-        for (int j = 0; j < n + 1; j++) {
-            double temp = mat[r1][j];
-            mat[r1][j] = mat[r2][j];
-            mat[r2][j] = temp;
+    public void solve() {
+        if (loopDiscovery == LoopDiscovery.NONE) {
+            throw new IllegalStateException("Loop equations require loops to be discovered.");
         }
+        analyze();
+        // Always evaluate before accessing current values / potential
+        // differences
+        loopSolvers.solve();
     }
 
     /**
-     * Performs back substitution on the given matrix to obtain the solution to the matrix.
+     * Evaluates the current circuit configuration under several scenarios of battery potential
+     * differences at once, without changing the current of any branch. The equations of
+     * {@link #solve()}, or those of {@link #solveNodal()} with {@link LoopDiscovery#NONE}, of each
+     * isolated part are factored at most once, and the scenarios share each forward and back
+     * substitution in blocks, so each scenario costs about as much as a substitution.
      *
-     * @param mat The matrix to perform back substitution on.
-     * @requires Gaussian elimination already done on the given matrix.
-     * @return The solution to the augmented matrix.
+     * @param batteries The batteries whose potential differences vary. Every other battery keeps
+     *                  its potential difference.
+     * @param scenarios The potential differences of the batteries, in the same order, in each
+     *                  scenario.
+     * @param branches The branches to determine the current of.
+     * @return The current of each of the given branches, in the same order, in each scenario. An
+     *         inactive branch has no current.
+     * @throws IllegalArgumentException if a scenario does not have a potential difference for
+     *                                  every battery.
      */
-    private double[] backSubstitution(double[][] mat) {
-        // Assumes square matrix w/ additional last column as the
-        // equal side.
-        int n = mat.length;
-        double[] ans = new double[n];
-
-        // Start calculating from the last row to the first.
-        for (int i = n-1; i >= 0; i--) {
-            // Start with RHS
-            ans[i] = mat[i][n];
-
-            // To solve for the value of column i, we will
-            // use the previous values solved for on the
-            // LHS and subtract them from the RHS
-            // Since the matrix is upper triangular, we can
-            // start with j+1
-            for (int j = i+1; j < n; j++) {
-                ans[i] -= mat[i][j] * ans[j];
+    public double[][] solveBatch(List<CircuitElement> batteries, double[][] scenarios,
+                                 List<Branch> branches) {
+        for (int s = 0; s < scenarios.length; s++) {
+            if (scenarios[s].length != batteries.size()) {
+                throw new IllegalArgumentException("Scenario " + s + " has "
+                        + scenarios[s].length + " potential differences for "
+                        + batteries.size() + " batteries.");
             }
-
-            // Now, divide the RHS by the coefficient of the
-            // unknown being currently calculated.
-            ans[i] /= mat[i][i];
         }
-        return ans;
+        analyze();
+        PartitionedSolver solvers = loopDiscovery == LoopDiscovery.NONE
+                ? nodalSolvers : loopSolvers;
+        return solvers.solve(batteries, scenarios, branches);
+    }
+
+    /**
+     * Helper method to discard the solvers of the part of this circuit containing the given
+     * element, after the topology of that part changed.
+     */
+    private void invalidateSolvers(CircuitElement ce) {
+        loopSolvers.invalidate(ce);
+        nodalSolvers.invalidate(ce);
+        iterativeSolverStale = true;
+        nonlinearSolverStale = true;
+    }
+
+    /**
+     * Discards the solvers of every part of this circuit.
+     */
+    void invalidateSolvers() {
+        loopSolvers.invalidateAll();
+        nodalSolvers.invalidateAll();
+        iterativeSolverStale = true;
+        nonlinearSolverStale = true;
     }
 }
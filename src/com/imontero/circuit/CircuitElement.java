@@ -6,6 +6,8 @@ import java.util.ArrayList;
 public class CircuitElement {
     private static int circuitElementIdCounter = 0;
     public final int ID;
+    // The index of this element in the compact form of the circuit containing it, or -1.
+    int index = -1;
     public CircuitElementType type;
     // If only has 2 connections:
     // Scalars are measured from 0 to 1.
@@ -29,6 +31,39 @@ public class CircuitElement {
     // Fields:
     public double resistance = 0;
 
+    /* Capacitor */
+    // Assertions:
+    //  * Has only 2 connections
+    //  * Open circuit in a steady state
+    // Fields:
+    public double capacitance = 0;
+
+    /* Inductor */
+    // Assertions:
+    //  * Has only 2 connections
+    //  * Short circuit in a steady state
+    // Fields:
+    public double inductance = 0;
+
+    /* AC source */
+    // Assertions:
+    //  * Has only 2 connections
+    //  * Has a direction
+    //  * Short circuit in a steady state
+    // Fields:
+    // The peak potential difference, and its phase in radians, at every frequency.
+    public double amplitude = 0;
+    public double phase = 0;
+
+    /* Diode */
+    // Assertions:
+    //  * Has only 2 connections
+    //  * Has a direction, from its anode to its cathode
+    // Fields:
+    // The current is saturationCurrent * (exp(v / (emissionCoefficient * thermal voltage)) - 1).
+    public double saturationCurrent = 1e-14;
+    public double emissionCoefficient = 1;
+
     public CircuitElement() {
         this.ID = circuitElementIdCounter++;
     }
@@ -39,6 +74,12 @@ public class CircuitElement {
         this.connections = builder.connections;
         this.potentialDifference = builder.potentialDifference;
         this.resistance = builder.resistance;
+        this.capacitance = builder.capacitance;
+        this.inductance = builder.inductance;
+        this.amplitude = builder.amplitude;
+        this.phase = builder.phase;
+        this.saturationCurrent = builder.saturationCurrent;
+        this.emissionCoefficient = builder.emissionCoefficient;
     }
 
     // Convenience method for 2 pin circuits
@@ -56,14 +97,17 @@ public class CircuitElement {
     -1 if negative, 1 if pos. 0 if none.
      */
     public int getPotentialDifferenceSign(Loop loop, Branch branch) {
-        Wire a = connections.get(0);
+        // The loop and branch each pass through this element from one wire to the other. Compare
+        // the wires they leave through, since a direction between two wires alone is ambiguous
+        // where the loop or branch wraps around.
         Wire b = connections.get(1);
+        boolean loopDirection = loop.getNextWire(this).equals(b);
         switch(this.type) {
             case BATTERY:
                 // Takes into account its own direction
-                return loop.getDirection(a, b) ? 1 : -1;
+                return loopDirection ? 1 : -1;
             case RESISTOR:
-                return loop.getDirection(a, b) == branch.getDirection(a, b) ? -1 : 1;
+                return loopDirection == b.equals(branch.getNextWire(this)) ? -1 : 1;
             default:
                 return 0;
         }
@@ -96,9 +140,17 @@ public class CircuitElement {
         private ArrayList<Wire> connections;
         private double potentialDifference;
         private double resistance;
+        private double capacitance;
+        private double inductance;
+        private double amplitude;
+        private double phase;
+        private double saturationCurrent;
+        private double emissionCoefficient;
 
         public CircuitElementBuilder() {
             connections = new ArrayList<>();
+            saturationCurrent = 1e-14;
+            emissionCoefficient = 1;
         }
 
         public CircuitElementBuilder type(CircuitElementType type) {
@@ -121,6 +173,36 @@ public class CircuitElement {
             return this;
         }
 
+        public CircuitElementBuilder capacitance(double capacitance) {
+            this.capacitance = capacitance;
+            return this;
+        }
+
+        public CircuitElementBuilder inductance(double inductance) {
+            this.inductance = inductance;
+            return this;
+        }
+
+        public CircuitElementBuilder amplitude(double amplitude) {
+            this.amplitude = amplitude;
+            return this;
+        }
+
+        public CircuitElementBuilder phase(double phase) {
+            this.phase = phase;
+            return this;
+        }
+
+        public CircuitElementBuilder saturationCurrent(double saturationCurrent) {
+            this.saturationCurrent = saturationCurrent;
+            return this;
+        }
+
+        public CircuitElementBuilder emissionCoefficient(double emissionCoefficient) {
+            this.emissionCoefficient = emissionCoefficient;
+            return this;
+        }
+
         public CircuitElement build() {
             return new CircuitElement(this);
         }
@@ -1,7 +1,7 @@
 package com.imontero.circuit;
 
 public enum CircuitElementType {
-    JUNCTION(-1), BATTERY(2), RESISTOR(2);
+    JUNCTION(-1), BATTERY(2), RESISTOR(2), CAPACITOR(2), INDUCTOR(2), AC_SOURCE(2), DIODE(2);
 
     // -1 if infinite number
     final int PINS;
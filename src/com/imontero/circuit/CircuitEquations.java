@@ -0,0 +1,245 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * The linear Kirchhoff equations of a circuit's topology, with the values of its elements factored
+ * out. The matrix of the system depends only on the resistances of its resistors, and its right
+ * hand side only on the potential differences of its batteries, so the system for any values can
+ * be assembled without walking the circuit again, and a change of a single resistance is a rank
+ * one change of the matrix.
+ */
+abstract class CircuitEquations {
+    /** The branches whose currents the equations determine, in order. */
+    final List<Branch> branches;
+    /** The resistors whose resistances the matrix depends on, in order. */
+    final List<CircuitElement> resistors;
+    /** The batteries whose potential differences the right hand side depends on, in order. */
+    final List<CircuitElement> batteries;
+    /**
+     * The capacitors and inductors, in order, whose values only matter away from a steady state,
+     * e.g. to a {@link TransientAnalysis}.
+     */
+    final List<CircuitElement> capacitors;
+    final List<CircuitElement> inductors;
+    /**
+     * The AC sources, in order, which are shorts in a steady state, and only drive an
+     * {@link ACAnalysis}.
+     */
+    final List<CircuitElement> acSources;
+    /**
+     * The diodes, in order, whose currents depend nonlinearly on their voltages, and which only a
+     * {@link NonlinearSolver} models.
+     */
+    final List<CircuitElement> diodes;
+    // The second connection of each resistor, battery, capacitor, inductor, AC source and diode,
+    // in that order, when the equations were built. The signs of their terms depend on it.
+    private Wire[] orientation;
+
+    CircuitEquations(Collection<Branch> branches) {
+        this.branches = new ArrayList<>(branches);
+        this.resistors = new ArrayList<>();
+        this.batteries = new ArrayList<>();
+        this.capacitors = new ArrayList<>();
+        this.inductors = new ArrayList<>();
+        this.acSources = new ArrayList<>();
+        this.diodes = new ArrayList<>();
+    }
+
+    /**
+     * @return The number of unknowns of the system.
+     */
+    abstract int size();
+
+    /**
+     * Assembles the matrix of the system.
+     *
+     * @param resistances The resistance of each resistor.
+     */
+    abstract SparseMatrix matrix(double[] resistances);
+
+    /**
+     * Assembles the right hand side of the system.
+     *
+     * @param potentialDifferences The potential difference of each battery.
+     */
+    abstract double[] rightHandSide(double[] potentialDifferences);
+
+    /**
+     * Computes the change of the matrix when the resistance of a single resistor changes.
+     *
+     * @param resistor The index of the resistor.
+     * @param from The resistance the matrix was assembled with.
+     * @param to The new resistance.
+     * @requires accepts both resistances.
+     * @return The update u v^T to add to the matrix.
+     */
+    abstract Update resistanceUpdate(int resistor, double from, double to);
+
+    /**
+     * Computes the current of each branch from a solution of the system.
+     *
+     * @param solution The solution of the system.
+     * @param resistances The resistances the system was assembled with.
+     * @return The current of each branch, in order.
+     */
+    abstract double[] branchCurrents(double[] solution, double[] resistances);
+
+    /**
+     * @return true iff the structure of the system does not depend on which of the given
+     *         resistances are zero.
+     */
+    boolean accepts(double[] resistances) {
+        return true;
+    }
+
+    /**
+     * @return The current resistance of each resistor.
+     */
+    double[] resistances() {
+        double[] r = new double[resistors.size()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = resistors.get(i).resistance;
+        }
+        return r;
+    }
+
+    /**
+     * @return The current potential difference of each battery.
+     */
+    double[] potentialDifferences() {
+        double[] v = new double[batteries.size()];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = batteries.get(i).potentialDifference;
+        }
+        return v;
+    }
+
+    /**
+     * @return true iff the equations still describe the circuit with its current element values,
+     *         e.g. no element was reversed and no resistance changed to or from zero since they
+     *         were built.
+     */
+    boolean isCurrent() {
+        int i = 0;
+        for (List<CircuitElement> list : elementLists()) {
+            for (CircuitElement ce : list) {
+                if (orientation[i++] != secondConnection(ce)) {
+                    return false;
+                }
+            }
+        }
+        return accepts(resistances());
+    }
+
+    /**
+     * Helper method to record the orientation of the two pin elements, once subclasses have found
+     * them.
+     */
+    void recordOrientation() {
+        orientation = new Wire[resistors.size() + batteries.size() + capacitors.size()
+                + inductors.size() + acSources.size() + diodes.size()];
+        int i = 0;
+        for (List<CircuitElement> list : elementLists()) {
+            for (CircuitElement ce : list) {
+                orientation[i++] = secondConnection(ce);
+            }
+        }
+    }
+
+    private List<List<CircuitElement>> elementLists() {
+        return Arrays.asList(resistors, batteries, capacitors, inductors, acSources, diodes);
+    }
+
+    private static Wire secondConnection(CircuitElement ce) {
+        return ce.connections.size() > 1 ? ce.connections.get(1) : null;
+    }
+
+    /**
+     * @return The indices of all elements of the given circuit, as a single part.
+     */
+    static int[] allElements(Circuit c) {
+        int[] part = new int[c.compact.elementCount];
+        for (int i = 0; i < part.length; i++) {
+            part[i] = i;
+        }
+        return part;
+    }
+
+    /**
+     * Helper method to find the branches of the given part of a circuit.
+     *
+     * @param part The indices of the elements of a union of connected parts of the circuit.
+     * @return The branches of the part, in the order its elements' wires are first met.
+     */
+    static Collection<Branch> branchesOf(Circuit c, int[] part) {
+        CompactCircuit g = c.compact;
+        int[] offsets = g.offsets();
+        int[] adjacency = g.adjacency();
+        Set<Branch> branches = new LinkedHashSet<>();
+        for (int v : part) {
+            for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                Branch br = c.wireToBranch.get(g.wires[adjacency[p]]);
+                if (br != null) {
+                    branches.add(br);
+                }
+            }
+        }
+        return branches;
+    }
+
+    /**
+     * Helper method to find the junctions of the given part of a circuit.
+     *
+     * @param part The indices of the elements of a union of connected parts of the circuit.
+     */
+    static List<CircuitElement> junctionsOf(Circuit c, int[] part) {
+        List<CircuitElement> junctions = new ArrayList<>();
+        for (int v : part) {
+            CircuitElement ce = c.compact.elements[v];
+            if (c.junctions.contains(ce)) {
+                junctions.add(ce);
+            }
+        }
+        return junctions;
+    }
+
+    /**
+     * A rank one update u v^T of a matrix, with both vectors stored sparsely.
+     */
+    static class Update {
+        final int[] uRows;
+        final double[] uValues;
+        final int[] vRows;
+        final double[] vValues;
+
+        Update(int[] uRows, double[] uValues, int[] vRows, double[] vValues) {
+            this.uRows = uRows;
+            this.uValues = uValues;
+            this.vRows = vRows;
+            this.vValues = vValues;
+        }
+
+        /**
+         * @return u as a dense vector of length n.
+         */
+        double[] u(int n) {
+            double[] u = new double[n];
+            for (int i = 0; i < uRows.length; i++) {
+                u[uRows[i]] += uValues[i];
+            }
+            return u;
+        }
+
+        /**
+         * @return The dot product of v with the given dense vector.
+         */
+        double dotV(double[] x) {
+            double sum = 0;
+            for (int i = 0; i < vRows.length; i++) {
+                sum += vValues[i] * x[vRows[i]];
+            }
+            return sum;
+        }
+    }
+}
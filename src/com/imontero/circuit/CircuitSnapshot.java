@@ -0,0 +1,506 @@
+package com.imontero.circuit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Saves circuits to, and loads them from, binary snapshot files. A snapshot holds the computed
+ * topology of a circuit as well as its elements and wires: its branches, loops and junctions, and
+ * the spanning forest its fundamental loops are maintained with. Loading a snapshot therefore
+ * never searches for loops or branches again, which makes it much faster than building the
+ * circuit wire by wire, or reading a netlist of it.
+ *
+ * A snapshot is a header followed by flat tables of little-endian doubles and ints, in which
+ * elements, wires and loops refer to each other by their indices. Variable length lists, such as
+ * the wires of each branch, are stored as one table of all of their entries and a table of the
+ * offsets of each list in it. The file is memory mapped, so loading reads the tables in place,
+ * without parsing or copying them. The whole file is mapped at once, which limits snapshots to
+ * 2 GB.
+ *
+ * The loaded elements, wires and branches are new objects with new IDs. The wires of an element
+ * that are not part of the circuit are not saved.
+ */
+public class CircuitSnapshot {
+    static final int MAGIC = 0x43534E50;
+    static final int VERSION = 1;
+    // The size of the header, in bytes, which keeps the doubles that follow it aligned.
+    static final int HEADER = 64;
+
+    // The number of values saved for each element.
+    private static final int VALUES = 8;
+    // The bits of an element's flags holding its type, as one more than its ordinal so that 0 is
+    // no type, and the bit set iff it is in the elements of the circuit rather than only the
+    // endpoint of one of its wires.
+    private static final int TYPE = 0xFFFF;
+    private static final int MEMBER = 1 << 16;
+    private static final CircuitElementType[] TYPES = CircuitElementType.values();
+
+    private CircuitSnapshot() {
+    }
+
+    /**
+     * Saves the given circuit to the file at the given path, replacing it. The branches and
+     * junctions of the circuit are brought up to date first.
+     *
+     * @throws IOException if the file cannot be written, or the snapshot would not fit in 2 GB.
+     */
+    public static void write(Circuit c, Path path) throws IOException {
+        c.analyze();
+        CompactCircuit compact = c.compact;
+
+        // Every distinct loop of the circuit and of its forest, which share them with
+        // LoopDiscovery.FUNDAMENTAL.
+        Map<Loop, Integer> loopIndices = new IdentityHashMap<>();
+        List<Loop> loops = new ArrayList<>();
+        for (Loop l : c.loops) {
+            addLoop(l, loops, loopIndices);
+        }
+        Map<Wire, Loop> fundamentalLoops = c.forest == null
+                ? Collections.emptyMap() : c.forest.fundamentalLoops();
+        for (Loop l : fundamentalLoops.values()) {
+            addLoop(l, loops, loopIndices);
+        }
+
+        Layout layout = new Layout();
+        layout.loopDiscovery = c.loopDiscovery.ordinal();
+        layout.elements = compact.elementCount;
+        layout.wires = compact.wireCount;
+        for (int i = 0; i < compact.elementCount; i++) {
+            ArrayList<Wire> connections = compact.elements[i].connections;
+            if (connections != null) {
+                for (Wire w : connections) {
+                    layout.connections += compact.indexOf(w) >= 0 ? 1 : 0;
+                }
+            }
+        }
+        layout.branches = c.branches.size();
+        for (Branch br : c.branches) {
+            layout.branchWires += br.wires.size();
+            layout.branchElements += br.elements.size();
+        }
+        layout.loops = loops.size();
+        for (Loop l : loops) {
+            layout.loopWires += l.wires.size();
+            layout.loopElements += l.elements.size();
+        }
+        layout.circuitLoops = c.loops.size();
+        layout.junctions = c.junctions.size();
+        layout.fundamentalLoops = fundamentalLoops.size();
+        if (c.forest != null) {
+            for (int w = 0; w < compact.wireCount; w++) {
+                if (c.forest.isTreeWire(compact.wires[w])) {
+                    layout.treeWires++;
+                }
+            }
+        }
+        long size = layout.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("A snapshot of " + size + " bytes does not fit in 2 GB.");
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            layout.write(buffer);
+            Tables t = new Tables(buffer, layout);
+
+            for (int i = 0; i < compact.elementCount; i++) {
+                CircuitElement ce = compact.elements[i];
+                t.values.put(ce.potentialDifference).put(ce.resistance).put(ce.capacitance)
+                        .put(ce.inductance).put(ce.amplitude).put(ce.phase)
+                        .put(ce.saturationCurrent).put(ce.emissionCoefficient);
+                t.flags.put((ce.type == null ? 0 : ce.type.ordinal() + 1)
+                        | (c.elements.contains(ce) ? MEMBER : 0));
+                t.connectionOffsets.put(t.connections.position());
+                if (ce.connections != null) {
+                    for (Wire w : ce.connections) {
+                        int wi = compact.indexOf(w);
+                        if (wi >= 0) {
+                            t.connections.put(wi);
+                        }
+                    }
+                }
+            }
+            t.connectionOffsets.put(t.connections.position());
+            for (int w = 0; w < compact.wireCount; w++) {
+                t.wireEnds.put(compact.wireA[w]).put(compact.wireB[w]);
+            }
+
+            for (Branch br : c.branches) {
+                t.currents.put(br.current);
+                putWires(br.wires, compact, t.branchWireOffsets, t.branchWires);
+                putElements(br.elements, compact, t.branchElementOffsets, t.branchElements);
+            }
+            t.branchWireOffsets.put(t.branchWires.position());
+            t.branchElementOffsets.put(t.branchElements.position());
+
+            for (Loop l : loops) {
+                putWires(l.wires, compact, t.loopWireOffsets, t.loopWires);
+                putElements(l.elements, compact, t.loopElementOffsets, t.loopElements);
+            }
+            t.loopWireOffsets.put(t.loopWires.position());
+            t.loopElementOffsets.put(t.loopElements.position());
+            for (Loop l : c.loops) {
+                t.circuitLoops.put(loopIndices.get(l));
+            }
+            for (CircuitElement ce : c.junctions) {
+                t.junctions.put(compact.indexOf(ce));
+            }
+
+            if (c.forest != null) {
+                writeForest(c.forest, compact, loopIndices, t);
+            }
+        }
+    }
+
+    private static void addLoop(Loop l, List<Loop> loops, Map<Loop, Integer> loopIndices) {
+        if (!loopIndices.containsKey(l)) {
+            loopIndices.put(l, loops.size());
+            loops.add(l);
+        }
+    }
+
+    private static void putWires(List<Wire> wires, CompactCircuit compact, IntBuffer offsets,
+                                 IntBuffer table) {
+        offsets.put(table.position());
+        for (Wire w : wires) {
+            table.put(compact.indexOf(w));
+        }
+    }
+
+    private static void putElements(List<CircuitElement> elements, CompactCircuit compact,
+                                    IntBuffer offsets, IntBuffer table) {
+        offsets.put(table.position());
+        for (CircuitElement ce : elements) {
+            table.put(compact.indexOf(ce));
+        }
+    }
+
+    /**
+     * Helper method to write the spanning forest of a circuit. The union-find of its elements is
+     * written flattened, with every element of a set pointing at the same one of them, since the
+     * representatives of its sets may be elements that have since been removed.
+     */
+    private static void writeForest(SpanningForest forest, CompactCircuit compact,
+                                    Map<Loop, Integer> loopIndices, Tables t) {
+        Map<CircuitElement, Integer> representatives = new HashMap<>();
+        for (int i = 0; i < compact.elementCount; i++) {
+            CircuitElement ce = compact.elements[i];
+            int depth = forest.depth(ce);
+            Wire parent = forest.parentWire(ce);
+            t.parentWires.put(parent == null ? -1 : compact.indexOf(parent));
+            t.depths.put(depth);
+            if (depth < 0) {
+                t.components.put(-1);
+            } else {
+                Integer representative = representatives.putIfAbsent(forest.component(ce), i);
+                t.components.put(representative == null ? i : representative);
+            }
+        }
+        for (int w = 0; w < compact.wireCount; w++) {
+            if (forest.isTreeWire(compact.wires[w])) {
+                t.treeWires.put(w);
+            }
+        }
+        for (Map.Entry<Wire, Loop> e : forest.fundamentalLoops().entrySet()) {
+            t.fundamentalWires.put(compact.indexOf(e.getKey()));
+            t.fundamentalLoops.put(loopIndices.get(e.getValue()));
+        }
+    }
+
+    /**
+     * Loads the circuit saved in the file at the given path.
+     *
+     * @throws IOException if the file cannot be read, or is not a valid snapshot.
+     */
+    public static Circuit read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER || size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is not a circuit snapshot.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a circuit snapshot.");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException(path + " has version " + buffer.getInt(4) + " of the "
+                        + "snapshot format, not " + VERSION + ".");
+            }
+            Layout layout = Layout.read(buffer);
+            if (layout.size() != size) {
+                throw new IOException(path + " is truncated.");
+            }
+            try {
+                return read(new Tables(buffer, layout), layout);
+            } catch (IndexOutOfBoundsException | IllegalArgumentException
+                     | IllegalStateException | NullPointerException e) {
+                throw new IOException(path + " is corrupt.", e);
+            }
+        }
+    }
+
+    private static Circuit read(Tables t, Layout layout) {
+        LoopDiscovery loopDiscovery = LoopDiscovery.values()[layout.loopDiscovery];
+        Circuit c = new Circuit(loopDiscovery, capacity(layout.elements),
+                capacity(layout.wires));
+
+        CircuitElement[] elements = new CircuitElement[layout.elements];
+        for (int i = 0; i < elements.length; i++) {
+            CircuitElement ce = new CircuitElement();
+            int flags = t.flags.get(i);
+            ce.type = (flags & TYPE) == 0 ? null : TYPES[(flags & TYPE) - 1];
+            int v = VALUES * i;
+            ce.potentialDifference = t.values.get(v);
+            ce.resistance = t.values.get(v + 1);
+            ce.capacitance = t.values.get(v + 2);
+            ce.inductance = t.values.get(v + 3);
+            ce.amplitude = t.values.get(v + 4);
+            ce.phase = t.values.get(v + 5);
+            ce.saturationCurrent = t.values.get(v + 6);
+            ce.emissionCoefficient = t.values.get(v + 7);
+            ce.connections = new ArrayList<>(
+                    t.connectionOffsets.get(i + 1) - t.connectionOffsets.get(i));
+            elements[i] = ce;
+            if ((flags & MEMBER) != 0) {
+                c.elements.add(ce);
+            }
+            c.compact.addElement(ce);
+        }
+        Wire[] wires = new Wire[layout.wires];
+        for (int w = 0; w < wires.length; w++) {
+            wires[w] = new Wire(elements[t.wireEnds.get(2 * w)],
+                    elements[t.wireEnds.get(2 * w + 1)]);
+            c.wires.add(wires[w]);
+            c.compact.addWire(wires[w]);
+        }
+        for (int i = 0; i < elements.length; i++) {
+            for (int p = t.connectionOffsets.get(i); p < t.connectionOffsets.get(i + 1); p++) {
+                elements[i].connections.add(wires[t.connections.get(p)]);
+            }
+        }
+
+        for (int b = 0; b < layout.branches; b++) {
+            Branch br = new Branch();
+            br.wires = list(wires, t.branchWireOffsets, t.branchWires, b);
+            br.elements = list(elements, t.branchElementOffsets, t.branchElements, b);
+            br.current = t.currents.get(b);
+            c.branches.add(br);
+            for (Wire w : br.wires) {
+                c.wireToBranch.put(w, br);
+            }
+        }
+
+        Loop[] loops = new Loop[layout.loops];
+        for (int l = 0; l < loops.length; l++) {
+            Loop.LoopBuilder lb = new Loop.LoopBuilder();
+            lb.wires = list(wires, t.loopWireOffsets, t.loopWires, l);
+            lb.elements = list(elements, t.loopElementOffsets, t.loopElements, l);
+            loops[l] = lb.build();
+        }
+        for (int l = 0; l < layout.circuitLoops; l++) {
+            c.loops.add(loops[t.circuitLoops.get(l)]);
+        }
+        for (int j = 0; j < layout.junctions; j++) {
+            c.junctions.add(elements[t.junctions.get(j)]);
+        }
+
+        if (c.forest != null) {
+            for (int i = 0; i < elements.length; i++) {
+                int depth = t.depths.get(i);
+                if (depth >= 0) {
+                    int parent = t.parentWires.get(i);
+                    c.forest.restoreElement(elements[i], parent < 0 ? null : wires[parent], depth,
+                            elements[t.components.get(i)]);
+                }
+            }
+            for (int k = 0; k < layout.treeWires; k++) {
+                c.forest.restoreWire(wires[t.treeWires.get(k)], null);
+            }
+            for (int k = 0; k < layout.fundamentalLoops; k++) {
+                c.forest.restoreWire(wires[t.fundamentalWires.get(k)],
+                        loops[t.fundamentalLoops.get(k)]);
+            }
+        }
+        return c;
+    }
+
+    // The initial capacity of a hash table that holds the given number of entries without growing.
+    private static int capacity(int entries) {
+        return (int) (entries / 0.75) + 1;
+    }
+
+    /**
+     * @return The i-th list of the given table, whose entries index the given objects.
+     */
+    private static <T> List<T> list(T[] objects, IntBuffer offsets, IntBuffer table, int i) {
+        int from = offsets.get(i);
+        int to = offsets.get(i + 1);
+        List<T> list = new ArrayList<>(to - from);
+        for (int p = from; p < to; p++) {
+            list.add(objects[table.get(p)]);
+        }
+        return list;
+    }
+
+    /**
+     * The numbers of entries in each table of a snapshot, which are its header.
+     */
+    private static class Layout {
+        int loopDiscovery;
+        int elements;
+        int wires;
+        int connections;
+        int branches;
+        int branchWires;
+        int branchElements;
+        int loops;
+        int loopWires;
+        int loopElements;
+        int circuitLoops;
+        int junctions;
+        int fundamentalLoops;
+        int treeWires;
+
+        static Layout read(ByteBuffer buffer) {
+            IntBuffer header = buffer.slice(8, HEADER - 8).order(ByteOrder.LITTLE_ENDIAN)
+                    .asIntBuffer();
+            Layout layout = new Layout();
+            layout.loopDiscovery = header.get();
+            layout.elements = header.get();
+            layout.wires = header.get();
+            layout.connections = header.get();
+            layout.branches = header.get();
+            layout.branchWires = header.get();
+            layout.branchElements = header.get();
+            layout.loops = header.get();
+            layout.loopWires = header.get();
+            layout.loopElements = header.get();
+            layout.circuitLoops = header.get();
+            layout.junctions = header.get();
+            layout.fundamentalLoops = header.get();
+            layout.treeWires = header.get();
+            return layout;
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.slice(8, HEADER - 8).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+                    .put(loopDiscovery).put(elements).put(wires).put(connections)
+                    .put(branches).put(branchWires).put(branchElements)
+                    .put(loops).put(loopWires).put(loopElements)
+                    .put(circuitLoops).put(junctions).put(fundamentalLoops).put(treeWires);
+        }
+
+        boolean hasForest() {
+            return loopDiscovery != LoopDiscovery.NONE.ordinal();
+        }
+
+        /**
+         * @return The size of the snapshot, in bytes, or -1 if the layout is invalid.
+         */
+        long size() {
+            if (loopDiscovery < 0 || loopDiscovery >= LoopDiscovery.values().length
+                    || (elements | wires | connections | branches | branchWires | branchElements
+                    | loops | loopWires | loopElements | circuitLoops | junctions
+                    | fundamentalLoops | treeWires) < 0) {
+                return -1;
+            }
+            long doubles = (long) VALUES * elements + branches;
+            long ints = 2L * elements + 1 + connections + 2L * wires
+                    + 2 * (branches + 1L) + branchWires + branchElements
+                    + 2 * (loops + 1L) + loopWires + loopElements
+                    + circuitLoops + junctions;
+            if (hasForest()) {
+                ints += 3L * elements + treeWires + 2L * fundamentalLoops;
+            }
+            return HEADER + 8 * doubles + 4 * ints;
+        }
+    }
+
+    /**
+     * Views of the tables of a snapshot, in the order they are stored in. Every view starts at
+     * position 0 of its own table.
+     */
+    private static class Tables {
+        final DoubleBuffer values;
+        final DoubleBuffer currents;
+        final IntBuffer flags;
+        final IntBuffer connectionOffsets;
+        final IntBuffer connections;
+        final IntBuffer wireEnds;
+        final IntBuffer branchWireOffsets;
+        final IntBuffer branchWires;
+        final IntBuffer branchElementOffsets;
+        final IntBuffer branchElements;
+        final IntBuffer loopWireOffsets;
+        final IntBuffer loopWires;
+        final IntBuffer loopElementOffsets;
+        final IntBuffer loopElements;
+        final IntBuffer circuitLoops;
+        final IntBuffer junctions;
+        final IntBuffer parentWires;
+        final IntBuffer depths;
+        final IntBuffer components;
+        final IntBuffer treeWires;
+        final IntBuffer fundamentalWires;
+        final IntBuffer fundamentalLoops;
+
+        private final ByteBuffer buffer;
+        private int position;
+
+        Tables(ByteBuffer buffer, Layout layout) {
+            this.buffer = buffer;
+            this.position = HEADER;
+            this.values = doubles(VALUES * layout.elements);
+            this.currents = doubles(layout.branches);
+            this.flags = ints(layout.elements);
+            this.connectionOffsets = ints(layout.elements + 1);
+            this.connections = ints(layout.connections);
+            this.wireEnds = ints(2 * layout.wires);
+            this.branchWireOffsets = ints(layout.branches + 1);
+            this.branchWires = ints(layout.branchWires);
+            this.branchElementOffsets = ints(layout.branches + 1);
+            this.branchElements = ints(layout.branchElements);
+            this.loopWireOffsets = ints(layout.loops + 1);
+            this.loopWires = ints(layout.loopWires);
+            this.loopElementOffsets = ints(layout.loops + 1);
+            this.loopElements = ints(layout.loopElements);
+            this.circuitLoops = ints(layout.circuitLoops);
+            this.junctions = ints(layout.junctions);
+            int forest = layout.hasForest() ? layout.elements : 0;
+            this.parentWires = ints(forest);
+            this.depths = ints(forest);
+            this.components = ints(forest);
+            this.treeWires = ints(layout.hasForest() ? layout.treeWires : 0);
+            this.fundamentalWires = ints(layout.hasForest() ? layout.fundamentalLoops : 0);
+            this.fundamentalLoops = ints(layout.hasForest() ? layout.fundamentalLoops : 0);
+        }
+
+        private DoubleBuffer doubles(int count) {
+            DoubleBuffer view = buffer.slice(position, 8 * count).order(ByteOrder.LITTLE_ENDIAN)
+                    .asDoubleBuffer();
+            position += 8 * count;
+            return view;
+        }
+
+        private IntBuffer ints(int count) {
+            IntBuffer view = buffer.slice(position, 4 * count).order(ByteOrder.LITTLE_ENDIAN)
+                    .asIntBuffer();
+            position += 4 * count;
+            return view;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.imontero.circuit;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Edits and solves a circuit on a background thread, so that the thread requesting the edits, such
+ * as a user interface's, never waits for the topology of the circuit to be analyzed or for its
+ * equations to be solved.
+ *
+ * The circuit is confined to the worker thread: once given to a worker, it, its elements and its
+ * wires may only be changed by the edits submitted to the worker. Edits are queued, and whenever
+ * the worker runs it applies every queued edit before solving once, so a burst of edits costs a
+ * single solve. A solve is skipped altogether when more edits arrive while it is about to start,
+ * since its solution would be stale before it was published; the newest edits always get solved.
+ *
+ * Each solve is published as an immutable {@link Solution}, which can be read from any thread
+ * without blocking.
+ */
+public class CircuitWorker {
+    private final Circuit circuit;
+    private final Queue<Consumer<Circuit>> edits;
+    // Set iff a run of the worker is queued that has not started applying edits yet.
+    private final AtomicBoolean scheduled;
+    private final ExecutorService executor;
+    // Called with each solution after it is published.
+    private final Consumer<Solution> listener;
+    private volatile Solution solution;
+
+    // Only accessed on the worker thread.
+    private long version;
+    private boolean changed;
+    private String editError;
+
+    /**
+     * Instantiates a new worker for the given circuit.
+     *
+     * @param circuit The circuit, which must not be accessed other than through this afterwards.
+     * @param listener Called on the worker thread with each solution after it is published, e.g.
+     *                 to schedule a repaint.
+     */
+    public CircuitWorker(Circuit circuit, Consumer<Solution> listener) {
+        this.circuit = circuit;
+        this.listener = listener;
+        this.edits = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean();
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "circuit-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.solution = new Solution(0, Collections.emptyMap(), null);
+    }
+
+    /**
+     * Queues the given edit of the circuit, after which the circuit is solved again. The edit
+     * runs on the worker thread, after every edit submitted before it.
+     */
+    public void edit(Consumer<Circuit> edit) {
+        edits.add(edit);
+        if (!scheduled.getAndSet(true)) {
+            executor.execute(this::run);
+        }
+    }
+
+    /**
+     * @return The solution of the circuit after the latest edits solved so far.
+     */
+    public Solution solution() {
+        return solution;
+    }
+
+    /**
+     * Stops the worker thread once the queued edits have been applied and solved. Edits submitted
+     * afterwards are rejected.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void run() {
+        scheduled.set(false);
+        Consumer<Circuit> edit;
+        while ((edit = edits.poll()) != null) {
+            try {
+                edit.accept(circuit);
+            } catch (RuntimeException e) {
+                editError = e.toString();
+            }
+            version++;
+            changed = true;
+        }
+        // A newer run is queued, whose edits would make this solution stale.
+        if (!changed || scheduled.get()) {
+            return;
+        }
+        changed = false;
+
+        String error = editError;
+        editError = null;
+        Map<Wire, Double> currents = new HashMap<>();
+        try {
+            if (circuit.loopDiscovery == LoopDiscovery.NONE) {
+                circuit.solveNodal();
+            } else {
+                circuit.solve();
+            }
+            for (Branch br : circuit.branches) {
+                Double current = br.current;
+                for (Wire w : br.wires) {
+                    currents.put(w, current);
+                }
+            }
+        } catch (RuntimeException e) {
+            // E.g. a loop of batteries and wires, whose current is unbounded. The circuit stays
+            // usable, and the next edit may well fix it.
+            error = error == null ? e.toString() : error + "; " + e;
+            currents.clear();
+        }
+        Solution solved = new Solution(version, Collections.unmodifiableMap(currents), error);
+        solution = solved;
+        listener.accept(solved);
+    }
+
+    /**
+     * The currents of a circuit after a number of edits.
+     */
+    public static class Solution {
+        /** The number of edits applied to the circuit before it was solved. */
+        public final long version;
+        /** Why the circuit could not be solved, or an edit failed, or null if neither happened. */
+        public final String error;
+        private final Map<Wire, Double> currents;
+
+        private Solution(long version, Map<Wire, Double> currents, String error) {
+            this.version = version;
+            this.currents = currents;
+            this.error = error;
+        }
+
+        /**
+         * @return The current through the given wire, in the direction of its branch, or NaN if it
+         *         is in no active branch.
+         */
+        public double current(Wire w) {
+            Double current = currents.get(w);
+            return current == null ? Double.NaN : current;
+        }
+    }
+}
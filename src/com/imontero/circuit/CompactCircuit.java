@@ -0,0 +1,259 @@
+package com.imontero.circuit;
+
+import java.util.Arrays;
+
+/**
+ * A compact form of the graph of a circuit, in which its elements and wires have dense int
+ * indices, so analyzing its topology runs over primitive arrays instead of hashing and boxing
+ * objects. Removing an element or wire moves the last one into its index. The wires of each
+ * element are kept in compressed sparse row form, which is rebuilt from the endpoints of the wires
+ * whenever it is needed after they changed.
+ *
+ * Every element and wire stores its own index, so an element or wire may only be part of a single
+ * circuit at a time.
+ */
+class CompactCircuit {
+    /** The elements, by index. */
+    CircuitElement[] elements;
+    int elementCount;
+    /** The wires, by index, and the indices of their endpoints. */
+    Wire[] wires;
+    int[] wireA;
+    int[] wireB;
+    int wireCount;
+
+    // The wires of element i are adjacency[offsets[i]] to adjacency[offsets[i + 1] - 1]. A wire
+    // whose endpoints are the same element appears twice.
+    private int[] offsets;
+    private int[] adjacency;
+    private boolean adjacencyStale;
+
+    // Workspace for traversals: an element or wire is marked during the current traversal iff its
+    // stamp equals the epoch, so no array needs to be cleared between traversals.
+    private int epoch;
+    private int[] elementStamps;
+    private int[] wireStamps;
+    private int[] elementScratch;
+
+    CompactCircuit() {
+        this.elements = new CircuitElement[16];
+        this.wires = new Wire[16];
+        this.wireA = new int[16];
+        this.wireB = new int[16];
+        this.elementStamps = new int[16];
+        this.elementScratch = new int[16];
+        this.wireStamps = new int[16];
+        this.offsets = new int[1];
+        this.adjacency = new int[0];
+    }
+
+    /**
+     * @return The index of the given element, or -1 if it is not in this.
+     */
+    int indexOf(CircuitElement ce) {
+        int i = ce.index;
+        return i >= 0 && i < elementCount && elements[i] == ce ? i : -1;
+    }
+
+    /**
+     * @return The index of the given wire, or -1 if it is not in this.
+     */
+    int indexOf(Wire w) {
+        int i = w.index;
+        return i >= 0 && i < wireCount && wires[i] == w ? i : -1;
+    }
+
+    /**
+     * @return The index of the endpoint of the given wire opposite to the given element.
+     */
+    int other(int wire, int element) {
+        return wireA[wire] == element ? wireB[wire] : wireA[wire];
+    }
+
+    /**
+     * Adds the given element to this, if it is not already.
+     *
+     * @return The index of the element.
+     */
+    int addElement(CircuitElement ce) {
+        int i = indexOf(ce);
+        if (i >= 0) {
+            return i;
+        }
+        if (elementCount == elements.length) {
+            elements = Arrays.copyOf(elements, 2 * elementCount);
+            elementStamps = Arrays.copyOf(elementStamps, 2 * elementCount);
+            elementScratch = new int[2 * elementCount];
+        }
+        ce.index = elementCount;
+        elements[elementCount] = ce;
+        elementStamps[elementCount] = 0;
+        adjacencyStale = true;
+        return elementCount++;
+    }
+
+    /**
+     * Removes the given element from this.
+     *
+     * @requires All of the element's wires have been removed.
+     */
+    void removeElement(CircuitElement ce) {
+        int i = indexOf(ce);
+        if (i < 0) {
+            return;
+        }
+        int last = --elementCount;
+        CircuitElement moved = elements[last];
+        elements[i] = moved;
+        elements[last] = null;
+        moved.index = i;
+        ce.index = -1;
+        if (moved != ce) {
+            // Renumber the endpoints of the moved element's wires.
+            for (Wire w : moved.connections) {
+                int wi = indexOf(w);
+                if (wi >= 0) {
+                    if (wireA[wi] == last) {
+                        wireA[wi] = i;
+                    }
+                    if (wireB[wi] == last) {
+                        wireB[wi] = i;
+                    }
+                }
+            }
+        }
+        adjacencyStale = true;
+    }
+
+    /**
+     * Adds the given wire, and any of its endpoints that are not in this already, to this.
+     */
+    void addWire(Wire w) {
+        if (indexOf(w) >= 0) {
+            return;
+        }
+        int a = addElement(w.a);
+        int b = addElement(w.b);
+        if (wireCount == wires.length) {
+            wires = Arrays.copyOf(wires, 2 * wireCount);
+            wireA = Arrays.copyOf(wireA, 2 * wireCount);
+            wireB = Arrays.copyOf(wireB, 2 * wireCount);
+            wireStamps = Arrays.copyOf(wireStamps, 2 * wireCount);
+        }
+        w.index = wireCount;
+        wires[wireCount] = w;
+        wireA[wireCount] = a;
+        wireB[wireCount] = b;
+        wireStamps[wireCount] = 0;
+        wireCount++;
+        adjacencyStale = true;
+    }
+
+    /**
+     * Removes the given wire from this.
+     */
+    void removeWire(Wire w) {
+        int i = indexOf(w);
+        if (i < 0) {
+            return;
+        }
+        int last = --wireCount;
+        wires[i] = wires[last];
+        wireA[i] = wireA[last];
+        wireB[i] = wireB[last];
+        wires[i].index = i;
+        wires[last] = null;
+        w.index = -1;
+        adjacencyStale = true;
+    }
+
+    /**
+     * @return The offsets of the wires of each element in {@link #adjacency()}.
+     */
+    int[] offsets() {
+        buildAdjacency();
+        return offsets;
+    }
+
+    /**
+     * @return The indices of the wires of each element, in compressed sparse row form.
+     */
+    int[] adjacency() {
+        buildAdjacency();
+        return adjacency;
+    }
+
+    private void buildAdjacency() {
+        if (!adjacencyStale) {
+            return;
+        }
+        offsets = new int[elementCount + 1];
+        for (int w = 0; w < wireCount; w++) {
+            offsets[wireA[w] + 1]++;
+            offsets[wireB[w] + 1]++;
+        }
+        for (int i = 0; i < elementCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        adjacency = new int[2 * wireCount];
+        int[] next = Arrays.copyOf(offsets, elementCount);
+        for (int w = 0; w < wireCount; w++) {
+            adjacency[next[wireA[w]]++] = w;
+            adjacency[next[wireB[w]]++] = w;
+        }
+        adjacencyStale = false;
+    }
+
+    /**
+     * Starts a new traversal, unmarking every element and wire.
+     */
+    void startTraversal() {
+        if (++epoch == Integer.MAX_VALUE) {
+            epoch = 1;
+            Arrays.fill(elementStamps, 0);
+            Arrays.fill(wireStamps, 0);
+        }
+    }
+
+    /**
+     * Marks the given element during the current traversal.
+     *
+     * @return true iff it was not marked already.
+     */
+    boolean markElement(int i) {
+        if (elementStamps[i] == epoch) {
+            return false;
+        }
+        elementStamps[i] = epoch;
+        return true;
+    }
+
+    /**
+     * Marks the given wire during the current traversal.
+     *
+     * @return true iff it was not marked already.
+     */
+    boolean markWire(int w) {
+        if (wireStamps[w] == epoch) {
+            return false;
+        }
+        wireStamps[w] = epoch;
+        return true;
+    }
+
+    boolean isWireMarked(int w) {
+        return wireStamps[w] == epoch;
+    }
+
+    void unmarkWire(int w) {
+        wireStamps[w] = 0;
+    }
+
+    /**
+     * @return An array with an entry for every element, whose contents are left over from earlier
+     *         traversals.
+     */
+    int[] elementScratch() {
+        return elementScratch;
+    }
+}
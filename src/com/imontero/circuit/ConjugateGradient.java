@@ -0,0 +1,108 @@
+package com.imontero.circuit;
+
+/**
+ * The settings of an iterative solve of a circuit with the preconditioned conjugate gradient
+ * method, for {@link Circuit#solveIterative(ConjugateGradient)}.
+ *
+ * The nodal equations of a network of resistors and batteries reduce to a symmetric positive
+ * definite system in the potentials of its nodes, once the nodes joined by batteries are merged
+ * into supernodes whose potentials differ by fixed amounts. Conjugate gradients solve that system
+ * with only a few vectors and the matrix itself in memory, and converge quickly from a good initial
+ * guess, which is the previous solution of the circuit: after a few values or wires change, most
+ * node potentials barely move.
+ */
+public class ConjugateGradient {
+    /**
+     * The approximation of the matrix whose inverse is applied to the residual at every
+     * iteration, to reduce the number of iterations.
+     */
+    public enum Preconditioner {
+        /** The diagonal of the matrix, which is cheapest per iteration. */
+        JACOBI,
+        /**
+         * The incomplete Cholesky factorization of the matrix without fill, which needs several
+         * times fewer iterations on meshes.
+         */
+        INCOMPLETE_CHOLESKY,
+        /**
+         * A V-cycle of an algebraic multigrid hierarchy of the matrix, with which the number of
+         * iterations barely grows with the size of a mesh, so each solve costs time proportional
+         * to it. The hierarchy is coarsened once per topology and only its values are computed
+         * again when resistances change.
+         */
+        ALGEBRAIC_MULTIGRID
+    }
+
+    /** The norm of the residual, relative to that of the right hand side, to stop at. */
+    public final double tolerance;
+    /** The most iterations to run before giving up. */
+    public final int maxIterations;
+    public final Preconditioner preconditioner;
+
+    private ConjugateGradient(Builder builder) {
+        this.tolerance = builder.tolerance;
+        this.maxIterations = builder.maxIterations;
+        this.preconditioner = builder.preconditioner;
+    }
+
+    /**
+     * The outcome of an iterative solve.
+     */
+    public static class Result {
+        /** The number of iterations run. */
+        public final int iterations;
+        /** The norm of the final residual, relative to that of the right hand side. */
+        public final double residual;
+        /** Whether the residual reached the tolerance within the most iterations. */
+        public final boolean converged;
+
+        Result(int iterations, double residual, boolean converged) {
+            this.iterations = iterations;
+            this.residual = residual;
+            this.converged = converged;
+        }
+
+        @Override
+        public String toString() {
+            return (converged ? "Converged" : "Did not converge") + " in " + iterations
+                    + " iterations with relative residual " + residual;
+        }
+    }
+
+    public static class Builder {
+        private double tolerance;
+        private int maxIterations;
+        private Preconditioner preconditioner;
+
+        public Builder() {
+            this.tolerance = 1e-10;
+            this.maxIterations = 10000;
+            this.preconditioner = Preconditioner.INCOMPLETE_CHOLESKY;
+        }
+
+        public Builder tolerance(double tolerance) {
+            if (!(tolerance > 0)) {
+                throw new IllegalArgumentException("Tolerance must be positive.");
+            }
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        public Builder maxIterations(int maxIterations) {
+            if (maxIterations < 0) {
+                throw new IllegalArgumentException("Iterations must not be negative.");
+            }
+            this.maxIterations = maxIterations;
+            return this;
+        }
+
+        public Builder preconditioner(Preconditioner preconditioner) {
+            this.preconditioner = preconditioner;
+            return this;
+        }
+
+        public ConjugateGradient build() {
+            return new ConjugateGradient(this);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.imontero.circuit;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A symbolic ordering of the rows and columns of a sparse matrix that limits the fill-in of its LU
+ * factorization. The order of the equations and unknowns of a circuit is arbitrary, and eliminating
+ * them in a bad order can fill in most of the factors; in a good order, the factors of the
+ * grid-like systems of circuits stay nearly as sparse as the matrix itself.
+ *
+ * The ordering only depends on where the matrix has entries, so it can be computed once and reused
+ * for every factorization of matrices with the same pattern. First, the rows are matched to the
+ * columns so that every matched entry is structurally nonzero (a maximum transversal), which gives
+ * the matrix a zero-free diagonal even where equations have no natural diagonal entry, as the
+ * junction equations and voltage sources do. Then the columns, and their matched rows with them,
+ * are ordered by nested dissection of the graph of the symmetrized pattern: a small level set of a
+ * breadth first search separates each part of the graph into two halves, which are ordered before
+ * the separator, recursively, until the parts are small enough to order by minimum degree.
+ */
+public class FillReducingOrdering {
+    // Parts of the graph of at most this many vertices are ordered by minimum degree.
+    private static final int LEAF = 64;
+    // The most breadth first searches spent looking for a peripheral vertex of each part.
+    private static final int MAX_SEARCHES = 5;
+
+    public final int n;
+    // The column of the matrix eliminated at each step, and the row preferred as its pivot.
+    final int[] columns;
+    final int[] rows;
+
+    private FillReducingOrdering(int[] columns, int[] rows) {
+        this.n = columns.length;
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Computes an ordering of the given matrix.
+     *
+     * @param a The matrix whose pattern to order.
+     * @return The ordering, which may be used to factor any matrix with the same pattern.
+     */
+    public static FillReducingOrdering of(SparseMatrix a) {
+        int n = a.n;
+        int[] columnMatch = new int[n];
+        int[] rowMatch = new int[n];
+        maximumTransversal(a, columnMatch, rowMatch);
+        // Pair the unmatched rows and columns of a structurally singular matrix arbitrarily.
+        int free = 0;
+        for (int j = 0; j < n; j++) {
+            if (columnMatch[j] < 0) {
+                while (rowMatch[free] >= 0) {
+                    free++;
+                }
+                columnMatch[j] = free;
+                rowMatch[free] = j;
+            }
+        }
+
+        // The graph of the pattern with its rows permuted onto their matched columns, made
+        // symmetric: column j is adjacent to column k iff either entry between them is nonzero.
+        int[] offsets = new int[n + 1];
+        for (int j = 0; j < n; j++) {
+            for (int p = a.columnPointers[j]; p < a.columnPointers[j + 1]; p++) {
+                int k = rowMatch[a.rowIndices[p]];
+                if (k != j) {
+                    offsets[j + 1]++;
+                    offsets[k + 1]++;
+                }
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            offsets[j + 1] += offsets[j];
+        }
+        int[] adjacency = new int[offsets[n]];
+        int[] next = Arrays.copyOf(offsets, n);
+        for (int j = 0; j < n; j++) {
+            for (int p = a.columnPointers[j]; p < a.columnPointers[j + 1]; p++) {
+                int k = rowMatch[a.rowIndices[p]];
+                if (k != j) {
+                    adjacency[next[j]++] = k;
+                    adjacency[next[k]++] = j;
+                }
+            }
+        }
+
+        int[] columns = new Dissection(n, offsets, adjacency).order();
+        int[] rows = new int[n];
+        for (int k = 0; k < n; k++) {
+            rows[k] = columnMatch[columns[k]];
+        }
+        return new FillReducingOrdering(columns, rows);
+    }
+
+    /**
+     * Helper method to match as many columns as possible to distinct rows in which they have an
+     * entry, by searching for augmenting paths depth first.
+     *
+     * @param columnMatch The array the row of each column is stored in, or -1 if it is unmatched.
+     * @param rowMatch The array the column of each row is stored in, or -1 if it is unmatched.
+     */
+    private static void maximumTransversal(SparseMatrix a, int[] columnMatch, int[] rowMatch) {
+        int n = a.n;
+        Arrays.fill(columnMatch, -1);
+        Arrays.fill(rowMatch, -1);
+        int[] marks = new int[n];
+        Arrays.fill(marks, -1);
+        int[] columnStack = new int[n];
+        int[] rowStack = new int[n];
+        int[] positions = new int[n];
+        for (int k = 0; k < n; k++) {
+            // Most columns can simply take an unmatched row of their own.
+            for (int p = a.columnPointers[k]; p < a.columnPointers[k + 1]; p++) {
+                int i = a.rowIndices[p];
+                if (rowMatch[i] < 0) {
+                    columnMatch[k] = i;
+                    rowMatch[i] = k;
+                    break;
+                }
+            }
+            if (columnMatch[k] >= 0) {
+                continue;
+            }
+            // Otherwise search for a path of alternately unmatched and matched entries from the
+            // column to an unmatched row.
+            int head = 0;
+            columnStack[0] = k;
+            positions[0] = a.columnPointers[k];
+            boolean found = false;
+            while (head >= 0) {
+                int j = columnStack[head];
+                int end = a.columnPointers[j + 1];
+                int row = -1;
+                int p = positions[head];
+                while (p < end) {
+                    int i = a.rowIndices[p++];
+                    if (marks[i] != k) {
+                        marks[i] = k;
+                        row = i;
+                        break;
+                    }
+                }
+                positions[head] = p;
+                if (row < 0) {
+                    head--;
+                    continue;
+                }
+                rowStack[head] = row;
+                if (rowMatch[row] < 0) {
+                    found = true;
+                    break;
+                }
+                columnStack[++head] = rowMatch[row];
+                positions[head] = a.columnPointers[rowMatch[row]];
+            }
+            if (found) {
+                for (int h = 0; h <= head; h++) {
+                    columnMatch[columnStack[h]] = rowStack[h];
+                    rowMatch[rowStack[h]] = columnStack[h];
+                }
+            }
+        }
+    }
+
+    /**
+     * The nested dissection of a graph. The vertices being ordered are kept in a single array, in
+     * which every part still to be ordered is a contiguous range, whose vertices are marked with
+     * the part's id.
+     */
+    private static class Dissection {
+        private final int n;
+        private final int[] offsets;
+        private final int[] adjacency;
+        private final int[] vertices;
+        // The id of the part each vertex is in, or -1 once it is ordered.
+        private final int[] part;
+        private int parts;
+        // Workspace for the breadth first searches
+        private final int[] level;
+        private final int[] queue;
+        private final int[] visited;
+        private int search;
+        private final int[] local;
+
+        Dissection(int n, int[] offsets, int[] adjacency) {
+            this.n = n;
+            this.offsets = offsets;
+            this.adjacency = adjacency;
+            this.vertices = new int[n];
+            this.part = new int[n];
+            this.level = new int[n];
+            this.queue = new int[n];
+            this.visited = new int[n];
+            this.local = new int[n];
+        }
+
+        /**
+         * @return The vertices in elimination order.
+         */
+        int[] order() {
+            // Dense vertices, such as the unknowns of long loops, would be searched again in every
+            // part they are in; they are ordered last instead, as they fill in regardless.
+            int dense = Math.max(16, (int) (10 * Math.sqrt(n)));
+            int sparse = 0, last = n;
+            for (int v = 0; v < n; v++) {
+                if (offsets[v + 1] - offsets[v] > dense) {
+                    vertices[--last] = v;
+                    part[v] = -1;
+                } else {
+                    vertices[sparse++] = v;
+                }
+            }
+            // Each entry is the start, end and id of a part.
+            Deque<int[]> pending = new ArrayDeque<>();
+            if (sparse > 0) {
+                pending.push(new int[]{0, sparse, parts++});
+            }
+            while (!pending.isEmpty()) {
+                int[] range = pending.pop();
+                int lo = range[0], hi = range[1], id = range[2];
+                if (hi - lo <= LEAF) {
+                    orderByMinimumDegree(lo, hi, id);
+                    continue;
+                }
+
+                // Search from a peripheral vertex, so there are many short levels.
+                int root = vertices[lo];
+                int count = search(root, id);
+                int depth = level[queue[count - 1]];
+                for (int s = 1; s < MAX_SEARCHES; s++) {
+                    int candidate = minimumDegree(count, depth, id);
+                    int candidateCount = search(candidate, id);
+                    int candidateDepth = level[queue[candidateCount - 1]];
+                    if (candidateDepth <= depth) {
+                        count = search(root, id);
+                        break;
+                    }
+                    root = candidate;
+                    count = candidateCount;
+                    depth = candidateDepth;
+                }
+
+                if (count < hi - lo) {
+                    splitComponents(lo, hi, id, pending);
+                    continue;
+                }
+                if (depth < 2) {
+                    // No level separates the part, which is about as dense as it is small.
+                    System.arraycopy(queue, 0, vertices, lo, count);
+                    for (int i = lo; i < hi; i++) {
+                        part[vertices[i]] = -1;
+                    }
+                    continue;
+                }
+                dissect(lo, hi, id, count, depth, pending);
+            }
+            return vertices;
+        }
+
+        /**
+         * Helper method to split the searched part along its smallest level that leaves at least
+         * a fifth of its vertices on either side, or else its median level, and arrange its
+         * vertices as the vertices before the separator, those after it, then the separator.
+         */
+        private void dissect(int lo, int hi, int id, int count, int depth, Deque<int[]> pending) {
+            int[] sizes = new int[depth + 1];
+            for (int i = 0; i < count; i++) {
+                sizes[level[queue[i]]]++;
+            }
+            int separator = -1, median = 1;
+            int preceding = sizes[0];
+            for (int l = 1; l < depth; l++) {
+                int following = count - preceding - sizes[l];
+                if (preceding < count / 2) {
+                    median = l;
+                }
+                if (Math.min(preceding, following) >= count / 5
+                        && (separator < 0 || sizes[l] < sizes[separator])) {
+                    separator = l;
+                }
+                preceding += sizes[l];
+            }
+            if (separator < 0) {
+                separator = median;
+            }
+            // Vertices of the separating level without neighbors after it are not needed to
+            // separate the halves.
+            int before = 0, after = 0, separating = 0;
+            for (int i = 0; i < count; i++) {
+                int v = queue[i];
+                if (level[v] == separator && !hasNeighborAt(v, id, separator + 1)) {
+                    level[v] = separator - 1;
+                }
+                if (level[v] < separator) {
+                    before++;
+                } else if (level[v] > separator) {
+                    after++;
+                } else {
+                    separating++;
+                }
+            }
+            int b = lo, a = lo + before, s = lo + before + after;
+            for (int i = 0; i < count; i++) {
+                int v = queue[i];
+                if (level[v] < separator) {
+                    vertices[b++] = v;
+                } else if (level[v] > separator) {
+                    vertices[a++] = v;
+                } else {
+                    vertices[s++] = v;
+                    part[v] = -1;
+                }
+            }
+            if (before > 0) {
+                pending.push(split(lo, lo + before));
+            }
+            if (after > 0) {
+                pending.push(split(lo + before, lo + before + after));
+            }
+        }
+
+        /**
+         * Helper method to split a disconnected part into its connected components, which are
+         * ordered separately.
+         */
+        private void splitComponents(int lo, int hi, int id, Deque<int[]> pending) {
+            int count = 0;
+            for (int i = lo; i < hi; i++) {
+                int root = vertices[i];
+                if (part[root] != id) {
+                    continue;
+                }
+                // Search the component, moving its vertices to a new part as they are reached.
+                int start = count;
+                int component = parts++;
+                part[root] = component;
+                local[count++] = root;
+                for (int head = start; head < count; head++) {
+                    int v = local[head];
+                    for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                        int u = adjacency[p];
+                        if (part[u] == id) {
+                            part[u] = component;
+                            local[count++] = u;
+                        }
+                    }
+                }
+                pending.push(new int[]{lo + start, lo + count, component});
+            }
+            System.arraycopy(local, 0, vertices, lo, count);
+        }
+
+        /**
+         * Helper method to mark the vertices of the given range as a new part.
+         *
+         * @return The start, end and id of the new part.
+         */
+        private int[] split(int lo, int hi) {
+            int id = parts++;
+            for (int i = lo; i < hi; i++) {
+                part[vertices[i]] = id;
+            }
+            return new int[]{lo, hi, id};
+        }
+
+        /**
+         * Helper method to search the given part breadth first from the given vertex.
+         *
+         * @return The number of vertices reached, which are stored in queue in order of their
+         *         level.
+         */
+        private int search(int root, int id) {
+            search++;
+            visited[root] = search;
+            level[root] = 0;
+            queue[0] = root;
+            int count = 1;
+            for (int head = 0; head < count; head++) {
+                int v = queue[head];
+                for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                    int u = adjacency[p];
+                    if (part[u] == id && visited[u] != search) {
+                        visited[u] = search;
+                        level[u] = level[v] + 1;
+                        queue[count++] = u;
+                    }
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Helper method to find the vertex of least degree in the last level of the last search.
+         */
+        private int minimumDegree(int count, int depth, int id) {
+            int best = -1, bestDegree = Integer.MAX_VALUE;
+            for (int i = count - 1; i >= 0 && level[queue[i]] == depth; i--) {
+                int v = queue[i];
+                int degree = 0;
+                for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                    if (part[adjacency[p]] == id) {
+                        degree++;
+                    }
+                }
+                if (degree < bestDegree) {
+                    best = v;
+                    bestDegree = degree;
+                }
+            }
+            return best;
+        }
+
+        private boolean hasNeighborAt(int v, int id, int l) {
+            for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                int u = adjacency[p];
+                if (part[u] == id && visited[u] == search && level[u] == l) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Helper method to order a small part by repeatedly eliminating a vertex of least degree
+         * in its elimination graph, which is kept as one bit set of neighbors per vertex.
+         */
+        private void orderByMinimumDegree(int lo, int hi, int id) {
+            int m = hi - lo;
+            long[] neighbors = new long[m];
+            for (int k = 0; k < m; k++) {
+                local[vertices[lo + k]] = k;
+            }
+            for (int k = 0; k < m; k++) {
+                int v = vertices[lo + k];
+                for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                    int u = adjacency[p];
+                    if (part[u] == id && u != v) {
+                        neighbors[k] |= 1L << local[u];
+                    }
+                }
+            }
+            int[] order = new int[m];
+            long remaining = m == 64 ? -1L : (1L << m) - 1;
+            for (int t = 0; t < m; t++) {
+                int best = -1, bestDegree = Integer.MAX_VALUE;
+                for (long r = remaining; r != 0; r &= r - 1) {
+                    int k = Long.numberOfTrailingZeros(r);
+                    int degree = Long.bitCount(neighbors[k] & remaining);
+                    if (degree < bestDegree) {
+                        best = k;
+                        bestDegree = degree;
+                    }
+                }
+                remaining &= ~(1L << best);
+                long clique = neighbors[best] & remaining;
+                for (long r = clique; r != 0; r &= r - 1) {
+                    int k = Long.numberOfTrailingZeros(r);
+                    neighbors[k] |= clique & ~(1L << k);
+                }
+                order[t] = vertices[lo + best];
+            }
+            for (int t = 0; t < m; t++) {
+                vertices[lo + t] = order[t];
+                part[order[t]] = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,560 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * A solver of the nodal equations of a circuit's topology by preconditioned conjugate gradients.
+ *
+ * Every source (a battery, a resistor without resistance, or an inductor or AC source, which are
+ * shorts in a steady state) fixes the difference between the potentials of its two nodes, so the
+ * nodes joined by sources form supernodes whose potentials are those of their root plus fixed
+ * offsets. Supernodes containing a grounded node have known potentials. The junction rule at the
+ * others, with the currents of the resistors (and capacitors) between supernodes written in terms
+ * of their potentials, is a weighted graph Laplacian, which is symmetric positive definite. Once it
+ * is solved, the currents of the sources follow from the junction rule at each node, from the
+ * leaves of the forest of sources inwards.
+ */
+class IterativeSolver {
+    /** The equations this solves. */
+    final NodalEquations equations;
+    // The node that stands for ground in the forest of sources.
+    private final int ground;
+    // The nodes of the first and second pin of each source.
+    private final int[] sourceA;
+    private final int[] sourceB;
+    // The nodes of the first and second pin of each conductance: the resistors with resistance,
+    // then the capacitors, which are open but for GMIN in a steady state.
+    private final int[] conductorA;
+    private final int[] conductorB;
+    // The resistor of each conductance, or -1 for capacitors.
+    private final int[] conductorResistors;
+    // The nodes of the forest of sources in breadth first order from their roots, and the source
+    // joining each node to its parent, or -1 for roots.
+    private final int[] order;
+    private final int[] parentSource;
+    // The index of the free supernode of each node, or -1 if its potential is known.
+    private final int[] supernode;
+    private final int free;
+    // Whether the sources form a loop, which leaves their currents undetermined.
+    private final boolean sourceLoop;
+
+    // The reduced matrix and its preconditioner, for the resistances it was assembled with.
+    private double[] assembled;
+    private SparseMatrix matrix;
+    private ConjugateGradient.Preconditioner preconditionerType;
+    private double[] diagonal;
+    private int[] choleskyPointers;
+    private int[] choleskyIndices;
+    private double[] choleskyValues;
+    private Multigrid multigrid;
+
+    // The last solution of the reduced system, and the potential of every node it gave.
+    private double[] solution;
+    private double[] potentials;
+    // The potential of each node before the first solve, from an earlier solver, or NaN.
+    private double[] seeds;
+
+    /**
+     * @param equations The equations to solve.
+     * @param previous A solver of earlier equations of the same circuit whose last solution seeds
+     *                 the first solve of this one, or null.
+     */
+    IterativeSolver(NodalEquations equations, IterativeSolver previous) {
+        if (!equations.diodes.isEmpty()) {
+            throw new IllegalStateException("Diodes need a nonlinear solve.");
+        }
+        this.equations = equations;
+        int nodes = equations.nodes;
+        this.ground = nodes;
+        int sources = equations.sources;
+        this.sourceA = new int[sources];
+        this.sourceB = new int[sources];
+        for (int i = 0; i < equations.batteries.size(); i++) {
+            sourceA[i] = node(equations.batteryNodes[2 * i]);
+            sourceB[i] = node(equations.batteryNodes[2 * i + 1]);
+        }
+        for (int i = 0; i < equations.resistorSources.length; i++) {
+            int s = equations.resistorSources[i];
+            if (s >= 0) {
+                sourceA[s] = node(equations.resistorNodes[2 * i]);
+                sourceB[s] = node(equations.resistorNodes[2 * i + 1]);
+            }
+        }
+        // Inductors are shorts in a steady state.
+        for (int i = 0; i < equations.inductors.size(); i++) {
+            int s = equations.inductorRow(i) - nodes;
+            sourceA[s] = node(equations.inductorNodes[2 * i]);
+            sourceB[s] = node(equations.inductorNodes[2 * i + 1]);
+        }
+        // So are AC sources.
+        for (int i = 0; i < equations.acSources.size(); i++) {
+            int s = equations.acSourceRow(i) - nodes;
+            sourceA[s] = node(equations.acSourceNodes[2 * i]);
+            sourceB[s] = node(equations.acSourceNodes[2 * i + 1]);
+        }
+        int conductors = equations.capacitors.size();
+        for (int s : equations.resistorSources) {
+            conductors += s < 0 ? 1 : 0;
+        }
+        this.conductorA = new int[conductors];
+        this.conductorB = new int[conductors];
+        this.conductorResistors = new int[conductors];
+        int c = 0;
+        for (int i = 0; i < equations.resistorSources.length; i++) {
+            if (equations.resistorSources[i] < 0) {
+                conductorA[c] = node(equations.resistorNodes[2 * i]);
+                conductorB[c] = node(equations.resistorNodes[2 * i + 1]);
+                conductorResistors[c++] = i;
+            }
+        }
+        for (int i = 0; i < equations.capacitors.size(); i++) {
+            conductorA[c] = node(equations.capacitorNodes[2 * i]);
+            conductorB[c] = node(equations.capacitorNodes[2 * i + 1]);
+            conductorResistors[c++] = -1;
+        }
+
+        // The sources of each node, in compressed sparse row form.
+        int[] offsets = new int[nodes + 2];
+        for (int s = 0; s < sources; s++) {
+            offsets[sourceA[s] + 1]++;
+            offsets[sourceB[s] + 1]++;
+        }
+        for (int v = 0; v <= nodes; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] incident = new int[2 * sources];
+        int[] next = Arrays.copyOf(offsets, nodes + 1);
+        for (int s = 0; s < sources; s++) {
+            incident[next[sourceA[s]]++] = s;
+            incident[next[sourceB[s]]++] = s;
+        }
+
+        // Search the forest of sources from ground first, so its tree has known potentials.
+        this.order = new int[nodes + 1];
+        this.parentSource = new int[nodes + 1];
+        this.supernode = new int[nodes + 1];
+        Arrays.fill(supernode, -2);
+        boolean loop = false;
+        int count = 0, supernodes = 0;
+        for (int k = 0; k <= nodes; k++) {
+            int root = k == 0 ? ground : k - 1;
+            if (supernode[root] != -2) {
+                continue;
+            }
+            int index = root == ground ? -1 : supernodes++;
+            supernode[root] = index;
+            parentSource[root] = -1;
+            order[count++] = root;
+            for (int head = count - 1; head < count; head++) {
+                int v = order[head];
+                for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                    int s = incident[p];
+                    if (s == parentSource[v]) {
+                        continue;
+                    }
+                    int u = sourceA[s] == v ? sourceB[s] : sourceA[s];
+                    if (supernode[u] != -2) {
+                        loop = true;
+                        continue;
+                    }
+                    supernode[u] = index;
+                    parentSource[u] = s;
+                    order[count++] = u;
+                }
+            }
+        }
+        this.free = supernodes;
+        this.sourceLoop = loop;
+
+        if (previous != null && previous.potentials != null) {
+            this.seeds = previous.seeds(equations);
+        }
+    }
+
+    /**
+     * Solves the equations with the current values of the circuit's elements, starting from the
+     * last solution, and sets the current of every branch.
+     *
+     * @throws ArithmeticException if the equations are singular.
+     */
+    ConjugateGradient.Result solve(ConjugateGradient settings) {
+        if (sourceLoop) {
+            throw new ArithmeticException("Matrix is singular.");
+        }
+        double[] resistances = equations.resistances();
+        double[] potentialDifferences = equations.potentialDifferences();
+        double[] offsets = offsets(resistances, potentialDifferences);
+        if (!Arrays.equals(resistances, assembled)) {
+            assemble(resistances);
+        }
+        if (preconditionerType != settings.preconditioner) {
+            precondition(settings.preconditioner);
+        }
+        double[] b = rightHandSide(resistances, offsets);
+        double[] x = initialGuess(offsets);
+        ConjugateGradient.Result result = iterate(b, x, settings);
+        solution = x;
+
+        potentials = new double[equations.nodes];
+        for (int v = 0; v < potentials.length; v++) {
+            potentials[v] = (supernode[v] >= 0 ? x[supernode[v]] : 0) + offsets[v];
+        }
+        double[] unknowns = Arrays.copyOf(potentials, equations.size());
+        sourceCurrents(resistances, unknowns);
+        double[] currents = equations.branchCurrents(unknowns, resistances);
+        for (int i = 0; i < currents.length; i++) {
+            equations.branches.get(i).current = currents[i];
+        }
+        return result;
+    }
+
+    /**
+     * Helper method to compute the offset of the potential of every node from that of the root of
+     * its supernode.
+     */
+    private double[] offsets(double[] resistances, double[] potentialDifferences) {
+        double[] offsets = new double[ground + 1];
+        for (int k = 0; k < order.length; k++) {
+            int v = order[k];
+            int s = parentSource[v];
+            if (s < 0) {
+                continue;
+            }
+            // The potential of the second pin of a source is higher by its potential difference.
+            double difference = s < potentialDifferences.length ? potentialDifferences[s] : 0;
+            offsets[v] = v == sourceB[s]
+                    ? offsets[sourceA[s]] + difference
+                    : offsets[sourceB[s]] - difference;
+        }
+        return offsets;
+    }
+
+    /**
+     * Helper method to assemble the Laplacian of the conductances between free supernodes.
+     */
+    private void assemble(double[] resistances) {
+        SparseMatrix.Builder mat = new SparseMatrix.Builder(free);
+        for (int k = 0; k < conductorA.length; k++) {
+            int a = supernode[conductorA[k]];
+            int b = supernode[conductorB[k]];
+            if (a == b) {
+                continue;
+            }
+            double g = conductance(k, resistances);
+            if (a >= 0) {
+                mat.add(a, a, g);
+            }
+            if (b >= 0) {
+                mat.add(b, b, g);
+            }
+            if (a >= 0 && b >= 0) {
+                mat.add(a, b, -g);
+                mat.add(b, a, -g);
+            }
+        }
+        matrix = mat.build();
+        assembled = resistances.clone();
+        diagonal = new double[free];
+        for (int j = 0; j < free; j++) {
+            diagonal[j] = matrix.get(j, j);
+            if (!(diagonal[j] > 0)) {
+                throw new ArithmeticException("Matrix is singular.");
+            }
+        }
+        preconditionerType = null;
+    }
+
+    /**
+     * Helper method to compute the preconditioner of the assembled matrix.
+     */
+    private void precondition(ConjugateGradient.Preconditioner type) {
+        preconditionerType = type;
+        if (type == ConjugateGradient.Preconditioner.ALGEBRAIC_MULTIGRID) {
+            // The aggregates of the hierarchy depend only on the topology, which this solver's
+            // equations fix.
+            multigrid = multigrid == null ? Multigrid.of(matrix) : multigrid.update(matrix);
+            return;
+        } else if (type != ConjugateGradient.Preconditioner.INCOMPLETE_CHOLESKY) {
+            return;
+        }
+        // The rows of L have the pattern of the lower triangle of the matrix, which by symmetry
+        // is that of the columns of its upper triangle, with the diagonal last.
+        int[] pointers = new int[free + 1];
+        for (int j = 0; j < free; j++) {
+            pointers[j + 1] = pointers[j];
+            for (int p = matrix.columnPointers[j]; p < matrix.columnPointers[j + 1]; p++) {
+                if (matrix.rowIndices[p] <= j) {
+                    pointers[j + 1]++;
+                }
+            }
+        }
+        int[] indices = new int[pointers[free]];
+        double[] values = new double[pointers[free]];
+        for (int i = 0; i < free; i++) {
+            int q = pointers[i];
+            for (int p = matrix.columnPointers[i]; p < matrix.columnPointers[i + 1]; p++) {
+                if (matrix.rowIndices[p] <= i) {
+                    indices[q] = matrix.rowIndices[p];
+                    values[q++] = matrix.values[p];
+                }
+            }
+            // L[i][k] = (A[i][k] - sum of L[i][j] L[k][j] for j < k) / L[k][k]
+            int last = pointers[i + 1] - 1;
+            double sum = 0;
+            for (int p = pointers[i]; p < last; p++) {
+                int k = indices[p];
+                double dot = 0;
+                int pi = pointers[i], pk = pointers[k], endK = pointers[k + 1] - 1;
+                while (pi < p && pk < endK) {
+                    if (indices[pi] == indices[pk]) {
+                        dot += values[pi++] * values[pk++];
+                    } else if (indices[pi] < indices[pk]) {
+                        pi++;
+                    } else {
+                        pk++;
+                    }
+                }
+                values[p] = (values[p] - dot) / values[endK];
+                sum += values[p] * values[p];
+            }
+            double d = values[last] - sum;
+            // Without fill the factorization may break down; falling back to the diagonal keeps
+            // the preconditioner positive definite.
+            values[last] = Math.sqrt(d > 0 ? d : values[last]);
+        }
+        choleskyPointers = pointers;
+        choleskyIndices = indices;
+        choleskyValues = values;
+    }
+
+    /**
+     * Helper method to compute the right hand side of the reduced system: the currents the
+     * offsets drive through each supernode's resistors.
+     */
+    private double[] rightHandSide(double[] resistances, double[] offsets) {
+        double[] b = new double[free];
+        for (int k = 0; k < conductorA.length; k++) {
+            int na = conductorA[k];
+            int nb = conductorB[k];
+            int a = supernode[na], b2 = supernode[nb];
+            if (a == b2) {
+                continue;
+            }
+            double current = (offsets[nb] - offsets[na]) * conductance(k, resistances);
+            if (a >= 0) {
+                b[a] += current;
+            }
+            if (b2 >= 0) {
+                b[b2] -= current;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Helper method to start from the last solution, or else from the seeded node potentials.
+     */
+    private double[] initialGuess(double[] offsets) {
+        if (solution != null) {
+            return solution.clone();
+        }
+        double[] x = new double[free];
+        if (seeds != null) {
+            boolean[] seeded = new boolean[free];
+            for (int v = 0; v < seeds.length; v++) {
+                int s = supernode[v];
+                if (s >= 0 && !seeded[s] && !Double.isNaN(seeds[v])) {
+                    x[s] = seeds[v] - offsets[v];
+                    seeded[s] = true;
+                }
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Helper method to run the preconditioned conjugate gradient iteration on the reduced
+     * system.
+     *
+     * @param x The initial guess, which is overwritten with the solution.
+     */
+    private ConjugateGradient.Result iterate(double[] b, double[] x, ConjugateGradient settings) {
+        double norm = Math.sqrt(dot(b, b));
+        if (norm == 0) {
+            Arrays.fill(x, 0);
+            return new ConjugateGradient.Result(0, 0, true);
+        }
+        double[] r = new double[free];
+        double[] z = new double[free];
+        double[] p = new double[free];
+        double[] q = new double[free];
+        multiply(x, q);
+        for (int i = 0; i < free; i++) {
+            r[i] = b[i] - q[i];
+        }
+        applyPreconditioner(r, z);
+        System.arraycopy(z, 0, p, 0, free);
+        double rz = dot(r, z);
+        double residual = Math.sqrt(dot(r, r)) / norm;
+        int iterations = 0;
+        while (residual > settings.tolerance && iterations < settings.maxIterations) {
+            multiply(p, q);
+            double alpha = rz / dot(p, q);
+            for (int i = 0; i < free; i++) {
+                x[i] += alpha * p[i];
+                r[i] -= alpha * q[i];
+            }
+            applyPreconditioner(r, z);
+            double next = dot(r, z);
+            double beta = next / rz;
+            rz = next;
+            for (int i = 0; i < free; i++) {
+                p[i] = z[i] + beta * p[i];
+            }
+            residual = Math.sqrt(dot(r, r)) / norm;
+            iterations++;
+        }
+        return new ConjugateGradient.Result(iterations, residual,
+                residual <= settings.tolerance);
+    }
+
+    /**
+     * Helper method to multiply the assembled matrix by x into y, without allocating.
+     */
+    private void multiply(double[] x, double[] y) {
+        Arrays.fill(y, 0);
+        for (int j = 0; j < free; j++) {
+            double xj = x[j];
+            for (int p = matrix.columnPointers[j]; p < matrix.columnPointers[j + 1]; p++) {
+                y[matrix.rowIndices[p]] += matrix.values[p] * xj;
+            }
+        }
+    }
+
+    /**
+     * Helper method to solve M z = r with the preconditioner M.
+     */
+    private void applyPreconditioner(double[] r, double[] z) {
+        if (preconditionerType == ConjugateGradient.Preconditioner.JACOBI) {
+            for (int i = 0; i < free; i++) {
+                z[i] = r[i] / diagonal[i];
+            }
+            return;
+        }
+        if (preconditionerType == ConjugateGradient.Preconditioner.ALGEBRAIC_MULTIGRID) {
+            multigrid.cycle(r, z);
+            return;
+        }
+        // Forward substitution with L, then back substitution with its transpose, by rows of L.
+        for (int i = 0; i < free; i++) {
+            int last = choleskyPointers[i + 1] - 1;
+            double sum = r[i];
+            for (int p = choleskyPointers[i]; p < last; p++) {
+                sum -= choleskyValues[p] * z[choleskyIndices[p]];
+            }
+            z[i] = sum / choleskyValues[last];
+        }
+        for (int i = free - 1; i >= 0; i--) {
+            int last = choleskyPointers[i + 1] - 1;
+            z[i] /= choleskyValues[last];
+            for (int p = choleskyPointers[i]; p < last; p++) {
+                z[choleskyIndices[p]] -= choleskyValues[p] * z[i];
+            }
+        }
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double sum = 0;
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Helper method to find the current of every source from the junction rule at each node,
+     * peeling the forest of sources from its leaves.
+     *
+     * @param unknowns The unknowns of the nodal equations, whose node potentials are set, and
+     *                 whose source currents are stored.
+     */
+    private void sourceCurrents(double[] resistances, double[] unknowns) {
+        // The current leaving each node through its resistors and the sources found so far.
+        double[] leaving = new double[ground + 1];
+        for (int k = 0; k < conductorA.length; k++) {
+            int a = conductorA[k];
+            int b = conductorB[k];
+            double current = (potential(unknowns, a) - potential(unknowns, b))
+                    * conductance(k, resistances);
+            leaving[a] += current;
+            leaving[b] -= current;
+        }
+        int nodes = equations.nodes;
+        for (int k = order.length - 1; k >= 0; k--) {
+            int v = order[k];
+            int s = parentSource[v];
+            if (s < 0) {
+                continue;
+            }
+            // A source's current flows through it from its first pin to its second.
+            double current = v == sourceA[s] ? -leaving[v] : leaving[v];
+            unknowns[nodes + s] = current;
+            if (v == sourceA[s]) {
+                leaving[sourceB[s]] -= current;
+            } else {
+                leaving[sourceA[s]] += current;
+            }
+        }
+    }
+
+    /**
+     * Helper method to derive, from the last solution, the potential of every node of the given
+     * equations of the same circuit, where their resistors and batteries were already present.
+     *
+     * @return The potential of each node, or NaN where it is unknown.
+     */
+    private double[] seeds(NodalEquations other) {
+        double[] seeds = new double[other.nodes];
+        Arrays.fill(seeds, Double.NaN);
+        seed(equations.resistors, equations.resistorNodes, other.resistors, other.resistorNodes,
+                seeds);
+        seed(equations.batteries, equations.batteryNodes, other.batteries, other.batteryNodes,
+                seeds);
+        return seeds;
+    }
+
+    private void seed(List<CircuitElement> elements, int[] elementNodes,
+                      List<CircuitElement> others, int[] otherNodes, double[] seeds) {
+        Map<CircuitElement, Integer> indices = new HashMap<>();
+        for (int i = 0; i < elements.size(); i++) {
+            indices.put(elements.get(i), i);
+        }
+        for (int i = 0; i < others.size(); i++) {
+            Integer j = indices.get(others.get(i));
+            if (j == null) {
+                continue;
+            }
+            for (int pin = 0; pin < 2; pin++) {
+                int v = otherNodes[2 * i + pin];
+                if (v >= 0 && Double.isNaN(seeds[v])) {
+                    int u = elementNodes[2 * j + pin];
+                    seeds[v] = u >= 0 ? potentials[u] : 0;
+                }
+            }
+        }
+    }
+
+    private double conductance(int conductor, double[] resistances) {
+        int r = conductorResistors[conductor];
+        return r >= 0 ? 1 / resistances[r] : NodalEquations.GMIN;
+    }
+
+    private double potential(double[] unknowns, int node) {
+        return node == ground ? 0 : unknowns[node];
+    }
+
+    // The node of the forest of sources of a node of the equations, which may be grounded.
+    private int node(int node) {
+        return node >= 0 ? node : ground;
+    }
+}
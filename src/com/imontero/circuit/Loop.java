@@ -4,41 +4,52 @@ import java.util.*;
 
 public class Loop {
     public final List<Wire> wires;
-    private final Set<Wire> wireSet;
     public final List<CircuitElement> elements;
-    private final Set<CircuitElement> elementSet;
+    // The position of each wire and element in the loop, which are also their sets.
+    private final Map<Wire, Integer> wireIndices;
+    private final Map<CircuitElement, Integer> elementIndices;
 
     private Loop(LoopBuilder lb) {
         this.wires = Collections.unmodifiableList(
                 new ArrayList<>(lb.wires));
         this.elements = Collections.unmodifiableList(
                 new ArrayList<>(lb.elements));
-        this.wireSet = Collections.unmodifiableSet(
-                new HashSet<>(this.wires));
-        this.elementSet = Collections.unmodifiableSet(
-                new HashSet<>(this.elements));
+        this.wireIndices = indices(this.wires);
+        this.elementIndices = indices(this.elements);
+    }
+
+    private static <T> Map<T, Integer> indices(List<T> list) {
+        Map<T, Integer> indices = new HashMap<>();
+        for (int i = list.size() - 1; i >= 0; i--) {
+            indices.put(list.get(i), i);
+        }
+        return Collections.unmodifiableMap(indices);
+    }
+
+    private static <T> int indexOf(Map<T, Integer> indices, T t) {
+        return indices.getOrDefault(t, -1);
     }
 
     public boolean hasCircuitElement(CircuitElement ce) {
-        return this.elementSet.contains(ce);
+        return this.elementIndices.containsKey(ce);
     }
 
     public boolean hasWire(Wire w) {
-        return this.wireSet.contains(w);
+        return this.wireIndices.containsKey(w);
     }
 
     public CircuitElement next(CircuitElement curr) {
-        return this.elements.get((this.elements.indexOf(curr) + 1) % this.elements.size());
+        return this.elements.get((indexOf(elementIndices, curr) + 1) % this.elements.size());
     }
 
     public Wire next(Wire curr) {
-        return this.wires.get((this.wires.indexOf(curr) + 1) % this.wires.size());
+        return this.wires.get((indexOf(wireIndices, curr) + 1) % this.wires.size());
     }
 
     // True if in same direction, false otherwise
     public boolean getDirection(CircuitElement a, CircuitElement b) {
-        int ai = elements.indexOf(a);
-        int bi = elements.indexOf(b);
+        int ai = indexOf(elementIndices, a);
+        int bi = indexOf(elementIndices, b);
         if ((ai == 0 && bi == elements.size()-1) || (ai == elements.size()-1 && bi == 0)) {
             // in this case, an edge case, we reverse the result.
             return ai-bi > 0;
@@ -49,8 +60,8 @@ public class Loop {
 
     // True if in same direction, false otherwise
     public boolean getDirection(Wire a, Wire b) {
-        int ai = wires.indexOf(a);
-        int bi = wires.indexOf(b);
+        int ai = indexOf(wireIndices, a);
+        int bi = indexOf(wireIndices, b);
         if ((ai == 0 && bi == wires.size()-1) || (ai == wires.size()-1 && bi == 0)) {
             // in this case, an edge case, we reverse the result.
             return ai-bi > 0;
@@ -60,7 +71,7 @@ public class Loop {
     }
 
     public Wire getNextWire(CircuitElement ce) {
-        return wires.get(elements.indexOf(ce));
+        return wires.get(indexOf(elementIndices, ce));
     }
 
     @Override
@@ -69,13 +80,14 @@ public class Loop {
             return false;
         } else {
             Loop o = (Loop) other;
-            return this.elementSet.equals(o.elementSet) && this.wireSet.equals(o.wireSet);
+            return this.elementIndices.keySet().equals(o.elementIndices.keySet())
+                    && this.wireIndices.keySet().equals(o.wireIndices.keySet());
         }
     }
 
     @Override
     public int hashCode() {
-        return 31 * this.wireSet.hashCode() + elementSet.hashCode();
+        return 31 * this.wireIndices.keySet().hashCode() + elementIndices.keySet().hashCode();
     }
 
     @Override
@@ -0,0 +1,25 @@
+package com.imontero.circuit;
+
+/**
+ * The strategy a Circuit uses to discover its Kirchhoff loops as wires are added and removed.
+ */
+public enum LoopDiscovery {
+    /**
+     * Every simple loop is enumerated whenever a wire is added, keeping the loops, branches and
+     * junctions of the circuit up to date, but the enumeration is exponential on meshy circuits.
+     */
+    ALL,
+    /**
+     * Only a fundamental loop basis is found: one loop per wire outside of a spanning forest of
+     * the circuit. These are exactly the independent loops the loop equations of
+     * {@link Circuit#solve()} consume. The forest is maintained incrementally on each wire edit:
+     * a wire within a tree closes a single loop, found in time linear in its length, while a wire
+     * joining two trees re-roots the smaller tree under the other.
+     */
+    FUNDAMENTAL,
+    /**
+     * No loops are enumerated. Active branches and junctions are derived directly from the wires
+     * when they are needed, and the circuit is evaluated with {@link Circuit#solveNodal()}.
+     */
+    NONE
+}
@@ -0,0 +1,257 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * The Kirchhoff loop and junction equations of a circuit, whose unknowns are the currents of its
+ * active branches.
+ *
+ * We know that, in given complete circuit, the amount of unknowns we have are the currents
+ * (voltages can be then derived from the current), which equal to the number of active branches B.
+ * Let J equal to the amount of junctions. We will need B independent equations, which we can
+ * obtain by using J-1 different junction equations and B-(J-1) different loop rule equations.
+ */
+class LoopEquations extends CircuitEquations {
+    private final int n;
+    // The entries of the junction equations, which do not depend on any element's value.
+    private final SparseMatrix junctionRows;
+    // The column of each resistor's branch. The rows its resistance appears in, and with which
+    // sign, are stored from resistorStart[i] to resistorStart[i + 1].
+    private final int[] resistorColumns;
+    private final int[] resistorStart;
+    private final int[] resistorRows;
+    private final double[] resistorSigns;
+    // The rows each battery's potential difference appears in, and with which sign, are stored
+    // from batteryStart[i] to batteryStart[i + 1].
+    private final int[] batteryStart;
+    private final int[] batteryRows;
+    private final double[] batterySigns;
+
+    /**
+     * Finds the equations of the given circuit.
+     *
+     * @requires loops and branches of the current circuit configuration have been found.
+     */
+    LoopEquations(Circuit c) {
+        this(c, allElements(c));
+    }
+
+    /**
+     * Finds the equations of the given part of a circuit.
+     *
+     * @param part The indices of the elements of a union of connected parts of the circuit.
+     * @requires loops and branches of the current circuit configuration have been found.
+     */
+    LoopEquations(Circuit c, int[] part) {
+        super(branchesOf(c, part));
+        this.n = branches.size();
+
+        // Get independent equations. Each separate part of the circuit has one dependent
+        // junction equation.
+        List<CircuitElement> iJunctions = independentJunctions(junctionsOf(c, part), branches);
+        Set<CircuitElement> partElements = new HashSet<>();
+        for (int v : part) {
+            partElements.add(c.compact.elements[v]);
+        }
+        ArrayList<Loop> iLoops = new ArrayList<>();
+        Iterator<Loop> lIter = c.loops.iterator();
+        while (iLoops.size() + iJunctions.size() < n) {
+            Loop l = lIter.next();
+            if (partElements.contains(l.elements.get(0))) {
+                iLoops.add(l);
+            }
+        }
+        assert n == iJunctions.size() + iLoops.size();
+
+        // We will map branches (currents) to a specific index.
+        Map<Branch, Integer> bIndices = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            bIndices.put(branches.get(i), i);
+        }
+
+        // Start with loop equations. Each term is the row, then the sign.
+        Map<CircuitElement, List<Integer>> resistorTerms = new LinkedHashMap<>();
+        Map<CircuitElement, List<Integer>> batteryTerms = new LinkedHashMap<>();
+        for (int i = 0; i < iLoops.size(); i++) {
+            Loop l = iLoops.get(i);
+            for (CircuitElement ce : l.elements) {
+                if (ce.type.PINS != 2) {
+                    continue;
+                }
+                Branch br = c.wireToBranch.get(l.getNextWire(ce));
+                switch (ce.type) {
+                    case BATTERY:
+                        batteryTerms.computeIfAbsent(ce, k -> new ArrayList<>()).addAll(
+                                Arrays.asList(i, ce.getPotentialDifferenceSign(l, br)));
+                        break;
+                    case RESISTOR:
+                        resistorTerms.computeIfAbsent(ce, k -> new ArrayList<>()).addAll(
+                                Arrays.asList(i, ce.getPotentialDifferenceSign(l, br)));
+                        break;
+                    case CAPACITOR:
+                        // The current of a loop cannot be stopped by one of its elements.
+                        throw new IllegalStateException("Loop equations cannot model capacitors.");
+                    case DIODE:
+                        throw new IllegalStateException("Loop equations cannot model diodes.");
+                    default:
+                        // Inductors and AC sources are shorts in a steady state.
+                        break;
+                }
+            }
+        }
+
+        // Add junction equations
+        SparseMatrix.Builder mat = new SparseMatrix.Builder(n);
+        for (int i = 0; i < iJunctions.size(); i++) {
+            CircuitElement ce = iJunctions.get(i);
+            // Find currents that are in and out.
+            for (Wire w : new LinkedHashSet<>(ce.connections)) {
+                if (c.wireToBranch.containsKey(w)) {
+                    Branch br = c.wireToBranch.get(w);
+                    int row = iLoops.size() + i;
+                    if (w.equals(br.getNextWire(ce))) {
+                        // If in same direction as going out from junction
+                        mat.add(row, bIndices.get(br), -1);
+                    } else {
+                        mat.add(row, bIndices.get(br), 1);
+                    }
+                }
+            }
+        }
+        this.junctionRows = mat.build();
+
+        resistors.addAll(resistorTerms.keySet());
+        batteries.addAll(batteryTerms.keySet());
+        this.resistorColumns = new int[resistors.size()];
+        for (int i = 0; i < resistors.size(); i++) {
+            CircuitElement r = resistors.get(i);
+            resistorColumns[i] = bIndices.get(c.wireToBranch.get(r.connections.get(0)));
+        }
+        this.resistorStart = new int[resistors.size() + 1];
+        int count = flatten(resistorTerms.values(), resistorStart);
+        this.resistorRows = new int[count];
+        this.resistorSigns = new double[count];
+        unpack(resistorTerms.values(), resistorRows, resistorSigns);
+        this.batteryStart = new int[batteries.size() + 1];
+        count = flatten(batteryTerms.values(), batteryStart);
+        this.batteryRows = new int[count];
+        this.batterySigns = new double[count];
+        unpack(batteryTerms.values(), batteryRows, batterySigns);
+        recordOrientation();
+    }
+
+    @Override
+    int size() {
+        return n;
+    }
+
+    @Override
+    SparseMatrix matrix(double[] resistances) {
+        SparseMatrix.Builder mat = new SparseMatrix.Builder(n);
+        for (int j = 0; j < n; j++) {
+            for (int p = junctionRows.columnPointers[j]; p < junctionRows.columnPointers[j + 1];
+                 p++) {
+                mat.add(junctionRows.rowIndices[p], j, junctionRows.values[p]);
+            }
+        }
+        for (int i = 0; i < resistorColumns.length; i++) {
+            for (int p = resistorStart[i]; p < resistorStart[i + 1]; p++) {
+                mat.add(resistorRows[p], resistorColumns[i], resistances[i] * resistorSigns[p]);
+            }
+        }
+        return mat.build();
+    }
+
+    @Override
+    double[] rightHandSide(double[] potentialDifferences) {
+        double[] rhs = new double[n];
+        for (int i = 0; i < batteryStart.length - 1; i++) {
+            for (int p = batteryStart[i]; p < batteryStart[i + 1]; p++) {
+                // Negative, since we are putting it on the other side of the equality (the
+                // "equal" side)
+                rhs[batteryRows[p]] += -potentialDifferences[i] * batterySigns[p];
+            }
+        }
+        return rhs;
+    }
+
+    @Override
+    Update resistanceUpdate(int resistor, double from, double to) {
+        // Only the column of the resistor's branch changes.
+        int start = resistorStart[resistor], end = resistorStart[resistor + 1];
+        double[] values = new double[end - start];
+        for (int p = start; p < end; p++) {
+            values[p - start] = (to - from) * resistorSigns[p];
+        }
+        return new Update(Arrays.copyOfRange(resistorRows, start, end), values,
+                new int[]{resistorColumns[resistor]}, new double[]{1});
+    }
+
+    @Override
+    double[] branchCurrents(double[] solution, double[] resistances) {
+        return solution.clone();
+    }
+
+    /**
+     * Helper method to choose the junctions whose junction rule equations are independent, which
+     * are all but one junction of each connected part of the circuit.
+     *
+     * @return The independent junctions.
+     */
+    private static List<CircuitElement> independentJunctions(List<CircuitElement> junctions,
+                                                             List<Branch> branches) {
+        Map<CircuitElement, CircuitElement> parent = new HashMap<>();
+        for (CircuitElement ce : junctions) {
+            parent.put(ce, ce);
+        }
+        for (Branch br : branches) {
+            CircuitElement first = br.elements.get(0);
+            CircuitElement last = br.elements.get(br.elements.size() - 1);
+            if (parent.containsKey(first) && parent.containsKey(last)) {
+                parent.put(findRoot(parent, first), findRoot(parent, last));
+            }
+        }
+        List<CircuitElement> independent = new ArrayList<>();
+        Set<CircuitElement> dependentRoots = new HashSet<>();
+        for (CircuitElement ce : junctions) {
+            if (!dependentRoots.add(findRoot(parent, ce))) {
+                independent.add(ce);
+            }
+        }
+        return independent;
+    }
+
+    private static CircuitElement findRoot(Map<CircuitElement, CircuitElement> parent,
+                                           CircuitElement ce) {
+        while (!parent.get(ce).equals(ce)) {
+            parent.put(ce, parent.get(parent.get(ce)));
+            ce = parent.get(ce);
+        }
+        return ce;
+    }
+
+    /**
+     * Helper method to compute the start of each element's terms, given the terms of each element
+     * as alternating rows and signs.
+     *
+     * @return The total number of terms.
+     */
+    private static int flatten(Collection<List<Integer>> terms, int[] start) {
+        int i = 0;
+        for (List<Integer> t : terms) {
+            start[i + 1] = start[i] + t.size() / 2;
+            i++;
+        }
+        return start[i];
+    }
+
+    private static void unpack(Collection<List<Integer>> terms, int[] rows, double[] signs) {
+        int p = 0;
+        for (List<Integer> t : terms) {
+            for (int k = 0; k < t.size(); k += 2) {
+                rows[p] = t.get(k);
+                signs[p++] = t.get(k + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * A smoothed aggregation algebraic multigrid hierarchy of a symmetric positive definite matrix,
+ * such as the Laplacian of a resistive mesh, applied as a V-cycle.
+ *
+ * Each level groups the unknowns of the one above into aggregates of strongly coupled neighbors,
+ * and interpolates from one value per aggregate with the piecewise constant interpolation smoothed
+ * by a damped Jacobi step. The matrix of the coarser level is the Galerkin product P^T A P, and the
+ * coarsest is factored directly. Gauss-Seidel sweeps remove the error that varies quickly between
+ * neighbors, which the coarser levels cannot represent, so a cycle reduces the error by a factor
+ * independent of the size of the mesh, at a cost proportional to it.
+ *
+ * The aggregates depend only on the pattern of the matrix and are kept when its values change.
+ */
+class Multigrid {
+    /** The smallest coupling, relative to the diagonal, that joins two unknowns in an aggregate. */
+    static final double STRENGTH = 0.08;
+    /** The size of the matrix from which on levels are factored directly. */
+    static final int COARSEST_SIZE = 200;
+    // The most levels of the hierarchy.
+    private static final int MAX_LEVELS = 25;
+
+    private final Level[] levels;
+    private final SparseLU coarsest;
+
+    private Multigrid(SparseMatrix a, int[][] aggregates) {
+        List<Level> levels = new ArrayList<>();
+        Level level = new Level(a.n, a.columnPointers, a.rowIndices, a.values);
+        while (level.n > COARSEST_SIZE && levels.size() < MAX_LEVELS - 1) {
+            int depth = levels.size();
+            if (aggregates != null && depth >= aggregates.length) {
+                break;
+            }
+            int[] aggregate = aggregates != null ? aggregates[depth] : level.aggregate();
+            int coarse = 0;
+            for (int c : aggregate) {
+                coarse = Math.max(coarse, c + 1);
+            }
+            // Coarsening that barely reduces the size would only add work.
+            if (aggregates == null && coarse > 0.8 * level.n) {
+                break;
+            }
+            level.aggregate = aggregate;
+            level.coarse = coarse;
+            levels.add(level);
+            level = level.coarsen();
+        }
+        levels.add(level);
+        this.levels = levels.toArray(new Level[0]);
+        this.coarsest = new SparseLU(level.matrix());
+    }
+
+    /**
+     * Builds the hierarchy of the given matrix.
+     *
+     * @requires a is symmetric positive definite.
+     */
+    static Multigrid of(SparseMatrix a) {
+        return new Multigrid(a, null);
+    }
+
+    /**
+     * Builds the hierarchy of a matrix with the pattern of the one this was built for, but other
+     * values, keeping the aggregates of every level.
+     */
+    Multigrid update(SparseMatrix a) {
+        if (a.n != levels[0].n) {
+            throw new IllegalArgumentException("Matrix size " + a.n
+                    + " does not match the hierarchy size " + levels[0].n + ".");
+        }
+        int[][] aggregates = new int[levels.length - 1][];
+        for (int l = 0; l < aggregates.length; l++) {
+            aggregates[l] = levels[l].aggregate;
+        }
+        return new Multigrid(a, aggregates);
+    }
+
+    /**
+     * @return The number of levels, including the finest and the coarsest.
+     */
+    int levels() {
+        return levels.length;
+    }
+
+    /**
+     * @return The size of the matrix of each level, from the finest.
+     */
+    int[] sizes() {
+        int[] sizes = new int[levels.length];
+        for (int l = 0; l < sizes.length; l++) {
+            sizes[l] = levels[l].n;
+        }
+        return sizes;
+    }
+
+    /**
+     * Approximately solves A x = b with a single V-cycle from a zero initial guess. The cycle is a
+     * symmetric positive definite operator, so it may precondition conjugate gradients.
+     *
+     * @param x Receives the approximate solution.
+     */
+    void cycle(double[] b, double[] x) {
+        cycle(0, b, x);
+    }
+
+    private void cycle(int l, double[] b, double[] x) {
+        if (l == levels.length - 1) {
+            System.arraycopy(coarsest.solve(b), 0, x, 0, b.length);
+            return;
+        }
+        Level level = levels[l];
+        Level next = levels[l + 1];
+        Arrays.fill(x, 0);
+        level.smooth(b, x, true);
+        level.residual(b, x, level.scratch);
+        level.restrict(level.scratch, next.b);
+        cycle(l + 1, next.b, next.x);
+        level.interpolate(next.x, x);
+        level.smooth(b, x, false);
+    }
+
+    /**
+     * A level of the hierarchy: its symmetric matrix, whose rows are stored like the columns of a
+     * {@link SparseMatrix}, and the interpolation from the next coarser level.
+     */
+    private static class Level {
+        final int n;
+        final int[] pointers;
+        final int[] indices;
+        final double[] values;
+        final double[] diagonal;
+        // The right hand side and solution of this level within a cycle, and scratch space.
+        final double[] b;
+        final double[] x;
+        final double[] scratch;
+        // The aggregate of each unknown, and the number of aggregates.
+        int[] aggregate;
+        int coarse;
+        // The interpolation, by rows.
+        int[] pPointers;
+        int[] pIndices;
+        double[] pValues;
+
+        Level(int n, int[] pointers, int[] indices, double[] values) {
+            this.n = n;
+            this.pointers = pointers;
+            this.indices = indices;
+            this.values = values;
+            this.diagonal = new double[n];
+            for (int i = 0; i < n; i++) {
+                for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                    if (indices[p] == i) {
+                        diagonal[i] += values[p];
+                    }
+                }
+            }
+            this.b = new double[n];
+            this.x = new double[n];
+            this.scratch = new double[n];
+        }
+
+        /**
+         * Helper method to group the unknowns into aggregates of strongly coupled neighbors: first
+         * whole neighborhoods of unknowns none of whose neighbors is aggregated yet, then the
+         * remaining unknowns join a neighboring aggregate, and any left form aggregates with their
+         * remaining neighbors.
+         */
+        int[] aggregate() {
+            int[] aggregate = new int[n];
+            Arrays.fill(aggregate, -1);
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                boolean free = aggregate[i] < 0;
+                for (int p = pointers[i]; p < pointers[i + 1] && free; p++) {
+                    free = !strong(i, p) || aggregate[indices[p]] < 0;
+                }
+                if (!free) {
+                    continue;
+                }
+                aggregate[i] = count;
+                for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                    if (strong(i, p)) {
+                        aggregate[indices[p]] = count;
+                    }
+                }
+                count++;
+            }
+            int[] joined = aggregate.clone();
+            for (int i = 0; i < n; i++) {
+                if (aggregate[i] >= 0) {
+                    continue;
+                }
+                double strongest = 0;
+                for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                    int j = indices[p];
+                    if (strong(i, p) && aggregate[j] >= 0 && Math.abs(values[p]) > strongest) {
+                        strongest = Math.abs(values[p]);
+                        joined[i] = aggregate[j];
+                    }
+                }
+            }
+            aggregate = joined;
+            for (int i = 0; i < n; i++) {
+                if (aggregate[i] >= 0) {
+                    continue;
+                }
+                aggregate[i] = count;
+                for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                    if (strong(i, p) && aggregate[indices[p]] < 0) {
+                        aggregate[indices[p]] = count;
+                    }
+                }
+                count++;
+            }
+            return aggregate;
+        }
+
+        private boolean strong(int i, int p) {
+            int j = indices[p];
+            return j != i && Math.abs(values[p]) >= STRENGTH * Math.sqrt(diagonal[i] * diagonal[j]);
+        }
+
+        /**
+         * Helper method to build the interpolation P = (I - w D^-1 A) T from the aggregates, where
+         * T is piecewise constant, and the matrix P^T A P of the next coarser level.
+         */
+        Level coarsen() {
+            // Damp by 4/3 of the inverse of a bound on the spectral radius of D^-1 A.
+            double radius = 0;
+            for (int i = 0; i < n; i++) {
+                double sum = 0;
+                for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                    sum += Math.abs(values[p]);
+                }
+                radius = Math.max(radius, sum / diagonal[i]);
+            }
+            double omega = 4 / (3 * radius);
+
+            Rows p = new Rows(n, coarse, pointers[n]);
+            for (int i = 0; i < n; i++) {
+                for (int q = pointers[i]; q < pointers[i + 1]; q++) {
+                    int c = aggregate[indices[q]];
+                    double value = -omega * values[q] / diagonal[i];
+                    p.accumulate(c, value);
+                }
+                p.accumulate(aggregate[i], 1);
+                p.endRow(i);
+            }
+            pPointers = p.pointers;
+            pIndices = p.indices;
+            pValues = p.values;
+
+            // A P by rows, then P^T (A P) by rows of P^T.
+            Rows ap = new Rows(n, coarse, pPointers[n]);
+            for (int i = 0; i < n; i++) {
+                for (int q = pointers[i]; q < pointers[i + 1]; q++) {
+                    int j = indices[q];
+                    for (int r = pPointers[j]; r < pPointers[j + 1]; r++) {
+                        ap.accumulate(pIndices[r], values[q] * pValues[r]);
+                    }
+                }
+                ap.endRow(i);
+            }
+            int[] tPointers = new int[coarse + 1];
+            for (int q = 0; q < pPointers[n]; q++) {
+                tPointers[pIndices[q] + 1]++;
+            }
+            for (int c = 0; c < coarse; c++) {
+                tPointers[c + 1] += tPointers[c];
+            }
+            int[] tIndices = new int[pPointers[n]];
+            double[] tValues = new double[pPointers[n]];
+            int[] next = Arrays.copyOf(tPointers, coarse);
+            for (int i = 0; i < n; i++) {
+                for (int q = pPointers[i]; q < pPointers[i + 1]; q++) {
+                    int k = next[pIndices[q]]++;
+                    tIndices[k] = i;
+                    tValues[k] = pValues[q];
+                }
+            }
+            Rows product = new Rows(coarse, coarse, ap.size);
+            for (int c = 0; c < coarse; c++) {
+                for (int q = tPointers[c]; q < tPointers[c + 1]; q++) {
+                    int i = tIndices[q];
+                    for (int r = ap.pointers[i]; r < ap.pointers[i + 1]; r++) {
+                        product.accumulate(ap.indices[r], tValues[q] * ap.values[r]);
+                    }
+                }
+                product.endRow(c);
+            }
+            return new Level(coarse, product.pointers,
+                    Arrays.copyOf(product.indices, product.size),
+                    Arrays.copyOf(product.values, product.size));
+        }
+
+        /**
+         * Helper method to run a Gauss-Seidel sweep, forwards or backwards, so that a sweep before
+         * the coarse correction and one after it form a symmetric cycle.
+         */
+        void smooth(double[] b, double[] x, boolean forwards) {
+            for (int k = 0; k < n; k++) {
+                int i = forwards ? k : n - 1 - k;
+                double sum = b[i];
+                for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                    if (indices[p] != i) {
+                        sum -= values[p] * x[indices[p]];
+                    }
+                }
+                x[i] = sum / diagonal[i];
+            }
+        }
+
+        void residual(double[] b, double[] x, double[] r) {
+            for (int i = 0; i < n; i++) {
+                double sum = b[i];
+                for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                    sum -= values[p] * x[indices[p]];
+                }
+                r[i] = sum;
+            }
+        }
+
+        void restrict(double[] r, double[] coarseB) {
+            Arrays.fill(coarseB, 0);
+            for (int i = 0; i < n; i++) {
+                for (int p = pPointers[i]; p < pPointers[i + 1]; p++) {
+                    coarseB[pIndices[p]] += pValues[p] * r[i];
+                }
+            }
+        }
+
+        void interpolate(double[] coarseX, double[] x) {
+            for (int i = 0; i < n; i++) {
+                double sum = 0;
+                for (int p = pPointers[i]; p < pPointers[i + 1]; p++) {
+                    sum += pValues[p] * coarseX[pIndices[p]];
+                }
+                x[i] += sum;
+            }
+        }
+
+        /**
+         * @return The matrix of this level, for a direct factorization.
+         */
+        SparseMatrix matrix() {
+            SparseMatrix.Builder mat = new SparseMatrix.Builder(n);
+            for (int i = 0; i < n; i++) {
+                for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                    mat.add(indices[p], i, values[p]);
+                }
+            }
+            return mat.build();
+        }
+    }
+
+    /**
+     * A sparse matrix built row by row, whose entries in a row are accumulated by column.
+     */
+    private static class Rows {
+        final int[] pointers;
+        int[] indices;
+        double[] values;
+        int size;
+        // The position of each column in the entries, which is in the current row iff it is at
+        // least the start of the row.
+        private final int[] positions;
+        private int start;
+
+        Rows(int rows, int columns, int capacity) {
+            this.pointers = new int[rows + 1];
+            this.indices = new int[Math.max(capacity, 1)];
+            this.values = new double[Math.max(capacity, 1)];
+            this.positions = new int[columns];
+            Arrays.fill(positions, -1);
+        }
+
+        /**
+         * Adds the value to the given column of the current row.
+         */
+        void accumulate(int column, double value) {
+            if (positions[column] >= start) {
+                values[positions[column]] += value;
+                return;
+            }
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+            positions[column] = size;
+            indices[size] = column;
+            values[size++] = value;
+        }
+
+        void endRow(int row) {
+            pointers[row + 1] = size;
+            start = size;
+        }
+    }
+}
@@ -0,0 +1,774 @@
+package com.imontero.circuit;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads and writes circuits as SPICE-like netlists.
+ *
+ * As in SPICE, the first line of a netlist is its title, lines starting with '*' are comments, a
+ * ';' starts a comment at the end of a line, and a line starting with '+' continues the card
+ * before it. Each card is an element, named by its type and any suffix, and followed by its nodes:
+ * <pre>
+ * Rname node node resistance
+ * Cname node node capacitance
+ * Lname node node inductance
+ * Vname positive negative [[DC] potential difference] [AC [amplitude [phase in degrees]]]
+ * Dname anode cathode [model]
+ * .model name D (IS=saturation current N=emission coefficient)
+ * .end
+ * </pre>
+ * Names of nodes and models are not case sensitive, and numbers may end in the scale factors of
+ * SPICE (T, G, MEG, K, M, MIL, U, N, P and F) followed by any unit. Every node is a junction, and a
+ * source with both a DC and an AC part is a battery and an AC source in series. Other dot cards,
+ * such as analyses, are ignored.
+ *
+ * The reader streams the netlist through a buffer of bytes, and keeps only the circuit it builds:
+ * tokens are ranges of the buffer, numbers are parsed from them in place, and nodes are found in
+ * a hash table of their bytes, so no string is made for any of them. The elements and wires are
+ * added to the circuit at once, with {@link Circuit#addAll(Collection, Collection)}.
+ */
+public class Netlist {
+    private static final int BUFFER = 1 << 16;
+    // The powers of ten a double holds exactly.
+    private static final double[] POWERS = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private Netlist() {
+    }
+
+    /**
+     * Reads the circuit of the netlist at the given path.
+     *
+     * @param loopDiscovery The strategy the circuit discovers its loops with. Enumerating every
+     *                      loop of a large netlist is infeasible, so it should usually be
+     *                      {@link LoopDiscovery#NONE}.
+     * @throws IOException if the file cannot be read, or is not a valid netlist.
+     */
+    public static Circuit read(Path path, LoopDiscovery loopDiscovery) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel, loopDiscovery);
+        }
+    }
+
+    /**
+     * Reads the circuit of the netlist read from the given channel, up to its end or its .end
+     * card.
+     *
+     * @throws IOException if the channel cannot be read, or the netlist is not valid.
+     */
+    public static Circuit read(ReadableByteChannel channel, LoopDiscovery loopDiscovery)
+            throws IOException {
+        return read(channel, loopDiscovery, BUFFER);
+    }
+
+    static Circuit read(ReadableByteChannel channel, LoopDiscovery loopDiscovery, int buffer)
+            throws IOException {
+        Parser parser = new Parser();
+        parser.parse(channel, buffer);
+        Circuit c = new Circuit(loopDiscovery);
+        c.addAll(parser.elements, parser.wires);
+        return c;
+    }
+
+    /**
+     * Writes the given circuit as a netlist to the file at the given path.
+     */
+    public static void write(Circuit circuit, Path path) throws IOException {
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+            write(circuit, out);
+        }
+    }
+
+    /**
+     * Writes the given circuit as a netlist. Each element is named by its type and its ID, and
+     * the nodes are numbered, with the node with the most pins as the ground, node 0.
+     */
+    public static void write(Circuit circuit, Writer out) throws IOException {
+        // The wires joined by junctions, or by nothing, are the nodes.
+        CompactCircuit compact = circuit.compact;
+        int[] parent = new int[compact.wireCount];
+        for (int w = 0; w < parent.length; w++) {
+            parent[w] = w;
+        }
+        List<CircuitElement> elements = new ArrayList<>();
+        for (int i = 0; i < compact.elementCount; i++) {
+            CircuitElement ce = compact.elements[i];
+            if (ce.type != CircuitElementType.JUNCTION) {
+                elements.add(ce);
+                continue;
+            }
+            int first = -1;
+            for (Wire w : ce.connections) {
+                int wi = compact.indexOf(w);
+                if (wi >= 0 && first < 0) {
+                    first = find(parent, wi);
+                } else if (wi >= 0) {
+                    parent[find(parent, wi)] = first;
+                }
+            }
+        }
+        elements.sort(Comparator.comparingInt(ce -> ce.ID));
+
+        // Number the nodes in order of appearance, and count their pins.
+        int[] nodeOfRoot = new int[parent.length];
+        Arrays.fill(nodeOfRoot, -1);
+        int[] pins = new int[2 * elements.size()];
+        int[] pinCounts = new int[2 * elements.size()];
+        int nodes = 0;
+        for (int e = 0; e < elements.size(); e++) {
+            CircuitElement ce = elements.get(e);
+            for (int k = 0; k < 2; k++) {
+                int wi = k < ce.connections.size() ? compact.indexOf(ce.connections.get(k)) : -1;
+                int node;
+                if (wi < 0) {
+                    node = nodes++;
+                } else {
+                    int root = find(parent, wi);
+                    if (nodeOfRoot[root] < 0) {
+                        nodeOfRoot[root] = nodes++;
+                    }
+                    node = nodeOfRoot[root];
+                }
+                pins[2 * e + k] = node;
+                pinCounts[node]++;
+            }
+        }
+        int ground = 0;
+        for (int n = 1; n < nodes; n++) {
+            if (pinCounts[n] > pinCounts[ground]) {
+                ground = n;
+            }
+        }
+        for (int p = 0; p < pins.length; p++) {
+            pins[p] = pins[p] == ground ? 0 : pins[p] < ground ? pins[p] + 1 : pins[p];
+        }
+
+        out.write("* Circuit of " + elements.size() + " elements\n");
+        Map<List<Double>, String> models = new LinkedHashMap<>();
+        for (int e = 0; e < elements.size(); e++) {
+            CircuitElement ce = elements.get(e);
+            int a = pins[2 * e];
+            int b = pins[2 * e + 1];
+            switch (ce.type) {
+                case RESISTOR:
+                    out.write("R" + ce.ID + " " + a + " " + b + " " + ce.resistance + "\n");
+                    break;
+                case CAPACITOR:
+                    out.write("C" + ce.ID + " " + a + " " + b + " " + ce.capacitance + "\n");
+                    break;
+                case INDUCTOR:
+                    out.write("L" + ce.ID + " " + a + " " + b + " " + ce.inductance + "\n");
+                    break;
+                case BATTERY:
+                    // The second pin of a battery is the positive one.
+                    out.write("V" + ce.ID + " " + b + " " + a + " DC " + ce.potentialDifference
+                            + "\n");
+                    break;
+                case AC_SOURCE:
+                    out.write("V" + ce.ID + " " + b + " " + a + " AC " + ce.amplitude + " "
+                            + Math.toDegrees(ce.phase) + "\n");
+                    break;
+                case DIODE:
+                    String model = models.computeIfAbsent(
+                            Arrays.asList(ce.saturationCurrent, ce.emissionCoefficient),
+                            k -> "D" + (models.size() + 1));
+                    out.write("D" + ce.ID + " " + a + " " + b + " " + model + "\n");
+                    break;
+                default:
+                    throw new IllegalStateException(ce + " cannot be written to a netlist.");
+            }
+        }
+        for (Map.Entry<List<Double>, String> model : models.entrySet()) {
+            out.write(".model " + model.getValue() + " D (IS=" + model.getKey().get(0) + " N="
+                    + model.getKey().get(1) + ")\n");
+        }
+        out.write(".end\n");
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * A streaming parser of a netlist, which collects the elements and wires of its circuit.
+     */
+    private static class Parser {
+        final List<CircuitElement> elements = new ArrayList<>();
+        final List<Wire> wires = new ArrayList<>();
+        private final Names nodeNames = new Names();
+        private final List<CircuitElement> nodes = new ArrayList<>();
+        // The diodes, the model of each or -1, and the line of each for errors.
+        private final List<CircuitElement> diodes = new ArrayList<>();
+        private int[] diodeModels = new int[16];
+        private int[] diodeLines = new int[16];
+        private final Names modelNames = new Names();
+        private double[] saturationCurrents = new double[16];
+        private double[] emissionCoefficients = new double[16];
+        private boolean[] defined = new boolean[16];
+        // The tokens of the current card, copied out of the buffer, since a continuation line may
+        // be read after the buffer moved on.
+        private byte[] card = new byte[256];
+        private int cardLength;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int tokens;
+        private int cardLine;
+        private int line;
+        private boolean ended;
+
+        void parse(ReadableByteChannel channel, int size) throws IOException {
+            ByteBuffer in = ByteBuffer.allocate(size);
+            byte[] buf = in.array();
+            int start = 0;
+            int scan = 0;
+            int end = 0;
+            boolean eof = false;
+            while (!ended) {
+                while (scan < end && buf[scan] != '\n') {
+                    scan++;
+                }
+                if (scan < end) {
+                    line(buf, start, scan);
+                    start = ++scan;
+                    continue;
+                }
+                if (eof) {
+                    if (start < end) {
+                        line(buf, start, end);
+                    }
+                    break;
+                }
+                // Move the partial line to the start of the buffer, growing it if the line fills
+                // it, and read more.
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    scan -= start;
+                    start = 0;
+                } else if (end == buf.length) {
+                    in = ByteBuffer.wrap(Arrays.copyOf(buf, 2 * buf.length));
+                    buf = in.array();
+                }
+                in.limit(buf.length).position(end);
+                int read = channel.read(in);
+                if (read < 0) {
+                    eof = true;
+                } else {
+                    end += read;
+                }
+            }
+            finishCard();
+            resolveModels();
+        }
+
+        /**
+         * Helper method to split a line into tokens, and to finish the card before it unless it
+         * continues it.
+         */
+        private void line(byte[] buf, int from, int to) throws IOException {
+            line++;
+            if (line == 1) {
+                // The title.
+                return;
+            }
+            int i = skipSpace(buf, from, to);
+            if (i == to || buf[i] == '*' || buf[i] == ';') {
+                return;
+            }
+            if (buf[i] == '+') {
+                if (tokens == 0) {
+                    throw error("a continuation line must follow a card");
+                }
+                i++;
+            } else {
+                finishCard();
+                cardLine = line;
+            }
+            while ((i = skipSpace(buf, i, to)) < to && buf[i] != ';') {
+                int j = i;
+                while (j < to && !isSeparator(buf[j]) && buf[j] != ';') {
+                    j++;
+                }
+                addToken(buf, i, j);
+                i = j;
+            }
+            if (tokens > 0 && is(0, ".end")) {
+                ended = true;
+                tokens = 0;
+                cardLength = 0;
+            }
+        }
+
+        private void addToken(byte[] buf, int from, int to) {
+            if (tokens == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * tokens);
+                ends = Arrays.copyOf(ends, 2 * tokens);
+            }
+            if (cardLength + to - from > card.length) {
+                card = Arrays.copyOf(card, Math.max(2 * card.length, cardLength + to - from));
+            }
+            System.arraycopy(buf, from, card, cardLength, to - from);
+            starts[tokens] = cardLength;
+            cardLength += to - from;
+            ends[tokens++] = cardLength;
+        }
+
+        private void finishCard() throws IOException {
+            if (tokens == 0) {
+                return;
+            }
+            int saved = line;
+            line = cardLine;
+            switch (lower(card[starts[0]])) {
+                case 'r':
+                    twoPin(CircuitElementType.RESISTOR);
+                    break;
+                case 'c':
+                    twoPin(CircuitElementType.CAPACITOR);
+                    break;
+                case 'l':
+                    twoPin(CircuitElementType.INDUCTOR);
+                    break;
+                case 'v':
+                    source();
+                    break;
+                case 'd':
+                    diode();
+                    break;
+                case '.':
+                    dotCard();
+                    break;
+                default:
+                    throw error(token(0) + " is not a supported element");
+            }
+            line = saved;
+            tokens = 0;
+            cardLength = 0;
+        }
+
+        private void twoPin(CircuitElementType type) throws IOException {
+            expect(4);
+            double value = value(3);
+            CircuitElement.CircuitElementBuilder builder =
+                    new CircuitElement.CircuitElementBuilder().type(type);
+            switch (type) {
+                case RESISTOR:
+                    builder.resistance(value);
+                    break;
+                case CAPACITOR:
+                    builder.capacitance(value);
+                    break;
+                default:
+                    builder.inductance(value);
+                    break;
+            }
+            connect(builder.build(), node(1), node(2));
+        }
+
+        private void source() throws IOException {
+            expect(3);
+            double potentialDifference = 0;
+            double amplitude = Double.NaN;
+            double phase = 0;
+            for (int t = 3; t < tokens; t++) {
+                if (is(t, "dc")) {
+                    expect(t + 2);
+                    potentialDifference = value(++t);
+                } else if (is(t, "ac")) {
+                    amplitude = 1;
+                    if (t + 1 < tokens && isNumber(t + 1)) {
+                        amplitude = value(++t);
+                        if (t + 1 < tokens && isNumber(t + 1)) {
+                            phase = Math.toRadians(value(++t));
+                        }
+                    }
+                } else if (isNumber(t)) {
+                    potentialDifference = value(t);
+                } else {
+                    throw error(token(t) + " sources are not supported");
+                }
+            }
+            CircuitElement positive = node(1);
+            CircuitElement negative = node(2);
+            CircuitElement battery = Double.isNaN(amplitude) || potentialDifference != 0
+                    ? new CircuitElement.CircuitElementBuilder()
+                            .type(CircuitElementType.BATTERY)
+                            .potentialDifference(potentialDifference)
+                            .build()
+                    : null;
+            CircuitElement ac = Double.isNaN(amplitude) ? null
+                    : new CircuitElement.CircuitElementBuilder()
+                            .type(CircuitElementType.AC_SOURCE)
+                            .amplitude(amplitude)
+                            .phase(phase)
+                            .build();
+            // The second pin of a source is at its potential difference above the first.
+            if (battery != null && ac != null) {
+                CircuitElement middle = junction();
+                connect(battery, negative, middle);
+                connect(ac, middle, positive);
+            } else {
+                connect(battery != null ? battery : ac, negative, positive);
+            }
+        }
+
+        private void diode() throws IOException {
+            expect(3);
+            CircuitElement d = new CircuitElement.CircuitElementBuilder()
+                    .type(CircuitElementType.DIODE)
+                    .build();
+            connect(d, node(1), node(2));
+            int n = diodes.size();
+            if (n == diodeModels.length) {
+                diodeModels = Arrays.copyOf(diodeModels, 2 * n);
+                diodeLines = Arrays.copyOf(diodeLines, 2 * n);
+            }
+            diodeModels[n] = tokens > 3 ? modelNames.intern(card, starts[3], ends[3]) : -1;
+            diodeLines[n] = line;
+            diodes.add(d);
+        }
+
+        private void dotCard() throws IOException {
+            if (is(0, ".subckt")) {
+                throw error("subcircuits are not supported");
+            } else if (is(0, ".model")) {
+                expect(3);
+                if (!is(2, "d")) {
+                    return;
+                }
+                int m = modelNames.intern(card, starts[1], ends[1]);
+                if (m >= defined.length) {
+                    saturationCurrents = Arrays.copyOf(saturationCurrents, 2 * m);
+                    emissionCoefficients = Arrays.copyOf(emissionCoefficients, 2 * m);
+                    defined = Arrays.copyOf(defined, 2 * m);
+                }
+                saturationCurrents[m] = 1e-14;
+                emissionCoefficients[m] = 1;
+                defined[m] = true;
+                for (int t = 3; t + 1 < tokens; t += 2) {
+                    if (is(t, "is")) {
+                        saturationCurrents[m] = value(t + 1);
+                    } else if (is(t, "n")) {
+                        emissionCoefficients[m] = value(t + 1);
+                    }
+                }
+            }
+        }
+
+        private void resolveModels() throws IOException {
+            for (int d = 0; d < diodes.size(); d++) {
+                int m = diodeModels[d];
+                if (m < 0) {
+                    continue;
+                }
+                if (m >= defined.length || !defined[m]) {
+                    line = diodeLines[d];
+                    throw error("the diode model " + modelNames.name(m) + " is not defined");
+                }
+                diodes.get(d).saturationCurrent = saturationCurrents[m];
+                diodes.get(d).emissionCoefficient = emissionCoefficients[m];
+            }
+        }
+
+        private void connect(CircuitElement ce, CircuitElement a, CircuitElement b) {
+            elements.add(ce);
+            wires.add(new Wire(ce, a));
+            wires.add(new Wire(ce, b));
+        }
+
+        /**
+         * @return The junction of the node named by the given token, which is created the first
+         *         time the node is named.
+         */
+        private CircuitElement node(int t) {
+            int n = nodeNames.intern(card, starts[t], ends[t]);
+            if (n == nodes.size()) {
+                nodes.add(junction());
+            }
+            return nodes.get(n);
+        }
+
+        private CircuitElement junction() {
+            CircuitElement j = new CircuitElement.CircuitElementBuilder()
+                    .type(CircuitElementType.JUNCTION)
+                    .build();
+            elements.add(j);
+            return j;
+        }
+
+        private void expect(int count) throws IOException {
+            if (tokens < count) {
+                throw error(token(0) + " needs at least " + (count - 1) + " fields");
+            }
+        }
+
+        private boolean is(int t, String word) {
+            if (ends[t] - starts[t] != word.length()) {
+                return false;
+            }
+            for (int i = 0; i < word.length(); i++) {
+                if (lower(card[starts[t] + i]) != word.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isNumber(int t) {
+            int i = starts[t];
+            if (card[i] == '+' || card[i] == '-') {
+                i++;
+            }
+            if (i < ends[t] && card[i] == '.') {
+                i++;
+            }
+            return i < ends[t] && isDigit(card[i]);
+        }
+
+        /**
+         * Helper method to parse the given token as a number, with an optional exponent and scale
+         * factor, without allocating. The significant digits are gathered into a long, and while
+         * they and the power of ten fit in a double, a single multiplication or division rounds
+         * the result correctly.
+         */
+        private double value(int t) throws IOException {
+            int i = starts[t];
+            int end = ends[t];
+            boolean negative = card[i] == '-';
+            if (card[i] == '+' || card[i] == '-') {
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean any = false;
+            boolean fraction = false;
+            for (; i < end; i++) {
+                byte b = card[i];
+                if (b == '.' && !fraction) {
+                    fraction = true;
+                    continue;
+                } else if (!isDigit(b)) {
+                    break;
+                }
+                any = true;
+                if (mantissa == 0 && b == '0') {
+                    exponent -= fraction ? 1 : 0;
+                } else if (digits < 18) {
+                    mantissa = 10 * mantissa + (b - '0');
+                    digits++;
+                    exponent -= fraction ? 1 : 0;
+                } else {
+                    // Digits beyond the 18th are dropped, and only rarely change the result.
+                    exponent += fraction ? 0 : 1;
+                }
+            }
+            if (!any) {
+                throw error(token(t) + " is not a number");
+            }
+            if (i + 1 < end && (card[i] == 'e' || card[i] == 'E')
+                    && (isDigit(card[i + 1]) || (i + 2 < end && (card[i + 1] == '-'
+                    || card[i + 1] == '+') && isDigit(card[i + 2])))) {
+                i++;
+                boolean negativeExponent = card[i] == '-';
+                if (card[i] == '-' || card[i] == '+') {
+                    i++;
+                }
+                int e = 0;
+                for (; i < end && isDigit(card[i]); i++) {
+                    e = Math.min(10000, 10 * e + (card[i] - '0'));
+                }
+                exponent += negativeExponent ? -e : e;
+            }
+            double scale = 1;
+            if (i < end) {
+                switch (lower(card[i])) {
+                    case 't':
+                        exponent += 12;
+                        break;
+                    case 'g':
+                        exponent += 9;
+                        break;
+                    case 'k':
+                        exponent += 3;
+                        break;
+                    case 'u':
+                        exponent -= 6;
+                        break;
+                    case 'n':
+                        exponent -= 9;
+                        break;
+                    case 'p':
+                        exponent -= 12;
+                        break;
+                    case 'f':
+                        exponent -= 15;
+                        break;
+                    case 'm':
+                        if (i + 2 < end && lower(card[i + 1]) == 'e' && lower(card[i + 2]) == 'g') {
+                            exponent += 6;
+                        } else if (i + 2 < end && lower(card[i + 1]) == 'i'
+                                && lower(card[i + 2]) == 'l') {
+                            scale = 25.4e-6;
+                        } else {
+                            exponent -= 3;
+                        }
+                        break;
+                    default:
+                        // Units without a scale factor.
+                        break;
+                }
+            }
+            double value;
+            if (mantissa == 0) {
+                value = 0;
+            } else if (exponent >= 0 && exponent < POWERS.length && mantissa < 1L << 53) {
+                value = mantissa * POWERS[exponent];
+            } else if (exponent < 0 && -exponent < POWERS.length && mantissa < 1L << 53) {
+                value = mantissa / POWERS[-exponent];
+            } else {
+                value = Double.parseDouble(mantissa + "e" + exponent);
+            }
+            value *= scale;
+            return negative ? -value : value;
+        }
+
+        private String token(int t) {
+            return new String(card, starts[t], ends[t] - starts[t], StandardCharsets.ISO_8859_1);
+        }
+
+        private IOException error(String message) {
+            return new IOException("Line " + line + ": " + message + ".");
+        }
+
+        private static int skipSpace(byte[] buf, int from, int to) {
+            while (from < to && isSeparator(buf[from])) {
+                from++;
+            }
+            return from;
+        }
+
+        private static boolean isSeparator(byte b) {
+            return b == ' ' || b == '\t' || b == '\r' || b == ',' || b == '(' || b == ')'
+                    || b == '=';
+        }
+
+        private static boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * A hash table of names, which numbers them in order of appearance without making a string
+     * of any of them. Names are compared regardless of case.
+     */
+    private static class Names {
+        private byte[] bytes = new byte[1024];
+        private int used;
+        private int[] starts = new int[64];
+        private int[] lengths = new int[64];
+        private int count;
+        // Open addressing with linear probing, of the numbers of the names, or -1.
+        private int[] slots = filled(128);
+
+        /**
+         * @return The number of the given name, which is the number of names before it if it is
+         *         new.
+         */
+        int intern(byte[] src, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + lower(src[i]);
+            }
+            hash ^= hash >>> 16;
+            int mask = slots.length - 1;
+            for (int s = hash & mask; ; s = (s + 1) & mask) {
+                int n = slots[s];
+                if (n < 0) {
+                    slots[s] = add(src, from, to);
+                    if (2 * count > slots.length) {
+                        rehash();
+                    }
+                    return count - 1;
+                } else if (matches(n, src, from, to)) {
+                    return n;
+                }
+            }
+        }
+
+        String name(int n) {
+            return new String(bytes, starts[n], lengths[n], StandardCharsets.ISO_8859_1);
+        }
+
+        private boolean matches(int n, byte[] src, int from, int to) {
+            if (lengths[n] != to - from) {
+                return false;
+            }
+            for (int i = 0; i < lengths[n]; i++) {
+                if (bytes[starts[n] + i] != lower(src[from + i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int add(byte[] src, int from, int to) {
+            if (used + to - from > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, used + to - from));
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * count);
+                lengths = Arrays.copyOf(lengths, 2 * count);
+            }
+            for (int i = from; i < to; i++) {
+                bytes[used + i - from] = lower(src[i]);
+            }
+            starts[count] = used;
+            lengths[count] = to - from;
+            used += to - from;
+            return count++;
+        }
+
+        private void rehash() {
+            slots = filled(2 * slots.length);
+            int mask = slots.length - 1;
+            for (int n = 0; n < count; n++) {
+                int hash = 0;
+                for (int i = 0; i < lengths[n]; i++) {
+                    hash = 31 * hash + bytes[starts[n] + i];
+                }
+                hash ^= hash >>> 16;
+                int s = hash & mask;
+                while (slots[s] >= 0) {
+                    s = (s + 1) & mask;
+                }
+                slots[s] = n;
+            }
+        }
+
+        private static int[] filled(int size) {
+            int[] slots = new int[size];
+            Arrays.fill(slots, -1);
+            return slots;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.imontero.circuit;
+
+/**
+ * The settings of a solve of a circuit with diodes by the Newton-Raphson method, for
+ * {@link Circuit#solveNonlinear(NewtonRaphson)}.
+ *
+ * Each iteration replaces every diode by the tangent of its exponential current at the voltage of
+ * the last iterate, a conductance in parallel with a current source, and solves the resulting
+ * linear nodal equations. The voltage of a diode is limited to a logarithmic step beyond the
+ * point where its current starts to rise steeply, so that the exponential neither overflows nor
+ * throws the iterates far from the solution. With limiting, iterations rarely overshoot, so
+ * damping the iterations that do is optional.
+ *
+ * The cost of an iteration is dominated by factoring the matrix, and by evaluating the diodes in
+ * large circuits. Diodes whose voltage barely moved are not evaluated again, and the factored
+ * matrix of an earlier iteration is kept, and only the current sources change, as long as the
+ * iterates converge quickly with it. Both the operating point and the factored matrix carry over
+ * from one solve to the next, so solving again after a small change takes few iterations and often
+ * no factorization.
+ */
+public class NewtonRaphson {
+    /** The change of each unknown, relative to its magnitude, to stop at. */
+    public final double tolerance;
+    /** The most iterations to run before giving up. */
+    public final int maxIterations;
+    /** Whether to skip evaluating the diodes whose voltage barely moved. */
+    public final boolean bypass;
+    /** Whether to keep the factored matrix of an earlier iteration while it converges quickly. */
+    public final boolean reuseJacobian;
+    /** Whether to damp iterations that move more than twice as far as the one before. */
+    public final boolean damping;
+    /** Whether to limit the steps of the voltages of forward biased diodes. */
+    public final boolean limiting;
+
+    private NewtonRaphson(Builder builder) {
+        this.tolerance = builder.tolerance;
+        this.maxIterations = builder.maxIterations;
+        this.bypass = builder.bypass;
+        this.reuseJacobian = builder.reuseJacobian;
+        this.damping = builder.damping;
+        this.limiting = builder.limiting;
+    }
+
+    /**
+     * The outcome of a nonlinear solve.
+     */
+    public static class Result {
+        /** The number of iterations run. */
+        public final int iterations;
+        /** The number of times the matrix was factored. */
+        public final int factorizations;
+        /** The number of times a diode was evaluated. */
+        public final int evaluations;
+        /** The number of times a diode was not evaluated, since its voltage barely moved. */
+        public final int bypasses;
+        /** The time the solve took, in nanoseconds. */
+        public final long nanoseconds;
+        /** Whether the iterates converged within the most iterations. */
+        public final boolean converged;
+
+        Result(int iterations, int factorizations, int evaluations, int bypasses, long nanoseconds,
+               boolean converged) {
+            this.iterations = iterations;
+            this.factorizations = factorizations;
+            this.evaluations = evaluations;
+            this.bypasses = bypasses;
+            this.nanoseconds = nanoseconds;
+            this.converged = converged;
+        }
+
+        @Override
+        public String toString() {
+            return (converged ? "Converged" : "Did not converge") + " in " + iterations
+                    + " iterations with " + factorizations + " factorizations, "
+                    + evaluations + " evaluations and " + bypasses + " bypasses in "
+                    + nanoseconds / 1e6 + " ms";
+        }
+    }
+
+    public static class Builder {
+        private double tolerance;
+        private int maxIterations;
+        private boolean bypass;
+        private boolean reuseJacobian;
+        private boolean damping;
+        private boolean limiting;
+
+        public Builder() {
+            this.tolerance = 1e-9;
+            this.maxIterations = 100;
+            this.bypass = true;
+            this.reuseJacobian = true;
+            this.damping = false;
+            this.limiting = true;
+        }
+
+        public Builder tolerance(double tolerance) {
+            if (!(tolerance > 0)) {
+                throw new IllegalArgumentException("Tolerance must be positive.");
+            }
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        public Builder maxIterations(int maxIterations) {
+            if (maxIterations <= 0) {
+                throw new IllegalArgumentException("Iterations must be positive.");
+            }
+            this.maxIterations = maxIterations;
+            return this;
+        }
+
+        public Builder bypass(boolean bypass) {
+            this.bypass = bypass;
+            return this;
+        }
+
+        public Builder reuseJacobian(boolean reuseJacobian) {
+            this.reuseJacobian = reuseJacobian;
+            return this;
+        }
+
+        public Builder damping(boolean damping) {
+            this.damping = damping;
+            return this;
+        }
+
+        public Builder limiting(boolean limiting) {
+            this.limiting = limiting;
+            return this;
+        }
+
+        public NewtonRaphson build() {
+            return new NewtonRaphson(this);
+        }
+    }
+}
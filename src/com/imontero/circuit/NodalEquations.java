@@ -0,0 +1,735 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * The modified nodal analysis equations of a circuit. Every junction, and every pin of a two pin
+ * element, is a terminal; terminals joined by ideal wires form a single node. Resistors are
+ * stamped as conductances between their nodes, while batteries (and resistors without resistance)
+ * are stamped as voltage sources with their own current unknown. Solving the resulting system
+ * yields the potential of every node, from which the current through every branch follows.
+ *
+ * Capacitors and inductors are stamped with the companion models of a time step: a capacitor as a
+ * conductance in parallel with a current source, and an inductor, which has its own current
+ * unknown like a source, as a resistance in series with a voltage source. In a steady state a
+ * capacitor is open and an inductor is a short, which are the conductance {@link #GMIN} without a
+ * source, and a resistance of zero.
+ *
+ * A diode is stamped like a capacitor, as a conductance in parallel with a current source, which a
+ * {@link NonlinearSolver} linearizes around each iterate. Elsewhere it is open, the conductance
+ * {@link #GMIN}.
+ *
+ * AC sources have their own current unknown, and are shorts in a steady state. At a frequency, the
+ * system is complex, and is assembled as a real system of twice the size (see
+ * {@link #complexMatrix}).
+ */
+class NodalEquations extends CircuitEquations {
+    /**
+     * The conductance of a capacitor in a steady state. An open circuit would leave nodes that
+     * only capacitors reach without an equation.
+     */
+    static final double GMIN = 1e-12;
+
+    // The number of node potentials in the system. The currents of the sources follow them.
+    final int nodes;
+    // The nodes of the first and second pin of each resistor, and of each battery, or -1 where
+    // the pin is grounded.
+    final int[] resistorNodes;
+    final int[] batteryNodes;
+    final int[] capacitorNodes;
+    final int[] inductorNodes;
+    final int[] acSourceNodes;
+    final int[] diodeNodes;
+    // The index among the source currents of each resistor without resistance, or -1 for the
+    // resistors stamped as conductances. The batteries are the first sources, followed by the
+    // resistors without resistance, the inductors and the AC sources.
+    final int[] resistorSources;
+    final int sources;
+    // The element whose current each branch carries, as its index among the resistors, batteries,
+    // capacitors, inductors, AC sources and diodes in that order, or -1 if it is resolved with the
+    // junction rule.
+    private final int[] branchElements;
+    private final boolean[] branchReversed;
+    // The branches resolved with the junction rule, in order. The kth is the negated sum of the
+    // currents of the branches from termStart[k] to termStart[k + 1], times their signs, divided
+    // by its own sign at the junction.
+    private final int[] resolvedBranches;
+    private final int[] resolvedSigns;
+    private final int[] termStart;
+    private final int[] termBranches;
+    private final int[] termSigns;
+
+    NodalEquations(Circuit circuit) {
+        this(circuit, allElements(circuit));
+    }
+
+    /**
+     * Finds the equations of the given part of a circuit.
+     *
+     * @param part The indices of the elements of a union of connected parts of the circuit.
+     */
+    NodalEquations(Circuit circuit, int[] part) {
+        super(branchesOf(circuit, part));
+        CompactCircuit g = circuit.compact;
+        int[] offsets = g.offsets();
+        int[] adjacency = g.adjacency();
+        int[] local = g.elementScratch();
+        // The first terminal of each element, by position in the part. Two pin elements own two
+        // consecutive terminals.
+        int[] terminals = new int[part.length];
+        List<Integer> resistorPositions = new ArrayList<>();
+        List<Integer> batteryPositions = new ArrayList<>();
+        List<Integer> capacitorPositions = new ArrayList<>();
+        List<Integer> inductorPositions = new ArrayList<>();
+        List<Integer> acSourcePositions = new ArrayList<>();
+        List<Integer> diodePositions = new ArrayList<>();
+        int count = 0;
+        for (int k = 0; k < part.length; k++) {
+            CircuitElement ce = g.elements[part[k]];
+            local[part[k]] = k;
+            terminals[k] = count;
+            count += ce.type.PINS == 2 ? 2 : 1;
+            if (ce.type == CircuitElementType.BATTERY) {
+                batteries.add(ce);
+                batteryPositions.add(k);
+            } else if (ce.type == CircuitElementType.RESISTOR) {
+                resistors.add(ce);
+                resistorPositions.add(k);
+            } else if (ce.type == CircuitElementType.CAPACITOR) {
+                capacitors.add(ce);
+                capacitorPositions.add(k);
+            } else if (ce.type == CircuitElementType.INDUCTOR) {
+                inductors.add(ce);
+                inductorPositions.add(k);
+            } else if (ce.type == CircuitElementType.AC_SOURCE) {
+                acSources.add(ce);
+                acSourcePositions.add(k);
+            } else if (ce.type == CircuitElementType.DIODE) {
+                diodes.add(ce);
+                diodePositions.add(k);
+            }
+        }
+        // The node (e.g. union-find root) of each terminal.
+        int[] parent = new int[count];
+        for (int i = 0; i < count; i++) {
+            parent[i] = i;
+        }
+        for (int v : part) {
+            for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                int w = adjacency[p];
+                if (g.wireA[w] == v) {
+                    parent[find(parent, terminal(g, terminals, local, g.wireA[w], w))] =
+                            find(parent, terminal(g, terminals, local, g.wireB[w], w));
+                }
+            }
+        }
+        int[] nodeIndex = new int[count];
+        this.nodes = numberNodes(g, part, terminals, parent, nodeIndex);
+
+        this.resistorNodes = new int[2 * resistors.size()];
+        this.resistorSources = new int[resistors.size()];
+        int k = batteries.size();
+        for (int i = 0; i < resistors.size(); i++) {
+            CircuitElement r = resistors.get(i);
+            int t = terminals[resistorPositions.get(i)];
+            resistorNodes[2 * i] = nodeIndex[t];
+            resistorNodes[2 * i + 1] = nodeIndex[t + 1];
+            resistorSources[i] = r.resistance == 0 ? k++ : -1;
+        }
+        this.sources = k + inductors.size() + acSources.size();
+        this.batteryNodes = pinNodes(batteryPositions, terminals, nodeIndex);
+        this.capacitorNodes = pinNodes(capacitorPositions, terminals, nodeIndex);
+        this.inductorNodes = pinNodes(inductorPositions, terminals, nodeIndex);
+        this.acSourceNodes = pinNodes(acSourcePositions, terminals, nodeIndex);
+        this.diodeNodes = pinNodes(diodePositions, terminals, nodeIndex);
+
+        this.branchElements = new int[branches.size()];
+        this.branchReversed = new boolean[branches.size()];
+        List<Integer> resolved = new ArrayList<>();
+        List<Integer> terms = new ArrayList<>();
+        assignBranchElements(circuit, junctionsOf(circuit, part), resolved, terms);
+        this.resolvedBranches = new int[resolved.size() / 2];
+        this.resolvedSigns = new int[resolved.size() / 2];
+        this.termStart = new int[resolved.size() / 2 + 1];
+        for (int i = 0; i < resolvedBranches.length; i++) {
+            resolvedBranches[i] = resolved.get(2 * i);
+            resolvedSigns[i] = resolved.get(2 * i + 1);
+        }
+        this.termBranches = new int[terms.size() / 3];
+        this.termSigns = new int[terms.size() / 3];
+        for (int p = 0; p < termBranches.length; p++) {
+            termStart[terms.get(3 * p) + 1] = p + 1;
+            termBranches[p] = terms.get(3 * p + 1);
+            termSigns[p] = terms.get(3 * p + 2);
+        }
+        for (int i = 1; i < termStart.length; i++) {
+            termStart[i] = Math.max(termStart[i], termStart[i - 1]);
+        }
+        recordOrientation();
+    }
+
+    @Override
+    int size() {
+        return nodes + sources;
+    }
+
+    @Override
+    SparseMatrix matrix(double[] resistances) {
+        return matrix(resistances, steadyConductances(), new double[inductors.size()]);
+    }
+
+    /**
+     * Assembles the matrix of the system with the companion models of the capacitors and
+     * inductors for a time step.
+     *
+     * @param resistances The resistance of each resistor.
+     * @param capacitorConductances The conductance of the companion model of each capacitor.
+     * @param inductorResistances The resistance of the companion model of each inductor.
+     */
+    SparseMatrix matrix(double[] resistances, double[] capacitorConductances,
+                        double[] inductorResistances) {
+        return matrix(resistances, capacitorConductances, inductorResistances,
+                gmin(diodes.size()));
+    }
+
+    /**
+     * Assembles the matrix of the system with the companion models of the capacitors and
+     * inductors for a time step, and those of the diodes around an operating point.
+     *
+     * @param diodeConductances The conductance of the companion model of each diode.
+     */
+    SparseMatrix matrix(double[] resistances, double[] capacitorConductances,
+                        double[] inductorResistances, double[] diodeConductances) {
+        SparseMatrix.Builder mat = new SparseMatrix.Builder(size());
+        for (int i = 0; i < resistorSources.length; i++) {
+            int a = resistorNodes[2 * i], b = resistorNodes[2 * i + 1];
+            if (resistorSources[i] >= 0) {
+                stampSource(mat, a, b, nodes + resistorSources[i]);
+                continue;
+            }
+            double g = 1 / resistances[i];
+            if (a >= 0) {
+                mat.add(a, a, g);
+            }
+            if (b >= 0) {
+                mat.add(b, b, g);
+            }
+            if (a >= 0 && b >= 0) {
+                mat.add(a, b, -g);
+                mat.add(b, a, -g);
+            }
+        }
+        for (int i = 0; i < batteries.size(); i++) {
+            stampSource(mat, batteryNodes[2 * i], batteryNodes[2 * i + 1], nodes + i);
+        }
+        stampConductances(mat, capacitorNodes, capacitorConductances);
+        stampConductances(mat, diodeNodes, diodeConductances);
+        for (int i = 0; i < inductorResistances.length; i++) {
+            // Like a battery in series with a resistor, the potential of the second pin is higher
+            // by the potential difference of the source, less the resistance times the current.
+            int row = inductorRow(i);
+            stampSource(mat, inductorNodes[2 * i], inductorNodes[2 * i + 1], row);
+            mat.add(row, row, inductorResistances[i]);
+        }
+        for (int i = 0; i < acSources.size(); i++) {
+            stampSource(mat, acSourceNodes[2 * i], acSourceNodes[2 * i + 1], acSourceRow(i));
+        }
+        return mat.build();
+    }
+
+    /**
+     * Assembles the complex matrix of the system at a frequency, as a real system of twice the
+     * size. The real and imaginary parts of each unknown and equation are consecutive, so a
+     * complex entry a + bi is the block [a, -b; b, a], and the structure is that of the real
+     * system with each entry doubled in both directions.
+     *
+     * @param resistances The resistance of each resistor.
+     * @param capacitorSusceptances The susceptance of each capacitor, its capacitance times the
+     *                              angular frequency.
+     * @param inductorReactances The reactance of each inductor, its inductance times the angular
+     *                           frequency.
+     */
+    SparseMatrix complexMatrix(double[] resistances, double[] capacitorSusceptances,
+                               double[] inductorReactances) {
+        SparseMatrix real = matrix(resistances, new double[capacitors.size()],
+                new double[inductors.size()]);
+        SparseMatrix.Builder imaginary = new SparseMatrix.Builder(size());
+        stampConductances(imaginary, capacitorNodes, capacitorSusceptances);
+        for (int i = 0; i < inductorReactances.length; i++) {
+            imaginary.add(inductorRow(i), inductorRow(i), inductorReactances[i]);
+        }
+
+        SparseMatrix.Builder mat = new SparseMatrix.Builder(2 * size());
+        interleave(real, false, mat);
+        interleave(imaginary.build(), true, mat);
+        return mat.build();
+    }
+
+    /**
+     * Helper method to add the blocks of the real or imaginary part of a complex matrix to its
+     * real form.
+     */
+    private static void interleave(SparseMatrix part, boolean imaginary,
+                                   SparseMatrix.Builder mat) {
+        for (int j = 0; j < part.n; j++) {
+            for (int p = part.columnPointers[j]; p < part.columnPointers[j + 1]; p++) {
+                int i = part.rowIndices[p];
+                double v = part.values[p];
+                if (imaginary) {
+                    mat.add(2 * i, 2 * j + 1, -v);
+                    mat.add(2 * i + 1, 2 * j, v);
+                } else {
+                    mat.add(2 * i, 2 * j, v);
+                    mat.add(2 * i + 1, 2 * j + 1, v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Assembles the right hand side of the complex system at a frequency, in the layout of
+     * {@link #complexMatrix}. Only the AC sources drive it; the batteries are shorts.
+     *
+     * @param amplitudes The amplitude of each AC source.
+     * @param phases The phase of each AC source, in radians.
+     * @param rhs The array the right hand side is stored in.
+     */
+    void complexRightHandSide(double[] amplitudes, double[] phases, double[] rhs) {
+        Arrays.fill(rhs, 0);
+        for (int i = 0; i < amplitudes.length; i++) {
+            rhs[2 * acSourceRow(i)] = amplitudes[i] * Math.cos(phases[i]);
+            rhs[2 * acSourceRow(i) + 1] = amplitudes[i] * Math.sin(phases[i]);
+        }
+    }
+
+    /**
+     * Helper method to stamp a conductance between the pins of each of a list of elements.
+     *
+     * @param pins The nodes of the first and second pin of each element.
+     */
+    private static void stampConductances(SparseMatrix.Builder mat, int[] pins,
+                                          double[] conductances) {
+        for (int i = 0; i < conductances.length; i++) {
+            int a = pins[2 * i], b = pins[2 * i + 1];
+            double g = conductances[i];
+            if (a >= 0) {
+                mat.add(a, a, g);
+            }
+            if (b >= 0) {
+                mat.add(b, b, g);
+            }
+            if (a >= 0 && b >= 0) {
+                mat.add(a, b, -g);
+                mat.add(b, a, -g);
+            }
+        }
+    }
+
+    /**
+     * Helper method to stamp a voltage source. The current unknown of a source flows through it
+     * from its first to its second pin, and the potential of its second pin is higher by its
+     * potential difference.
+     */
+    private static void stampSource(SparseMatrix.Builder mat, int a, int b, int row) {
+        if (a >= 0) {
+            mat.add(a, row, 1);
+            mat.add(row, a, -1);
+        }
+        if (b >= 0) {
+            mat.add(b, row, -1);
+            mat.add(row, b, 1);
+        }
+    }
+
+    @Override
+    double[] rightHandSide(double[] potentialDifferences) {
+        double[] rhs = new double[size()];
+        rightHandSide(potentialDifferences, new double[capacitors.size()],
+                new double[inductors.size()], rhs);
+        return rhs;
+    }
+
+    /**
+     * Assembles the right hand side of the system with the sources of the companion models of the
+     * capacitors and inductors for a time step.
+     *
+     * @param potentialDifferences The potential difference of each battery.
+     * @param capacitorCurrents The current of the source of each capacitor's companion model,
+     *                          from its first pin to its second.
+     * @param inductorVoltages The potential difference of the source of each inductor's companion
+     *                         model, by which it raises the potential of its second pin like a
+     *                         battery.
+     * @param rhs The array the right hand side is stored in.
+     */
+    void rightHandSide(double[] potentialDifferences, double[] capacitorCurrents,
+                       double[] inductorVoltages, double[] rhs) {
+        Arrays.fill(rhs, 0);
+        System.arraycopy(potentialDifferences, 0, rhs, nodes, batteries.size());
+        for (int i = 0; i < capacitorCurrents.length; i++) {
+            int a = capacitorNodes[2 * i], b = capacitorNodes[2 * i + 1];
+            if (a >= 0) {
+                rhs[a] -= capacitorCurrents[i];
+            }
+            if (b >= 0) {
+                rhs[b] += capacitorCurrents[i];
+            }
+        }
+        for (int i = 0; i < inductorVoltages.length; i++) {
+            rhs[inductorRow(i)] = inductorVoltages[i];
+        }
+    }
+
+    @Override
+    Update resistanceUpdate(int resistor, double from, double to) {
+        // The conductance stamp of a resistor is g (e_a - e_b)(e_a - e_b)^T.
+        int a = resistorNodes[2 * resistor], b = resistorNodes[2 * resistor + 1];
+        double dg = 1 / to - 1 / from;
+        int[] rows;
+        double[] v;
+        if (a >= 0 && b >= 0 && a != b) {
+            rows = new int[]{a, b};
+            v = new double[]{1, -1};
+        } else if (a >= 0 && a != b) {
+            rows = new int[]{a};
+            v = new double[]{1};
+        } else if (b >= 0 && a != b) {
+            rows = new int[]{b};
+            v = new double[]{-1};
+        } else {
+            rows = new int[0];
+            v = new double[0];
+        }
+        double[] u = new double[v.length];
+        for (int i = 0; i < v.length; i++) {
+            u[i] = dg * v[i];
+        }
+        return new Update(rows, u, rows, v);
+    }
+
+    @Override
+    boolean accepts(double[] resistances) {
+        for (int i = 0; i < resistances.length; i++) {
+            if ((resistances[i] == 0) != (resistorSources[i] >= 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    double[] branchCurrents(double[] x, double[] resistances) {
+        double[] currents = new double[branches.size()];
+        branchCurrents(x, resistances, steadyConductances(), new double[capacitors.size()],
+                currents);
+        return currents;
+    }
+
+    /**
+     * Computes the current of each branch from a solution of the system with the companion models
+     * of a time step.
+     *
+     * @param x The solution of the system.
+     * @param resistances The resistances the system was assembled with.
+     * @param capacitorConductances The conductances of the capacitors' companion models.
+     * @param capacitorCurrents The currents of the sources of the capacitors' companion models.
+     * @param currents The array the current of each branch is stored in, in order.
+     */
+    void branchCurrents(double[] x, double[] resistances, double[] capacitorConductances,
+                        double[] capacitorCurrents, double[] currents) {
+        branchCurrents(x, resistances, capacitorConductances, capacitorCurrents, null, currents);
+    }
+
+    /**
+     * Computes the current of each branch from a solution of the system with the companion models
+     * of a time step and an operating point.
+     *
+     * @param diodeCurrents The current of each diode, from its first pin to its second, or null
+     *                      if the diodes are open.
+     */
+    void branchCurrents(double[] x, double[] resistances, double[] capacitorConductances,
+                        double[] capacitorCurrents, double[] diodeCurrents, double[] currents) {
+        int firstBattery = resistorSources.length;
+        int firstCapacitor = firstBattery + batteries.size();
+        int firstInductor = firstCapacitor + capacitors.size();
+        int firstAcSource = firstInductor + inductors.size();
+        int firstDiode = firstAcSource + acSources.size();
+        for (int i = 0; i < currents.length; i++) {
+            int e = branchElements[i];
+            if (e < 0) {
+                currents[i] = 0;
+                continue;
+            }
+            double current;
+            if (e >= firstDiode) {
+                int d = e - firstDiode;
+                current = diodeCurrents != null ? diodeCurrents[d]
+                        : GMIN * (potential(x, diodeNodes[2 * d])
+                        - potential(x, diodeNodes[2 * d + 1]));
+            } else if (e >= firstAcSource) {
+                current = x[acSourceRow(e - firstAcSource)];
+            } else if (e >= firstInductor) {
+                current = x[inductorRow(e - firstInductor)];
+            } else if (e >= firstCapacitor) {
+                int c = e - firstCapacitor;
+                current = capacitorConductances[c] * (potential(x, capacitorNodes[2 * c])
+                        - potential(x, capacitorNodes[2 * c + 1])) + capacitorCurrents[c];
+            } else if (e >= firstBattery) {
+                current = x[nodes + e - firstBattery];
+            } else if (resistorSources[e] >= 0) {
+                current = x[nodes + resistorSources[e]];
+            } else {
+                current = (potential(x, resistorNodes[2 * e])
+                        - potential(x, resistorNodes[2 * e + 1])) / resistances[e];
+            }
+            currents[i] = branchReversed[i] ? -current : current;
+        }
+        for (int k = 0; k < resolvedBranches.length; k++) {
+            double sum = 0;
+            for (int p = termStart[k]; p < termStart[k + 1]; p++) {
+                sum += termSigns[p] * currents[termBranches[p]];
+            }
+            currents[resolvedBranches[k]] = -sum / resolvedSigns[k];
+        }
+    }
+
+    /**
+     * @return The conductance of each capacitor in a steady state.
+     */
+    double[] steadyConductances() {
+        return gmin(capacitors.size());
+    }
+
+    private static double[] gmin(int count) {
+        double[] g = new double[count];
+        Arrays.fill(g, GMIN);
+        return g;
+    }
+
+    /**
+     * @return The row, and the unknown, of the current of the given inductor.
+     */
+    int inductorRow(int inductor) {
+        return nodes + sources - acSources.size() - inductors.size() + inductor;
+    }
+
+    /**
+     * @return The row, and the unknown, of the current of the given AC source.
+     */
+    int acSourceRow(int acSource) {
+        return nodes + sources - acSources.size() + acSource;
+    }
+
+    /**
+     * Helper method to find the branches an analysis records, and their currents in
+     * {@link #branchCurrents}.
+     *
+     * @param requested The branches to record, or null to record every branch. Those outside
+     *                  these equations are ignored.
+     * @param recorded The list the recorded branches are added to, in the requested order.
+     * @return The index of the current of each recorded branch.
+     */
+    int[] recordedIndices(Collection<Branch> requested, List<Branch> recorded) {
+        Map<Branch, Integer> indices = new HashMap<>();
+        for (int i = 0; i < branches.size(); i++) {
+            indices.put(branches.get(i), i);
+        }
+        for (Branch br : requested != null ? requested : branches) {
+            if (indices.containsKey(br)) {
+                recorded.add(br);
+            }
+        }
+        int[] recordedIndices = new int[recorded.size()];
+        for (int i = 0; i < recordedIndices.length; i++) {
+            recordedIndices[i] = indices.get(recorded.get(i));
+        }
+        return recordedIndices;
+    }
+
+    /**
+     * @return The potential of the given node in a solution of the system.
+     */
+    double potential(double[] x, int node) {
+        return node >= 0 ? x[node] : 0;
+    }
+
+    /**
+     * Helper method to find, for each branch, one of its two pin elements whose current it
+     * carries. Branches made only of wires and junctions are then resolved with the junction rule.
+     *
+     * @param junctions The junctions of the equations' part of the circuit.
+     * @param resolved The list the resolved branches and their signs at the junction are added to.
+     * @param terms The list the terms of the junction equations are added to, as the index of the
+     *              resolved branch, the branch of the term, and its sign.
+     */
+    private void assignBranchElements(Circuit circuit, List<CircuitElement> junctions,
+                                      List<Integer> resolved, List<Integer> terms) {
+        Map<CircuitElement, Integer> elementIndices = new HashMap<>();
+        int index = 0;
+        for (List<CircuitElement> list : Arrays.asList(resistors, batteries, capacitors,
+                inductors, acSources, diodes)) {
+            for (CircuitElement ce : list) {
+                elementIndices.put(ce, index++);
+            }
+        }
+        Map<Branch, Integer> branchIndices = new HashMap<>();
+        Set<Branch> unresolved = new HashSet<>();
+        for (int b = 0; b < branches.size(); b++) {
+            Branch br = branches.get(b);
+            branchIndices.put(br, b);
+            branchElements[b] = -1;
+            unresolved.add(br);
+            for (int i = 0; i < br.elements.size(); i++) {
+                CircuitElement ce = br.elements.get(i);
+                Wire in = incomingWire(br, i);
+                if (ce.type.PINS != 2 || in == null || !elementIndices.containsKey(ce)
+                        || !br.wires.contains(ce.next(in))) {
+                    continue;
+                }
+                branchElements[b] = elementIndices.get(ce);
+                branchReversed[b] = !in.equals(ce.connections.get(0));
+                unresolved.remove(br);
+                break;
+            }
+        }
+
+        // A junction with a single unresolved branch determines that branch's current.
+        boolean progress = true;
+        while (progress && !unresolved.isEmpty()) {
+            progress = false;
+            for (CircuitElement junction : junctions) {
+                Branch unknown = null;
+                int unknownSign = 0, unknownCount = 0;
+                List<Integer> known = new ArrayList<>();
+                for (Wire w : new HashSet<>(junction.connections)) {
+                    Branch br = circuit.wireToBranch.get(w);
+                    if (br == null) {
+                        continue;
+                    }
+                    int sign = outgoingSign(br, w, junction);
+                    if (unresolved.contains(br)) {
+                        if (!br.equals(unknown)) {
+                            unknownCount++;
+                        }
+                        unknown = br;
+                        unknownSign += sign;
+                    } else {
+                        known.add(branchIndices.get(br));
+                        known.add(sign);
+                    }
+                }
+                if (unknownCount == 1 && unknownSign != 0) {
+                    int k = resolved.size() / 2;
+                    resolved.add(branchIndices.get(unknown));
+                    resolved.add(unknownSign);
+                    for (int i = 0; i < known.size(); i += 2) {
+                        terms.addAll(Arrays.asList(k, known.get(i), known.get(i + 1)));
+                    }
+                    unresolved.remove(unknown);
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper method to get the wire through which a branch's current enters its ith element.
+     *
+     * @return The incoming wire, or null if the element is the start of an open branch.
+     */
+    private static Wire incomingWire(Branch br, int i) {
+        if (i > 0) {
+            return br.wires.get(i - 1);
+        }
+        // Only closed branches have as many wires as elements.
+        return br.wires.size() == br.elements.size() ? br.wires.get(br.wires.size() - 1) : null;
+    }
+
+    /**
+     * Helper method to determine whether a branch's current leaves (1) or enters (-1) the given
+     * junction through the given wire.
+     */
+    private static int outgoingSign(Branch br, Wire w, CircuitElement junction) {
+        int i = br.wires.indexOf(w);
+        if (i < br.elements.size() && br.elements.get(i).equals(junction)) {
+            return 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Helper method to assign each node an index in the system, grounding one node of every
+     * connected component.
+     *
+     * @param nodeIndex The array the index of each terminal's node is stored in, or -1 if it is
+     *                  the ground of its component.
+     * @return The number of node potentials in the system.
+     */
+    private static int numberNodes(CompactCircuit g, int[] part, int[] terminals, int[] parent,
+                                   int[] nodeIndex) {
+        // Nodes joined by an element are in the same component.
+        int[] component = parent.clone();
+        for (int k = 0; k < part.length; k++) {
+            if (g.elements[part[k]].type.PINS == 2) {
+                int a = find(component, find(parent, terminals[k]));
+                int b = find(component, find(parent, terminals[k] + 1));
+                component[a] = b;
+            }
+        }
+        Arrays.fill(nodeIndex, -2);
+        boolean[] grounded = new boolean[parent.length];
+        int n = 0;
+        for (int t = 0; t < parent.length; t++) {
+            int node = find(parent, t);
+            if (nodeIndex[node] != -2) {
+                nodeIndex[t] = nodeIndex[node];
+                continue;
+            }
+            int c = find(component, node);
+            if (!grounded[c]) {
+                grounded[c] = true;
+                nodeIndex[node] = -1;
+            } else {
+                nodeIndex[node] = n++;
+            }
+            nodeIndex[t] = nodeIndex[node];
+        }
+        return n;
+    }
+
+    /**
+     * Helper method to get the terminal of the given element that the given wire is attached to.
+     */
+    private static int terminal(CompactCircuit g, int[] terminals, int[] local, int element,
+                                int wire) {
+        CircuitElement ce = g.elements[element];
+        int t = terminals[local[element]];
+        if (ce.type.PINS == 2 && ce.connections.size() > 1
+                && ce.connections.get(1) == g.wires[wire]) {
+            t++;
+        }
+        return t;
+    }
+
+    /**
+     * Helper method to find the nodes of the first and second pin of each of the given elements.
+     *
+     * @param positions The position of each element in the part.
+     */
+    private static int[] pinNodes(List<Integer> positions, int[] terminals, int[] nodeIndex) {
+        int[] pins = new int[2 * positions.size()];
+        for (int i = 0; i < positions.size(); i++) {
+            int t = terminals[positions.get(i)];
+            pins[2 * i] = nodeIndex[t];
+            pins[2 * i + 1] = nodeIndex[t + 1];
+        }
+        return pins;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+}
@@ -0,0 +1,232 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * A solver of the nodal equations of a circuit with diodes by the Newton-Raphson method (see
+ * {@link NewtonRaphson}). Capacitors are open and inductors and AC sources are shorts, as in a
+ * steady state.
+ *
+ * A diode linearized at the voltage v0 is the conductance g = i'(v0) in parallel with the current
+ * source i(v0) - g v0. The matrix of an iteration only depends on the conductances, so while an
+ * older factorization still converges quickly, its conductances are kept and only the sources are
+ * updated, which makes the iteration the chord method: each iterate still solves the circuit once
+ * it stops moving, only more iterations are needed to get there.
+ */
+class NonlinearSolver {
+    /** The thermal voltage at 300 kelvin, in volts. */
+    static final double THERMAL_VOLTAGE = 0.025852;
+    // The absolute tolerances of the potentials of nodes and the currents of sources.
+    private static final double VOLTAGE_TOLERANCE = 1e-9;
+    private static final double CURRENT_TOLERANCE = 1e-12;
+    // An iteration must shrink the step at least this much to keep the factored matrix.
+    private static final double CONTRACTION = 0.25;
+    // The most an iteration may grow the step before it is damped.
+    private static final double GROWTH = 2;
+
+    /** The equations this solves. */
+    final NodalEquations equations;
+    private final FillReducingOrdering ordering;
+    // The saturation current, emission coefficient times thermal voltage, and critical voltage
+    // above which steps are limited, of each diode.
+    private final double[] saturationCurrents;
+    private final double[] emissionVoltages;
+    private final double[] criticalVoltages;
+    // The voltage each diode was last evaluated at, and its current and conductance there.
+    private final double[] voltages;
+    private final double[] currents;
+    private final double[] conductances;
+    // The conductances of the factored matrix, and the resistances it was assembled with.
+    private final double[] factoredConductances;
+    private double[] resistances;
+    private SparseLU lu;
+    // The last iterate, and the space to find the next one in.
+    private final double[] x;
+    private final double[] next;
+    private final double[] rhs;
+    private final double[] work;
+    private boolean evaluated;
+
+    /**
+     * @param equations The nodal equations to solve.
+     * @param previous The solver of an earlier version of the circuit, whose diode voltages start
+     *                 the first solve of this one, or null.
+     */
+    NonlinearSolver(NodalEquations equations, NonlinearSolver previous) {
+        this.equations = equations;
+        int m = equations.diodes.size();
+        this.saturationCurrents = new double[m];
+        this.emissionVoltages = new double[m];
+        this.criticalVoltages = new double[m];
+        for (int d = 0; d < m; d++) {
+            CircuitElement diode = equations.diodes.get(d);
+            if (!(diode.saturationCurrent > 0) || !(diode.emissionCoefficient > 0)) {
+                throw new IllegalArgumentException(diode + " must have a positive saturation "
+                        + "current and emission coefficient.");
+            }
+            saturationCurrents[d] = diode.saturationCurrent;
+            emissionVoltages[d] = diode.emissionCoefficient * THERMAL_VOLTAGE;
+            criticalVoltages[d] = emissionVoltages[d]
+                    * Math.log(emissionVoltages[d] / (Math.sqrt(2) * saturationCurrents[d]));
+        }
+        this.voltages = new double[m];
+        this.currents = new double[m];
+        this.conductances = new double[m];
+        this.factoredConductances = new double[m];
+        Map<CircuitElement, Double> seeds = new HashMap<>();
+        for (int d = 0; previous != null && d < previous.voltages.length; d++) {
+            seeds.put(previous.equations.diodes.get(d), previous.voltages[d]);
+        }
+        for (int d = 0; d < m; d++) {
+            voltages[d] = seeds.getOrDefault(equations.diodes.get(d), 0.0);
+        }
+        int n = equations.size();
+        this.x = new double[n];
+        this.next = new double[n];
+        this.rhs = new double[n];
+        this.work = new double[n];
+        this.resistances = equations.resistances();
+        this.ordering = FillReducingOrdering.of(matrix(conductances));
+    }
+
+    /**
+     * Solves the equations with the current values of the circuit's elements, starting from the
+     * last solution, and sets the current of every branch to that of the last iterate.
+     *
+     * @throws ArithmeticException if the equations are singular, e.g. batteries form a loop.
+     */
+    NewtonRaphson.Result solve(NewtonRaphson settings) {
+        long start = System.nanoTime();
+        double[] r = equations.resistances();
+        if (!Arrays.equals(r, resistances)) {
+            resistances = r;
+            lu = null;
+        }
+        double[] base = equations.rightHandSide(equations.potentialDifferences());
+
+        int iterations = 0, factorizations = 0, evaluations = 0, bypasses = 0;
+        boolean converged = false;
+        double lastStep = Double.POSITIVE_INFINITY;
+        boolean refactor = lu == null || !settings.reuseJacobian;
+        while (!converged && iterations < settings.maxIterations) {
+            iterations++;
+            for (int d = 0; d < voltages.length; d++) {
+                double v = evaluated ? voltage(x, d) : voltages[d];
+                if (evaluated && settings.bypass
+                        && Math.abs(v - voltages[d]) <= tolerance(settings, v, voltages[d])) {
+                    bypasses++;
+                    continue;
+                }
+                evaluate(d, evaluated && settings.limiting ? limit(d, v, voltages[d]) : v);
+                evaluations++;
+            }
+            evaluated = true;
+            // The factored matrix is no good once a conductance more than doubled or halved.
+            for (int d = 0; !refactor && d < conductances.length; d++) {
+                refactor = Math.abs(conductances[d] - factoredConductances[d])
+                        > factoredConductances[d];
+            }
+            if (refactor) {
+                System.arraycopy(conductances, 0, factoredConductances, 0, conductances.length);
+                lu = new SparseLU(matrix(factoredConductances), ordering);
+                factorizations++;
+            }
+
+            System.arraycopy(base, 0, rhs, 0, rhs.length);
+            int[] pins = equations.diodeNodes;
+            for (int d = 0; d < voltages.length; d++) {
+                double source = currents[d] - factoredConductances[d] * voltages[d];
+                if (pins[2 * d] >= 0) {
+                    rhs[pins[2 * d]] -= source;
+                }
+                if (pins[2 * d + 1] >= 0) {
+                    rhs[pins[2 * d + 1]] += source;
+                }
+            }
+            lu.solve(rhs, next, work);
+
+            // The largest change of an unknown, relative to its tolerance.
+            double step = 0;
+            for (int i = 0; i < x.length; i++) {
+                double allowed = settings.tolerance * Math.max(Math.abs(x[i]), Math.abs(next[i]))
+                        + (i < equations.nodes ? VOLTAGE_TOLERANCE : CURRENT_TOLERANCE);
+                step = Math.max(step, Math.abs(next[i] - x[i]) / allowed);
+            }
+            // An iteration that moves more than twice as far as the last one is overshooting.
+            double scale = settings.damping && step > GROWTH * lastStep ? GROWTH * lastStep / step
+                    : 1;
+            for (int i = 0; i < x.length; i++) {
+                x[i] += scale * (next[i] - x[i]);
+            }
+
+            // The iterate is a solution once it stops moving, and every diode is linearized at
+            // its voltage.
+            converged = step <= 1;
+            for (int d = 0; converged && d < voltages.length; d++) {
+                double v = voltage(x, d);
+                converged = Math.abs(v - voltages[d]) <= tolerance(settings, v, voltages[d]);
+            }
+            refactor = !settings.reuseJacobian || step > CONTRACTION * lastStep;
+            lastStep = step;
+        }
+
+        // The current of a diode is that of its companion model, so that the currents of the
+        // branches satisfy the junction rule even if the iterates did not converge.
+        double[] diodeCurrents = new double[voltages.length];
+        for (int d = 0; d < diodeCurrents.length; d++) {
+            diodeCurrents[d] = currents[d]
+                    + factoredConductances[d] * (voltage(x, d) - voltages[d]);
+        }
+        double[] branchCurrents = new double[equations.branches.size()];
+        equations.branchCurrents(x, resistances, equations.steadyConductances(),
+                new double[equations.capacitors.size()], diodeCurrents, branchCurrents);
+        for (int i = 0; i < branchCurrents.length; i++) {
+            equations.branches.get(i).current = branchCurrents[i];
+        }
+        return new NewtonRaphson.Result(iterations, factorizations, evaluations, bypasses,
+                System.nanoTime() - start, converged);
+    }
+
+    private SparseMatrix matrix(double[] diodeConductances) {
+        return equations.matrix(resistances, equations.steadyConductances(),
+                new double[equations.inductors.size()], diodeConductances);
+    }
+
+    /**
+     * Helper method to evaluate the current of a diode, and its derivative, at the given voltage.
+     * A diode also conducts {@link NodalEquations#GMIN}, so that a reverse biased diode does not
+     * leave its nodes without an equation.
+     */
+    private void evaluate(int d, double v) {
+        double exp = Math.exp(v / emissionVoltages[d]);
+        voltages[d] = v;
+        currents[d] = saturationCurrents[d] * (exp - 1) + NodalEquations.GMIN * v;
+        conductances[d] = saturationCurrents[d] * exp / emissionVoltages[d] + NodalEquations.GMIN;
+    }
+
+    /**
+     * Helper method to limit the step of a diode's voltage beyond its critical voltage, where its
+     * current rises steeply, to the voltage at which the tangent at the last voltage would carry
+     * the new current, as in SPICE.
+     */
+    private double limit(int d, double v, double last) {
+        double vt = emissionVoltages[d];
+        if (v > criticalVoltages[d] && Math.abs(v - last) > 2 * vt) {
+            if (last > 0) {
+                double arg = 1 + (v - last) / vt;
+                return arg > 0 ? last + vt * Math.log(arg) : criticalVoltages[d];
+            }
+            return vt * Math.log(v / vt);
+        }
+        return v;
+    }
+
+    private double voltage(double[] solution, int d) {
+        return equations.potential(solution, equations.diodeNodes[2 * d])
+                - equations.potential(solution, equations.diodeNodes[2 * d + 1]);
+    }
+
+    private static double tolerance(NewtonRaphson settings, double v, double last) {
+        return settings.tolerance * Math.max(Math.abs(v), Math.abs(last)) + VOLTAGE_TOLERANCE;
+    }
+}
@@ -0,0 +1,277 @@
+package com.imontero.circuit;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/**
+ * Solves the equations of a circuit separately for each of its connected components. Electrically
+ * isolated parts of a circuit share no unknowns, so one system for the whole circuit would be
+ * block diagonal; instead each component gets its own small system and {@link CachedSolver}. The
+ * components are solved concurrently on a fork-join pool, and an edit of the topology only
+ * discards the solvers of the components it touches. Since a solver does not solve again while
+ * the values of its elements are unchanged, editing one component only solves that one again.
+ */
+class PartitionedSolver {
+    private final Circuit circuit;
+    // Builds the equations of the given part of the circuit.
+    private final Function<int[], CircuitEquations> equations;
+    // The component of each element of the circuit whose solver is still valid.
+    private final Map<CircuitElement, Component> componentOf;
+    private final Set<Component> components;
+    // The number of elements in the components.
+    private int covered;
+
+    /**
+     * @param circuit The circuit to solve.
+     * @param equations Builds the equations of a connected component of the circuit, given the
+     *                  indices of its elements.
+     */
+    PartitionedSolver(Circuit circuit, Function<int[], CircuitEquations> equations) {
+        this.circuit = circuit;
+        this.equations = equations;
+        this.componentOf = new HashMap<>();
+        this.components = new LinkedHashSet<>();
+    }
+
+    /**
+     * Discards the solver of the component containing the given element, after the wires of the
+     * component changed.
+     */
+    void invalidate(CircuitElement ce) {
+        Component c = componentOf.get(ce);
+        if (c != null) {
+            discard(c);
+        }
+    }
+
+    /**
+     * Discards the solvers of all components.
+     */
+    void invalidateAll() {
+        componentOf.clear();
+        components.clear();
+        covered = 0;
+    }
+
+    /**
+     * @return The solver of the component containing the given element, or null if it has none,
+     *         e.g. its component has no active branch or changed since it was last solved.
+     */
+    CachedSolver solverOf(CircuitElement ce) {
+        Component c = componentOf.get(ce);
+        return c == null ? null : c.solver;
+    }
+
+    /**
+     * Solves the equations of every component with the current values of the circuit's elements,
+     * and sets the current of every active branch.
+     *
+     * @requires The branches of the circuit are up to date.
+     * @throws ArithmeticException if the equations of a component are singular.
+     */
+    void solve() {
+        List<CachedSolver> solvers = currentSolvers();
+        if (solvers.size() > 1) {
+            ForkJoinPool.commonPool().invoke(new SolveTask(solvers, 0, solvers.size()));
+        } else {
+            for (CachedSolver solver : solvers) {
+                setCurrents(solver);
+            }
+        }
+    }
+
+    /**
+     * Solves the equations of every component for a batch of potential differences, without
+     * setting the current of any branch.
+     *
+     * @param batteries The batteries whose potential differences vary.
+     * @param scenarios The potential differences of the batteries, in the same order, in each
+     *                  scenario.
+     * @param branches The branches to determine the current of.
+     * @return The current of each of the given branches, in the same order, in each scenario. An
+     *         inactive branch has no current.
+     * @requires The branches of the circuit are up to date, and every scenario has a potential
+     *           difference for every battery.
+     * @throws ArithmeticException if the equations of a component are singular.
+     */
+    double[][] solve(List<CircuitElement> batteries, double[][] scenarios, List<Branch> branches) {
+        double[][] results = new double[scenarios.length][branches.size()];
+        for (CachedSolver solver : currentSolvers()) {
+            CircuitEquations eq = solver.equations;
+            // Batteries outside of the component cannot affect any of its currents.
+            int[] batteryIndices = indicesOf(eq.batteries, batteries);
+            int[] branchIndices = indicesOf(eq.branches, branches);
+            boolean affected = false;
+            for (int i : branchIndices) {
+                affected |= i >= 0;
+            }
+            if (!affected) {
+                continue;
+            }
+            double[] base = eq.potentialDifferences();
+            double[][] potentialDifferences = new double[scenarios.length][];
+            for (int s = 0; s < scenarios.length; s++) {
+                potentialDifferences[s] = base.clone();
+                for (int i = 0; i < batteryIndices.length; i++) {
+                    if (batteryIndices[i] >= 0) {
+                        potentialDifferences[s][batteryIndices[i]] = scenarios[s][i];
+                    }
+                }
+            }
+            double[][] currents = solver.solve(eq.resistances(), potentialDifferences);
+            for (int s = 0; s < scenarios.length; s++) {
+                for (int i = 0; i < branchIndices.length; i++) {
+                    if (branchIndices[i] >= 0) {
+                        results[s][i] = currents[s][branchIndices[i]];
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Helper method to get the solvers of the components of the current circuit configuration,
+     * building those of the components that changed since they were last used.
+     */
+    private List<CachedSolver> currentSolvers() {
+        for (Component c : new ArrayList<>(components)) {
+            if (c.solver != null && !c.solver.equations.isCurrent()) {
+                discard(c);
+            }
+        }
+        CompactCircuit g = circuit.compact;
+        if (covered < g.elementCount) {
+            int[] offsets = g.offsets();
+            int[] adjacency = g.adjacency();
+            g.startTraversal();
+            int[] part = new int[16];
+            for (int start = 0; start < g.elementCount; start++) {
+                if (componentOf.containsKey(g.elements[start]) || !g.markElement(start)) {
+                    continue;
+                }
+                // Breadth first search of the component of the element.
+                part[0] = start;
+                int size = 1;
+                for (int head = 0; head < size; head++) {
+                    int v = part[head];
+                    for (int p = offsets[v]; p < offsets[v + 1]; p++) {
+                        int u = g.other(adjacency[p], v);
+                        if (g.markElement(u)) {
+                            if (size == part.length) {
+                                part = Arrays.copyOf(part, 2 * size);
+                            }
+                            part[size++] = u;
+                        }
+                    }
+                }
+                add(Arrays.copyOf(part, size));
+            }
+        }
+        List<CachedSolver> solvers = new ArrayList<>();
+        for (Component c : components) {
+            if (c.solver != null) {
+                solvers.add(c.solver);
+            }
+        }
+        return solvers;
+    }
+
+    /**
+     * Helper method to add the connected component with the given elements.
+     */
+    private void add(int[] part) {
+        CompactCircuit g = circuit.compact;
+        Component c = new Component(new CircuitElement[part.length]);
+        for (int k = 0; k < part.length; k++) {
+            c.elements[k] = g.elements[part[k]];
+            componentOf.put(c.elements[k], c);
+        }
+        // A component without active branches has no currents to find.
+        if (!CircuitEquations.branchesOf(circuit, part).isEmpty()) {
+            c.solver = new CachedSolver(equations.apply(part));
+        }
+        components.add(c);
+        covered += part.length;
+    }
+
+    private void discard(Component c) {
+        for (CircuitElement ce : c.elements) {
+            componentOf.remove(ce);
+        }
+        components.remove(c);
+        covered -= c.elements.length;
+    }
+
+    /**
+     * Helper method to find the index of each of the given items in the given list.
+     *
+     * @return The index of each item, or -1 for items not in the list.
+     */
+    private static <T> int[] indicesOf(List<T> list, List<T> items) {
+        Map<T, Integer> indices = new HashMap<>();
+        for (int i = 0; i < list.size(); i++) {
+            indices.put(list.get(i), i);
+        }
+        int[] result = new int[items.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = indices.getOrDefault(items.get(i), -1);
+        }
+        return result;
+    }
+
+    /**
+     * Helper method to solve the equations of the given solver, and set the currents of their
+     * branches.
+     */
+    private static void setCurrents(CachedSolver solver) {
+        double[] currents = solver.solve();
+        List<Branch> branches = solver.equations.branches;
+        for (int i = 0; i < currents.length; i++) {
+            branches.get(i).current = currents[i];
+        }
+    }
+
+    /**
+     * A connected component of the circuit, and the solver of its equations.
+     */
+    private static class Component {
+        final CircuitElement[] elements;
+        // null if the component has no active branch.
+        CachedSolver solver;
+
+        Component(CircuitElement[] elements) {
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * Solves a range of the solvers, splitting it in halves until a single solver is left. The
+     * components have no branch in common, so their currents may be set concurrently.
+     */
+    private static class SolveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<CachedSolver> solvers;
+        private final int start;
+        private final int end;
+
+        SolveTask(List<CachedSolver> solvers, int start, int end) {
+            this.solvers = solvers;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start == 1) {
+                setCurrents(solvers.get(start));
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new SolveTask(solvers, start, mid), new SolveTask(solvers, mid, end));
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.imontero.circuit;
+
+import java.util.*;
+
+/**
+ * A spanning forest over the elements of a circuit, maintained incrementally as wires are added and
+ * removed. Every wire outside of the forest closes exactly one fundamental loop with it, and
+ * together these loops form a basis of the loops of the circuit.
+ *
+ * Adding a wire costs the length of the loop it closes, or, if it joins two trees, the size of the
+ * smaller tree, which is re-rooted under the other. Removing a wire of the forest replaces it with
+ * a wire outside of the forest whenever one reconnects the two halves.
+ */
+class SpanningForest {
+    // The forest wire to each element's parent. Roots have none.
+    private final Map<CircuitElement, Wire> parentWire;
+    // The depth of each element. Depths are consistent within a tree, which is all the nearest
+    // common ancestor search needs.
+    private final Map<CircuitElement, Integer> depth;
+    private final Set<Wire> treeWires;
+    // The fundamental loop of each wire outside of the forest.
+    private final Map<Wire, Loop> loops;
+    // A union-find over the elements. Elements in different sets are always in different trees,
+    // but since sets cannot be split, elements in the same set may not be after a removal.
+    private final Map<CircuitElement, CircuitElement> components;
+
+    SpanningForest() {
+        this.parentWire = new HashMap<>();
+        this.depth = new HashMap<>();
+        this.treeWires = new HashSet<>();
+        this.loops = new HashMap<>();
+        this.components = new HashMap<>();
+    }
+
+    /**
+     * @return The fundamental loops of the forest.
+     */
+    Collection<Loop> loops() {
+        return loops.values();
+    }
+
+    /**
+     * @return The fundamental loop of each wire outside of the forest.
+     */
+    Map<Wire, Loop> fundamentalLoops() {
+        return Collections.unmodifiableMap(loops);
+    }
+
+    boolean isTreeWire(Wire w) {
+        return treeWires.contains(w);
+    }
+
+    /**
+     * @return The forest wire to the given element's parent, or null if it is a root.
+     */
+    Wire parentWire(CircuitElement ce) {
+        return parentWire.get(ce);
+    }
+
+    /**
+     * @return The depth of the given element, or -1 if it is not in the forest.
+     */
+    int depth(CircuitElement ce) {
+        return depth.getOrDefault(ce, -1);
+    }
+
+    /**
+     * @return The representative of the set of the given element in the union-find.
+     * @requires The element is in the forest.
+     */
+    CircuitElement component(CircuitElement ce) {
+        return findComponent(ce);
+    }
+
+    /**
+     * Restores the state of the given element, as saved in a snapshot.
+     *
+     * @param component The representative of its set, which must be restored as its own.
+     */
+    void restoreElement(CircuitElement ce, Wire parent, int depth, CircuitElement component) {
+        if (parent != null) {
+            parentWire.put(ce, parent);
+        }
+        this.depth.put(ce, depth);
+        components.put(ce, component);
+    }
+
+    /**
+     * Restores the given wire of the forest, or the loop of the given wire outside of it if the
+     * loop is not null, as saved in a snapshot.
+     */
+    void restoreWire(Wire w, Loop l) {
+        if (l == null) {
+            treeWires.add(w);
+        } else {
+            loops.put(w, l);
+        }
+    }
+
+    /**
+     * Adds the given wire to the forest.
+     *
+     * @param w The wire to add.
+     * @return The fundamental loop closed by the wire, or null if it joined two trees.
+     */
+    Loop addWire(Wire w) {
+        addElement(w.a);
+        addElement(w.b);
+        if (w.a.equals(w.b) || treeWires.contains(w) || loops.containsKey(w)) {
+            return loops.get(w);
+        }
+        if (findComponent(w.a).equals(findComponent(w.b))) {
+            Loop l = fundamentalLoop(w);
+            if (l != null) {
+                loops.put(w, l);
+                return l;
+            }
+        }
+        link(w);
+        return null;
+    }
+
+    /**
+     * Removes the given wire from the forest.
+     *
+     * @param w The wire to remove.
+     * @param removed The collection the fundamental loops that no longer exist are added to.
+     * @param added The collection the fundamental loops that replace them are added to.
+     */
+    void removeWire(Wire w, Collection<Loop> removed, Collection<Loop> added) {
+        if (loops.containsKey(w)) {
+            removed.add(loops.remove(w));
+            return;
+        }
+        if (!treeWires.remove(w)) {
+            return;
+        }
+        CircuitElement child = w.equals(parentWire.get(w.a)) ? w.a : w.b;
+        parentWire.remove(child);
+
+        // The loops through the removed wire cross between the two halves of its tree. One of
+        // their wires reconnects the halves, and the others then close new loops.
+        List<Wire> crossing = new ArrayList<>();
+        for (Map.Entry<Wire, Loop> e : loops.entrySet()) {
+            if (e.getValue().hasWire(w)) {
+                crossing.add(e.getKey());
+            }
+        }
+        if (crossing.isEmpty()) {
+            return;
+        }
+        for (Wire c : crossing) {
+            removed.add(loops.remove(c));
+        }
+        link(crossing.get(0));
+        for (int i = 1; i < crossing.size(); i++) {
+            Wire c = crossing.get(i);
+            Loop l = fundamentalLoop(c);
+            loops.put(c, l);
+            added.add(l);
+        }
+    }
+
+    /**
+     * Removes the given element from the forest.
+     *
+     * @requires All of the element's wires have been removed.
+     */
+    void removeElement(CircuitElement ce) {
+        parentWire.remove(ce);
+        depth.remove(ce);
+    }
+
+    private void addElement(CircuitElement ce) {
+        if (!depth.containsKey(ce)) {
+            depth.put(ce, 0);
+            components.put(ce, ce);
+        }
+    }
+
+    /**
+     * Helper method to find the fundamental loop the given wire closes with the forest. The loop
+     * runs from w.a across w to w.b, then up the forest from w.b and back down to w.a through their
+     * nearest common ancestor.
+     *
+     * @return The loop, or null if the endpoints of the wire are in different trees.
+     */
+    private Loop fundamentalLoop(Wire w) {
+        List<CircuitElement> up = new ArrayList<>();
+        List<Wire> upWires = new ArrayList<>();
+        List<CircuitElement> down = new ArrayList<>();
+        List<Wire> downWires = new ArrayList<>();
+        CircuitElement a = w.a, b = w.b;
+        while (!a.equals(b)) {
+            Wire pa = parentWire.get(a), pb = parentWire.get(b);
+            if (pb != null && (pa == null || depth.get(b) >= depth.get(a))) {
+                up.add(b);
+                upWires.add(pb);
+                b = pb.next(b);
+            } else if (pa != null) {
+                down.add(a);
+                downWires.add(pa);
+                a = pa.next(a);
+            } else {
+                // Both reached different roots.
+                return null;
+            }
+        }
+        Loop.LoopBuilder lb = new Loop.LoopBuilder();
+        lb.elements.add(w.a);
+        lb.wires.add(w);
+        lb.elements.addAll(up);
+        lb.wires.addAll(upWires);
+        if (!w.a.equals(a)) {
+            lb.elements.add(a);
+        }
+        for (int i = down.size() - 1; i > 0; i--) {
+            lb.elements.add(down.get(i));
+        }
+        for (int i = downWires.size() - 1; i >= 0; i--) {
+            lb.wires.add(downWires.get(i));
+        }
+        return lb.build();
+    }
+
+    /**
+     * Helper method to join the two trees containing the endpoints of the given wire with it. The
+     * smaller tree is re-rooted at its endpoint, which is found by searching both trees in lock
+     * step until one is exhausted.
+     */
+    private void link(Wire w) {
+        TreeSearch fromA = new TreeSearch(w.a);
+        TreeSearch fromB = new TreeSearch(w.b);
+        while (fromA.step() && fromB.step()) {
+            // Search until one of the trees has been exhausted.
+        }
+        TreeSearch smaller = fromA.isDone() ? fromA : fromB;
+        CircuitElement other = smaller == fromA ? w.b : w.a;
+
+        parentWire.put(smaller.root, w);
+        depth.put(smaller.root, depth.get(other) + 1);
+        for (CircuitElement ce : smaller.order) {
+            if (ce.equals(smaller.root)) {
+                continue;
+            }
+            Wire pw = smaller.discoveredBy.get(ce);
+            parentWire.put(ce, pw);
+            depth.put(ce, depth.get(pw.next(ce)) + 1);
+        }
+        treeWires.add(w);
+        components.put(findComponent(w.a), findComponent(w.b));
+    }
+
+    private CircuitElement findComponent(CircuitElement ce) {
+        while (!components.get(ce).equals(ce)) {
+            components.put(ce, components.get(components.get(ce)));
+            ce = components.get(ce);
+        }
+        return ce;
+    }
+
+    /**
+     * A breadth first search over the forest wires of a single tree, one element at a time.
+     */
+    private class TreeSearch {
+        final CircuitElement root;
+        final List<CircuitElement> order;
+        final Map<CircuitElement, Wire> discoveredBy;
+        private int next;
+
+        TreeSearch(CircuitElement root) {
+            this.root = root;
+            this.order = new ArrayList<>();
+            this.discoveredBy = new HashMap<>();
+            this.order.add(root);
+            this.discoveredBy.put(root, null);
+        }
+
+        boolean isDone() {
+            return next == order.size();
+        }
+
+        // Visits the next element. Returns false iff the tree has been exhausted.
+        boolean step() {
+            if (isDone()) {
+                return false;
+            }
+            CircuitElement ce = order.get(next++);
+            for (Wire w : ce.connections) {
+                if (!treeWires.contains(w)) {
+                    continue;
+                }
+                CircuitElement u = w.next(ce);
+                if (!discoveredBy.containsKey(u)) {
+                    discoveredBy.put(u, w);
+                    order.add(u);
+                }
+            }
+            return true;
+        }
+    }
+}
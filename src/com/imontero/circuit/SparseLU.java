@@ -0,0 +1,338 @@
+package com.imontero.circuit;
+
+import java.util.Arrays;
+
+/**
+ * A sparse LU factorization PAQ = LU of a square matrix, computed column by column with the
+ * left-looking Gilbert-Peierls algorithm. Each column costs time proportional to the floating
+ * point operations it needs, rather than to the size of the matrix. The columns are eliminated in
+ * the order of a {@link FillReducingOrdering}, and each pivot is the row the ordering prefers
+ * unless it is much smaller than the largest candidate (threshold pivoting), which keeps the
+ * factors about as sparse as the ordering intends while bounding the growth of their entries. So
+ * the sparse Kirchhoff systems of a circuit factor in nearly linear time and memory.
+ */
+public class SparseLU {
+    /**
+     * The fraction of the largest candidate pivot of a column that the preferred pivot must reach
+     * to be chosen.
+     */
+    public static final double PIVOT_TOLERANCE = 0.5;
+
+    public final int n;
+    // L is unit lower triangular in CSC form with its diagonal omitted. Its rows are in pivot
+    // order.
+    private final int[] lPointers;
+    private int[] lIndices;
+    private double[] lValues;
+    // U is upper triangular in CSC form with its diagonal stored separately. Its rows are in pivot
+    // order.
+    private final int[] uPointers;
+    private int[] uIndices;
+    private double[] uValues;
+    private final double[] diagonal;
+    // The pivot step at which each row of the original matrix was chosen.
+    private final int[] rowPivots;
+    // The reciprocal of the largest magnitude in each row. The rows are scaled by it before
+    // factoring, so that the pivots of equations in different units can be compared.
+    private final double[] rowScales;
+    // The order the columns are eliminated in, and the row preferred as each pivot.
+    private final FillReducingOrdering ordering;
+
+    /**
+     * Orders, then factors the given matrix.
+     *
+     * @param a The matrix to factor.
+     * @throws ArithmeticException if the matrix is singular.
+     */
+    public SparseLU(SparseMatrix a) {
+        this(a, FillReducingOrdering.of(a));
+    }
+
+    /**
+     * Factors the given matrix in the given order.
+     *
+     * @param a The matrix to factor.
+     * @param ordering An ordering of a matrix with the same pattern, or one of the same size.
+     * @throws ArithmeticException if the matrix is singular.
+     */
+    public SparseLU(SparseMatrix a, FillReducingOrdering ordering) {
+        if (ordering.n != a.n) {
+            throw new IllegalArgumentException("Ordering of " + ordering.n + " columns for "
+                    + a.n + "x" + a.n + " matrix.");
+        }
+        this.n = a.n;
+        this.ordering = ordering;
+        this.lPointers = new int[n + 1];
+        this.uPointers = new int[n + 1];
+        this.diagonal = new double[n];
+        this.rowPivots = new int[n];
+        this.rowScales = new double[n];
+        int capacity = Math.max(16, 2 * a.nonZeros());
+        this.lIndices = new int[capacity];
+        this.lValues = new double[capacity];
+        this.uIndices = new int[capacity];
+        this.uValues = new double[capacity];
+        factor(a);
+    }
+
+    /**
+     * @return The number of entries stored in the L and U factors, including U's diagonal.
+     */
+    public int nonZeros() {
+        return lPointers[n] + uPointers[n] + n;
+    }
+
+    /**
+     * Solves Ax = b with the factored matrix A.
+     *
+     * @param b The right hand side, of length n.
+     * @return The solution x.
+     */
+    public double[] solve(double[] b) {
+        double[] solution = new double[n];
+        solve(b, solution, new double[n]);
+        return solution;
+    }
+
+    /**
+     * Solves Ax = b with the factored matrix A without allocating, e.g. once per time step.
+     *
+     * @param b The right hand side, of length n.
+     * @param solution The array the solution x is stored in, of length n.
+     * @param work Scratch space of length n.
+     */
+    public void solve(double[] b, double[] solution, double[] work) {
+        double[] x = work;
+        for (int i = 0; i < n; i++) {
+            x[rowPivots[i]] = b[i] * rowScales[i];
+        }
+        // Forward substitution with L
+        for (int j = 0; j < n; j++) {
+            double xj = x[j];
+            if (xj == 0) {
+                continue;
+            }
+            for (int p = lPointers[j]; p < lPointers[j + 1]; p++) {
+                x[lIndices[p]] -= lValues[p] * xj;
+            }
+        }
+        // Back substitution with U
+        for (int j = n - 1; j >= 0; j--) {
+            x[j] /= diagonal[j];
+            double xj = x[j];
+            if (xj == 0) {
+                continue;
+            }
+            for (int p = uPointers[j]; p < uPointers[j + 1]; p++) {
+                x[uIndices[p]] -= uValues[p] * xj;
+            }
+        }
+        // The kth step solved for the unknown of the kth column in elimination order.
+        for (int k = 0; k < n; k++) {
+            solution[ordering.columns[k]] = x[k];
+        }
+    }
+
+    /**
+     * Solves AX = B with the factored matrix A for several right hand sides at once. The right hand
+     * sides are interleaved, so that every entry of the factors is loaded once for all of them.
+     *
+     * @param b The right hand sides, with the ith entry of the rth one at b[i * count + r].
+     * @param count The number of right hand sides.
+     * @return The solutions, interleaved in the same way.
+     */
+    public double[] solve(double[] b, int count) {
+        double[] x = new double[n * count];
+        for (int i = 0; i < n; i++) {
+            int xi = rowPivots[i] * count;
+            for (int r = 0; r < count; r++) {
+                x[xi + r] = b[i * count + r] * rowScales[i];
+            }
+        }
+        // Forward substitution with L
+        for (int j = 0; j < n; j++) {
+            int xj = j * count;
+            for (int p = lPointers[j]; p < lPointers[j + 1]; p++) {
+                double l = lValues[p];
+                int xi = lIndices[p] * count;
+                for (int r = 0; r < count; r++) {
+                    x[xi + r] -= l * x[xj + r];
+                }
+            }
+        }
+        // Back substitution with U
+        for (int j = n - 1; j >= 0; j--) {
+            int xj = j * count;
+            double d = diagonal[j];
+            for (int r = 0; r < count; r++) {
+                x[xj + r] /= d;
+            }
+            for (int p = uPointers[j]; p < uPointers[j + 1]; p++) {
+                double u = uValues[p];
+                int xi = uIndices[p] * count;
+                for (int r = 0; r < count; r++) {
+                    x[xi + r] -= u * x[xj + r];
+                }
+            }
+        }
+        double[] solution = new double[n * count];
+        for (int k = 0; k < n; k++) {
+            System.arraycopy(x, k * count, solution, ordering.columns[k] * count, count);
+        }
+        return solution;
+    }
+
+    /**
+     * Helper method to compute the factorization of the given matrix.
+     */
+    private void factor(SparseMatrix a) {
+        Arrays.fill(rowPivots, -1);
+        for (int p = 0; p < a.nonZeros(); p++) {
+            int i = a.rowIndices[p];
+            rowScales[i] = Math.max(rowScales[i], Math.abs(a.values[p]));
+        }
+        for (int i = 0; i < n; i++) {
+            // An empty row makes the matrix singular anyway.
+            rowScales[i] = rowScales[i] > 0 ? 1 / rowScales[i] : 1;
+        }
+        double[] x = new double[n];
+        int[] pattern = new int[n];
+        int[] stack = new int[n];
+        int[] positions = new int[n];
+        int[] marks = new int[n];
+        int lnz = 0, unz = 0;
+        for (int k = 0; k < n; k++) {
+            lPointers[k] = lnz;
+            uPointers[k] = unz;
+            ensureCapacity(lnz + n, unz + n);
+
+            // The rows of the kth column of L\AQ, in topological order.
+            int column = ordering.columns[k];
+            int top = reach(a, column, k, pattern, stack, positions, marks);
+            for (int p = a.columnPointers[column]; p < a.columnPointers[column + 1]; p++) {
+                x[a.rowIndices[p]] = a.values[p] * rowScales[a.rowIndices[p]];
+            }
+            for (int px = top; px < n; px++) {
+                int i = pattern[px];
+                int j = rowPivots[i];
+                if (j < 0) {
+                    continue;
+                }
+                double xi = x[i];
+                for (int p = lPointers[j]; p < lPointers[j + 1]; p++) {
+                    x[lIndices[p]] -= lValues[p] * xi;
+                }
+            }
+
+            // Pick the preferred row as the pivot unless it is too small compared to the largest
+            // remaining entry, and store U's column.
+            int pivotRow = -1;
+            double max = -1;
+            for (int px = top; px < n; px++) {
+                int i = pattern[px];
+                if (rowPivots[i] < 0) {
+                    if (Math.abs(x[i]) > max) {
+                        max = Math.abs(x[i]);
+                        pivotRow = i;
+                    }
+                } else {
+                    uIndices[unz] = rowPivots[i];
+                    uValues[unz++] = x[i];
+                }
+            }
+            if (pivotRow < 0 || !(max > 0)) {
+                throw new ArithmeticException("Matrix is singular.");
+            }
+            int preferred = ordering.rows[k];
+            if (rowPivots[preferred] < 0 && Math.abs(x[preferred]) >= PIVOT_TOLERANCE * max) {
+                pivotRow = preferred;
+            }
+            double pivot = x[pivotRow];
+            diagonal[k] = pivot;
+            rowPivots[pivotRow] = k;
+
+            // Store L's column, and clear the workspace for the next column.
+            for (int px = top; px < n; px++) {
+                int i = pattern[px];
+                if (rowPivots[i] < 0) {
+                    lIndices[lnz] = i;
+                    lValues[lnz++] = x[i] / pivot;
+                }
+                x[i] = 0;
+            }
+        }
+        lPointers[n] = lnz;
+        uPointers[n] = unz;
+
+        // Renumber the rows of L into pivot order.
+        for (int p = 0; p < lnz; p++) {
+            lIndices[p] = rowPivots[lIndices[p]];
+        }
+        lIndices = Arrays.copyOf(lIndices, lnz);
+        lValues = Arrays.copyOf(lValues, lnz);
+        uIndices = Arrays.copyOf(uIndices, unz);
+        uValues = Arrays.copyOf(uValues, unz);
+    }
+
+    /**
+     * Helper method to find the nonzero pattern of the solution of Lx = A(:,column), which is the
+     * set of rows reachable from the rows of A(:,column) in the graph of the columns of L computed
+     * so far.
+     *
+     * @param k The step the column is eliminated at.
+     * @return The start of the pattern, which is stored in topological order in
+     *         pattern[top..n-1].
+     */
+    private int reach(SparseMatrix a, int column, int k, int[] pattern, int[] stack,
+                      int[] positions, int[] marks) {
+        int top = n;
+        int mark = k + 1;
+        for (int p = a.columnPointers[column]; p < a.columnPointers[column + 1]; p++) {
+            int start = a.rowIndices[p];
+            if (marks[start] == mark) {
+                continue;
+            }
+            // Iterative depth first search from the start row.
+            int head = 0;
+            stack[0] = start;
+            while (head >= 0) {
+                int i = stack[head];
+                int j = rowPivots[i];
+                if (marks[i] != mark) {
+                    marks[i] = mark;
+                    positions[head] = j < 0 ? 0 : lPointers[j];
+                }
+                boolean done = true;
+                int end = j < 0 ? 0 : lPointers[j + 1];
+                for (int q = positions[head]; q < end; q++) {
+                    int r = lIndices[q];
+                    if (marks[r] == mark) {
+                        continue;
+                    }
+                    positions[head] = q + 1;
+                    stack[++head] = r;
+                    done = false;
+                    break;
+                }
+                if (done) {
+                    head--;
+                    pattern[--top] = i;
+                }
+            }
+        }
+        return top;
+    }
+
+    private void ensureCapacity(int lSize, int uSize) {
+        if (lSize > lIndices.length) {
+            int capacity = Math.max(lSize, 2 * lIndices.length);
+            lIndices = Arrays.copyOf(lIndices, capacity);
+            lValues = Arrays.copyOf(lValues, capacity);
+        }
+        if (uSize > uIndices.length) {
+            int capacity = Math.max(uSize, 2 * uIndices.length);
+            uIndices = Arrays.copyOf(uIndices, capacity);
+            uValues = Arrays.copyOf(uValues, capacity);
+        }
+    }
+}
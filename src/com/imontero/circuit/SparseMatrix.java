@@ -0,0 +1,142 @@
+package com.imontero.circuit;
+
+import java.util.Arrays;
+
+/**
+ * An immutable square matrix stored in compressed sparse column (CSC) form. The row indices and
+ * values of column j are stored in rowIndices and values between columnPointers[j] (inclusive) and
+ * columnPointers[j+1] (exclusive), sorted by row.
+ */
+public class SparseMatrix {
+    public final int n;
+    final int[] columnPointers;
+    final int[] rowIndices;
+    final double[] values;
+
+    private SparseMatrix(int n, int[] columnPointers, int[] rowIndices, double[] values) {
+        this.n = n;
+        this.columnPointers = columnPointers;
+        this.rowIndices = rowIndices;
+        this.values = values;
+    }
+
+    /**
+     * @return The number of stored (e.g. structurally nonzero) entries of this matrix.
+     */
+    public int nonZeros() {
+        return columnPointers[n];
+    }
+
+    /**
+     * @return The entry of this matrix at the given row and column.
+     */
+    public double get(int row, int col) {
+        int i = Arrays.binarySearch(rowIndices, columnPointers[col], columnPointers[col + 1], row);
+        return i >= 0 ? values[i] : 0;
+    }
+
+    /**
+     * Computes the product of this matrix and the given vector.
+     *
+     * @param x The vector to multiply, of length n.
+     * @return The product Ax.
+     */
+    public double[] multiply(double[] x) {
+        double[] y = new double[n];
+        for (int j = 0; j < n; j++) {
+            double xj = x[j];
+            if (xj == 0) {
+                continue;
+            }
+            for (int p = columnPointers[j]; p < columnPointers[j + 1]; p++) {
+                y[rowIndices[p]] += values[p] * xj;
+            }
+        }
+        return y;
+    }
+
+    /**
+     * Accumulates the entries of a sparse matrix as (row, column, value) triplets, summing the
+     * values of duplicate entries when the matrix is built.
+     */
+    public static class Builder {
+        private final int n;
+        private int size;
+        private int[] rows;
+        private int[] cols;
+        private double[] vals;
+
+        public Builder(int n) {
+            this.n = n;
+            this.rows = new int[16];
+            this.cols = new int[16];
+            this.vals = new double[16];
+        }
+
+        public Builder add(int row, int col, double value) {
+            if (row < 0 || row >= n || col < 0 || col >= n) {
+                throw new IndexOutOfBoundsException("(" + row + ", " + col + ") outside of "
+                        + n + "x" + n + " matrix.");
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, 2 * size);
+                cols = Arrays.copyOf(cols, 2 * size);
+                vals = Arrays.copyOf(vals, 2 * size);
+            }
+            rows[size] = row;
+            cols[size] = col;
+            vals[size] = value;
+            size++;
+            return this;
+        }
+
+        public SparseMatrix build() {
+            // Counting sort the triplets by column, then by row, and merge duplicates.
+            int[] rowCounts = new int[n + 1];
+            for (int k = 0; k < size; k++) {
+                rowCounts[rows[k] + 1]++;
+            }
+            for (int i = 0; i < n; i++) {
+                rowCounts[i + 1] += rowCounts[i];
+            }
+            int[] byRow = new int[size];
+            for (int k = 0; k < size; k++) {
+                byRow[rowCounts[rows[k]]++] = k;
+            }
+
+            int[] columnPointers = new int[n + 1];
+            for (int k = 0; k < size; k++) {
+                columnPointers[cols[k] + 1]++;
+            }
+            for (int j = 0; j < n; j++) {
+                columnPointers[j + 1] += columnPointers[j];
+            }
+            int[] next = Arrays.copyOf(columnPointers, n);
+            int[] sortedRows = new int[size];
+            double[] sortedValues = new double[size];
+            for (int k : byRow) {
+                int p = next[cols[k]]++;
+                sortedRows[p] = rows[k];
+                sortedValues[p] = vals[k];
+            }
+
+            int[] pointers = new int[n + 1];
+            int nz = 0;
+            for (int j = 0; j < n; j++) {
+                pointers[j] = nz;
+                for (int p = columnPointers[j]; p < columnPointers[j + 1]; p++) {
+                    if (nz > pointers[j] && sortedRows[nz - 1] == sortedRows[p]) {
+                        sortedValues[nz - 1] += sortedValues[p];
+                    } else {
+                        sortedRows[nz] = sortedRows[p];
+                        sortedValues[nz] = sortedValues[p];
+                        nz++;
+                    }
+                }
+            }
+            pointers[n] = nz;
+            return new SparseMatrix(n, pointers, Arrays.copyOf(sortedRows, nz),
+                    Arrays.copyOf(sortedValues, nz));
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.imontero.circuit;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * A fixed size store of a signal over time, such as the current of a branch, for live plots.
+ *
+ * The samples are kept in a ring of primitive doubles, which holds the most recent ones. Above it
+ * are coarser rings of the same size, whose buckets each hold the first time, the minimum and the
+ * maximum of {@link #FACTOR} buckets of the ring below, so each level reaches {@link #FACTOR} times
+ * further back than the one below it. A plot of any window draws each column from the minimum to
+ * the maximum of the buckets in it, read from the finest level that still holds the window in at
+ * most {@link #FACTOR} buckets per column, so drawing it takes time proportional to its width in
+ * pixels rather than to the number of samples in it, and no spike is ever lost.
+ *
+ * A single thread appends samples, while any number of threads plot them without locking. The
+ * writer makes a sequence number odd while it writes and even once it is done, and a reader
+ * retries whenever the number was odd or changed while it read.
+ */
+public class TimeSeries {
+    /** The number of buckets of each level merged into a bucket of the next. */
+    public static final int FACTOR = 8;
+    private static final int SHIFT = 3;
+
+    private final int mask;
+    // The first time, minimum and maximum of each bucket of each level, where the minima and maxima
+    // of the samples are the same array.
+    private final double[][] times;
+    private final double[][] mins;
+    private final double[][] maxs;
+    private long count;
+    private volatile long sequence;
+
+    /**
+     * Creates a store of 4096 samples and 6 coarser levels, which reaches over a billion samples
+     * back in under 1 MB.
+     */
+    public TimeSeries() {
+        this(4096, 6);
+    }
+
+    /**
+     * @param capacity The number of buckets of each level, rounded up to a power of two.
+     * @param levels The number of levels above the samples.
+     */
+    public TimeSeries(int capacity, int levels) {
+        if (capacity <= 0 || levels < 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.times = new double[levels + 1][size];
+        this.mins = new double[levels + 1][];
+        this.maxs = new double[levels + 1][];
+        mins[0] = maxs[0] = new double[size];
+        for (int k = 1; k <= levels; k++) {
+            mins[k] = new double[size];
+            maxs[k] = new double[size];
+        }
+    }
+
+    /**
+     * Appends a sample. Only one thread may append to a store.
+     *
+     * @param time The time of the sample, which must not be before that of the last.
+     */
+    public void append(double time, double value) {
+        begin(time);
+        put(time, value);
+        end();
+    }
+
+    /**
+     * Appends the first given number of samples, which readers see all at once.
+     */
+    public void append(double[] times, double[] values, int count) {
+        if (count == 0) {
+            return;
+        }
+        begin(times[0]);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && times[i] < times[i - 1]) {
+                end();
+                throw new IllegalArgumentException("Samples must be in order of time.");
+            }
+            put(times[i], values[i]);
+        }
+        end();
+    }
+
+    private void begin(double time) {
+        if (count > 0 && time < times[0][(int) ((count - 1) & mask)]) {
+            throw new IllegalArgumentException("Samples must be in order of time.");
+        }
+        sequence++;
+        // The odd sequence number must be seen before any of the writes.
+        VarHandle.storeStoreFence();
+    }
+
+    private void end() {
+        sequence++;
+    }
+
+    private void put(double time, double value) {
+        long n = count;
+        for (int k = 0; k < times.length; k++) {
+            int slot = (int) ((n >> (SHIFT * k)) & mask);
+            if ((n & ((1L << (SHIFT * k)) - 1)) == 0) {
+                times[k][slot] = time;
+                mins[k][slot] = value;
+                maxs[k][slot] = value;
+            } else {
+                mins[k][slot] = Math.min(mins[k][slot], value);
+                maxs[k][slot] = Math.max(maxs[k][slot], value);
+            }
+        }
+        count = n + 1;
+    }
+
+    /**
+     * @return The number of samples ever appended.
+     */
+    public long size() {
+        while (true) {
+            long s = sequence;
+            long size = count;
+            VarHandle.acquireFence();
+            if ((s & 1) == 0 && sequence == s) {
+                return size;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return The time of the latest sample, or NaN if there is none.
+     */
+    public double lastTime() {
+        while (true) {
+            long s = sequence;
+            long n = count;
+            double time = n == 0 ? Double.NaN : times[0][(int) ((n - 1) & mask)];
+            VarHandle.acquireFence();
+            if ((s & 1) == 0 && sequence == s) {
+                return time;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return The time of the oldest sample still summarized by the coarsest level, or NaN if there
+     *         is none.
+     */
+    public double firstTime() {
+        int top = times.length - 1;
+        while (true) {
+            long s = sequence;
+            long n = count;
+            double time = n == 0 ? Double.NaN : times[top][(int) (first(top, n) & mask)];
+            VarHandle.acquireFence();
+            if ((s & 1) == 0 && sequence == s) {
+                return time;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Finds the smallest and largest value of the samples in each of the columns the given window
+     * of time is split into, without allocating.
+     *
+     * @param from The start of the window.
+     * @param to The end of the window, after its start.
+     * @param mins The array to put the minimum of each column in, whose length is the number of
+     *             columns. A column without samples is NaN.
+     * @param maxs The array to put the maximum of each column in, as long as the minima.
+     * @return The level the columns were read from, where the buckets of level k summarize
+     *         {@link #FACTOR}^k samples.
+     */
+    public int plot(double from, double to, double[] mins, double[] maxs) {
+        if (!(to > from) || mins.length != maxs.length) {
+            throw new IllegalArgumentException("The window must end after it starts, and have "
+                    + "as many minima as maxima.");
+        }
+        while (true) {
+            long s = sequence;
+            int level = (s & 1) == 0 ? read(from, to, mins, maxs) : -1;
+            VarHandle.acquireFence();
+            if (level >= 0 && sequence == s) {
+                return level;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Helper method to read the columns of a plot, which may see the writer's partial writes.
+     * Indices are always masked, so a torn read only gives wrong columns, which are discarded.
+     */
+    private int read(double from, double to, double[] columnMins, double[] columnMaxs) {
+        int columns = columnMins.length;
+        for (int p = 0; p < columns; p++) {
+            columnMins[p] = Double.NaN;
+            columnMaxs[p] = Double.NaN;
+        }
+        long n = count;
+        if (n == 0 || columns == 0) {
+            return 0;
+        }
+        int top = times.length - 1;
+        int level = 0;
+        long lo = 0;
+        long hi = -1;
+        for (; level <= top; level++) {
+            long first = first(level, n);
+            long last = (n - 1) >> (SHIFT * level);
+            // Move up while the window starts before the oldest bucket this level still holds.
+            if (level < top && first > 0 && time(level, first) > from) {
+                continue;
+            }
+            // The bucket the window starts in, unless it is a sample before the window.
+            lo = Math.max(first, lastStartingBy(level, first, last, from));
+            if (level == 0 && time(level, lo) < from) {
+                lo++;
+            }
+            hi = lastStartingBy(level, first, last, Math.nextDown(to));
+            if (level == top || hi - lo < (long) FACTOR * columns) {
+                break;
+            }
+        }
+
+        double width = (to - from) / columns;
+        double[] levelMins = mins[level];
+        double[] levelMaxs = maxs[level];
+        for (long b = lo; b <= hi; b++) {
+            int slot = (int) (b & mask);
+            int p = (int) Math.max(0, Math.min(columns - 1, (times[level][slot] - from) / width));
+            if (!(columnMins[p] <= levelMins[slot])) {
+                columnMins[p] = levelMins[slot];
+            }
+            if (!(columnMaxs[p] >= levelMaxs[slot])) {
+                columnMaxs[p] = levelMaxs[slot];
+            }
+        }
+        return level;
+    }
+
+    /**
+     * @return The oldest bucket of the given level still in its ring, after n samples.
+     */
+    private long first(int level, long n) {
+        return Math.max(0, ((n - 1) >> (SHIFT * level)) - mask);
+    }
+
+    private double time(int level, long bucket) {
+        return times[level][(int) (bucket & mask)];
+    }
+
+    /**
+     * @return The last of the given buckets that starts at or before the given time, or one before
+     *         the first if none does.
+     */
+    private long lastStartingBy(int level, long first, long last, double time) {
+        long lo = first;
+        long hi = last;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            if (time(level, mid) <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return hi;
+    }
+}
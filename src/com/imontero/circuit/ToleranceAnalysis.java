@@ -0,0 +1,538 @@
+package com.imontero.circuit;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A Monte Carlo analysis of how the tolerances of a circuit's resistors and batteries spread the
+ * currents of its branches. Each sample draws every value from its tolerance distribution and
+ * solves the nodal equations of the circuit, and the currents are accumulated into streaming
+ * statistics and histograms, so memory does not grow with the number of samples.
+ *
+ * The equations and nominal values are captured when the analysis is built, and samples never
+ * touch the circuit, its branches or the static ID counters of its elements, so they run in
+ * parallel on a fork-join pool while the circuit is free to change. Every task draws from its own
+ * stream of a SplittableRandom, split along a task tree that only depends on the number of
+ * samples, so results are identical for a given seed on any number of threads.
+ */
+public class ToleranceAnalysis {
+    /** The distributions a value can be drawn from around its nominal value. */
+    public enum Distribution {
+        /** Uniform over the nominal value plus or minus the tolerance. */
+        UNIFORM,
+        /** Normal, with the tolerance as three standard deviations, truncated at the tolerance. */
+        GAUSSIAN
+    }
+
+    // The number of samples each task draws before it splits.
+    private static final int LEAF_SAMPLES = 64;
+    // The number of samples drawn, and kept, to choose the range of the histograms.
+    private static final int PILOT_SAMPLES = 256;
+
+    private final CircuitEquations equations;
+    // The ordering of the matrix of the equations, which every sample shares.
+    private final FillReducingOrdering ordering;
+    private final double[] resistances;
+    private final double[] resistorTolerances;
+    private final double[] potentialDifferences;
+    private final double[] batteryTolerances;
+    private final Distribution distribution;
+    private final int samples;
+    private final long seed;
+    private final int bins;
+
+    private ToleranceAnalysis(Builder builder) {
+        builder.circuit.analyze();
+        this.equations = new NodalEquations(builder.circuit);
+        this.resistances = equations.resistances();
+        this.potentialDifferences = equations.potentialDifferences();
+        this.ordering = FillReducingOrdering.of(equations.matrix(resistances));
+        this.resistorTolerances = new double[resistances.length];
+        for (int i = 0; i < resistances.length; i++) {
+            resistorTolerances[i] = builder.tolerances.getOrDefault(equations.resistors.get(i),
+                    builder.resistorTolerance);
+        }
+        this.batteryTolerances = new double[potentialDifferences.length];
+        for (int i = 0; i < potentialDifferences.length; i++) {
+            batteryTolerances[i] = builder.tolerances.getOrDefault(equations.batteries.get(i),
+                    builder.batteryTolerance);
+        }
+        this.distribution = builder.distribution;
+        this.samples = builder.samples;
+        this.seed = builder.seed;
+        this.bins = builder.bins;
+    }
+
+    /**
+     * Runs the analysis on the common fork-join pool.
+     *
+     * @return The statistics of the current of each branch.
+     */
+    public Result run() {
+        return run(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Runs the analysis on the given pool.
+     *
+     * @param pool The pool to draw the samples on.
+     * @return The statistics of the current of each branch.
+     */
+    public Result run(ForkJoinPool pool) {
+        SplittableRandom root = new SplittableRandom(seed);
+        SplittableRandom pilotRandom = root.split();
+        SplittableRandom mainRandom = root.split();
+
+        // The pilot samples choose the range of each histogram, and are then counted like the
+        // rest.
+        int pilot = Math.min(PILOT_SAMPLES, samples);
+        double[][] pilotCurrents = pool.invoke(new PilotTask(0, pilot, pilotRandom));
+        int b = equations.branches.size();
+        double[] lower = new double[b];
+        double[] upper = new double[b];
+        Arrays.fill(lower, Double.POSITIVE_INFINITY);
+        Arrays.fill(upper, Double.NEGATIVE_INFINITY);
+        for (double[] currents : pilotCurrents) {
+            for (int i = 0; currents != null && i < b; i++) {
+                lower[i] = Math.min(lower[i], currents[i]);
+                upper[i] = Math.max(upper[i], currents[i]);
+            }
+        }
+        for (int i = 0; i < b; i++) {
+            if (lower[i] > upper[i]) {
+                lower[i] = upper[i] = 0;
+            }
+            // Leave room for the samples beyond the pilot's extremes.
+            double margin = Math.max((upper[i] - lower[i]) / 2,
+                    Math.max(Math.abs(lower[i]), Math.abs(upper[i])) * 1e-9 + 1e-15);
+            lower[i] -= margin;
+            upper[i] += margin;
+        }
+
+        Accumulator total = new Accumulator(lower, upper);
+        for (double[] currents : pilotCurrents) {
+            total.add(currents);
+        }
+        total.merge(pool.invoke(new SampleTask(pilot, samples, mainRandom, lower, upper)));
+
+        Map<Branch, Statistics> statistics = new LinkedHashMap<>();
+        for (int i = 0; i < b; i++) {
+            statistics.put(equations.branches.get(i), total.statistics(i));
+        }
+        return new Result(samples, total.failures, statistics);
+    }
+
+    /**
+     * Helper method to draw a sample and solve it.
+     *
+     * @return The current of each branch, or null if the sampled circuit is singular.
+     */
+    private double[] sample(SplittableRandom random) {
+        double[] r = new double[resistances.length];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = draw(random, resistances[i], resistorTolerances[i]);
+        }
+        double[] v = new double[potentialDifferences.length];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = draw(random, potentialDifferences[i], batteryTolerances[i]);
+        }
+        try {
+            double[] x = new SparseLU(equations.matrix(r), ordering)
+                    .solve(equations.rightHandSide(v));
+            return equations.branchCurrents(x, r);
+        } catch (ArithmeticException e) {
+            return null;
+        }
+    }
+
+    private double draw(SplittableRandom random, double nominal, double tolerance) {
+        double deviation;
+        if (distribution == Distribution.UNIFORM) {
+            deviation = random.nextDouble(-1, 1);
+        } else {
+            // Marsaglia's polar method, rejecting draws beyond the tolerance.
+            do {
+                double u, v, s;
+                do {
+                    u = random.nextDouble(-1, 1);
+                    v = random.nextDouble(-1, 1);
+                    s = u * u + v * v;
+                } while (s >= 1 || s == 0);
+                deviation = u * Math.sqrt(-2 * Math.log(s) / s) / 3;
+            } while (Math.abs(deviation) > 1);
+        }
+        return nominal * (1 + tolerance * deviation);
+    }
+
+    /**
+     * Draws the samples in [from, to), keeping their currents.
+     */
+    private class PilotTask extends RecursiveTask<double[][]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final SplittableRandom random;
+
+        PilotTask(int from, int to, SplittableRandom random) {
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
+
+        @Override
+        protected double[][] compute() {
+            if (to - from <= LEAF_SAMPLES) {
+                double[][] currents = new double[to - from][];
+                for (int s = 0; s < currents.length; s++) {
+                    currents[s] = sample(random);
+                }
+                return currents;
+            }
+            int mid = (from + to) >>> 1;
+            PilotTask right = new PilotTask(mid, to, random.split());
+            right.fork();
+            double[][] left = new PilotTask(from, mid, random).compute();
+            double[][] currents = Arrays.copyOf(left, to - from);
+            System.arraycopy(right.join(), 0, currents, left.length, to - mid);
+            return currents;
+        }
+    }
+
+    /**
+     * Draws the samples in [from, to) into an accumulator.
+     */
+    private class SampleTask extends RecursiveTask<Accumulator> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final SplittableRandom random;
+        private final double[] lower;
+        private final double[] upper;
+
+        SampleTask(int from, int to, SplittableRandom random, double[] lower, double[] upper) {
+            this.from = from;
+            this.to = to;
+            this.random = random;
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        protected Accumulator compute() {
+            if (to - from <= LEAF_SAMPLES) {
+                Accumulator acc = new Accumulator(lower, upper);
+                for (int s = from; s < to; s++) {
+                    acc.add(sample(random));
+                }
+                return acc;
+            }
+            int mid = (from + to) >>> 1;
+            SampleTask right = new SampleTask(mid, to, random.split(), lower, upper);
+            right.fork();
+            Accumulator acc = new SampleTask(from, mid, random, lower, upper).compute();
+            acc.merge(right.join());
+            return acc;
+        }
+    }
+
+    /**
+     * The streaming statistics of the currents of every branch over some of the samples.
+     */
+    private class Accumulator {
+        private final double[] lower;
+        private final double[] upper;
+        private long count;
+        private int failures;
+        // Welford's running mean and sum of squared deviations of each branch.
+        private final double[] mean;
+        private final double[] m2;
+        private final double[] min;
+        private final double[] max;
+        // The histogram of each branch, with an extra bin below and above its range.
+        private final long[][] histograms;
+
+        Accumulator(double[] lower, double[] upper) {
+            int b = lower.length;
+            this.lower = lower;
+            this.upper = upper;
+            this.mean = new double[b];
+            this.m2 = new double[b];
+            this.min = new double[b];
+            this.max = new double[b];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            this.histograms = new long[b][bins + 2];
+        }
+
+        void add(double[] currents) {
+            if (currents == null) {
+                failures++;
+                return;
+            }
+            count++;
+            for (int i = 0; i < currents.length; i++) {
+                double c = currents[i];
+                double delta = c - mean[i];
+                mean[i] += delta / count;
+                m2[i] += delta * (c - mean[i]);
+                min[i] = Math.min(min[i], c);
+                max[i] = Math.max(max[i], c);
+                histograms[i][bin(i, c)]++;
+            }
+        }
+
+        /**
+         * Adds the samples of the given accumulator to this, with Chan's formula for combining
+         * the means and deviations.
+         */
+        void merge(Accumulator other) {
+            failures += other.failures;
+            if (other.count == 0) {
+                return;
+            }
+            long total = count + other.count;
+            for (int i = 0; i < mean.length; i++) {
+                double delta = other.mean[i] - mean[i];
+                mean[i] += delta * other.count / total;
+                m2[i] += other.m2[i] + delta * delta * count * other.count / total;
+                min[i] = Math.min(min[i], other.min[i]);
+                max[i] = Math.max(max[i], other.max[i]);
+                for (int k = 0; k < bins + 2; k++) {
+                    histograms[i][k] += other.histograms[i][k];
+                }
+            }
+            count = total;
+        }
+
+        private int bin(int i, double c) {
+            if (c < lower[i]) {
+                return 0;
+            } else if (c >= upper[i]) {
+                return bins + 1;
+            }
+            return 1 + Math.min(bins - 1, (int) ((c - lower[i]) / (upper[i] - lower[i]) * bins));
+        }
+
+        Statistics statistics(int i) {
+            return new Statistics(count, mean[i], count > 1 ? m2[i] / (count - 1) : 0, min[i],
+                    max[i], lower[i], upper[i], histograms[i]);
+        }
+    }
+
+    /**
+     * The results of an analysis.
+     */
+    public static class Result {
+        /** The number of samples drawn. */
+        public final int samples;
+        /** The number of samples whose equations were singular, and were not counted. */
+        public final int failures;
+        private final Map<Branch, Statistics> statistics;
+
+        private Result(int samples, int failures, Map<Branch, Statistics> statistics) {
+            this.samples = samples;
+            this.failures = failures;
+            this.statistics = statistics;
+        }
+
+        /**
+         * @return The branches of the circuit when the analysis was built.
+         */
+        public Set<Branch> branches() {
+            return Collections.unmodifiableSet(statistics.keySet());
+        }
+
+        /**
+         * @param br A branch of the circuit when the analysis was built.
+         * @return The statistics of its current, or null if it is not one.
+         */
+        public Statistics statistics(Branch br) {
+            return statistics.get(br);
+        }
+    }
+
+    /**
+     * The statistics of the current of a single branch.
+     */
+    public static class Statistics {
+        private final long count;
+        private final double mean;
+        private final double variance;
+        private final double min;
+        private final double max;
+        private final double lower;
+        private final double upper;
+        private final long[] histogram;
+
+        private Statistics(long count, double mean, double variance, double min, double max,
+                           double lower, double upper, long[] histogram) {
+            this.count = count;
+            this.mean = mean;
+            this.variance = variance;
+            this.min = min;
+            this.max = max;
+            this.lower = lower;
+            this.upper = upper;
+            this.histogram = histogram;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double mean() {
+            return mean;
+        }
+
+        public double standardDeviation() {
+            return Math.sqrt(variance);
+        }
+
+        public double min() {
+            return min;
+        }
+
+        public double max() {
+            return max;
+        }
+
+        /**
+         * @return The bins of the histogram, which evenly divide [lowerBound(), upperBound()).
+         */
+        public long[] histogram() {
+            return Arrays.copyOfRange(histogram, 1, histogram.length - 1);
+        }
+
+        public double lowerBound() {
+            return lower;
+        }
+
+        public double upperBound() {
+            return upper;
+        }
+
+        /**
+         * Estimates a percentile of the current by interpolating within the bins of the
+         * histogram. Samples outside of its range are spread between it and the extremes.
+         *
+         * @param p The percentile, from 0 to 100.
+         * @return The estimated current below which p percent of the samples lie.
+         */
+        public double percentile(double p) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            double target = Math.max(0, Math.min(100, p)) / 100 * count;
+            int bins = histogram.length - 2;
+            double width = (upper - lower) / bins;
+            long seen = 0;
+            for (int k = 0; k < histogram.length; k++) {
+                long n = histogram[k];
+                if (n > 0 && seen + n >= target) {
+                    double from, to;
+                    if (k == 0) {
+                        from = min;
+                        to = lower;
+                    } else if (k == histogram.length - 1) {
+                        from = upper;
+                        to = max;
+                    } else {
+                        from = lower + (k - 1) * width;
+                        to = from + width;
+                    }
+                    double value = from + (to - from) * (target - seen) / n;
+                    return Math.max(min, Math.min(max, value));
+                }
+                seen += n;
+            }
+            return max;
+        }
+    }
+
+    /**
+     * A builder of an analysis of a circuit as it is when the analysis is built.
+     */
+    public static class Builder {
+        private final Circuit circuit;
+        private final Map<CircuitElement, Double> tolerances;
+        private double resistorTolerance;
+        private double batteryTolerance;
+        private Distribution distribution;
+        private int samples;
+        private long seed;
+        private int bins;
+
+        public Builder(Circuit circuit) {
+            this.circuit = circuit;
+            this.tolerances = new HashMap<>();
+            this.distribution = Distribution.GAUSSIAN;
+            this.samples = 10000;
+            this.bins = 100;
+        }
+
+        /**
+         * Sets the relative tolerance of every resistor without its own tolerance.
+         */
+        public Builder resistorTolerance(double tolerance) {
+            this.resistorTolerance = checkTolerance(tolerance);
+            return this;
+        }
+
+        /**
+         * Sets the relative tolerance of every battery without its own tolerance.
+         */
+        public Builder batteryTolerance(double tolerance) {
+            this.batteryTolerance = checkTolerance(tolerance);
+            return this;
+        }
+
+        /**
+         * Sets the relative tolerance of a single resistor or battery.
+         */
+        public Builder tolerance(CircuitElement ce, double tolerance) {
+            this.tolerances.put(ce, checkTolerance(tolerance));
+            return this;
+        }
+
+        public Builder distribution(Distribution distribution) {
+            this.distribution = distribution;
+            return this;
+        }
+
+        public Builder samples(int samples) {
+            if (samples <= 0) {
+                throw new IllegalArgumentException("Samples must be positive.");
+            }
+            this.samples = samples;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public Builder bins(int bins) {
+            if (bins <= 0) {
+                throw new IllegalArgumentException("Bins must be positive.");
+            }
+            this.bins = bins;
+            return this;
+        }
+
+        public ToleranceAnalysis build() {
+            return new ToleranceAnalysis(this);
+        }
+
+        private static double checkTolerance(double tolerance) {
+            // A resistance must never reach zero, which would change the equations.
+            if (!(tolerance >= 0 && tolerance < 1)) {
+                throw new IllegalArgumentException("Tolerance must be in [0, 1).");
+            }
+            return tolerance;
+        }
+    }
+}
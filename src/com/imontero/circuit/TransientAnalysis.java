@@ -0,0 +1,658 @@
+package com.imontero.circuit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * A transient analysis of a circuit with capacitors and inductors, which steps the circuit through
+ * time from an initial state and records the current of its branches at every step.
+ *
+ * At each step, every capacitor and inductor is replaced by the companion model of the integration
+ * rule: a conductance or resistance that only depends on its value and the step size, and a source
+ * that depends on its voltage and current at the previous step. The topology and the step size are
+ * fixed, so the matrix of the nodal equations is assembled and factored once, and each step only
+ * assembles the right hand side and substitutes, without allocating.
+ *
+ * An adaptive analysis instead picks the size of each step from an estimate of its local
+ * truncation error, taking small steps through fast edges and large ones through slow decays. The
+ * sizes are the initial step times powers of two, so the matrix is factored once per size used.
+ *
+ * Long analyses can stream their samples into a {@link WaveformWriter} rather than keep them in
+ * the heap.
+ *
+ * Like a {@link ToleranceAnalysis}, the equations and values are captured when the analysis is
+ * built, and running it never touches the circuit or its branches.
+ */
+public class TransientAnalysis {
+    /** The rules that integrate the currents of capacitors and the voltages of inductors. */
+    public enum Integration {
+        /**
+         * The backward Euler rule, which is first order accurate, and damps oscillations that are
+         * too fast for the step size.
+         */
+        BACKWARD_EULER,
+        /**
+         * The trapezoidal rule, which is second order accurate, and preserves oscillations. It
+         * starts with two backward Euler steps of half the step size, whose companion models are
+         * the same, since the initial state does not determine the derivatives it needs.
+         */
+        TRAPEZOIDAL
+    }
+
+    /** The states a circuit can start in. */
+    public enum InitialState {
+        /**
+         * Every capacitor discharged and no current through any inductor, as if every battery was
+         * connected at once.
+         */
+        ZERO,
+        /** The steady state of the circuit, with its capacitors open and its inductors shorted. */
+        STEADY_STATE
+    }
+
+    // The smallest adaptive step is the initial step divided by 2^20.
+    private static final int MIN_LEVEL = -20;
+    // The fraction of the largest step the error estimate allows that is taken.
+    private static final double SAFETY = 0.9;
+    // The absolute tolerances of the voltages of capacitors and the currents of inductors.
+    private static final double VOLTAGE_TOLERANCE = 1e-6;
+    private static final double CURRENT_TOLERANCE = 1e-12;
+
+    private final NodalEquations equations;
+    private final double[] resistances;
+    private final double[] potentialDifferences;
+    private final double[] capacitances;
+    private final double[] inductances;
+    private final Integration integration;
+    private final InitialState initialState;
+    private final double step;
+    private final int steps;
+    private final int interval;
+    // The relative tolerance of the local truncation error, or 0 for a fixed step size.
+    private final double tolerance;
+    private final int maxLevel;
+    // The recorded branches, and their indices in the equations.
+    private final List<Branch> recorded;
+    private final int[] recordedIndices;
+
+    private TransientAnalysis(Builder builder) {
+        builder.circuit.analyze();
+        this.equations = new NodalEquations(builder.circuit);
+        this.resistances = equations.resistances();
+        this.potentialDifferences = equations.potentialDifferences();
+        this.capacitances = new double[equations.capacitors.size()];
+        for (int i = 0; i < capacitances.length; i++) {
+            capacitances[i] = checkValue(equations.capacitors.get(i),
+                    equations.capacitors.get(i).capacitance);
+        }
+        this.inductances = new double[equations.inductors.size()];
+        for (int i = 0; i < inductances.length; i++) {
+            inductances[i] = checkValue(equations.inductors.get(i),
+                    equations.inductors.get(i).inductance);
+        }
+        this.integration = builder.integration;
+        this.initialState = builder.initialState;
+        this.step = builder.step;
+        this.steps = builder.steps;
+        this.interval = builder.interval;
+        this.tolerance = builder.tolerance;
+        double maxStep = Double.isNaN(builder.maxStep) ? Math.scalb(step, 10) : builder.maxStep;
+        if (maxStep < step) {
+            throw new IllegalArgumentException("The largest step must not be smaller than the "
+                    + "initial step.");
+        }
+        this.maxLevel = Math.getExponent(maxStep / step);
+
+        this.recorded = new ArrayList<>();
+        this.recordedIndices = equations.recordedIndices(builder.branches, recorded);
+    }
+
+    private static double checkValue(CircuitElement ce, double value) {
+        if (!(value > 0)) {
+            throw new IllegalArgumentException(ce + " must have a positive value, not " + value
+                    + ".");
+        }
+        return value;
+    }
+
+    /**
+     * @return The recorded branches, in the order of the columns of the waveforms written by
+     *         {@link #run(WaveformWriter)}.
+     */
+    public List<Branch> branches() {
+        return Collections.unmodifiableList(recorded);
+    }
+
+    /**
+     * Runs the analysis.
+     *
+     * @return The current of each recorded branch at every sampled step.
+     * @throws ArithmeticException if the equations are singular.
+     */
+    public Result run() {
+        try {
+            return run(new Recorder(null));
+        } catch (IOException e) {
+            // Recording into arrays does not do any I/O.
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs the analysis, and appends the current of each recorded branch at every sampled step to
+     * the given writer, rather than keeping them.
+     *
+     * @param output A writer whose columns are the {@link #branches()} of this analysis.
+     * @return The statistics of the run, without any waveforms.
+     * @throws ArithmeticException if the equations are singular.
+     * @throws IOException if the output cannot be written.
+     */
+    public Result run(WaveformWriter output) throws IOException {
+        int[] ids = output.branchIds();
+        boolean matches = ids.length == recorded.size();
+        for (int i = 0; matches && i < ids.length; i++) {
+            matches = ids[i] == recorded.get(i).ID;
+        }
+        if (!matches) {
+            throw new IllegalArgumentException("The columns of the output must be the recorded "
+                    + "branches.");
+        }
+        return run(new Recorder(output));
+    }
+
+    private Result run(Recorder recorder) throws IOException {
+        State state = new State();
+        if (initialState == InitialState.STEADY_STATE) {
+            SparseLU steady = new SparseLU(equations.matrix(resistances));
+            steady.solve(equations.rightHandSide(potentialDifferences), state.x, state.work);
+            state.read(equations.steadyConductances(), new double[capacitances.length]);
+        }
+        return tolerance > 0 ? runAdaptive(state, recorder) : runFixed(state, recorder);
+    }
+
+    private Result runFixed(State state, Recorder recorder) throws IOException {
+        Companion companion = new Companion(step);
+        for (int n = 1; n <= steps; n++) {
+            state.advance(companion, n == 1);
+            if (n % interval == 0) {
+                recorder.record(n * step, state, companion);
+            }
+        }
+        return recorder.result(step * interval, steps, 0, 1);
+    }
+
+    /**
+     * Steps with sizes of the initial step times a power of two, chosen from an estimate of the
+     * local truncation error of each step. A step whose error is above the tolerance is rejected,
+     * and retried with a smaller step.
+     *
+     * The error is estimated by Milne's device: the voltages of the capacitors and the currents of
+     * the inductors are predicted by extrapolating the polynomial through the last accepted points,
+     * and the difference between the prediction and the solution is proportional to the error of
+     * the integration rule.
+     *
+     * Every size is a multiple of the smallest, and so is the end of the analysis, so the last step
+     * ends at it exactly. Since the sizes are quantized, the companion models of each size are
+     * factored once, and reused whenever the step returns to it.
+     */
+    private Result runAdaptive(State state, Recorder recorder) throws IOException {
+        // Times are counted in smallest steps, so that they are exact.
+        double smallest = Math.scalb(step, MIN_LEVEL);
+        long end = (long) steps << -MIN_LEVEL;
+        int order = integration == Integration.TRAPEZOIDAL ? 2 : 1;
+        Map<Integer, Companion> companions = new HashMap<>();
+        History history = new History(order, state);
+        int accepted = 0;
+        int rejected = 0;
+        int level = 0;
+        long t = 0;
+        while (t < end) {
+            // Never step past the end.
+            while (1L << (level - MIN_LEVEL) > end - t) {
+                level--;
+            }
+            double h = Math.scalb(step, level);
+            Companion companion = companions.computeIfAbsent(level, l -> new Companion(h));
+            state.save();
+            state.advance(companion, accepted == 0);
+
+            // Only keep the step size until there are enough points to predict from.
+            int change = 0;
+            if (history.size > order) {
+                double ratio = history.errorRatio((t + (1L << (level - MIN_LEVEL)))
+                        * smallest, state);
+                change = ratio == 0 ? 1 : (int) Math.floor(Math.log(SAFETY
+                        * Math.pow(ratio, -1.0 / (order + 1))) / Math.log(2));
+                if (ratio > 1 && level > MIN_LEVEL) {
+                    rejected++;
+                    state.restore();
+                    level = Math.max(MIN_LEVEL, level + Math.min(-1, change));
+                    continue;
+                }
+            }
+            t += 1L << (level - MIN_LEVEL);
+            accepted++;
+            history.add(t * smallest, state);
+            if (accepted % interval == 0) {
+                recorder.record(t * smallest, state, companion);
+            }
+            level = Math.max(MIN_LEVEL, Math.min(maxLevel, level + Math.min(1, change)));
+        }
+        return recorder.result(Double.NaN, accepted, rejected, companions.size());
+    }
+
+    /**
+     * The companion models of the capacitors and inductors for a step size, and the factored
+     * matrix of the equations with them.
+     */
+    private class Companion {
+        final double[] conductances = new double[capacitances.length];
+        final double[] inductorResistances = new double[inductances.length];
+        final SparseLU lu;
+
+        Companion(double step) {
+            // Both rules share the companion models of backward Euler steps of half the step size.
+            double scale = integration == Integration.TRAPEZOIDAL ? 2 / step : 1 / step;
+            for (int i = 0; i < conductances.length; i++) {
+                conductances[i] = capacitances[i] * scale;
+            }
+            for (int i = 0; i < inductorResistances.length; i++) {
+                inductorResistances[i] = inductances[i] * scale;
+            }
+            this.lu = new SparseLU(equations.matrix(resistances, conductances,
+                    inductorResistances));
+        }
+    }
+
+    /**
+     * The last accepted time points, and the voltages of the capacitors and currents of the
+     * inductors at them, newest first.
+     */
+    private class History {
+        final double[] times;
+        final double[][] values;
+        // The divided differences of a variable over the points.
+        final double[] differences;
+        int size;
+
+        History(int order, State state) {
+            this.times = new double[order + 1];
+            this.values = new double[order + 1][capacitances.length + inductances.length];
+            this.differences = new double[order + 1];
+            add(0, state);
+        }
+
+        void add(double time, State state) {
+            double[] oldest = values[values.length - 1];
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            System.arraycopy(values, 0, values, 1, values.length - 1);
+            times[0] = time;
+            values[0] = oldest;
+            System.arraycopy(state.capacitorVoltages, 0, oldest, 0, capacitances.length);
+            System.arraycopy(state.inductorCurrents, 0, oldest, capacitances.length,
+                    inductances.length);
+            size = Math.min(size + 1, times.length);
+        }
+
+        /**
+         * @param time The time the state was stepped to.
+         * @return The largest ratio of the estimated local truncation error of a variable of the
+         * state to its tolerance.
+         */
+        double errorRatio(double time, State state) {
+            int order = times.length - 1;
+            double h = time - times[0];
+            // The error of a step of a rule of order p is c h^(p+1) x^(p+1), with c = 1/2 for
+            // backward Euler and 1/12 for the trapezoidal rule, and the difference between the
+            // solution and the prediction is x^(p+1) / (p+1)! times the product of the distances
+            // to the points it is predicted from.
+            double constant = order == 2 ? 0.5 : 1.0;
+            double product = 1;
+            for (int j = 0; j <= order; j++) {
+                product *= time - times[j];
+            }
+            double scale = constant * Math.pow(h, order + 1) / product;
+
+            double ratio = 0;
+            int variables = capacitances.length + inductances.length;
+            for (int i = 0; i < variables; i++) {
+                boolean voltage = i < capacitances.length;
+                double value = voltage ? state.capacitorVoltages[i]
+                        : state.inductorCurrents[i - capacitances.length];
+                double error = scale * (value - predict(i, time));
+                double allowed = tolerance * Math.max(Math.abs(value), Math.abs(values[0][i]))
+                        + (voltage ? VOLTAGE_TOLERANCE : CURRENT_TOLERANCE);
+                ratio = Math.max(ratio, Math.abs(error) / allowed);
+            }
+            return ratio;
+        }
+
+        /**
+         * Extrapolates the Newton polynomial through the points of a variable to the given time.
+         */
+        private double predict(int variable, double time) {
+            for (int j = 0; j < times.length; j++) {
+                differences[j] = values[j][variable];
+            }
+            for (int k = 1; k < times.length; k++) {
+                for (int j = times.length - 1; j >= k; j--) {
+                    differences[j] = (differences[j - 1] - differences[j])
+                            / (times[j - k] - times[j]);
+                }
+            }
+            double prediction = differences[times.length - 1];
+            for (int j = times.length - 2; j >= 0; j--) {
+                prediction = prediction * (time - times[j]) + differences[j];
+            }
+            return prediction;
+        }
+    }
+
+    /**
+     * Collects the currents of the recorded branches at the sampled steps, or writes them to an
+     * output.
+     */
+    private class Recorder {
+        final double[] currents = new double[equations.branches.size()];
+        final WaveformWriter output;
+        final double[] row;
+        double[] times;
+        double[][] waveforms;
+        int samples;
+
+        Recorder(WaveformWriter output) {
+            this.output = output;
+            this.row = new double[output != null ? recorded.size() : 0];
+            int capacity = output != null || tolerance > 0 ? 0 : steps / interval;
+            this.times = new double[capacity];
+            this.waveforms = new double[output != null ? 0 : recorded.size()][capacity];
+        }
+
+        void record(double time, State state, Companion companion) throws IOException {
+            equations.branchCurrents(state.x, resistances, companion.conductances,
+                    state.capacitorSources, currents);
+            if (output != null) {
+                for (int i = 0; i < recordedIndices.length; i++) {
+                    row[i] = currents[recordedIndices[i]];
+                }
+                output.append(time, row);
+                samples++;
+                return;
+            }
+            if (samples == times.length) {
+                int capacity = Math.max(16, 2 * samples);
+                times = Arrays.copyOf(times, capacity);
+                for (int i = 0; i < waveforms.length; i++) {
+                    waveforms[i] = Arrays.copyOf(waveforms[i], capacity);
+                }
+            }
+            times[samples] = time;
+            for (int i = 0; i < recordedIndices.length; i++) {
+                waveforms[i][samples] = currents[recordedIndices[i]];
+            }
+            samples++;
+        }
+
+        Result result(double interval, int accepted, int rejected, int factorizations) {
+            Map<Branch, double[]> result = new LinkedHashMap<>();
+            for (int i = 0; i < waveforms.length; i++) {
+                result.put(recorded.get(i), Arrays.copyOf(waveforms[i], samples));
+            }
+            return new Result(interval, samples, Arrays.copyOf(times, samples), result, accepted,
+                    rejected, factorizations);
+        }
+    }
+
+    /**
+     * The voltage and current of every capacitor and inductor at the last time point, and the
+     * space to step them in.
+     */
+    private class State {
+        final double[] capacitorVoltages = new double[capacitances.length];
+        final double[] capacitorCurrents = new double[capacitances.length];
+        final double[] inductorVoltages = new double[inductances.length];
+        final double[] inductorCurrents = new double[inductances.length];
+        // The sources of the companion models of the last step.
+        final double[] capacitorSources = new double[capacitances.length];
+        final double[] inductorSources = new double[inductances.length];
+        final double[] rhs = new double[equations.size()];
+        final double[] x = new double[equations.size()];
+        final double[] work = new double[equations.size()];
+
+        // The state before the last step, to restore if it is rejected.
+        final double[] savedCapacitorVoltages = new double[capacitances.length];
+        final double[] savedCapacitorCurrents = new double[capacitances.length];
+        final double[] savedInductorVoltages = new double[inductances.length];
+        final double[] savedInductorCurrents = new double[inductances.length];
+
+        /**
+         * Advances by a step of the integration rule.
+         *
+         * @param first Whether this is the first step, which the trapezoidal rule takes as two
+         *              backward Euler steps of half the size.
+         */
+        void advance(Companion companion, boolean first) {
+            if (integration == Integration.TRAPEZOIDAL && first) {
+                advance(companion.lu, companion.conductances, companion.inductorResistances, false);
+                advance(companion.lu, companion.conductances, companion.inductorResistances, false);
+            } else {
+                advance(companion.lu, companion.conductances, companion.inductorResistances,
+                        integration == Integration.TRAPEZOIDAL);
+            }
+        }
+
+        void save() {
+            System.arraycopy(capacitorVoltages, 0, savedCapacitorVoltages, 0, capacitances.length);
+            System.arraycopy(capacitorCurrents, 0, savedCapacitorCurrents, 0, capacitances.length);
+            System.arraycopy(inductorVoltages, 0, savedInductorVoltages, 0, inductances.length);
+            System.arraycopy(inductorCurrents, 0, savedInductorCurrents, 0, inductances.length);
+        }
+
+        void restore() {
+            System.arraycopy(savedCapacitorVoltages, 0, capacitorVoltages, 0, capacitances.length);
+            System.arraycopy(savedCapacitorCurrents, 0, capacitorCurrents, 0, capacitances.length);
+            System.arraycopy(savedInductorVoltages, 0, inductorVoltages, 0, inductances.length);
+            System.arraycopy(savedInductorCurrents, 0, inductorCurrents, 0, inductances.length);
+        }
+
+        /**
+         * Advances by a step with the companion models of the given conductances and resistances.
+         *
+         * @param trapezoidal Whether to step with the trapezoidal rule, rather than backward Euler.
+         */
+        private void advance(SparseLU lu, double[] conductances, double[] inductorResistances,
+                             boolean trapezoidal) {
+            // i = g (v - v0) - i0 for the trapezoidal rule, and i = g (v - v0) for backward Euler.
+            for (int i = 0; i < capacitorSources.length; i++) {
+                capacitorSources[i] = -conductances[i] * capacitorVoltages[i]
+                        - (trapezoidal ? capacitorCurrents[i] : 0);
+            }
+            // v = r (i - i0) - v0 for the trapezoidal rule, and v = r (i - i0) for backward Euler.
+            for (int i = 0; i < inductorSources.length; i++) {
+                inductorSources[i] = inductorResistances[i] * inductorCurrents[i]
+                        + (trapezoidal ? inductorVoltages[i] : 0);
+            }
+            equations.rightHandSide(potentialDifferences, capacitorSources, inductorSources, rhs);
+            lu.solve(rhs, x, work);
+            read(conductances, capacitorSources);
+        }
+
+        /**
+         * Reads the voltages and currents of the capacitors and inductors from the solution.
+         */
+        void read(double[] conductances, double[] sources) {
+            int[] nodes = equations.capacitorNodes;
+            for (int i = 0; i < capacitorVoltages.length; i++) {
+                double v = equations.potential(x, nodes[2 * i])
+                        - equations.potential(x, nodes[2 * i + 1]);
+                capacitorVoltages[i] = v;
+                capacitorCurrents[i] = conductances[i] * v + sources[i];
+            }
+            nodes = equations.inductorNodes;
+            for (int i = 0; i < inductorVoltages.length; i++) {
+                inductorVoltages[i] = equations.potential(x, nodes[2 * i])
+                        - equations.potential(x, nodes[2 * i + 1]);
+                inductorCurrents[i] = x[equations.inductorRow(i)];
+            }
+        }
+    }
+
+    /**
+     * The results of an analysis.
+     */
+    public static class Result {
+        /** The time between samples, in seconds, or NaN if the step size was adaptive. */
+        public final double interval;
+        /** The number of samples of each waveform. */
+        public final int samples;
+        /** The number of steps taken. */
+        public final int acceptedSteps;
+        /** The number of steps discarded for their error, and retried with a smaller step. */
+        public final int rejectedSteps;
+        /** The number of times the matrix of the equations was factored. */
+        public final int factorizations;
+        private final double[] times;
+        private final Map<Branch, double[]> waveforms;
+
+        private Result(double interval, int samples, double[] times,
+                       Map<Branch, double[]> waveforms, int acceptedSteps, int rejectedSteps,
+                       int factorizations) {
+            this.interval = interval;
+            this.samples = samples;
+            this.times = times;
+            this.waveforms = waveforms;
+            this.acceptedSteps = acceptedSteps;
+            this.rejectedSteps = rejectedSteps;
+            this.factorizations = factorizations;
+        }
+
+        /**
+         * @return The recorded branches, or none if the waveforms were written to an output.
+         */
+        public Set<Branch> branches() {
+            return Collections.unmodifiableSet(waveforms.keySet());
+        }
+
+        /**
+         * @param br A recorded branch.
+         * @return The current of the branch at each sample, or null if it was not recorded.
+         */
+        public double[] waveform(Branch br) {
+            double[] waveform = waveforms.get(br);
+            return waveform == null ? null : waveform.clone();
+        }
+
+        /**
+         * @return The time of the given sample, in seconds since the initial state, unless the
+         *         waveforms were written to an output.
+         */
+        public double time(int sample) {
+            return times[sample];
+        }
+    }
+
+    /**
+     * A builder of an analysis of a circuit as it is when the analysis is built.
+     */
+    public static class Builder {
+        private final Circuit circuit;
+        private Integration integration;
+        private InitialState initialState;
+        private double step;
+        private int steps;
+        private int interval;
+        private double tolerance;
+        private double maxStep;
+        private Collection<Branch> branches;
+
+        public Builder(Circuit circuit) {
+            this.circuit = circuit;
+            this.integration = Integration.TRAPEZOIDAL;
+            this.initialState = InitialState.ZERO;
+            this.step = 1e-6;
+            this.steps = 1000;
+            this.interval = 1;
+            this.maxStep = Double.NaN;
+        }
+
+        public Builder integration(Integration integration) {
+            this.integration = integration;
+            return this;
+        }
+
+        public Builder initialState(InitialState initialState) {
+            this.initialState = initialState;
+            return this;
+        }
+
+        /**
+         * Sets the step size, in seconds.
+         */
+        public Builder step(double step) {
+            if (!(step > 0) || Double.isInfinite(step)) {
+                throw new IllegalArgumentException("Step must be positive.");
+            }
+            this.step = step;
+            return this;
+        }
+
+        public Builder steps(int steps) {
+            if (steps <= 0) {
+                throw new IllegalArgumentException("Steps must be positive.");
+            }
+            this.steps = steps;
+            return this;
+        }
+
+        /**
+         * Records the currents every given number of steps, rather than every step. An adaptive
+         * analysis counts only its accepted steps.
+         */
+        public Builder interval(int interval) {
+            if (interval <= 0) {
+                throw new IllegalArgumentException("Interval must be positive.");
+            }
+            this.interval = interval;
+            return this;
+        }
+
+        /**
+         * Adapts the step size to keep the estimated local truncation error of every step within
+         * the given tolerance, relative to the voltages of the capacitors and the currents of the
+         * inductors. The analysis starts with the step size, and ends at the time the given number
+         * of steps of it would.
+         */
+        public Builder adaptive(double relativeTolerance) {
+            if (!(relativeTolerance > 0) || Double.isInfinite(relativeTolerance)) {
+                throw new IllegalArgumentException("Tolerance must be positive.");
+            }
+            this.tolerance = relativeTolerance;
+            return this;
+        }
+
+        /**
+         * Sets the largest adaptive step size, in seconds, which is rounded down to the step size
+         * times a power of two. It is 1024 times the step size by default.
+         */
+        public Builder maxStep(double maxStep) {
+            if (!(maxStep > 0) || Double.isInfinite(maxStep)) {
+                throw new IllegalArgumentException("Step must be positive.");
+            }
+            this.maxStep = maxStep;
+            return this;
+        }
+
+        /**
+         * Records the currents of only the given branches, rather than of every branch.
+         */
+        public Builder branches(Collection<Branch> branches) {
+            this.branches = new ArrayList<>(branches);
+            return this;
+        }
+
+        public TransientAnalysis build() {
+            return new TransientAnalysis(this);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.imontero.circuit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a waveform file written by a {@link WaveformWriter}.
+ *
+ * The rows of the file are memory mapped rather than read, so opening a file only reads its header,
+ * and reading a stretch of a signal only touches the pages that hold it. The pages are shared
+ * with the page cache, so they cost no heap, and reading the same stretch again is free while
+ * they stay cached.
+ */
+public class WaveformReader implements Closeable {
+    // The size of each mapped segment of the file, a multiple of 8 so that no double straddles
+    // two segments.
+    private static final int SEGMENT = 1 << 30;
+
+    private final FileChannel channel;
+    private final int[] ids;
+    private final long rows;
+    private final long dataOffset;
+    private final int rowSize;
+    private final int segment;
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * Opens the file at the given path.
+     *
+     * @throws IOException if the file cannot be read, or is not a waveform file.
+     */
+    public WaveformReader(Path path) throws IOException {
+        this(path, SEGMENT);
+    }
+
+    WaveformReader(Path path, int segment) throws IOException {
+        this.segment = segment;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(WaveformWriter.IDS)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (size < WaveformWriter.IDS || channel.read(header, 0) < WaveformWriter.IDS
+                    || header.getInt(0) != WaveformWriter.MAGIC) {
+                throw new IOException(path + " is not a waveform file.");
+            }
+            if (header.getInt(4) != WaveformWriter.VERSION) {
+                throw new IOException(path + " has version " + header.getInt(4) + " of the "
+                        + "waveform format, not " + WaveformWriter.VERSION + ".");
+            }
+            int columns = header.getInt(WaveformWriter.COLUMNS);
+            this.dataOffset = WaveformWriter.dataOffset(columns);
+            if (columns < 0 || dataOffset > size) {
+                throw new IOException(path + " has a truncated header.");
+            }
+            ByteBuffer ids = ByteBuffer.allocate(4 * columns).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(ids, WaveformWriter.IDS);
+            this.ids = new int[columns];
+            for (int i = 0; i < columns; i++) {
+                this.ids[i] = ids.getInt(4 * i);
+            }
+            this.rowSize = 8 * (columns + 1);
+            // A file that was not closed may end in part of a row, or in rows never written.
+            this.rows = Math.min(header.getLong(WaveformWriter.ROWS),
+                    (size - dataOffset) / rowSize);
+
+            long length = rows * rowSize;
+            this.segments = new MappedByteBuffer[(int) ((length + segment - 1) / segment)];
+            for (int s = 0; s < segments.length; s++) {
+                long start = (long) s * segment;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + start,
+                        Math.min(segment, length - start));
+                segments[s].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of columns, one per branch.
+     */
+    public int columns() {
+        return ids.length;
+    }
+
+    /**
+     * @return The number of rows, one per sample.
+     */
+    public long rows() {
+        return rows;
+    }
+
+    /**
+     * @return The {@link Branch#ID} of the branch of each column.
+     */
+    public int[] branchIds() {
+        return ids.clone();
+    }
+
+    /**
+     * @return The column of the branch with the given {@link Branch#ID}, or -1 if it has none.
+     */
+    public int column(int branchId) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == branchId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The column of the given branch, or -1 if it has none.
+     */
+    public int column(Branch br) {
+        return column(br.ID);
+    }
+
+    /**
+     * @return The time of the given row, in seconds.
+     */
+    public double time(long row) {
+        checkRows(row, 1);
+        return get(row * rowSize);
+    }
+
+    /**
+     * @return The current of the branch of the given column at the given row.
+     */
+    public double current(long row, int column) {
+        checkColumn(column);
+        checkRows(row, 1);
+        return get(row * rowSize + 8 * (column + 1));
+    }
+
+    /**
+     * Reads the times of consecutive rows.
+     *
+     * @param from The first row to read.
+     * @param times The array to fill, with the times of as many rows as it is long.
+     */
+    public void times(long from, double[] times) {
+        checkRows(from, times.length);
+        read(from, 0, times);
+    }
+
+    /**
+     * Reads the currents of the branch of a column at consecutive rows.
+     *
+     * @param column The column to read.
+     * @param from The first row to read.
+     * @param currents The array to fill, with the currents of as many rows as it is long.
+     */
+    public void signal(int column, long from, double[] currents) {
+        checkColumn(column);
+        checkRows(from, currents.length);
+        read(from, 8 * (column + 1), currents);
+    }
+
+    private void read(long from, int offset, double[] into) {
+        long position = from * rowSize + offset;
+        for (int i = 0; i < into.length; i++, position += rowSize) {
+            into[i] = get(position);
+        }
+    }
+
+    private double get(long position) {
+        return segments[(int) (position / segment)].getDouble((int) (position % segment));
+    }
+
+    private void checkColumn(int column) {
+        if (column < 0 || column >= ids.length) {
+            throw new IndexOutOfBoundsException("Column " + column + " of " + ids.length + ".");
+        }
+    }
+
+    private void checkRows(long from, int count) {
+        if (from < 0 || count < 0 || from + count > rows) {
+            throw new IndexOutOfBoundsException("Rows " + from + " to " + (from + count)
+                    + " of " + rows + ".");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,154 @@
+package com.imontero.circuit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Streams the currents of branches over time into a binary waveform file, which can hold far more
+ * samples than would fit in the heap, and be read back a signal at a time by a
+ * {@link WaveformReader}.
+ *
+ * The file starts with a header, of a magic number, the version of the format, the number of
+ * columns, the number of rows and the {@link Branch#ID} of the branch of each column, padded to a
+ * multiple of 8 bytes. Each row that follows is the time of a sample and the current of every
+ * branch, as little endian doubles. Rows are only ever appended, through a memory mapped window of
+ * the end of the file which moves forward as it fills, so appending a row is a few stores into
+ * the page cache, and the operating system writes the pages back as it sees fit. The row count in
+ * the header is updated with every row, so a file that was never closed can still be read up to
+ * its last row.
+ */
+public class WaveformWriter implements Closeable {
+    static final int MAGIC = 0x43574156;
+    static final int VERSION = 1;
+    // The offsets of the fields of the header.
+    static final int COLUMNS = 8;
+    static final int ROWS = 16;
+    static final int IDS = 24;
+    // The size of the window mapped at once, a multiple of 8 so no double straddles two windows.
+    private static final int WINDOW = 1 << 24;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final int[] ids;
+    private final int window;
+    private MappedByteBuffer data;
+    // The offset of the window in the file, and of the next double to write.
+    private long dataStart;
+    private long end;
+    private long rows;
+
+    /**
+     * Creates, or truncates, the file at the given path, and writes its header.
+     *
+     * @param path The file to write.
+     * @param branches The branches of the columns, in order.
+     */
+    public WaveformWriter(Path path, Collection<Branch> branches) throws IOException {
+        this(path, branches, WINDOW);
+    }
+
+    WaveformWriter(Path path, Collection<Branch> branches, int window) throws IOException {
+        this.ids = new int[branches.size()];
+        int i = 0;
+        for (Branch br : branches) {
+            ids[i++] = br.ID;
+        }
+        this.window = window;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long dataOffset = dataOffset(ids.length);
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(COLUMNS, ids.length);
+        header.putLong(ROWS, 0);
+        for (i = 0; i < ids.length; i++) {
+            header.putInt(IDS + 4 * i, ids[i]);
+        }
+        this.dataStart = dataOffset;
+        this.end = dataOffset;
+        map();
+    }
+
+    /**
+     * @return The offset of the first row of a file with the given number of columns.
+     */
+    static long dataOffset(int columns) {
+        return (IDS + 4L * columns + 7) & ~7L;
+    }
+
+    /**
+     * @return The {@link Branch#ID} of the branch of each column.
+     */
+    public int[] branchIds() {
+        return ids.clone();
+    }
+
+    /**
+     * @return The number of rows appended so far.
+     */
+    public long rows() {
+        return rows;
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param time The time of the sample, in seconds.
+     * @param currents The current of the branch of each column.
+     */
+    public void append(double time, double[] currents) throws IOException {
+        if (data == null) {
+            throw new IllegalStateException("The waveform file is closed.");
+        }
+        if (currents.length != ids.length) {
+            throw new IllegalArgumentException("Expected " + ids.length + " currents, not "
+                    + currents.length + ".");
+        }
+        put(time);
+        for (double current : currents) {
+            put(current);
+        }
+        rows++;
+        header.putLong(ROWS, rows);
+    }
+
+    private void put(double value) throws IOException {
+        if (end - dataStart == window) {
+            dataStart = end;
+            map();
+        }
+        data.putDouble((int) (end - dataStart), value);
+        end += 8;
+    }
+
+    /**
+     * Helper method to map the window starting at the end of the file, which grows the file to
+     * hold it.
+     */
+    private void map() throws IOException {
+        data = channel.map(FileChannel.MapMode.READ_WRITE, dataStart, window);
+        data.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Trims the unwritten end of the last window off the file, and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        data = null;
+        channel.truncate(end);
+        channel.close();
+    }
+}
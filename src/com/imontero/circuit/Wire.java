@@ -5,6 +5,8 @@ public class Wire {
     public final int ID;
     public final CircuitElement a;
     public final CircuitElement b;
+    // The index of this wire in the compact form of the circuit containing it, or -1.
+    int index = -1;
 
     public Wire(CircuitElement a, CircuitElement b) {
         this.ID = wireIdCounter++;
@@ -2,35 +2,83 @@ package com.imontero.circuitsimulation;
 
 import com.imontero.circuit.Circuit;
 import com.imontero.circuit.CircuitElementType;
+import com.imontero.circuit.CircuitWorker;
+import com.imontero.circuit.LoopDiscovery;
+import com.imontero.circuit.TimeSeries;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+// Only the areas of the display that change are repainted, and the timer that animates it runs
+// only while something moves or pulses, so an idle display costs nothing.
+//
+// The schematic is painted from an image layer, which holds every element and junction except the
+// dynamic ones: the selected element, which pulses, and the elements being dragged by a junction,
+// with the junctions of either. Only those are drawn on every frame, on top of the layer, and the
+// layer itself is only redrawn where a static element changed.
 public class CircuitDisplay extends JPanel implements ActionListener {
     public static final int TIME_INTERVAL = 16;
     public static final int SIZE = 15;
     private Timer timer;
+    // The elapsed time is measured from here, so that it keeps up while the timer is stopped.
+    private final long startTime;
     private JFrame window;
-    private Circuit circuit;
+    // Edits and solves the circuit off the event dispatch thread, which only reads its solutions.
+    private CircuitWorker worker;
     private boolean mousePressed = false;
     private boolean selectionMode = false;
     private CircuitElementType elementType = CircuitElementType.BATTERY;
     // change to make it compatible with wires ^
     private Vec mousePosition = Vec.of(0, 0);
+    // The pin under the mouse.
+    private Vec cursor = clipToPin(mousePosition);
     private int elapsedTime = 0;
 
     private Set<GJunction> junctions;
     private Set<GCircuitElement> elements;
+    // The elements and junctions by their bounds, for hit testing and snapping. Moving an element
+    // or junction updates them.
+    private SpatialIndex<GJunction> junctionIndex;
+    private SpatialIndex<GCircuitElement> elementIndex;
+    // The current through each battery over time, plotted while it is selected. The worker thread
+    // appends each solution to the series, and the event dispatch thread only plots them.
+    private final Map<GBattery, TimeSeries> currents;
+    // The time of the last sample of the selected battery's series when its graph was repainted.
+    private double graphedTime = Double.NaN;
+    private GGraph graph;
+    private final Rectangle graphBounds = new Rectangle(7, 7, GGraph.WIDTH + 1, GGraph.HEIGHT + 1);
+
+    // The static elements and junctions, as the size of the display, and the area of it that must
+    // be redrawn before it is painted, or null if none.
+    private BufferedImage layer;
+    private Rectangle layerDirty;
+    // Reused for the clip of each paint, for the dynamic elements, and for the elements and
+    // junctions in the area of the layer being redrawn.
+    private final Rectangle clip = new Rectangle();
+    private final List<GCircuitElement> dynamic = new ArrayList<>();
+    private final List<GCircuitElement> layerElements = new ArrayList<>();
+    private final List<GJunction> layerJunctions = new ArrayList<>();
+    // The battery drawn in the selection pane, for the height it was made for.
+    private Path2D.Double paneBattery;
+    private int paneBatteryHeight = -1;
+    private static final int[] SELECTION_BUTTON_X = {-5, -5, -1, 2, 4, 1, 6};
+    private static final int[] SELECTION_BUTTON_Y = {-8,  8,  3, 9, 8, 2, 2};
 
 //    private GBattery batt;
 
     public CircuitDisplay(JFrame window) {
         timer = new Timer(TIME_INTERVAL, this);
+        startTime = System.nanoTime();
 
         this.setFocusable(true);
         this.grabFocus();
@@ -42,19 +90,42 @@ public class CircuitDisplay extends JPanel implements ActionListener {
         this.addMouseMotionListener(mouse);
         this.addKeyListener(new KeyboardInput());
 
-        circuit = new Circuit();
+        // Every solution is recorded as it is published, and the graph of the selected battery
+        // is repainted when it changes. The display needs no loops, only the nodal solution, so
+        // edits never enumerate cycles, however large the circuit grows.
+        currents = new ConcurrentHashMap<>();
+        worker = new CircuitWorker(new Circuit(LoopDiscovery.NONE), this::recordCurrents);
 
         junctions = new HashSet<>();
         elements = new HashSet<>();
-
-        timer.start();
+        junctionIndex = new SpatialIndex<>();
+        elementIndex = new SpatialIndex<>();
+        graph = new GGraph();
     }
 
     @Override
     public void actionPerformed(ActionEvent e) {
-        elapsedTime += TIME_INTERVAL;
+        elapsedTime = (int) ((System.nanoTime() - startTime) / 1000000);
         update();
-        repaint();
+        if (!isAnimating()) {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Starts the timer, if it was stopped while idle.
+     */
+    public void wake() {
+        if (!timer.isRunning()) {
+            timer.start();
+        }
+    }
+
+    /**
+     * @return true iff something is being dragged, or the selection pulses.
+     */
+    public boolean isAnimating() {
+        return selectedJunction != null || movingSelected || selected != null;
     }
 
     public void update() {
@@ -63,45 +134,270 @@ public class CircuitDisplay extends JPanel implements ActionListener {
 //
 //            }
             // do processing here
-            selectedJunction.position = clipToPin(mousePosition);
+            Vec position = clipToPin(mousePosition);
+            if (!position.equals(selectedJunction.position)) {
+                repaintConnections(selectedJunction);
+                selectedJunction.setPosition(position);
+                index(selectedJunction);
+                repaintConnections(selectedJunction);
+            }
         }
         if (movingSelected) {
-            selected.setPosition(clipToPin(mousePosition).add(displacement));
+            Vec position = clipToPin(mousePosition).add(displacement);
+            if (!position.equals(selected.getPosition())) {
+                for (GJunction gj : selected.getJunctions()) {
+                    repaintConnections(gj);
+                }
+                selected.setPosition(position);
+                for (GJunction gj : selected.getJunctions()) {
+                    index(gj);
+                    repaintConnections(gj);
+                }
+            }
+        }
+        if (selected != null) {
+            // The selection pulses.
+            repaint(selected.getBounds());
+        }
+    }
 
+    /**
+     * Adds the given junction and the elements connected to it to the indices, or updates them
+     * after the junction moved.
+     */
+    public void index(GJunction gj) {
+        junctionIndex.put(gj);
+        for (GCircuitElement gce : gj.connections) {
+            elementIndex.put(gce);
         }
+    }
 
+    /**
+     * Merges the given junction onto another junction at its pin, if there is one that no element
+     * is already connected to along with it, connecting the elements of both.
+     */
+    public void merge(GJunction gj) {
+        GJunction target = junctionIndex.nearest(gj.position, SIZE / 2, gj);
+        if (target == null || gj.sharesConnection(target)) {
+            return;
+        }
+        repaintConnections(gj);
+        junctionIndex.remove(gj);
+        junctions.remove(gj);
+        gj.mergeInto(target);
+        index(target);
+        repaintConnections(target);
+    }
+
+    /**
+     * Repaints the given junction and the elements connected to it, redrawing the static ones in
+     * the layer.
+     */
+    public void repaintConnections(GJunction gj) {
+        if (isDynamic(gj)) {
+            repaint(gj.getBounds());
+        } else {
+            markLayer(gj.getBounds());
+        }
+        for (GCircuitElement gce : gj.connections) {
+            if (isDynamic(gce)) {
+                repaint(gce.getBounds());
+            } else {
+                markLayer(gce.getBounds());
+            }
+        }
+    }
+
+    /**
+     * @return true iff the given element is drawn over the layer, on every frame, rather than in
+     *         it.
+     */
+    public boolean isDynamic(GCircuitElement gce) {
+        return gce == selected
+                || (selectedJunction != null && selectedJunction.connections.contains(gce));
+    }
+
+    /**
+     * @return true iff the given junction is drawn over the layer, with an element connected to
+     *         it.
+     */
+    public boolean isDynamic(GJunction gj) {
+        for (int i = 0; i < gj.connections.size(); i++) {
+            if (isDynamic(gj.connections.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Redraws the given area of the layer before the next paint, and repaints it.
+     */
+    public void markLayer(Rectangle r) {
+        if (layerDirty == null) {
+            layerDirty = new Rectangle(r);
+        } else {
+            layerDirty.add(r);
+        }
+        repaint(r);
+    }
+
+    /**
+     * Redraws the layer where the dynamic elements and junctions are. This is called both before
+     * and after they change, so that those leaving are drawn into the layer, and those joining
+     * are cleared from it.
+     */
+    private void markDynamic() {
+        for (GCircuitElement gce : dynamicElements()) {
+            markLayer(gce.getBounds());
+            for (GJunction gj : gce.getJunctions()) {
+                markLayer(gj.getBounds());
+            }
+        }
+    }
+
+    // The elements connected to the dragged junction, and the selected element. The list is
+    // reused, and only valid until this is called again.
+    private List<GCircuitElement> dynamicElements() {
+        dynamic.clear();
+        if (selectedJunction != null) {
+            dynamic.addAll(selectedJunction.connections);
+        }
+        if (selected != null && !dynamic.contains(selected)) {
+            dynamic.add(selected);
+        }
+        return dynamic;
+    }
+
+    /**
+     * Appends the current of each battery in the given solution to its series, once per solution.
+     * This is the worker's listener, so it runs on the worker thread, the only one that appends.
+     */
+    public void recordCurrents(CircuitWorker.Solution solution) {
+        double time = (System.nanoTime() - startTime) / 1e9;
+        boolean recorded = false;
+        for (Map.Entry<GBattery, TimeSeries> e : currents.entrySet()) {
+            double current = solution.current(e.getKey().positiveWire);
+            if (!Double.isNaN(current)) {
+                e.getValue().append(time, current);
+                recorded = true;
+            }
+        }
+        if (recorded) {
+            SwingUtilities.invokeLater(this::repaintGraph);
+        }
+    }
+
+    /**
+     * Repaints the graph of the selected battery, if its series changed since it was last
+     * repainted.
+     */
+    private void repaintGraph() {
+        TimeSeries series = selectedSeries();
+        if (series != null && series.lastTime() != graphedTime) {
+            graphedTime = series.lastTime();
+            repaint(graphBounds);
+        }
+    }
+
+    /**
+     * @return The series of the selected battery, or null if none is selected or it has no
+     *         samples yet.
+     */
+    private TimeSeries selectedSeries() {
+        TimeSeries series = selected == null ? null : currents.get(selected);
+        return series == null || series.size() == 0 ? null : series;
     }
 
     @Override
     public void paintComponent(Graphics gOld) {
-        super.paintComponent(gOld);
         Graphics2D g = (Graphics2D) gOld;
+        renderLayer();
+        // The layer is opaque, so it replaces the background.
+        g.drawImage(layer, 0, 0, null);
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        int alpha = (int)(255*.7+.3*255*Math.sin(elapsedTime/16*.1));
-        for (GCircuitElement gcc : elements) {
-            if (gcc == selected) {
-                gcc.draw(g, alpha);
-            } else {
-                gcc.draw(g, 255);
-            }
-        }
-
-        for (GJunction gj : junctions) {
-            if (selected != null) {
-                if (gj.connections.contains(selected)) {
-                    gj.draw(g, alpha);
+        // Only what intersects the repainted area needs drawing.
+        Rectangle clip = g.getClipBounds(this.clip);
+        if (selected != null || selectedJunction != null) {
+            int alpha = (int)(255*.7+.3*255*Math.sin(elapsedTime/16*.1));
+            List<GCircuitElement> dynamic = dynamicElements();
+            for (int i = 0; i < dynamic.size(); i++) {
+                GCircuitElement gcc = dynamic.get(i);
+                if (!clip.intersects(gcc.getBounds())) {
                     continue;
                 }
+                gcc.draw(g, gcc == selected ? alpha : 255);
+                for (GJunction gj : gcc.getJunctions()) {
+                    // Junctions shared with an element before are drawn once, with it.
+                    if (clip.intersects(gj.getBounds()) && !drawnBefore(dynamic, i, gj)) {
+                        gj.draw(g, selected != null && gj.connections.contains(selected)
+                                ? alpha : 255);
+                    }
+                }
             }
-            gj.draw(g, 255);
         }
         g.setColor(Color.WHITE);
-        Vec pin = clipToPin(mousePosition);
-        g.fillRect(pin.x, pin.y, 1, 1);
+        g.fillRect(cursor.x, cursor.y, 1, 1);
 
         drawSelectionPane(g);
         drawSelectionButton(g);
+        TimeSeries series = selectedSeries();
+        if (series != null) {
+            graph.draw(g, series, graphBounds.x, graphBounds.y);
+        }
+    }
+
+    private static boolean drawnBefore(List<GCircuitElement> dynamic, int i, GJunction gj) {
+        for (int j = 0; j < i; j++) {
+            if (gj.connections.contains(dynamic.get(j))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Draws the static elements and junctions into the layer where it changed, after making a new
+     * layer if the display was resized. Only those the indices find in the changed area are
+     * visited, so redrawing a small area costs the same however large the circuit is.
+     */
+    private void renderLayer() {
+        int width = Math.max(getWidth(), 1);
+        int height = Math.max(getHeight(), 1);
+        if (layer == null || layer.getWidth() != width || layer.getHeight() != height) {
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            layer = gc != null
+                    ? gc.createCompatibleImage(width, height)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            layerDirty = new Rectangle(0, 0, width, height);
+        }
+        if (layerDirty == null) {
+            return;
+        }
+        Graphics2D g = layer.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.clip(layerDirty);
+        g.setColor(getBackground());
+        g.fill(layerDirty);
+        elementIndex.shapesIn(layerDirty, layerElements);
+        for (int i = 0; i < layerElements.size(); i++) {
+            GCircuitElement gcc = layerElements.get(i);
+            if (!isDynamic(gcc)) {
+                gcc.draw(g, 255);
+            }
+        }
+        junctionIndex.shapesIn(layerDirty, layerJunctions);
+        for (int i = 0; i < layerJunctions.size(); i++) {
+            GJunction gj = layerJunctions.get(i);
+            if (!isDynamic(gj)) {
+                gj.draw(g, 255);
+            }
+        }
+        layerElements.clear();
+        layerJunctions.clear();
+        g.dispose();
+        layerDirty = null;
     }
 
     public Vec toPinCoords(Vec pixelCoords) {
@@ -117,37 +413,41 @@ public class CircuitDisplay extends JPanel implements ActionListener {
     }
 
     public void drawSelectionButton(Graphics2D g) {
-        int[] xPoints = {-5, -5, -1, 2, 4, 1, 6};
-        int[] yPoints = {-8,  8,  3, 9, 8, 2, 2};
-        AffineTransform af = g.getTransform();
-        g.translate(getWidth() - 17, 17);
-        af.scale(1.1, 1.1);
+        int x = getWidth() - 17;
+        g.translate(x, 17);
         g.setColor(selectionMode ? Color.WHITE : Color.BLACK);
         g.fillRect(-10, -10, 20, 20);
         g.setColor(selectionMode ? Color.BLACK : Color.WHITE);
-        g.fillPolygon(xPoints, yPoints, xPoints.length);
-        g.setStroke(new BasicStroke(1));
+        g.fillPolygon(SELECTION_BUTTON_X, SELECTION_BUTTON_Y, SELECTION_BUTTON_X.length);
+        g.setStroke(GPaint.THIN);
         g.setColor(Color.GRAY);
         g.drawRect(-10, -10, 20, 20);
-        g.setTransform(af);
+        g.translate(-x, -17);
     }
 
     public static int SELECTION_ELEMENT_DISPLACEMENT = 10;
     public void drawSelectionPane(Graphics2D g) {
         // draw pane
-        g.setColor(new Color(23, 23, 23, 128));
+        g.setColor(GPaint.PANE);
         g.fillRect(0, this.getHeight() - 100, this.getWidth(), 100);
         // draw battery
         if (elementType == CircuitElementType.BATTERY) {
-            g.setColor(new Color(46, 46, 46, 128));
+            g.setColor(GPaint.PANE_SELECTION);
             g.fillRect(0, this.getHeight() - 100, 100, 100);
         }
         g.setColor(Color.WHITE);
-        GBattery.draw(g, Vec.of(SELECTION_ELEMENT_DISPLACEMENT,
-                this.getHeight() - 100 + SELECTION_ELEMENT_DISPLACEMENT),
-                Vec.of(100 - SELECTION_ELEMENT_DISPLACEMENT,
-                        this.getHeight() - SELECTION_ELEMENT_DISPLACEMENT),
-                false, false);
+        Vec nPos = Vec.of(SELECTION_ELEMENT_DISPLACEMENT,
+                this.getHeight() - 100 + SELECTION_ELEMENT_DISPLACEMENT);
+        Vec pPos = Vec.of(100 - SELECTION_ELEMENT_DISPLACEMENT,
+                this.getHeight() - SELECTION_ELEMENT_DISPLACEMENT);
+        if (paneBatteryHeight != getHeight()) {
+            paneBattery = GBattery.geometry(nPos, pPos);
+            paneBatteryHeight = getHeight();
+        }
+        g.setStroke(GPaint.LINE);
+        g.draw(paneBattery);
+        GJunction.draw(g, nPos, false);
+        GJunction.draw(g, pPos, false);
 
     }
 
@@ -172,15 +472,26 @@ public class CircuitDisplay extends JPanel implements ActionListener {
                 Vec pinPos = clipToPin(pos);
                 switch (elementType) {
                     case BATTERY:
-                        // CHECK IF CLICK ON EXISTING JUNCTION.
-                        GBattery battery = new GBattery(circuit, pinPos,
-                                Vec.of(pinPos.x, pinPos.y - GBattery.MIN_BATTERY_PIN_LENGTH), 5);
+                        // A battery started on an existing junction is connected to it.
+                        GJunction existing = junctionIndex.nearest(pinPos, SIZE / 2);
+                        Vec positivePosition =
+                                Vec.of(pinPos.x, pinPos.y - GBattery.MIN_BATTERY_PIN_LENGTH);
+                        GBattery battery = existing == null
+                                ? new GBattery(worker, pinPos, positivePosition, 5)
+                                : new GBattery(worker, existing, positivePosition, 5);
                         elements.add(battery);
+                        currents.put(battery, new TimeSeries());
 //                        selected = battery;
+                        markDynamic();
                         selectedJunction = battery.positiveJunction;
+                        markDynamic();
 //                        initialPos = battery.positiveJunction.position;
                         junctions.add(battery.positiveJunction);
                         junctions.add(battery.negativeJunction);
+                        index(battery.positiveJunction);
+                        index(battery.negativeJunction);
+                        repaintConnections(battery.negativeJunction);
+                        wake();
                         break;
                 }
             } else {
@@ -190,10 +501,14 @@ public class CircuitDisplay extends JPanel implements ActionListener {
                         displacement = selected.getPosition().sub(clipToPin(pos));
                         System.out.println(displacement);
                         movingSelected = true;
+                        wake();
                     } else if (selected.containsJunction(pos)) {
                         // Move junction
+                        markDynamic();
                         selectedJunction = selected.getJunction(pos);
+                        markDynamic();
                         // Do moving of the junction
+                        wake();
                     }
                 }
             }
@@ -202,7 +517,19 @@ public class CircuitDisplay extends JPanel implements ActionListener {
         @Override
         public void mouseReleased(MouseEvent e) {
             mousePressed = false;
+            GJunction dropped = selectedJunction;
+            markDynamic();
             selectedJunction = null;
+            markDynamic();
+            // A junction, or an element, dropped onto another junction is connected to it.
+            if (dropped != null) {
+                merge(dropped);
+            }
+            if (movingSelected) {
+                for (GJunction gj : new ArrayList<>(selected.getJunctions())) {
+                    merge(gj);
+                }
+            }
             movingSelected = false;
         }
 
@@ -212,25 +539,53 @@ public class CircuitDisplay extends JPanel implements ActionListener {
             if ((new Rectangle2D.Double(getWidth() - 27, 7, 20, 20))
                     .contains(e.getX(), e.getY())) {
                 selectionMode = !selectionMode;
-                selected = null;
+                repaint(getWidth() - 28, 6, 23, 23);
+                select(null);
             } else if (selectionMode) {
-                for (GCircuitElement gce : elements) {
-                    if (gce.contains(pos)) {
-                        selected = gce;
-                        break;
-                    }
+                GCircuitElement gce = elementIndex.shapeAt(pos);
+                if (gce != null) {
+                    select(gce);
                 }
             }
         }
 
         @Override
         public void mouseMoved(MouseEvent e) {
-            mousePosition = Vec.fromPoint(e.getPoint());
+            moveMouse(e);
         }
 
         @Override
         public void mouseDragged(MouseEvent e) {
+            moveMouse(e);
+            if (selectedJunction != null || movingSelected) {
+                wake();
+            }
+        }
+
+        // Moves the pin under the mouse, which is drawn as a single pixel.
+        private void moveMouse(MouseEvent e) {
+            Vec before = cursor;
             mousePosition = Vec.fromPoint(e.getPoint());
+            Vec after = clipToPin(mousePosition);
+            if (!after.equals(before)) {
+                cursor = after;
+                repaint(before.x, before.y, 1, 1);
+                repaint(after.x, after.y, 1, 1);
+            }
+        }
+
+        // Selects the given element, or none if it is null, and repaints both selections, which
+        // are drawn differently while they pulse.
+        private void select(GCircuitElement gce) {
+            markDynamic();
+            selected = gce;
+            markDynamic();
+            // The graph belongs to the selection.
+            graphedTime = Double.NaN;
+            repaint(graphBounds);
+            if (selected != null) {
+                wake();
+            }
         }
     }
 
@@ -1,13 +1,15 @@
 package com.imontero.circuitsimulation;
 
-import com.imontero.circuit.Circuit;
 import com.imontero.circuit.CircuitElement;
 import com.imontero.circuit.CircuitElementType;
+import com.imontero.circuit.CircuitWorker;
 import com.imontero.circuit.Wire;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Rectangle2D;
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+import java.util.List;
 
 public class GBattery implements GCircuitElement {
     public static final int BATTERY_GAP = 6;
@@ -15,49 +17,71 @@ public class GBattery implements GCircuitElement {
     public static final int BATTERY_NEG_WIDTH = 30;
     public static final int MIN_BATTERY_PIN_LENGTH = 50;
     public static final int LINE_WIDTH = 2;
+    // The width of the lead that is clicked on to select the battery.
+    public static final int HIT_WIDTH = 20;
 
-    public Circuit c;
+    public CircuitWorker worker;
     public CircuitElement battery;
-    public Wire negativeWire;
-    public Wire positiveWire;
+    // Replaced when a junction is merged, and read by the worker thread to record currents.
+    public volatile Wire negativeWire;
+    public volatile Wire positiveWire;
     public GJunction negativeJunction;
     public GJunction positiveJunction;
+    private final List<GJunction> junctions;
+    // The lines of the battery and the area it is drawn in, or null until they are needed after
+    // it moved. The bounds are shared, and must not be changed.
+    private Path2D.Double geometry;
+    private Rectangle bounds;
 
-    public GBattery(Circuit c, Vec negativePosition, Vec positivePosition, double voltage) {
-        this.battery = (new CircuitElement.CircuitElementBuilder())
-                .type(CircuitElementType.BATTERY)
-                .potentialDifference(voltage)
-                .build();
-        c.addCircuitElement(this.battery);
-        this.c = c;
-        this.negativeJunction = new GJunction(c, negativePosition);
-        this.positiveJunction = new GJunction(c, positivePosition);
-        this.negativeWire = this.negativeJunction.addConnection(this, battery);
-        this.positiveWire = this.positiveJunction.addConnection(this, battery);
+    public GBattery(CircuitWorker worker, Vec negativePosition, Vec positivePosition,
+                    double voltage) {
+        this(worker, new GJunction(worker, negativePosition), positivePosition, voltage);
     }
 
-    public GBattery(Circuit c, GJunction negativeJunction, Vec positivePosition, double voltage) {
-        this.battery = (new CircuitElement.CircuitElementBuilder())
+    public GBattery(CircuitWorker worker, GJunction negativeJunction, Vec positivePosition,
+                    double voltage) {
+        CircuitElement battery = (new CircuitElement.CircuitElementBuilder())
                 .type(CircuitElementType.BATTERY)
                 .potentialDifference(voltage)
                 .build();
-        c.addCircuitElement(this.battery);
-        this.c = c;
+        this.battery = battery;
+        worker.edit(c -> c.addCircuitElement(battery));
+        this.worker = worker;
         this.negativeJunction = negativeJunction;
-        this.positiveJunction = new GJunction(c, positivePosition);
+        this.positiveJunction = new GJunction(worker, positivePosition);
+        this.junctions = Arrays.asList(negativeJunction, positiveJunction);
         this.negativeWire = this.negativeJunction.addConnection(this, battery);
         this.positiveWire = this.positiveJunction.addConnection(this, battery);
     }
 
     public void setPotentialDifference(double voltage) {
-        this.battery.potentialDifference = voltage;
+        worker.edit(c -> battery.potentialDifference = voltage);
     }
 
     public void setPosition(Vec p) {
         Vec delta = p.sub(getPosition());
-        negativeJunction.position = negativeJunction.position.add(delta);
-        positiveJunction.position = positiveJunction.position.add(delta);
-        // Check if new connections were made
+        negativeJunction.setPosition(negativeJunction.position.add(delta));
+        positiveJunction.setPosition(positiveJunction.position.add(delta));
+    }
+
+    @Override
+    public void invalidate() {
+        geometry = null;
+        bounds = null;
+    }
+
+    @Override
+    public void replaceJunction(GJunction from, GJunction to, Wire wire) {
+        if (negativeJunction == from) {
+            negativeJunction = to;
+            negativeWire = wire;
+            junctions.set(0, to);
+        } else if (positiveJunction == from) {
+            positiveJunction = to;
+            positiveWire = wire;
+            junctions.set(1, to);
+        }
+        invalidate();
     }
 
     public Vec getPosition() {
@@ -67,17 +91,39 @@ public class GBattery implements GCircuitElement {
     public boolean contains(Vec p) {
         Vec nPos = negativeJunction.position;
         Vec pPos = positiveJunction.position;
-        double rad = Math.atan2(pPos.y - nPos.y, pPos.x - nPos.x) + Math.PI /2;
         int dist = (int) nPos.dist(pPos);
-        Point mid = new Point((nPos.x + pPos.x) / 2, (nPos.y + pPos.y) / 2);
-        AffineTransform at = new AffineTransform();
-        at.translate(mid.x, mid.y);
-        at.rotate(rad);
-        return at.createTransformedShape(new Rectangle2D.Double(-20/2,
-                -dist/2 + GJunction.PIN_RADIUS,
-                20, dist - GJunction.PIN_RADIUS*2)).contains(p.x, p.y) ||
-                at.createTransformedShape(new Rectangle2D.Double(-BATTERY_POS_WIDTH/2,
-                        -BATTERY_GAP/2, BATTERY_POS_WIDTH, BATTERY_GAP)).contains(p.x, p.y);
+        if (dist == 0) {
+            return false;
+        }
+        // The distances of the point from the middle, along the battery and across it.
+        double ux = (pPos.x - nPos.x) / (double) dist;
+        double uy = (pPos.y - nPos.y) / (double) dist;
+        double dx = p.x - (nPos.x + pPos.x) / 2;
+        double dy = p.y - (nPos.y + pPos.y) / 2;
+        double along = Math.abs(dx * ux + dy * uy);
+        double across = Math.abs(dx * uy - dy * ux);
+        return (across < HIT_WIDTH / 2 && along < dist / 2 - GJunction.PIN_RADIUS)
+                || (across < BATTERY_POS_WIDTH / 2 && along < BATTERY_GAP / 2);
+    }
+
+    @Override
+    public List<GJunction> getJunctions() {
+        return junctions;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        if (bounds == null) {
+            Rectangle b = new Rectangle(negativeJunction.getBounds());
+            b.add(positiveJunction.getBounds());
+            // The lead, and the plates in any direction around the middle.
+            b.grow(HIT_WIDTH / 2, HIT_WIDTH / 2);
+            Vec mid = getPosition();
+            int r = BATTERY_POS_WIDTH / 2 + LINE_WIDTH;
+            b.add(new Rectangle(mid.x - r, mid.y - r, 2 * r + 1, 2 * r + 1));
+            bounds = b;
+        }
+        return bounds;
     }
 
     @Override
@@ -86,34 +132,45 @@ public class GBattery implements GCircuitElement {
     }
 
     public void draw(Graphics2D g, int alpha) {
-        g.setColor(new Color(255,255,255, alpha));
-        draw(g, negativeJunction.position, positiveJunction.position,
-                negativeJunction.connections.size() >= 2,
-                positiveJunction.connections.size() >= 2);
+        if (geometry == null) {
+            geometry = geometry(negativeJunction.position, positiveJunction.position);
+        }
+        g.setColor(GPaint.white(alpha));
+        g.setStroke(GPaint.LINE);
+        g.draw(geometry);
+        GJunction.draw(g, negativeJunction.position, negativeJunction.connections.size() >= 2);
+        GJunction.draw(g, positiveJunction.position, positiveJunction.connections.size() >= 2);
     }
 
     public static void draw(Graphics2D g, Vec nPos, Vec pPos, boolean nConnected, boolean pConnected) {
-        double rad = Math.atan2(pPos.y - nPos.y, pPos.x - nPos.x) + Math.PI /2;
-//        Point mid = new Point((aPin.x + bPin.x) / 2, (aPin.y+bPin.y) / 2);
-        Vec mid = pPos.mid(nPos);
-        AffineTransform old = g.getTransform();
-        g.setStroke(new BasicStroke(LINE_WIDTH));
-        g.translate(mid.x, mid.y);
-        g.rotate(rad);
-//            g.setColor(Color.WHITE);
-//        int color = (int)(255*.7+.3*255*Math.sin(elapsedTime/16*.1));
-        int dist = (int) pPos.dist(nPos);
-        g.drawLine(0, BATTERY_GAP / 2, 0, dist/2 - GJunction.PIN_RADIUS);
-        g.drawLine(-BATTERY_NEG_WIDTH/2, BATTERY_GAP / 2,
-                BATTERY_NEG_WIDTH / 2, BATTERY_GAP / 2);
-        g.drawLine(-BATTERY_POS_WIDTH/2, -BATTERY_GAP / 2,
-                BATTERY_POS_WIDTH / 2, -BATTERY_GAP / 2);
-        g.drawLine(0, -BATTERY_GAP / 2, 0, -dist/2 + GJunction.PIN_RADIUS);
-        g.setTransform(old);
+        g.setStroke(GPaint.LINE);
+        g.draw(geometry(nPos, pPos));
         GJunction.draw(g, nPos, nConnected);
         GJunction.draw(g, pPos, pConnected);
     }
 
+    /**
+     * @return The lines of a battery between the given junctions, which are drawn separately.
+     */
+    public static Path2D.Double geometry(Vec nPos, Vec pPos) {
+        int dist = (int) pPos.dist(nPos);
+        Path2D.Double path = new Path2D.Double();
+        path.moveTo(0, BATTERY_GAP / 2);
+        path.lineTo(0, dist/2 - GJunction.PIN_RADIUS);
+        path.moveTo(-BATTERY_NEG_WIDTH/2, BATTERY_GAP / 2);
+        path.lineTo(BATTERY_NEG_WIDTH / 2, BATTERY_GAP / 2);
+        path.moveTo(-BATTERY_POS_WIDTH/2, -BATTERY_GAP / 2);
+        path.lineTo(BATTERY_POS_WIDTH / 2, -BATTERY_GAP / 2);
+        path.moveTo(0, -BATTERY_GAP / 2);
+        path.lineTo(0, -dist/2 + GJunction.PIN_RADIUS);
+        // Drawn along the y axis, then turned from the middle to point at the positive junction.
+        Vec mid = pPos.mid(nPos);
+        AffineTransform at = AffineTransform.getTranslateInstance(mid.x, mid.y);
+        at.rotate(Math.atan2(pPos.y - nPos.y, pPos.x - nPos.x) + Math.PI /2);
+        path.transform(at);
+        return path;
+    }
+
     public GJunction getJunction(Vec p) {
         if (negativeJunction.contains(p)) {
             return negativeJunction;
@@ -6,17 +6,22 @@ import com.imontero.circuit.CircuitElementType;
 import com.imontero.circuit.Wire;
 
 import java.awt.*;
+import java.util.List;
 
-// A simple wrapper
-public interface GCircuitElement {
+// A simple wrapper. Its bounds include its junctions.
+public interface GCircuitElement extends GShape {
     void draw(Graphics2D g, int alpha);
 
     void setPosition(Vec p);
-    Vec getPosition();
+    // Discards the geometry and bounds cached for drawing, after one of its junctions moved.
+    void invalidate();
+    // Connects this to the given junction instead of one it was connected to, through the given
+    // wire, after the junctions were merged.
+    void replaceJunction(GJunction from, GJunction to, Wire wire);
 
-    boolean contains(Vec p);
     boolean containsJunction(Vec p);
     GJunction getJunction(Vec p);
+    List<GJunction> getJunctions();
 //    public CircuitElement circuitElement;
 //    public Circuit c;
 //
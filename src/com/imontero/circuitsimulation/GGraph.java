@@ -0,0 +1,58 @@
+package com.imontero.circuitsimulation;
+
+import com.imontero.circuit.TimeSeries;
+
+import java.awt.*;
+
+// Plots the last few seconds of a time series, one column of pixels at a time.
+public class GGraph {
+    public static final int WIDTH = 200;
+    public static final int HEIGHT = 80;
+    public static final double WINDOW = 10;
+
+    // Reused between frames, so that painting does not allocate.
+    private double[] mins = new double[0];
+    private double[] maxs = new double[0];
+
+    public void draw(Graphics2D g, TimeSeries series, int x, int y) {
+        g.setColor(GPaint.GRAPH);
+        g.fillRect(x, y, WIDTH, HEIGHT);
+        g.setColor(Color.GRAY);
+        g.drawRect(x, y, WIDTH, HEIGHT);
+        double end = series.lastTime();
+        if (Double.isNaN(end)) {
+            return;
+        }
+        if (mins.length != WIDTH) {
+            mins = new double[WIDTH];
+            maxs = new double[WIDTH];
+        }
+        series.plot(end - WINDOW, end, mins, maxs);
+
+        // Scale to the largest magnitude, keeping zero in the middle.
+        double scale = 0;
+        for (int p = 0; p < WIDTH; p++) {
+            if (!Double.isNaN(mins[p])) {
+                scale = Math.max(scale, Math.max(-mins[p], maxs[p]));
+            }
+        }
+        scale = scale > 0 ? (HEIGHT / 2 - 2) / scale : 0;
+        int zero = y + HEIGHT / 2;
+        g.drawLine(x, zero, x + WIDTH, zero);
+
+        // Each column spans from its minimum to its maximum, stretched to meet the last column.
+        g.setColor(Color.WHITE);
+        double lastMin = Double.NaN;
+        double lastMax = Double.NaN;
+        for (int p = 0; p < WIDTH; p++) {
+            if (Double.isNaN(mins[p])) {
+                continue;
+            }
+            double lo = Double.isNaN(lastMax) ? mins[p] : Math.min(mins[p], lastMax);
+            double hi = Double.isNaN(lastMin) ? maxs[p] : Math.max(maxs[p], lastMin);
+            g.drawLine(x + p, zero - (int) (hi * scale), x + p, zero - (int) (lo * scale));
+            lastMin = mins[p];
+            lastMax = maxs[p];
+        }
+    }
+}
@@ -1,16 +1,15 @@
 package com.imontero.circuitsimulation;
 
-import com.imontero.circuit.Circuit;
 import com.imontero.circuit.CircuitElement;
 import com.imontero.circuit.CircuitElementType;
+import com.imontero.circuit.CircuitWorker;
 import com.imontero.circuit.Wire;
 
 import java.awt.*;
-import java.awt.geom.Ellipse2D;
 import java.util.ArrayList;
 import java.util.List;
 
-public class GJunction {
+public class GJunction implements GShape {
     public static final int PIN_RADIUS = 5;
 
     public List<GCircuitElement> connections;
@@ -18,17 +17,21 @@ public class GJunction {
     // Set iff this pin is a junction (connected to by >2 wires)
     public CircuitElement junction;
     public Vec position;
-    public Circuit c;
+    // The area this is drawn in, or null until it is needed after the junction moved.
+    private Rectangle bounds;
+    // The circuit is edited through the worker, off the event dispatch thread.
+    public CircuitWorker worker;
 
-    public GJunction(Circuit c, Vec position) {
-        this.c = c;
+    public GJunction(CircuitWorker worker, Vec position) {
+        this.worker = worker;
         this.position = position;
         this.connections = new ArrayList<>();
         this.connectionWires = new ArrayList<>();
-        this.junction = (new CircuitElement.CircuitElementBuilder())
+        CircuitElement junction = (new CircuitElement.CircuitElementBuilder())
                 .type(CircuitElementType.JUNCTION)
                 .build();
-        c.addCircuitElement(this.junction);
+        this.junction = junction;
+        worker.edit(c -> c.addCircuitElement(junction));
     }
 
     public Wire addConnection(GCircuitElement component, CircuitElement componentElement) {
@@ -36,25 +39,65 @@ public class GJunction {
         Wire w = new Wire(componentElement,
                 this.junction);
 
-        // connect the wire by passing this element to
-        this.junction.connections.add(w);
+        // Adding the wire to the circuit connects it to both of its elements.
         this.connectionWires.add(w);
-        c.addWire(w);
+        worker.edit(c -> c.addWire(w));
         return w;
     }
 
+    // Moves this junction, and with it the ends of the elements connected to it.
+    public void setPosition(Vec p) {
+        this.position = p;
+        this.bounds = null;
+        for (int i = 0; i < connections.size(); i++) {
+            connections.get(i).invalidate();
+        }
+    }
+
+    /**
+     * Moves every connection of this junction onto the given one, which takes its place, and
+     * removes this junction from the circuit.
+     */
+    public void mergeInto(GJunction target) {
+        CircuitElement junction = this.junction;
+        for (int i = 0; i < connections.size(); i++) {
+            GCircuitElement component = connections.get(i);
+            Wire old = connectionWires.get(i);
+            worker.edit(c -> c.removeWire(old));
+            Wire w = target.addConnection(component, old.next(junction));
+            component.replaceJunction(this, target, w);
+        }
+        connections.clear();
+        connectionWires.clear();
+        worker.edit(c -> c.removeCircuitElement(junction));
+    }
+
+    /**
+     * @return true iff an element is connected to both this and the given junction.
+     */
+    public boolean sharesConnection(GJunction other) {
+        for (int i = 0; i < connections.size(); i++) {
+            if (other.connections.contains(connections.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void removeConnection(GCircuitElement component) {
         int index = connections.indexOf(component);
         connections.remove(index);
-        c.removeWire(connectionWires.remove(index));
+        Wire w = connectionWires.remove(index);
+        worker.edit(c -> c.removeWire(w));
     }
 
     public void draw(Graphics2D g, int alpha) {
-        g.setColor(new Color(255,255,255, alpha));
+        g.setColor(GPaint.white(alpha));
         draw(g, position, connections.size() >= 2);
     }
 
     public static void draw(Graphics2D g, Vec position, boolean connected) {
+        g.setStroke(GPaint.LINE);
         if (connected) {
             g.fillOval(position.x - PIN_RADIUS, position.y - PIN_RADIUS,
                     2*PIN_RADIUS, 2*PIN_RADIUS);
@@ -66,8 +109,26 @@ public class GJunction {
     }
 
 
+    @Override
+    public Vec getPosition() {
+        return position;
+    }
+
+    // The returned rectangle is shared until the junction moves, and must not be changed.
+    @Override
+    public Rectangle getBounds() {
+        if (bounds == null) {
+            // Room for the width of the outline.
+            int r = PIN_RADIUS + GBattery.LINE_WIDTH;
+            bounds = new Rectangle(position.x - r, position.y - r, 2 * r + 1, 2 * r + 1);
+        }
+        return bounds;
+    }
+
+    @Override
     public boolean contains(Vec p) {
-        return (new Ellipse2D.Double(position.x - PIN_RADIUS, position.y - PIN_RADIUS,
-                2*PIN_RADIUS, 2*PIN_RADIUS)).contains(p.x, p.y);
+        int dx = p.x - position.x;
+        int dy = p.y - position.y;
+        return dx * dx + dy * dy < PIN_RADIUS * PIN_RADIUS;
     }
 }
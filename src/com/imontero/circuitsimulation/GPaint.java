@@ -0,0 +1,28 @@
+package com.imontero.circuitsimulation;
+
+import java.awt.*;
+
+// The colors and strokes the display is painted with, created once instead of on every frame.
+public final class GPaint {
+    public static final BasicStroke LINE = new BasicStroke(GBattery.LINE_WIDTH);
+    public static final BasicStroke THIN = new BasicStroke(1);
+    public static final Color PANE = new Color(23, 23, 23, 128);
+    public static final Color PANE_SELECTION = new Color(46, 46, 46, 128);
+    public static final Color GRAPH = new Color(23, 23, 23, 200);
+
+    private static final Color[] WHITES = new Color[256];
+
+    static {
+        for (int alpha = 0; alpha < WHITES.length; alpha++) {
+            WHITES[alpha] = new Color(255, 255, 255, alpha);
+        }
+    }
+
+    private GPaint() {
+    }
+
+    // White, with the given alpha from 0 to 255.
+    public static Color white(int alpha) {
+        return WHITES[alpha];
+    }
+}
@@ -1,8 +1,11 @@
 package com.imontero.circuitsimulation;
 
 import com.imontero.circuit.CircuitElementType;
+import com.imontero.circuit.Wire;
 
 import java.awt.*;
+import java.util.Collections;
+import java.util.List;
 
 // TODO: Finish
 public class GResistor implements GCircuitElement {
@@ -20,6 +23,16 @@ public class GResistor implements GCircuitElement {
 
     }
 
+    @Override
+    public void invalidate() {
+
+    }
+
+    @Override
+    public void replaceJunction(GJunction from, GJunction to, Wire wire) {
+
+    }
+
     @Override
     public Vec getPosition() {
         return null;
@@ -39,4 +52,14 @@ public class GResistor implements GCircuitElement {
     public GJunction getJunction(Vec p) {
         return null;
     }
+
+    @Override
+    public List<GJunction> getJunctions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        return new Rectangle();
+    }
 }
@@ -0,0 +1,14 @@
+package com.imontero.circuitsimulation;
+
+import java.awt.*;
+
+// Something drawn on the display, which can be found by its position.
+public interface GShape {
+    Vec getPosition();
+
+    boolean contains(Vec p);
+
+    // The area this is drawn in, which contains every point it contains, and is repainted when it
+    // changes.
+    Rectangle getBounds();
+}
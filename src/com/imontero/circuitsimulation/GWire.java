@@ -1,68 +1,109 @@
 package com.imontero.circuitsimulation;
 
-import com.imontero.circuit.Circuit;
 import com.imontero.circuit.CircuitElement;
 import com.imontero.circuit.CircuitElementType;
+import com.imontero.circuit.CircuitWorker;
 import com.imontero.circuit.Wire;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Rectangle2D;
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+import java.util.List;
 
 // TODO: Finish
 public class GWire implements GCircuitElement {
     public static final int LINE_WIDTH = 2;
+    // The width of the wire when clicked on.
+    public static final int HIT_WIDTH = 20;
 
-    public Circuit c;
+    public CircuitWorker worker;
     public Wire wire;
     public GJunction aJunction;
     public GJunction bJunction;
+    private final List<GJunction> junctions;
+    // The line of the wire and the area it is drawn in, or null until they are needed after it
+    // moved. The bounds are shared, and must not be changed.
+    private Path2D.Double geometry;
+    private Rectangle bounds;
 
-    public GWire(Circuit c, Vec aPosition, Vec bPosition) {
-        this.c = c;
-        this.aJunction = new GJunction(c, aPosition);
-        this.bJunction = new GJunction(c, bPosition);
-        this.wire = new Wire(aJunction.junction, bJunction.junction);
-        c.addWire(this.wire);
+    public GWire(CircuitWorker worker, Vec aPosition, Vec bPosition) {
+        this.worker = worker;
+        this.aJunction = new GJunction(worker, aPosition);
+        this.bJunction = new GJunction(worker, bPosition);
+        this.junctions = Arrays.asList(aJunction, bJunction);
+        Wire wire = new Wire(aJunction.junction, bJunction.junction);
+        this.wire = wire;
+        worker.edit(c -> c.addWire(wire));
     }
 
     @Override
     public void draw(Graphics2D g, int alpha) {
-        g.setColor(new Color(255, 255, 255, alpha));
-        draw(g, aJunction.position, bJunction.position, false);
+        if (geometry == null) {
+            geometry = geometry(aJunction.position, bJunction.position);
+        }
+        g.setColor(GPaint.white(alpha));
+        g.setStroke(GPaint.LINE);
+        g.draw(geometry);
     }
 
     public static void draw(Graphics2D g, Vec aPos, Vec bPos, boolean junctions) {
-        double rad = Math.atan2(bPos.y - aPos.y, bPos.x - aPos.x) + Math.PI /2;
-//        Point mid = new Point((aPin.x + bPin.x) / 2, (aPin.y+bPin.y) / 2);
-        Vec mid = bPos.mid(aPos);
-        AffineTransform old = g.getTransform();
-        g.setStroke(new BasicStroke(LINE_WIDTH));
-        g.translate(mid.x, mid.y);
-        g.rotate(rad);
-//            g.setColor(Color.WHITE);
-//        int color = (int)(255*.7+.3*255*Math.sin(elapsedTime/16*.1));
-        int dist = (int) bPos.dist(aPos) - GJunction.PIN_RADIUS * 2;
-        g.drawLine(0, -dist/2, 0, dist/2);
-
-//        g.drawLine(0, BATTERY_GAP / 2, 0, dist/2 - GJunction.PIN_RADIUS);
-//        g.drawLine(-BATTERY_NEG_WIDTH/2, BATTERY_GAP / 2,
-//                BATTERY_NEG_WIDTH / 2, BATTERY_GAP / 2);
-//        g.drawLine(-BATTERY_POS_WIDTH/2, -BATTERY_GAP / 2,
-//                BATTERY_POS_WIDTH / 2, -BATTERY_GAP / 2);
-//        g.drawLine(0, -BATTERY_GAP / 2, 0, -dist/2 + GJunction.PIN_RADIUS);
-        g.setTransform(old);
+        g.setStroke(GPaint.LINE);
+        g.draw(geometry(aPos, bPos));
         if (junctions) {
             GJunction.draw(g, aPos, false);
             GJunction.draw(g, bPos, false);
         }
     }
 
+    /**
+     * @return The line of a wire between the given junctions, which are drawn separately.
+     */
+    public static Path2D.Double geometry(Vec aPos, Vec bPos) {
+        int dist = (int) bPos.dist(aPos) - GJunction.PIN_RADIUS * 2;
+        Path2D.Double path = new Path2D.Double();
+        path.moveTo(0, -dist/2);
+        path.lineTo(0, dist/2);
+        Vec mid = bPos.mid(aPos);
+        AffineTransform at = AffineTransform.getTranslateInstance(mid.x, mid.y);
+        at.rotate(Math.atan2(bPos.y - aPos.y, bPos.x - aPos.x) + Math.PI /2);
+        path.transform(at);
+        return path;
+    }
+
     @Override
     public void setPosition(Vec p) {
         Vec delta = p.sub(getPosition());
-        aJunction.position = aJunction.position.add(delta);
-        bJunction.position = bJunction.position.add(delta);
+        aJunction.setPosition(aJunction.position.add(delta));
+        bJunction.setPosition(bJunction.position.add(delta));
+    }
+
+    @Override
+    public void invalidate() {
+        geometry = null;
+        bounds = null;
+    }
+
+    @Override
+    public void replaceJunction(GJunction from, GJunction to, Wire wire) {
+        if (aJunction == from) {
+            aJunction = to;
+            junctions.set(0, to);
+        } else if (bJunction == from) {
+            bJunction = to;
+            junctions.set(1, to);
+        } else {
+            return;
+        }
+        // This wire joins the junctions directly, rather than through a connection of theirs.
+        Wire old = this.wire;
+        Wire replacement = new Wire(aJunction.junction, bJunction.junction);
+        this.wire = replacement;
+        worker.edit(c -> {
+            c.removeWire(old);
+            c.addWire(replacement);
+        });
+        invalidate();
     }
 
     @Override
@@ -74,15 +115,34 @@ public class GWire implements GCircuitElement {
     public boolean contains(Vec p) {
         Vec aPos = aJunction.position;
         Vec bPos = bJunction.position;
-        double rad = Math.atan2(bPos.y - aPos.y, bPos.x - aPos.x) + Math.PI /2;
         int dist = (int) aPos.dist(bPos);
-        Point mid = new Point((aPos.x + bPos.x) / 2, (aPos.y + bPos.y) / 2);
-        AffineTransform at = new AffineTransform();
-        at.translate(mid.x, mid.y);
-        at.rotate(rad);
-        return at.createTransformedShape(new Rectangle2D.Double(-20/2,
-                -dist/2 + GJunction.PIN_RADIUS,
-                20, dist - GJunction.PIN_RADIUS*2)).contains(p.x, p.y);
+        if (dist == 0) {
+            return false;
+        }
+        // The distances of the point from the middle, along the wire and across it.
+        double ux = (bPos.x - aPos.x) / (double) dist;
+        double uy = (bPos.y - aPos.y) / (double) dist;
+        double dx = p.x - (aPos.x + bPos.x) / 2;
+        double dy = p.y - (aPos.y + bPos.y) / 2;
+        double along = Math.abs(dx * ux + dy * uy);
+        double across = Math.abs(dx * uy - dy * ux);
+        return across < HIT_WIDTH / 2 && along < dist / 2 - GJunction.PIN_RADIUS;
+    }
+
+    @Override
+    public List<GJunction> getJunctions() {
+        return junctions;
+    }
+
+    @Override
+    public Rectangle getBounds() {
+        if (bounds == null) {
+            Rectangle b = new Rectangle(aJunction.getBounds());
+            b.add(bJunction.getBounds());
+            b.grow(HIT_WIDTH / 2, HIT_WIDTH / 2);
+            bounds = b;
+        }
+        return bounds;
     }
 
     @Override
@@ -0,0 +1,183 @@
+package com.imontero.circuitsimulation;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A spatial hash of shapes by their bounds, for finding the shapes at or near a point without
+// testing every shape. The plane is divided into square cells, which are hashed into a table of
+// buckets; each shape is in the bucket of every cell its bounds overlap. Cells sharing a bucket
+// only cost extra candidates, so the table needs no keys, and it grows with the shapes to keep
+// buckets short. Queries do not allocate.
+public class SpatialIndex<T extends GShape> {
+    // Cells of 64 pixels.
+    private static final int SHIFT = 6;
+
+    private Object[][] buckets;
+    private int[] sizes;
+    private int mask;
+    // The bounds each shape was indexed by, which it is removed by.
+    private final Map<T, Rectangle> bounds;
+
+    public SpatialIndex() {
+        this.bounds = new HashMap<>();
+        allocate(1 << 8);
+    }
+
+    private void allocate(int capacity) {
+        buckets = new Object[capacity][];
+        sizes = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    // Adds the given shape, or updates its cells after it moved or changed.
+    public void put(T shape) {
+        Rectangle r = shape.getBounds();
+        Rectangle old = bounds.put(shape, r);
+        if (old != null) {
+            if (old.equals(r)) {
+                return;
+            }
+            update(shape, old, false);
+        }
+        if (bounds.size() > 2 * buckets.length) {
+            rehash();
+        } else {
+            update(shape, r, true);
+        }
+    }
+
+    public void remove(T shape) {
+        Rectangle old = bounds.remove(shape);
+        if (old != null) {
+            update(shape, old, false);
+        }
+    }
+
+    // Returns a shape containing the given point, or null if there is none.
+    @SuppressWarnings("unchecked")
+    public T shapeAt(Vec p) {
+        int b = bucket(p.x >> SHIFT, p.y >> SHIFT);
+        Object[] bucket = buckets[b];
+        for (int i = 0; i < sizes[b]; i++) {
+            T shape = (T) bucket[i];
+            if (shape.contains(p)) {
+                return shape;
+            }
+        }
+        return null;
+    }
+
+    // Returns the shape whose position is nearest to the given point, within the given distance,
+    // or null if there is none.
+    public T nearest(Vec p, int distance) {
+        return nearest(p, distance, null);
+    }
+
+    // Returns the shape other than the given one whose position is nearest to the given point,
+    // within the given distance, or null if there is none.
+    @SuppressWarnings("unchecked")
+    public T nearest(Vec p, int distance, T except) {
+        T nearest = null;
+        long best = (long) distance * distance;
+        for (int cx = (p.x - distance) >> SHIFT; cx <= (p.x + distance) >> SHIFT; cx++) {
+            for (int cy = (p.y - distance) >> SHIFT; cy <= (p.y + distance) >> SHIFT; cy++) {
+                int b = bucket(cx, cy);
+                Object[] bucket = buckets[b];
+                for (int i = 0; i < sizes[b]; i++) {
+                    T shape = (T) bucket[i];
+                    if (shape == except) {
+                        continue;
+                    }
+                    Vec q = shape.getPosition();
+                    long dx = q.x - p.x;
+                    long dy = q.y - p.y;
+                    if (dx * dx + dy * dy <= best) {
+                        best = dx * dx + dy * dy;
+                        nearest = shape;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    // Adds each shape whose bounds intersect the given rectangle to the given list, once.
+    @SuppressWarnings("unchecked")
+    public void shapesIn(Rectangle r, List<? super T> out) {
+        if (r.isEmpty()) {
+            return;
+        }
+        int x0 = r.x >> SHIFT;
+        int y0 = r.y >> SHIFT;
+        int x1 = (r.x + r.width - 1) >> SHIFT;
+        int y1 = (r.y + r.height - 1) >> SHIFT;
+        for (int cx = x0; cx <= x1; cx++) {
+            for (int cy = y0; cy <= y1; cy++) {
+                int b = bucket(cx, cy);
+                Object[] bucket = buckets[b];
+                for (int i = 0; i < sizes[b]; i++) {
+                    T shape = (T) bucket[i];
+                    Rectangle s = bounds.get(shape);
+                    // A shape is in every cell its bounds overlap, and cells may share a bucket,
+                    // so it is only taken from the first cell it shares with the rectangle.
+                    if (cx == Math.max(x0, s.x >> SHIFT) && cy == Math.max(y0, s.y >> SHIFT)
+                            && s.intersects(r)) {
+                        out.add(shape);
+                    }
+                }
+            }
+        }
+    }
+
+    public int size() {
+        return bounds.size();
+    }
+
+    // Adds the given shape to, or removes it from, the buckets of the cells the given bounds
+    // overlap.
+    private void update(T shape, Rectangle r, boolean add) {
+        int x1 = (r.x + Math.max(r.width - 1, 0)) >> SHIFT;
+        int y1 = (r.y + Math.max(r.height - 1, 0)) >> SHIFT;
+        for (int cx = r.x >> SHIFT; cx <= x1; cx++) {
+            for (int cy = r.y >> SHIFT; cy <= y1; cy++) {
+                int b = bucket(cx, cy);
+                int i = indexOf(b, shape);
+                if (add && i < 0) {
+                    if (buckets[b] == null) {
+                        buckets[b] = new Object[4];
+                    } else if (sizes[b] == buckets[b].length) {
+                        buckets[b] = Arrays.copyOf(buckets[b], 2 * sizes[b]);
+                    }
+                    buckets[b][sizes[b]++] = shape;
+                } else if (!add && i >= 0) {
+                    buckets[b][i] = buckets[b][--sizes[b]];
+                    buckets[b][sizes[b]] = null;
+                }
+            }
+        }
+    }
+
+    private int indexOf(int b, T shape) {
+        for (int i = 0; i < sizes[b]; i++) {
+            if (buckets[b][i] == shape) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void rehash() {
+        allocate(2 * buckets.length);
+        for (Map.Entry<T, Rectangle> e : bounds.entrySet()) {
+            update(e.getKey(), e.getValue(), true);
+        }
+    }
+
+    private int bucket(int cx, int cy) {
+        int h = cx * 0x9E3779B1 + cy * 0x85EBCA6B;
+        return (h ^ (h >>> 15)) & mask;
+    }
+}
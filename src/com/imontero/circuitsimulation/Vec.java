@@ -46,6 +46,16 @@ public class Vec {
         return new Vec(p.x, p.y);
     }
 
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Vec && ((Vec) other).x == this.x && ((Vec) other).y == this.y;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.x + this.y;
+    }
+
     public String toString() {
         return "(" + x + ", " + y + ")";
     }
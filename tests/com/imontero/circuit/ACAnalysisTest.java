@@ -0,0 +1,139 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.imontero.circuit.Circuits.*;
+import static org.junit.Assert.*;
+
+public class ACAnalysisTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void resistorCapacitorSeries() {
+        // The current of 1 volt across 1 kiloohm and 1 microfarad is 1 / (R + 1 / (i w C)), which
+        // leads the source by atan(1 / (w R C)).
+        Circuit c = series(acSource(1.0), resistor(1000.0), capacitor(1e-6));
+        ACAnalysis.Result result = new ACAnalysis.Builder(c).decades(10, 1e5, 5).build().run();
+        Branch br = c.branches.iterator().next();
+        double[] frequencies = result.frequencies();
+        assertEquals(21, frequencies.length);
+        assertEquals(1e5, frequencies[frequencies.length - 1], 1e-6);
+
+        double[] magnitude = result.magnitude(br);
+        double[] real = result.real(br);
+        double[] imaginary = result.imaginary(br);
+        for (int f = 0; f < frequencies.length; f++) {
+            double omega = 2 * Math.PI * frequencies[f];
+            double reactance = 1 / (omega * 1e-6);
+            assertEquals(1 / Math.hypot(1000.0, reactance), magnitude[f], EPSILON);
+            // The direction of the branch only flips the sign of both parts.
+            assertEquals(reactance / 1000.0, imaginary[f] / real[f], 1e-6 * reactance / 1000.0);
+        }
+    }
+
+    @Test
+    public void resistorInductorSeries() {
+        Circuit c = series(acSource(2.0), resistor(10.0), inductor(1e-3));
+        ACAnalysis.Result result = new ACAnalysis.Builder(c).frequencies(100, 1591.55, 1e4)
+                .build().run();
+        Branch br = c.branches.iterator().next();
+        double[] frequencies = result.frequencies();
+        double[] magnitude = result.magnitude(br);
+        double[] phase = result.phase(br);
+        for (int f = 0; f < frequencies.length; f++) {
+            double reactance = 2 * Math.PI * frequencies[f] * 1e-3;
+            assertEquals(2.0 / Math.hypot(10.0, reactance), magnitude[f], EPSILON);
+            // The current lags the source by atan(w L / R), up to the direction of the branch.
+            double lag = Math.atan(reactance / 10.0);
+            double difference = Math.IEEEremainder(phase[f] + lag, Math.PI);
+            assertEquals(0, difference, 1e-9);
+        }
+    }
+
+    @Test
+    public void batteriesAreShorts() {
+        Circuit c = series(acSource(1.0), battery(5.0), resistor(100.0));
+        ACAnalysis.Result result = new ACAnalysis.Builder(c).frequencies(50).build().run();
+        assertEquals(0.01, result.magnitude(c.branches.iterator().next())[0], EPSILON);
+
+        // And AC sources are shorts in a steady state.
+        c.solveNodal();
+        assertEquals(0.05, Math.abs(c.branches.iterator().next().current), EPSILON);
+        c.solve();
+        assertEquals(0.05, Math.abs(c.branches.iterator().next().current), EPSILON);
+    }
+
+    @Test
+    public void listenerSeesEveryPoint() {
+        Circuit c = CircuitTest.createLadderCircuit(20, 5.0, 100.0, 200.0, LoopDiscovery.NONE);
+        c.addCircuitElement(capacitor(1e-6));
+        CircuitElement source = acSource(1.0);
+        c.addCircuitElement(source);
+        attachAcrossLastShunt(c, source);
+        Queue<ACAnalysis.Point> points = new ConcurrentLinkedQueue<>();
+        ACAnalysis analysis = new ACAnalysis.Builder(c).decades(1, 1e6, 10).build();
+        ACAnalysis.Result result = analysis.run(ForkJoinPool.commonPool(), points::add);
+
+        double[] frequencies = result.frequencies();
+        assertEquals(frequencies.length, points.size());
+        boolean[] seen = new boolean[frequencies.length];
+        for (ACAnalysis.Point point : points) {
+            assertFalse(seen[point.index]);
+            seen[point.index] = true;
+            assertEquals(frequencies[point.index], point.frequency, 0);
+            for (Branch br : result.branches()) {
+                assertEquals(result.magnitude(br)[point.index], point.magnitude(br), 0);
+                assertEquals(result.phase(br)[point.index], point.phase(br), 0);
+            }
+        }
+
+        // The results do not depend on the number of threads.
+        ACAnalysis.Result sequential = analysis.run(new ForkJoinPool(1), null);
+        for (Branch br : result.branches()) {
+            assertTrue(Arrays.equals(result.real(br), sequential.real(br)));
+            assertTrue(Arrays.equals(result.imaginary(br), sequential.imaginary(br)));
+        }
+    }
+
+    @Test
+    public void recordsOnlyGivenBranches() {
+        Circuit c = series(acSource(1.0), resistor(100.0));
+        c.analyze();
+        Branch br = c.branches.iterator().next();
+        ACAnalysis.Result result = new ACAnalysis.Builder(c)
+                .branches(Collections.singletonList(br))
+                .build()
+                .run();
+
+        assertEquals(Collections.singleton(br), result.branches());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void frequenciesMustBePositive() {
+        new ACAnalysis.Builder(series(acSource(1.0), resistor(100.0))).frequencies(50, 0);
+    }
+
+    /**
+     * Helper method to connect an AC source in series with the capacitor most recently added to
+     * the circuit, across the last shunt resistor of a ladder.
+     */
+    private static void attachAcrossLastShunt(Circuit c, CircuitElement source) {
+        CircuitElement shunt = null;
+        CircuitElement cap = null;
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.RESISTOR && ce.resistance == 200.0
+                    && (shunt == null || ce.ID > shunt.ID)) {
+                shunt = ce;
+            } else if (ce.type == CircuitElementType.CAPACITOR) {
+                cap = ce;
+            }
+        }
+        c.addWire(new Wire(shunt.connections.get(0).next(shunt), cap));
+        c.addWire(new Wire(cap, source));
+        c.addWire(new Wire(source, shunt.connections.get(1).next(shunt)));
+    }
+}
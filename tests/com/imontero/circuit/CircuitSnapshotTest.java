@@ -0,0 +1,145 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class CircuitSnapshotTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void snapshotKeepsTopology() throws IOException {
+        for (LoopDiscovery loopDiscovery : LoopDiscovery.values()) {
+            int stages = loopDiscovery == LoopDiscovery.ALL ? 4 : 50;
+            Circuit original = CircuitTest.createLadderCircuit(stages, 5.0, 100.0, 200.0,
+                    loopDiscovery);
+            original.solveNodal();
+            Circuit copy = writeAndRead(original);
+
+            assertEquals(loopDiscovery, copy.loopDiscovery);
+            assertEquals(original.elements.size(), copy.elements.size());
+            assertEquals(original.wires.size(), copy.wires.size());
+            assertEquals(original.loops.size(), copy.loops.size());
+            assertEquals(original.branches.size(), copy.branches.size());
+            assertEquals(original.junctions.size(), copy.junctions.size());
+            assertEquals(original.wireToBranch.size(), copy.wireToBranch.size());
+            // The saved currents are loaded without solving again.
+            for (int i = 0; i < original.compact.elementCount; i++) {
+                assertEquals(currentOf(original, i), currentOf(copy, i), 0);
+            }
+
+            copy.solveNodal();
+            assertSameCurrents(original, copy);
+            if (loopDiscovery == LoopDiscovery.FUNDAMENTAL) {
+                original.solve();
+                copy.solve();
+                assertSameCurrents(original, copy);
+            }
+        }
+    }
+
+    @Test
+    public void loadedCircuitCanBeEdited() throws IOException {
+        for (LoopDiscovery loopDiscovery : LoopDiscovery.values()) {
+            int stages = loopDiscovery == LoopDiscovery.ALL ? 4 : 30;
+            Circuit original = CircuitTest.createLadderCircuit(stages, 5.0, 100.0, 200.0,
+                    loopDiscovery);
+            Circuit copy = writeAndRead(original);
+
+            // Removing a shunt resistor and bridging two junctions with a new one changes the
+            // loops and the spanning forest of both circuits alike.
+            for (Circuit c : Arrays.asList(original, copy)) {
+                CircuitElement shunt = null;
+                List<CircuitElement> junctions = new ArrayList<>();
+                for (int i = 0; i < c.compact.elementCount; i++) {
+                    CircuitElement ce = c.compact.elements[i];
+                    if (shunt == null && ce.type == CircuitElementType.RESISTOR
+                            && ce.resistance == 200.0) {
+                        shunt = ce;
+                    } else if (ce.type == CircuitElementType.JUNCTION) {
+                        junctions.add(ce);
+                    }
+                }
+                c.removeCircuitElement(shunt);
+                CircuitElement bridge = (new CircuitElement.CircuitElementBuilder())
+                        .type(CircuitElementType.RESISTOR)
+                        .resistance(50.0)
+                        .build();
+                c.addCircuitElement(bridge);
+                c.addWire(new Wire(junctions.get(junctions.size() - 1), bridge));
+                c.addWire(new Wire(bridge, junctions.get(3)));
+            }
+            assertEquals(original.loops.size(), copy.loops.size());
+            original.solveNodal();
+            copy.solveNodal();
+            assertSameCurrents(original, copy);
+            if (loopDiscovery == LoopDiscovery.FUNDAMENTAL) {
+                original.solve();
+                copy.solve();
+                assertSameCurrents(original, copy);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Path path = Files.createTempFile("snapshot", ".bin");
+        try {
+            Files.write(path, new byte[100]);
+            try {
+                CircuitSnapshot.read(path);
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith("is not a circuit snapshot."));
+            }
+
+            CircuitSnapshot.write(CircuitTest.createLadderCircuit(3, 5.0, 1.0, 1.0,
+                    LoopDiscovery.NONE), path);
+            byte[] bytes = Files.readAllBytes(path);
+            Files.write(path, Arrays.copyOf(bytes, bytes.length - 4));
+            try {
+                CircuitSnapshot.read(path);
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith("is truncated."));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static Circuit writeAndRead(Circuit c) throws IOException {
+        Path path = Files.createTempFile("snapshot", ".bin");
+        try {
+            CircuitSnapshot.write(c, path);
+            return CircuitSnapshot.read(path);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * @return The current through the first wire of the element at the given index, which has the
+     *         same index in a loaded copy of the circuit, or 0 if it is in no branch.
+     */
+    private static double currentOf(Circuit c, int i) {
+        CircuitElement ce = c.compact.elements[i];
+        Branch br = ce.connections.isEmpty() ? null : c.wireToBranch.get(ce.connections.get(0));
+        return br == null ? 0 : br.current;
+    }
+
+    private static void assertSameCurrents(Circuit expected, Circuit actual) {
+        assertEquals(expected.compact.elementCount, actual.compact.elementCount);
+        for (int i = 0; i < expected.compact.elementCount; i++) {
+            if (expected.compact.elements[i].type == CircuitElementType.RESISTOR) {
+                assertEquals(Math.abs(currentOf(expected, i)), Math.abs(currentOf(actual, i)),
+                        EPSILON);
+            }
+        }
+    }
+}
@@ -3,7 +3,7 @@ package com.imontero.circuit;
 import com.imontero.circuit.*;
 import org.junit.Test;
 
-import java.util.HashSet;
+import java.util.*;
 
 import static org.junit.Assert.*;
 
@@ -16,7 +16,12 @@ public class CircuitTest {
     public void solveSimple() {
         Circuit c = createCompleteNoJunctionCircuit();
         c.solve();
-        assertEquals(.05, c.branches.iterator().next().current, EPSILON);
+        // The battery feeds current out of its second pin.
+        Branch br = c.branches.iterator().next();
+        CircuitElement b = br.elements.get(0).type == CircuitElementType.BATTERY
+                ? br.elements.get(0) : br.elements.get(1);
+        double sign = b.connections.get(1).equals(br.getNextWire(b)) ? 1 : -1;
+        assertEquals(.05 * sign, br.current, EPSILON);
     }
 
     @Test
@@ -83,6 +88,391 @@ public class CircuitTest {
     }
 
 
+    /* =================== Solve Nodal =================== */
+
+    @Test
+    public void solveNodalSimple() {
+        Circuit c = createCompleteNoJunctionCircuit();
+        c.solve();
+        double loopCurrent = c.branches.iterator().next().current;
+        c.solveNodal();
+        assertEquals(.05, Math.abs(c.branches.iterator().next().current), EPSILON);
+        assertEquals(loopCurrent, c.branches.iterator().next().current, EPSILON);
+    }
+
+    @Test
+    public void solveNodalMatchesLoops() {
+        Circuit c = createCompleteTwoJunctionCircuit();
+        c.solve();
+        Map<Branch, Double> loopCurrents = new HashMap<>();
+        for (Branch br : c.branches) {
+            loopCurrents.put(br, br.current);
+        }
+        c.solveNodal();
+        for (Branch br : c.branches) {
+            assertEquals(loopCurrents.get(br), br.current, EPSILON);
+        }
+    }
+
+    @Test
+    public void solveNodalWithoutLoops() {
+        Circuit c = createCompleteTwoJunctionCircuit(LoopDiscovery.NONE);
+        assertTrue(c.loops.isEmpty());
+        c.solveNodal();
+
+        assertEquals(3, c.branches.size());
+        assertEquals(2, c.junctions.size());
+        double[] expected = {0.075, 0.05, 0.025};
+        double[] actual = new double[3];
+        for (Branch br : c.branches) {
+            // Every branch's current magnitude is identified by its resistance.
+            double resistance = 0;
+            for (CircuitElement ce : br.elements) {
+                resistance += ce.resistance;
+            }
+            actual[resistance == 0 ? 0 : resistance == 100 ? 1 : 2] = Math.abs(br.current);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void solveNodalLadder() {
+        int stages = 2000;
+        Circuit c = createLadderCircuit(stages, 5.0, 100.0, 200.0, LoopDiscovery.NONE);
+        c.solveNodal();
+
+        // The equivalent resistance of the ladder, folded from its far end.
+        double equivalent = 100.0 + 200.0;
+        for (int i = 1; i < stages; i++) {
+            equivalent = 100.0 + 1 / (1 / 200.0 + 1 / equivalent);
+        }
+        double maxCurrent = 0;
+        for (Branch br : c.branches) {
+            maxCurrent = Math.max(maxCurrent, Math.abs(br.current));
+        }
+        assertEquals(3 * (stages - 1), c.branches.size());
+        assertEquals(5.0 / equivalent, maxCurrent, EPSILON);
+    }
+
+
+    /* =================== Fundamental Loops =================== */
+
+    @Test
+    public void fundamentalLoopsJunction() {
+        Circuit c = createCompleteTwoJunctionCircuit(LoopDiscovery.FUNDAMENTAL);
+        c.analyze();
+
+        // B-(J-1) independent loops
+        assertEquals(2, c.loops.size());
+        assertEquals(3, c.branches.size());
+        assertEquals(2, c.junctions.size());
+        for (Loop l : c.loops) {
+            assertEquals(l.wires.size(), l.elements.size());
+        }
+    }
+
+    @Test
+    public void solveFundamentalMatchesAllLoops() {
+        Circuit all = createCompleteTwoJunctionCircuit();
+        all.solve();
+        Circuit fundamental = createCompleteTwoJunctionCircuit(LoopDiscovery.FUNDAMENTAL);
+        fundamental.solve();
+
+        double[] expected = new double[all.branches.size()];
+        double[] actual = new double[fundamental.branches.size()];
+        int i = 0;
+        for (Branch br : all.branches) {
+            expected[i++] = Math.abs(br.current);
+        }
+        i = 0;
+        for (Branch br : fundamental.branches) {
+            actual[i++] = Math.abs(br.current);
+        }
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+        for (i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void solveFundamentalLadder() {
+        int stages = 500;
+        Circuit c = createLadderCircuit(stages, 5.0, 100.0, 200.0, LoopDiscovery.FUNDAMENTAL);
+        c.solve();
+
+        assertEquals(stages, c.loops.size());
+        Map<Branch, Double> loopCurrents = new HashMap<>();
+        for (Branch br : c.branches) {
+            loopCurrents.put(br, br.current);
+        }
+        c.solveNodal();
+        for (Branch br : c.branches) {
+            assertEquals(br.current, loopCurrents.get(br), EPSILON);
+        }
+    }
+
+
+    /* =================== Incremental Topology =================== */
+
+    @Test
+    public void removeWireAllLoops() {
+        Circuit c = createCompleteTwoJunctionCircuit();
+        Wire wr2j2 = findWire(c, 200.0);
+
+        c.removeWire(wr2j2);
+
+        assertEquals(1, c.loops.size());
+        assertEquals(1, c.branches.size());
+        assertTrue(c.junctions.isEmpty());
+        c.solve();
+        assertEquals(0.05, Math.abs(c.branches.iterator().next().current), EPSILON);
+    }
+
+    @Test
+    public void removeWireFundamentalReplacesLoops() {
+        Circuit c = createCompleteTwoJunctionCircuit(LoopDiscovery.FUNDAMENTAL);
+        Wire wr1j2 = findWire(c, 100.0);
+
+        c.removeWire(wr1j2);
+        c.analyze();
+
+        assertEquals(1, c.loops.size());
+        assertEquals(1, c.branches.size());
+        assertTrue(c.junctions.isEmpty());
+        c.solve();
+        assertEquals(0.025, Math.abs(c.branches.iterator().next().current), EPSILON);
+
+        c.addWire(wr1j2);
+        c.analyze();
+
+        assertEquals(2, c.loops.size());
+        assertEquals(3, c.branches.size());
+        assertEquals(2, c.junctions.size());
+    }
+
+    @Test
+    public void editFundamentalMatchesNodal() {
+        Circuit c = createLadderCircuit(60, 5.0, 100.0, 200.0, LoopDiscovery.FUNDAMENTAL);
+        List<Wire> shuntWires = new ArrayList<>();
+        for (Wire w : c.wires) {
+            if (w.a.resistance == 200.0 || w.b.resistance == 200.0) {
+                shuntWires.add(w);
+            }
+        }
+        shuntWires.sort(Comparator.comparingInt(w -> w.ID));
+
+        for (int i = 0; i < shuntWires.size(); i += 3) {
+            c.removeWire(shuntWires.get(i));
+        }
+        assertSolvesAgree(c);
+
+        for (int i = 0; i < shuntWires.size(); i += 6) {
+            c.addWire(shuntWires.get(i));
+        }
+        assertSolvesAgree(c);
+    }
+
+    @Test
+    public void solveNodalReusesFactorization() {
+        Circuit c = createLadderCircuit(50, 5.0, 100.0, 200.0, LoopDiscovery.NONE);
+        c.solveNodal();
+        CircuitElement battery = findBattery(c);
+        CachedSolver solver = c.nodalSolvers.solverOf(battery);
+        List<CircuitElement> resistors = solver.equations.resistors;
+
+        // Only the right hand side changes.
+        battery.potentialDifference = 7.5;
+        assertMatchesFreshSolve(c, false);
+        assertSame(solver, c.nodalSolvers.solverOf(battery));
+        assertEquals(1, solver.factorizations());
+
+        // A few resistances are applied as updates, until they are changed back.
+        double original = resistors.get(3).resistance;
+        resistors.get(3).resistance = 50.0;
+        resistors.get(10).resistance = 1000.0;
+        assertMatchesFreshSolve(c, false);
+        assertEquals(1, solver.factorizations());
+        assertEquals(2, solver.updates());
+        resistors.get(3).resistance = original;
+        assertMatchesFreshSolve(c, false);
+        assertEquals(1, solver.factorizations());
+        assertEquals(1, solver.updates());
+
+        // Too many are factored again.
+        for (int i = 0; i <= CachedSolver.MAX_UPDATES; i++) {
+            resistors.get(20 + i).resistance *= 2;
+        }
+        assertMatchesFreshSolve(c, false);
+        assertEquals(2, solver.factorizations());
+        assertEquals(0, solver.updates());
+
+        // A new element does not change the topology of the ladder, but wiring it in does.
+        CircuitElement junction = new CircuitElement.CircuitElementBuilder()
+                .type(CircuitElementType.JUNCTION)
+                .build();
+        c.addCircuitElement(junction);
+        c.solveNodal();
+        assertSame(solver, c.nodalSolvers.solverOf(battery));
+        c.addWire(new Wire(junction, battery));
+        assertNull(c.nodalSolvers.solverOf(battery));
+    }
+
+    @Test
+    public void solveReusesFactorization() {
+        Circuit c = createLadderCircuit(40, 5.0, 100.0, 200.0, LoopDiscovery.FUNDAMENTAL);
+        c.solve();
+        CircuitElement battery = findBattery(c);
+        CachedSolver solver = c.loopSolvers.solverOf(battery);
+
+        battery.potentialDifference = -2.0;
+        for (int i = 0; i < 3; i++) {
+            solver.equations.resistors.get(5 * i).resistance = 10.0 * (i + 1);
+        }
+        assertMatchesFreshSolve(c, true);
+        assertSame(solver, c.loopSolvers.solverOf(battery));
+        assertEquals(1, solver.factorizations());
+        assertSolvesAgree(c);
+
+        // Resistors without resistance are stamped differently by the nodal equations.
+        c.solveNodal();
+        CachedSolver nodal = c.nodalSolvers.solverOf(battery);
+        solver.equations.resistors.get(7).resistance = 0;
+        assertMatchesFreshSolve(c, false);
+        assertNotSame(nodal, c.nodalSolvers.solverOf(battery));
+        assertSolvesAgree(c);
+    }
+
+    @Test
+    public void isolatedPartsAreSolvedSeparately() {
+        for (LoopDiscovery mode : Arrays.asList(LoopDiscovery.NONE, LoopDiscovery.FUNDAMENTAL)) {
+            Circuit c = new Circuit(mode);
+            CircuitElement b1 = addLadder(c, 10, 5.0, 100.0, 200.0);
+            CircuitElement b2 = addLadder(c, 6, 3.0, 50.0, 150.0);
+            PartitionedSolver solvers = mode == LoopDiscovery.NONE ? c.nodalSolvers : c.loopSolvers;
+            assertMatchesFreshSolve(c, mode != LoopDiscovery.NONE);
+            CachedSolver first = solvers.solverOf(b1);
+            CachedSolver second = solvers.solverOf(b2);
+            assertNotSame(first, second);
+            assertEquals(1, first.solves());
+            assertEquals(1, second.solves());
+
+            // Changing a value of one part only solves that part again.
+            b2.potentialDifference = 4.0;
+            assertMatchesFreshSolve(c, mode != LoopDiscovery.NONE);
+            assertEquals(1, first.solves());
+            assertEquals(2, second.solves());
+
+            // So does changing its topology, which only factors that part again.
+            CircuitElement r = new CircuitElement.CircuitElementBuilder()
+                    .type(CircuitElementType.RESISTOR)
+                    .resistance(75.0)
+                    .build();
+            CircuitElement s1 = b2.connections.get(1).next(b2);
+            CircuitElement t1 = s1.next(b2.connections.get(1)).next(s1);
+            c.addCircuitElement(r);
+            c.addWire(new Wire(b2.connections.get(0).next(b2), r));
+            c.addWire(new Wire(r, t1));
+            assertMatchesFreshSolve(c, mode != LoopDiscovery.NONE);
+            assertSame(first, solvers.solverOf(b1));
+            assertEquals(1, first.solves());
+            assertEquals(1, first.factorizations());
+            assertNotSame(second, solvers.solverOf(b2));
+            assertEquals(1, solvers.solverOf(b2).factorizations());
+
+            // Joining the parts merges their systems.
+            c.addWire(new Wire(b1.connections.get(0).next(b1), b2.connections.get(0).next(b2)));
+            assertMatchesFreshSolve(c, mode != LoopDiscovery.NONE);
+            assertSame(solvers.solverOf(b1), solvers.solverOf(b2));
+        }
+    }
+
+    @Test
+    public void solveBatchMatchesSolve() {
+        Circuit c = createLadderCircuit(30, 5.0, 100.0, 200.0, LoopDiscovery.FUNDAMENTAL);
+        // A second battery in series with the first shunt resistor
+        CircuitElement shunt = null;
+        for (CircuitElement ce : c.elements) {
+            if (ce.resistance == 200.0 && (shunt == null || ce.ID < shunt.ID)) {
+                shunt = ce;
+            }
+        }
+        CircuitElement b2 = (new CircuitElement.CircuitElementBuilder())
+                .type(CircuitElementType.BATTERY)
+                .potentialDifference(1.0)
+                .build();
+        Wire w = shunt.connections.get(1);
+        CircuitElement other = w.next(shunt);
+        c.removeWire(w);
+        c.addCircuitElement(b2);
+        c.addWire(new Wire(shunt, b2));
+        c.addWire(new Wire(b2, other));
+
+        CircuitElement b1 = null;
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.BATTERY && !ce.equals(b2)) {
+                b1 = ce;
+            }
+        }
+        List<CircuitElement> batteries = Arrays.asList(b1, b2);
+        c.analyze();
+        List<Branch> branches = new ArrayList<>(c.branches);
+        double[][] scenarios = new double[40][];
+        for (int s = 0; s < scenarios.length; s++) {
+            scenarios[s] = new double[]{s % 7 - 3, s / 7 - 2.5};
+        }
+        for (Branch br : c.branches) {
+            br.current = 42;
+        }
+
+        double[][] currents = c.solveBatch(batteries, scenarios, branches);
+
+        for (Branch br : c.branches) {
+            assertEquals(42, br.current, EPSILON);
+        }
+        for (int s = 0; s < scenarios.length; s++) {
+            b1.potentialDifference = scenarios[s][0];
+            b2.potentialDifference = scenarios[s][1];
+            c.solve();
+            for (int i = 0; i < branches.size(); i++) {
+                assertEquals(branches.get(i).current, currents[s][i], EPSILON);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void solveBatchMismatchedScenario() {
+        Circuit c = createCompleteNoJunctionCircuit();
+        List<CircuitElement> batteries = new ArrayList<>();
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.BATTERY) {
+                batteries.add(ce);
+            }
+        }
+        c.solveBatch(batteries, new double[][]{{1, 2}}, new ArrayList<>(c.branches));
+    }
+
+    @Test
+    public void removeCircuitElementMatchesNodal() {
+        Circuit c = createLadderCircuit(30, 5.0, 100.0, 200.0, LoopDiscovery.FUNDAMENTAL);
+        List<CircuitElement> shunts = new ArrayList<>();
+        for (CircuitElement ce : c.elements) {
+            if (ce.resistance == 200.0) {
+                shunts.add(ce);
+            }
+        }
+        shunts.sort(Comparator.comparingInt(ce -> ce.ID));
+
+        for (int i = 1; i < shunts.size(); i += 4) {
+            c.removeCircuitElement(shunts.get(i));
+        }
+        assertEquals(c.elements.size(), c.compact.elementCount);
+        assertEquals(c.wires.size(), c.compact.wireCount);
+        assertSolvesAgree(c);
+    }
+
     /* =================== Add com.imontero.circuit.Circuit Element =================== */
 
     @Test
@@ -477,6 +867,69 @@ public class CircuitTest {
 
     /* =================== Helper Functions =================== */
 
+    /**
+     * Asserts that the loop and nodal solutions of the given circuit agree on every branch.
+     */
+    private static void assertSolvesAgree(Circuit c) {
+        c.solve();
+        Map<Branch, Double> loopCurrents = new HashMap<>();
+        for (Branch br : c.branches) {
+            loopCurrents.put(br, br.current);
+        }
+        c.solveNodal();
+        for (Branch br : c.branches) {
+            assertEquals(br.current, loopCurrents.get(br), EPSILON);
+        }
+    }
+
+    /**
+     * Solves the given circuit, then checks the currents against solving it again with new
+     * factorizations.
+     */
+    private static void assertMatchesFreshSolve(Circuit c, boolean loops) {
+        if (loops) {
+            c.solve();
+        } else {
+            c.solveNodal();
+        }
+        Map<Branch, Double> currents = new HashMap<>();
+        for (Branch br : c.branches) {
+            currents.put(br, br.current);
+        }
+        CircuitEquations equations = loops ? new LoopEquations(c) : new NodalEquations(c);
+        double[] fresh = new CachedSolver(equations).solve();
+        for (int i = 0; i < fresh.length; i++) {
+            assertEquals(fresh[i], currents.get(equations.branches.get(i)), EPSILON);
+        }
+    }
+
+    /**
+     * Finds a battery of the given circuit.
+     */
+    private static CircuitElement findBattery(Circuit c) {
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.BATTERY) {
+                return ce;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the wire of the given circuit attached to the end of the resistor with the given
+     * resistance that was connected last.
+     */
+    private static Wire findWire(Circuit c, double resistance) {
+        Wire found = null;
+        for (Wire w : c.wires) {
+            if ((w.a.resistance == resistance || w.b.resistance == resistance)
+                    && (found == null || w.ID > found.ID)) {
+                found = w;
+            }
+        }
+        return found;
+    }
+
     /**
      * +---+
      * |   |
@@ -516,7 +969,11 @@ public class CircuitTest {
      * R2= 200 ohms
      */
     private Circuit createCompleteTwoJunctionCircuit() {
-        Circuit c = new Circuit();
+        return createCompleteTwoJunctionCircuit(LoopDiscovery.ALL);
+    }
+
+    private Circuit createCompleteTwoJunctionCircuit(LoopDiscovery loopDiscovery) {
+        Circuit c = new Circuit(loopDiscovery);
         CircuitElement b = (new CircuitElement.CircuitElementBuilder())
                 .type(CircuitElementType.BATTERY)
                 .potentialDifference(5.0)
@@ -555,4 +1012,75 @@ public class CircuitTest {
         b.setDirection(wj2b, wbj1);
         return c;
     }
-}
\ No newline at end of file
+
+    /**
+     * +---S1--T1--S2--T2 ... Sn--Tn
+     * |       |       |          |
+     * B       P1      P2         Pn
+     * |       |       |          |
+     * +-------B1------B2 ... ----Bn
+     * B= voltage, pos towards S1
+     * S= series ohms
+     * P= shunt ohms
+     */
+    static Circuit createLadderCircuit(int stages, double voltage, double series, double shunt,
+                                       LoopDiscovery loopDiscovery) {
+        Circuit c = new Circuit(loopDiscovery);
+        addLadder(c, stages, voltage, series, shunt);
+        return c;
+    }
+
+    /**
+     * Adds a ladder as in {@link #createLadderCircuit}, isolated from the rest of the given
+     * circuit.
+     *
+     * @return The battery of the ladder.
+     */
+    private static CircuitElement addLadder(Circuit c, int stages, double voltage, double series,
+                                            double shunt) {
+        CircuitElement b = (new CircuitElement.CircuitElementBuilder())
+                .type(CircuitElementType.BATTERY)
+                .potentialDifference(voltage)
+                .build();
+        c.addCircuitElement(b);
+        CircuitElement top = b;
+        CircuitElement bottom = b;
+        Wire first = null;
+        for (int i = 0; i < stages; i++) {
+            CircuitElement s = (new CircuitElement.CircuitElementBuilder())
+                    .type(CircuitElementType.RESISTOR)
+                    .resistance(series)
+                    .build();
+            CircuitElement p = (new CircuitElement.CircuitElementBuilder())
+                    .type(CircuitElementType.RESISTOR)
+                    .resistance(shunt)
+                    .build();
+            CircuitElement t = (new CircuitElement.CircuitElementBuilder())
+                    .type(CircuitElementType.JUNCTION)
+                    .build();
+            CircuitElement j = (new CircuitElement.CircuitElementBuilder())
+                    .type(CircuitElementType.JUNCTION)
+                    .build();
+            c.addCircuitElement(s);
+            c.addCircuitElement(p);
+            c.addCircuitElement(t);
+            c.addCircuitElement(j);
+            Wire toSeries = new Wire(top, s);
+            if (first == null) {
+                first = toSeries;
+            }
+            c.addWire(toSeries);
+            c.addWire(new Wire(s, t));
+            c.addWire(new Wire(t, p));
+            c.addWire(new Wire(p, j));
+            Wire rail = new Wire(j, bottom);
+            c.addWire(rail);
+            if (bottom == b) {
+                b.setDirection(rail, first);
+            }
+            top = t;
+            bottom = j;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,105 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CircuitWorkerTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void editsAreSolvedInTheBackground() throws InterruptedException {
+        AtomicInteger published = new AtomicInteger();
+        CircuitWorker worker = new CircuitWorker(new Circuit(LoopDiscovery.FUNDAMENTAL),
+                solution -> published.incrementAndGet());
+        CircuitElement battery = element(CircuitElementType.BATTERY);
+        CircuitElement resistor = element(CircuitElementType.RESISTOR);
+        Wire w = new Wire(battery, resistor);
+        worker.edit(c -> c.addCircuitElement(battery));
+        worker.edit(c -> c.addCircuitElement(resistor));
+        worker.edit(c -> c.addWire(w));
+        worker.edit(c -> c.addWire(new Wire(resistor, battery)));
+
+        // A burst of edits is solved far fewer times than it has edits, ending with the last.
+        for (int k = 1; k <= 1000; k++) {
+            double voltage = k;
+            worker.edit(c -> battery.potentialDifference = voltage);
+        }
+        CircuitWorker.Solution solution = await(worker, 1004);
+        assertNull(solution.error);
+        assertEquals(1000 / 10.0, Math.abs(solution.current(w)), EPSILON);
+        assertTrue(published.get() < 1000);
+        assertTrue(Double.isNaN(solution.current(new Wire(battery, resistor))));
+        worker.shutdown();
+    }
+
+    @Test
+    public void failuresAreReported() throws InterruptedException {
+        BlockingQueue<CircuitWorker.Solution> solutions = new LinkedBlockingQueue<>();
+        CircuitWorker worker = new CircuitWorker(new Circuit(LoopDiscovery.FUNDAMENTAL),
+                solutions::add);
+        // A battery shorted by a wire has no solution.
+        CircuitElement battery = element(CircuitElementType.BATTERY);
+        CircuitElement junction = element(CircuitElementType.JUNCTION);
+        Wire w = new Wire(battery, junction);
+        worker.edit(c -> {
+            c.addCircuitElement(battery);
+            c.addCircuitElement(junction);
+            c.addWire(w);
+            c.addWire(new Wire(junction, battery));
+        });
+        CircuitWorker.Solution solution = solutions.take();
+        assertEquals(1, solution.version);
+        assertNotNull(solution.error);
+        assertTrue(Double.isNaN(solution.current(w)));
+
+        // A failed edit is reported with the solution after it, and later edits still apply.
+        worker.edit(c -> {
+            throw new IllegalArgumentException("Bad edit");
+        });
+        worker.edit(c -> c.removeWire(w));
+        solution = solutions.take();
+        if (solution.version == 2) {
+            assertTrue(solution.error.contains("Bad edit"));
+            solution = solutions.take();
+            assertNull(solution.error);
+        } else {
+            assertTrue(solution.error.contains("Bad edit"));
+        }
+        assertEquals(3, solution.version);
+        CircuitElement resistor = element(CircuitElementType.RESISTOR);
+        Wire toResistor = new Wire(battery, resistor);
+        worker.edit(c -> c.addCircuitElement(resistor));
+        worker.edit(c -> c.addWire(toResistor));
+        worker.edit(c -> c.addWire(new Wire(resistor, junction)));
+        solution = await(worker, 6);
+        assertNull(solution.error, solution.error);
+        assertEquals(0.1, Math.abs(solution.current(toResistor)), EPSILON);
+        worker.shutdown();
+    }
+
+    private static CircuitElement element(CircuitElementType type) {
+        return (new CircuitElement.CircuitElementBuilder())
+                .type(type)
+                .potentialDifference(1.0)
+                .resistance(10.0)
+                .build();
+    }
+
+    /**
+     * Waits for the solution after the given number of edits.
+     */
+    private static CircuitWorker.Solution await(CircuitWorker worker, long version)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (worker.solution().version < version) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return worker.solution();
+    }
+}
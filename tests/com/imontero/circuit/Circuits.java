@@ -0,0 +1,64 @@
+package com.imontero.circuit;
+
+/**
+ * Small circuits and elements shared by the tests of the analyses.
+ */
+final class Circuits {
+    private Circuits() {
+    }
+
+    /**
+     * Builds a circuit of the given elements connected in series, in a single loop.
+     */
+    static Circuit series(CircuitElement... elements) {
+        Circuit c = new Circuit(LoopDiscovery.FUNDAMENTAL);
+        for (CircuitElement ce : elements) {
+            c.addCircuitElement(ce);
+        }
+        for (int i = 0; i < elements.length; i++) {
+            c.addWire(new Wire(elements[i], elements[(i + 1) % elements.length]));
+        }
+        return c;
+    }
+
+    static CircuitElement acSource(double amplitude) {
+        return new CircuitElement.CircuitElementBuilder()
+                .type(CircuitElementType.AC_SOURCE)
+                .amplitude(amplitude)
+                .build();
+    }
+
+    static CircuitElement battery(double potentialDifference) {
+        return new CircuitElement.CircuitElementBuilder()
+                .type(CircuitElementType.BATTERY)
+                .potentialDifference(potentialDifference)
+                .build();
+    }
+
+    static CircuitElement resistor(double resistance) {
+        return new CircuitElement.CircuitElementBuilder()
+                .type(CircuitElementType.RESISTOR)
+                .resistance(resistance)
+                .build();
+    }
+
+    static CircuitElement capacitor(double capacitance) {
+        return new CircuitElement.CircuitElementBuilder()
+                .type(CircuitElementType.CAPACITOR)
+                .capacitance(capacitance)
+                .build();
+    }
+
+    static CircuitElement inductor(double inductance) {
+        return new CircuitElement.CircuitElementBuilder()
+                .type(CircuitElementType.INDUCTOR)
+                .inductance(inductance)
+                .build();
+    }
+
+    static CircuitElement diode() {
+        return new CircuitElement.CircuitElementBuilder()
+                .type(CircuitElementType.DIODE)
+                .build();
+    }
+}
@@ -0,0 +1,115 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ConjugateGradientTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void matchesSolveNodal() {
+        for (ConjugateGradient.Preconditioner preconditioner
+                : ConjugateGradient.Preconditioner.values()) {
+            Circuit c = CircuitTest.createLadderCircuit(40, 5.0, 100.0, 200.0, LoopDiscovery.NONE);
+            ConjugateGradient.Result result = c.solveIterative(new ConjugateGradient.Builder()
+                    .preconditioner(preconditioner)
+                    .build());
+
+            assertTrue(result.converged);
+            assertTrue(result.residual <= 1e-10);
+            assertMatchesSolveNodal(c);
+        }
+    }
+
+    @Test
+    public void resistorsWithoutResistance() {
+        // The series resistors merge every node of the top rail with the battery's.
+        Circuit c = CircuitTest.createLadderCircuit(10, 5.0, 0.0, 200.0, LoopDiscovery.NONE);
+        assertTrue(c.solveIterative(new ConjugateGradient.Builder().build()).converged);
+        assertMatchesSolveNodal(c);
+    }
+
+    @Test
+    public void warmStartAfterEdits() {
+        Circuit c = CircuitTest.createLadderCircuit(200, 5.0, 10.0, 1000.0, LoopDiscovery.NONE);
+        ConjugateGradient settings = new ConjugateGradient.Builder()
+                .preconditioner(ConjugateGradient.Preconditioner.JACOBI)
+                .build();
+        ConjugateGradient.Result cold = c.solveIterative(settings);
+        assertTrue(cold.converged);
+
+        // Solving again without changes needs no iterations.
+        assertEquals(0, c.solveIterative(settings).iterations);
+
+        // Changing a resistance far from the battery barely moves the solution.
+        CircuitElement far = null;
+        for (CircuitElement ce : c.elements) {
+            if (ce.resistance == 1000.0 && (far == null || ce.ID > far.ID)) {
+                far = ce;
+            }
+        }
+        far.resistance = 1100.0;
+        ConjugateGradient.Result warm = c.solveIterative(settings);
+        assertTrue(warm.converged);
+        assertTrue(warm.iterations < cold.iterations);
+        assertMatchesSolveNodal(c);
+
+        // A change of topology starts from the potentials of the nodes that remain. Put another
+        // resistor in series with the far one.
+        CircuitElement r = new CircuitElement.CircuitElementBuilder()
+                .type(CircuitElementType.RESISTOR)
+                .resistance(1000.0)
+                .build();
+        c.addCircuitElement(r);
+        Wire w = far.connections.get(0);
+        CircuitElement junction = w.next(far);
+        c.removeWire(w);
+        c.addWire(new Wire(junction, r));
+        c.addWire(new Wire(r, far));
+        ConjugateGradient.Result edited = c.solveIterative(settings);
+        assertTrue(edited.converged);
+        assertTrue(edited.iterations < cold.iterations);
+        assertMatchesSolveNodal(c);
+    }
+
+    @Test
+    public void iterationCap() {
+        Circuit c = CircuitTest.createLadderCircuit(100, 5.0, 10.0, 1000.0, LoopDiscovery.NONE);
+        ConjugateGradient.Result result = c.solveIterative(new ConjugateGradient.Builder()
+                .preconditioner(ConjugateGradient.Preconditioner.JACOBI)
+                .maxIterations(1)
+                .build());
+
+        assertFalse(result.converged);
+        assertEquals(1, result.iterations);
+        assertTrue(result.residual > 1e-10);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void batteryShorted() {
+        Circuit c = CircuitTest.createLadderCircuit(1, 5.0, 0.0, 0.0, LoopDiscovery.NONE);
+        c.solveIterative(new ConjugateGradient.Builder().build());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonPositiveTolerance() {
+        new ConjugateGradient.Builder().tolerance(0);
+    }
+
+    /**
+     * Asserts that the currents found iteratively agree with those of a direct solve.
+     */
+    private static void assertMatchesSolveNodal(Circuit c) {
+        Map<Branch, Double> currents = new HashMap<>();
+        for (Branch br : c.branches) {
+            currents.put(br, br.current);
+        }
+        c.solveNodal();
+        for (Branch br : c.branches) {
+            assertEquals(br.current, currents.get(br), EPSILON);
+        }
+    }
+}
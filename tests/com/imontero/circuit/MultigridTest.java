@@ -0,0 +1,120 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class MultigridTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void cyclesConvergeOnGrid() {
+        SparseMatrix a = grid(60, 1.0);
+        Multigrid mg = Multigrid.of(a);
+        assertTrue(mg.levels() > 2);
+        int[] sizes = mg.sizes();
+        for (int l = 1; l < sizes.length; l++) {
+            assertTrue(sizes[l] < sizes[l - 1]);
+        }
+
+        // Cycles alone converge, though more slowly than conjugate gradients preconditioned by
+        // them.
+        double[] b = new double[a.n];
+        Random random = new Random(1);
+        for (int i = 0; i < b.length; i++) {
+            b[i] = random.nextDouble();
+        }
+        double[] x = new double[a.n];
+        double[] correction = new double[a.n];
+        double initial = norm(b);
+        double residual = initial;
+        for (int k = 0; k < 40 && residual > 1e-10 * initial; k++) {
+            double[] ax = a.multiply(x);
+            double[] r = new double[a.n];
+            for (int i = 0; i < r.length; i++) {
+                r[i] = b[i] - ax[i];
+            }
+            mg.cycle(r, correction);
+            for (int i = 0; i < x.length; i++) {
+                x[i] += correction[i];
+            }
+            double[] ax2 = a.multiply(x);
+            for (int i = 0; i < r.length; i++) {
+                r[i] = b[i] - ax2[i];
+            }
+            residual = norm(r);
+        }
+        assertTrue(residual <= 1e-10 * initial);
+    }
+
+    @Test
+    public void updateKeepsAggregates() {
+        Multigrid mg = Multigrid.of(grid(40, 1.0));
+        Multigrid updated = mg.update(grid(40, 3.0));
+        assertTrue(Arrays.equals(mg.sizes(), updated.sizes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void updateMismatchedSize() {
+        Multigrid.of(grid(40, 1.0)).update(grid(30, 1.0));
+    }
+
+    @Test
+    public void matchesSolve() {
+        ConjugateGradient settings = new ConjugateGradient.Builder()
+                .preconditioner(ConjugateGradient.Preconditioner.ALGEBRAIC_MULTIGRID)
+                .build();
+        for (double series : new double[]{100.0, 0.0}) {
+            Circuit c = CircuitTest.createLadderCircuit(500, 5.0, series, 200.0,
+                    LoopDiscovery.FUNDAMENTAL);
+            c.solve();
+            Map<Branch, Double> currents = new HashMap<>();
+            for (Branch br : c.branches) {
+                currents.put(br, br.current);
+            }
+
+            ConjugateGradient.Result result = c.solveIterative(settings);
+            assertTrue(result.converged);
+            for (Branch br : c.branches) {
+                assertEquals(currents.get(br), br.current, EPSILON);
+            }
+        }
+    }
+
+    /**
+     * Builds the Laplacian of a square grid of resistors whose boundary is tied to ground through
+     * resistors of the same conductance.
+     */
+    private static SparseMatrix grid(int side, double conductance) {
+        SparseMatrix.Builder mat = new SparseMatrix.Builder(side * side);
+        for (int y = 0; y < side; y++) {
+            for (int x = 0; x < side; x++) {
+                int i = y * side + x;
+                mat.add(i, i, 4 * conductance);
+                if (x > 0) {
+                    mat.add(i, i - 1, -conductance);
+                }
+                if (x < side - 1) {
+                    mat.add(i, i + 1, -conductance);
+                }
+                if (y > 0) {
+                    mat.add(i, i - side, -conductance);
+                }
+                if (y < side - 1) {
+                    mat.add(i, i + side, -conductance);
+                }
+            }
+        }
+        return mat.build();
+    }
+
+    private static double norm(double[] x) {
+        double sum = 0;
+        for (double v : x) {
+            sum += v * v;
+        }
+        return Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,184 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class NetlistTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void readsVoltageDivider() throws IOException {
+        Circuit c = read("Voltage divider\n"
+                + "* A 5 volt battery across 1 and 2.2 kiloohms.\n"
+                + "V1 in 0 DC 5V\n"
+                + "R1 IN out 1k ; the names of nodes are not case sensitive\n"
+                + "R2 out 0\n"
+                + "+ 2.2kOhm\n"
+                + ".op\n"
+                + ".end\n"
+                + "R3 in 0 1\n");
+        assertEquals(3, count(c, CircuitElementType.JUNCTION));
+        assertEquals(2, count(c, CircuitElementType.RESISTOR));
+        c.solveNodal();
+        for (Branch br : c.branches) {
+            assertEquals(5.0 / 3200.0, Math.abs(br.current), EPSILON);
+        }
+    }
+
+    @Test
+    public void readsScaleFactors() throws IOException {
+        Circuit c = read("Scale factors\n"
+                + "R1 a 0 1meg\nR2 a 0 2.5MEG\nR3 a 0 47m\nR4 a 0 1e3\nR5 a 0 1.5E-3k\n"
+                + "R6 a 0 .5\nR7 a 0 100mil\nR8 a 0 3u\nR9 a 0 2n\nR10 a 0 7p\nR11 a 0 4f\n"
+                + "R12 a 0 1T\nR13 a 0 5G\nR14 a 0 0.000001\nR15 a 0 123456789012345678901\n");
+        Set<Double> resistances = new HashSet<>();
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.RESISTOR) {
+                resistances.add(ce.resistance);
+            }
+        }
+        // Every value is parsed as exactly as Java parses it.
+        for (double expected : new double[]{1e6, 2.5e6, 47e-3, 1e3, 1.5, 0.5, 100 * 25.4e-6, 3e-6,
+                2e-9, 7e-12, 4e-15, 1e12, 5e9, 1e-6, 123456789012345678901.0}) {
+            assertTrue(expected + " in " + resistances, resistances.contains(expected));
+        }
+    }
+
+    @Test
+    public void sourcesAndDiodesKeepTheirDirection() throws IOException {
+        // The source forward biases the diode, whose model comes after it.
+        Circuit c = read("Diode\n"
+                + "V1 in 0 5\n"
+                + "R1 in a 1k\n"
+                + "D1 a 0 small\n"
+                + ".MODEL SMALL D(IS=1e-12 N=1.5)\n");
+        CircuitElement diode = null;
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.DIODE) {
+                diode = ce;
+            }
+        }
+        assertEquals(1e-12, diode.saturationCurrent, 0);
+        assertEquals(1.5, diode.emissionCoefficient, 0);
+        assertTrue(c.solveNonlinear(new NewtonRaphson.Builder().build()).converged);
+        double current = Math.abs(c.branches.iterator().next().current);
+        assertTrue(current > 3.5e-3 && current < 4.5e-3);
+    }
+
+    @Test
+    public void sourceWithDcAndAcParts() throws IOException {
+        Circuit c = read("AC\nV1 in 0 DC 2 AC 1 90\nR1 in 0 100\n");
+        assertEquals(1, count(c, CircuitElementType.BATTERY));
+        assertEquals(1, count(c, CircuitElementType.AC_SOURCE));
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.AC_SOURCE) {
+                assertEquals(1, ce.amplitude, 0);
+                assertEquals(Math.PI / 2, ce.phase, EPSILON);
+            }
+        }
+        c.solveNodal();
+        assertEquals(0.02, Math.abs(c.branches.iterator().next().current), EPSILON);
+    }
+
+    @Test
+    public void writtenCircuitReadsBack() throws IOException {
+        Circuit original = CircuitTest.createLadderCircuit(20, 5.0, 100.0, 200.0,
+                LoopDiscovery.NONE);
+        StringWriter out = new StringWriter();
+        Netlist.write(original, out);
+        Circuit copy = read(out.toString());
+
+        assertEquals(count(original, CircuitElementType.RESISTOR),
+                count(copy, CircuitElementType.RESISTOR));
+        original.solveNodal();
+        copy.solveNodal();
+        assertEquals(resistorCurrents(original), resistorCurrents(copy));
+
+        // Writing the copy gives the same netlist, up to the names of the elements.
+        StringWriter again = new StringWriter();
+        Netlist.write(copy, again);
+        assertEquals(out.toString().replaceAll("(?m)^([RV])\\d+", "$1"),
+                again.toString().replaceAll("(?m)^([RV])\\d+", "$1"));
+    }
+
+    @Test
+    public void smallBufferReadsLongNetlist() throws IOException {
+        // A chain of 1000 resistors of 1 ohm, with lines longer than the buffer.
+        StringBuilder netlist = new StringBuilder("Chain\nV1 n0 0 DC 1001.0\n");
+        for (int i = 0; i < 1000; i++) {
+            netlist.append("Rchain").append(i).append(" n").append(i).append(" n").append(i + 1)
+                    .append(" 1.0\n");
+        }
+        netlist.append("Rlast n1000 0 1.0");
+        Circuit c = Netlist.read(channel(netlist.toString()), LoopDiscovery.NONE, 8);
+        assertEquals(1001, count(c, CircuitElementType.RESISTOR));
+        c.solveNodal();
+        assertEquals(1, c.branches.size());
+        assertEquals(1.0, Math.abs(c.branches.iterator().next().current), EPSILON);
+    }
+
+    @Test
+    public void errorsNameTheLine() {
+        try {
+            read("Title\nR1 a 0 1\nQ1 a b c model\n");
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3: Q1"));
+        }
+        try {
+            read("Title\nR1 a 0 1\nD1 a 0 missing\n");
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("missing"));
+        }
+        try {
+            read("Title\nR1 a 0\n+ one\n");
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2: one"));
+        }
+    }
+
+    private static Circuit read(String netlist) throws IOException {
+        return Netlist.read(channel(netlist), LoopDiscovery.NONE);
+    }
+
+    private static ReadableByteChannel channel(String netlist) {
+        return Channels.newChannel(new ByteArrayInputStream(
+                netlist.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static int count(Circuit c, CircuitElementType type) {
+        int count = 0;
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == type) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The magnitude of the current through each resistor, in order.
+     */
+    private static List<Double> resistorCurrents(Circuit c) {
+        List<Double> currents = new ArrayList<>();
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.RESISTOR) {
+                Branch br = c.wireToBranch.get(ce.connections.get(0));
+                currents.add(Math.round(Math.abs(br.current) / EPSILON) * EPSILON);
+            }
+        }
+        Collections.sort(currents);
+        return currents;
+    }
+}
@@ -0,0 +1,162 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static com.imontero.circuit.Circuits.*;
+import static org.junit.Assert.*;
+
+public class NewtonRaphsonTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void forwardBiasedDiode() {
+        // Around the loop, the battery raises the potential of the diode's cathode, so it takes a
+        // negative potential difference to drive current into the anode.
+        Circuit c = series(battery(-5.0), resistor(1000.0), diode());
+        NewtonRaphson.Result result = c.solveNonlinear(new NewtonRaphson.Builder().build());
+
+        assertTrue(result.converged);
+        double current = Math.abs(c.branches.iterator().next().current);
+        double drop = NonlinearSolver.THERMAL_VOLTAGE * Math.log(current / 1e-14 + 1);
+        assertEquals(5.0, current * 1000.0 + drop, 1e-6);
+        assertTrue(drop > 0.5 && drop < 0.8);
+    }
+
+    @Test
+    public void reverseBiasedDiode() {
+        Circuit c = series(battery(5.0), resistor(1000.0), diode());
+        assertTrue(c.solveNonlinear(new NewtonRaphson.Builder().build()).converged);
+        // The saturation current, and that of the conductance every diode has.
+        assertEquals(1e-14 + 5.0 * NodalEquations.GMIN,
+                Math.abs(c.branches.iterator().next().current), 1e-15);
+    }
+
+    @Test
+    public void solvingAgainReusesEverything() {
+        Circuit c = diodeLadder(50, -5.0);
+        NewtonRaphson settings = new NewtonRaphson.Builder().build();
+        assertTrue(c.solveNonlinear(settings).converged);
+        Map<Branch, Double> currents = currents(c);
+
+        NewtonRaphson.Result again = c.solveNonlinear(settings);
+        assertTrue(again.converged);
+        assertEquals(1, again.iterations);
+        assertEquals(0, again.factorizations);
+        assertEquals(0, again.evaluations);
+        assertEquals(50, again.bypasses);
+        for (Branch br : c.branches) {
+            assertEquals(currents.get(br), br.current, EPSILON);
+        }
+    }
+
+    @Test
+    public void smallEditReusesFactorization() {
+        Circuit c = diodeLadder(50, -5.0);
+        NewtonRaphson settings = new NewtonRaphson.Builder().build();
+        NewtonRaphson.Result cold = c.solveNonlinear(settings);
+        assertTrue(cold.converged);
+
+        batteryOf(c).potentialDifference = -5.05;
+        NewtonRaphson.Result warm = c.solveNonlinear(settings);
+        assertTrue(warm.converged);
+        assertEquals(0, warm.factorizations);
+        assertTrue(warm.iterations < cold.iterations);
+        Map<Branch, Double> currents = currents(c);
+
+        // A new solver, which factors from the start, finds the same operating point.
+        c.invalidateSolvers();
+        c.solveNonlinear(new NewtonRaphson.Builder().reuseJacobian(false).build());
+        for (Branch br : c.branches) {
+            assertEquals(br.current, currents.get(br), 1e-9);
+        }
+    }
+
+    @Test
+    public void optimizationsKeepTheSolution() {
+        Map<Branch, Double> reference = null;
+        Circuit c = diodeLadder(100, -10.0);
+        int factorizations = -1;
+        for (boolean optimized : new boolean[]{false, true}) {
+            c.invalidateSolvers();
+            NewtonRaphson.Result result = c.solveNonlinear(new NewtonRaphson.Builder()
+                    .bypass(optimized)
+                    .reuseJacobian(optimized)
+                    .damping(optimized)
+                    .build());
+            assertTrue(result.converged);
+            if (reference == null) {
+                reference = currents(c);
+                factorizations = result.factorizations;
+                assertEquals(result.iterations, result.factorizations);
+                assertEquals(0, result.bypasses);
+            } else {
+                assertTrue(result.factorizations < factorizations);
+                for (Branch br : c.branches) {
+                    assertEquals(reference.get(br), br.current, 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void limitingKeepsLargeVoltagesConverging() {
+        Circuit c = series(battery(-100.0), resistor(10.0), diode());
+        NewtonRaphson.Result result = c.solveNonlinear(new NewtonRaphson.Builder().build());
+        assertTrue(result.converged);
+        assertTrue(result.iterations < 20);
+        assertEquals(10.0, Math.abs(c.branches.iterator().next().current), 0.1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void solveNodalRejectsDiodes() {
+        series(battery(5.0), resistor(1000.0), diode()).solveNodal();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void solveRejectsDiodes() {
+        Circuit c = series(battery(5.0), resistor(1000.0), diode());
+        c.solve();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void saturationCurrentMustBePositive() {
+        CircuitElement d = diode();
+        d.saturationCurrent = 0;
+        series(battery(5.0), resistor(1000.0), d).solveNonlinear(new NewtonRaphson.Builder()
+                .build());
+    }
+
+    /**
+     * Builds a ladder whose shunts are diodes, forward biased by a negative potential difference.
+     */
+    private static Circuit diodeLadder(int stages, double potentialDifference) {
+        Circuit c = CircuitTest.createLadderCircuit(stages, potentialDifference, 100.0, 200.0,
+                LoopDiscovery.NONE);
+        for (CircuitElement ce : c.elements) {
+            if (ce.resistance == 200.0) {
+                ce.type = CircuitElementType.DIODE;
+            }
+        }
+        c.invalidateSolvers();
+        return c;
+    }
+
+    private static CircuitElement batteryOf(Circuit c) {
+        for (CircuitElement ce : c.elements) {
+            if (ce.type == CircuitElementType.BATTERY) {
+                return ce;
+            }
+        }
+        return null;
+    }
+
+    private static Map<Branch, Double> currents(Circuit c) {
+        Map<Branch, Double> currents = new HashMap<>();
+        for (Branch br : c.branches) {
+            currents.put(br, br.current);
+        }
+        return currents;
+    }
+}
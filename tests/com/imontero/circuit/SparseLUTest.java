@@ -0,0 +1,204 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SparseLUTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void builderSumsDuplicates() {
+        SparseMatrix m = new SparseMatrix.Builder(2)
+                .add(1, 0, 2.0)
+                .add(0, 0, 1.0)
+                .add(1, 0, 3.0)
+                .build();
+
+        assertEquals(2, m.nonZeros());
+        assertEquals(1.0, m.get(0, 0), EPSILON);
+        assertEquals(5.0, m.get(1, 0), EPSILON);
+        assertEquals(0.0, m.get(1, 1), EPSILON);
+    }
+
+    @Test
+    public void solveSimple() {
+        // 4x + y = 9
+        // x + 3y = 5
+        SparseMatrix m = new SparseMatrix.Builder(2)
+                .add(0, 0, 4)
+                .add(0, 1, 1)
+                .add(1, 0, 1)
+                .add(1, 1, 3)
+                .build();
+
+        double[] x = new SparseLU(m).solve(new double[]{9, 5});
+
+        assertEquals(2.0, x[0], EPSILON);
+        assertEquals(1.0, x[1], EPSILON);
+    }
+
+    @Test
+    public void solveZeroDiagonal() {
+        // A voltage source row has no diagonal entry, so it requires pivoting.
+        // y = 5
+        // x - 2y = 0
+        // -x + z = 1
+        SparseMatrix m = new SparseMatrix.Builder(3)
+                .add(0, 1, 1)
+                .add(1, 0, 1)
+                .add(1, 1, -2)
+                .add(2, 0, -1)
+                .add(2, 2, 1)
+                .build();
+
+        double[] x = new SparseLU(m).solve(new double[]{5, 0, 1});
+
+        assertEquals(10.0, x[0], EPSILON);
+        assertEquals(5.0, x[1], EPSILON);
+        assertEquals(11.0, x[2], EPSILON);
+    }
+
+    @Test
+    public void solveGrid() {
+        int size = 30, n = size * size;
+        SparseMatrix.Builder b = new SparseMatrix.Builder(n);
+        for (int i = 0; i < n; i++) {
+            b.add(i, i, 4.5);
+            if (i % size + 1 < size) {
+                b.add(i, i + 1, -1).add(i + 1, i, -1);
+            }
+            if (i + size < n) {
+                b.add(i, i + size, -1).add(i + size, i, -1);
+            }
+        }
+        SparseMatrix m = b.build();
+        double[] rhs = new double[n];
+        for (int i = 0; i < n; i++) {
+            rhs[i] = i % 7 - 3;
+        }
+
+        double[] residual = m.multiply(new SparseLU(m).solve(rhs));
+
+        for (int i = 0; i < n; i++) {
+            assertEquals(rhs[i], residual[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void orderingLimitsFill() {
+        // A ladder network of conductances, with its unknowns and equations shuffled, and a
+        // voltage source whose equation has no diagonal entry.
+        int rungs = 1000, n = 2 * rungs + 1;
+        Random random = new Random(3);
+        int[] unknowns = shuffled(n, random);
+        int[] equations = shuffled(n, random);
+        SparseMatrix.Builder b = new SparseMatrix.Builder(n);
+        for (int k = 0; k < 2 * rungs; k++) {
+            int i = unknowns[k];
+            b.add(equations[i], i, k < 2 ? 3 : 3.5);
+            if (k + 2 < 2 * rungs) {
+                int j = unknowns[k + 2];
+                b.add(equations[i], j, -1).add(equations[j], i, -1);
+            }
+            if (k % 2 == 0) {
+                int j = unknowns[k + 1];
+                b.add(equations[i], j, -0.5).add(equations[j], i, -0.5);
+            }
+        }
+        int source = unknowns[2 * rungs];
+        b.add(equations[unknowns[0]], source, 1).add(equations[source], unknowns[0], 1);
+        SparseMatrix m = b.build();
+        double[] rhs = new double[n];
+        rhs[equations[source]] = 5;
+
+        SparseLU lu = new SparseLU(m);
+        double[] residual = m.multiply(lu.solve(rhs));
+
+        assertTrue(lu.nonZeros() < 2.5 * m.nonZeros());
+        for (int i = 0; i < n; i++) {
+            assertEquals(rhs[i], residual[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void reuseOrdering() {
+        SparseMatrix m = new SparseMatrix.Builder(3)
+                .add(0, 1, 1)
+                .add(1, 0, 1)
+                .add(1, 1, -2)
+                .add(2, 0, -1)
+                .add(2, 2, 1)
+                .build();
+        SparseMatrix scaled = new SparseMatrix.Builder(3)
+                .add(0, 1, 10)
+                .add(1, 0, 2)
+                .add(1, 1, -2)
+                .add(2, 0, -3)
+                .add(2, 2, 0.5)
+                .build();
+        FillReducingOrdering ordering = FillReducingOrdering.of(m);
+
+        double[] rhs = {5, 0, 1};
+        double[] residual = scaled.multiply(new SparseLU(scaled, ordering).solve(rhs));
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(rhs[i], residual[i], EPSILON);
+        }
+    }
+
+    @Test
+    public void solveMultiple() {
+        SparseMatrix m = new SparseMatrix.Builder(3)
+                .add(0, 1, 1)
+                .add(1, 0, 1)
+                .add(1, 1, -2)
+                .add(2, 0, -1)
+                .add(2, 2, 1)
+                .build();
+        SparseLU lu = new SparseLU(m);
+        double[][] rhs = {{5, 0, 1}, {1, 2, 3}, {0, 0, 0}, {-4, 7, 0.5}};
+        double[] b = new double[3 * rhs.length];
+        for (int r = 0; r < rhs.length; r++) {
+            for (int i = 0; i < 3; i++) {
+                b[i * rhs.length + r] = rhs[r][i];
+            }
+        }
+
+        double[] x = lu.solve(b, rhs.length);
+
+        for (int r = 0; r < rhs.length; r++) {
+            double[] expected = lu.solve(rhs[r]);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected[i], x[i * rhs.length + r], EPSILON);
+            }
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void factorSingular() {
+        SparseMatrix m = new SparseMatrix.Builder(2)
+                .add(0, 0, 1)
+                .add(0, 1, 2)
+                .add(1, 0, 2)
+                .add(1, 1, 4)
+                .build();
+
+        new SparseLU(m);
+    }
+
+    private static int[] shuffled(int n, Random random) {
+        List<Integer> list = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            list.add(i);
+        }
+        Collections.shuffle(list, random);
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+}
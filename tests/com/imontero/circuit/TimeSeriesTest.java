@@ -0,0 +1,143 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimeSeriesTest {
+    @Test
+    public void recentWindowReadsSamples() {
+        TimeSeries series = new TimeSeries(64, 3);
+        for (int k = 0; k < 1000; k++) {
+            series.append(k, Math.sin(k));
+        }
+        assertEquals(1000, series.size());
+        assertEquals(999, series.lastTime(), 0);
+
+        double[] mins = new double[32];
+        double[] maxs = new double[32];
+        assertEquals(0, series.plot(968, 1000, mins, maxs));
+        for (int p = 0; p < 32; p++) {
+            assertEquals(Math.sin(968 + p), mins[p], 0);
+            assertEquals(Math.sin(968 + p), maxs[p], 0);
+        }
+    }
+
+    @Test
+    public void columnsMatchSamples() {
+        // The levels hold the last 1024, 8192 and 65536 samples.
+        TimeSeries series = new TimeSeries(1024, 2);
+        Random random = new Random(19);
+        double[] values = new double[20480];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = random.nextGaussian();
+            series.append(k, values[k]);
+        }
+        assertEquals(0, series.firstTime(), 0);
+
+        // Windows of the last samples, read from the first and second levels, whose buckets fit in
+        // the columns.
+        double[] mins = new double[64];
+        double[] maxs = new double[64];
+        for (int samples : new int[]{4096, 16384}) {
+            int from = values.length - samples;
+            int level = series.plot(from, from + samples, mins, maxs);
+            assertEquals(samples == 4096 ? 1 : 2, level);
+            int width = samples / mins.length;
+            for (int p = 0; p < mins.length; p++) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int k = from + p * width; k < from + (p + 1) * width; k++) {
+                    min = Math.min(min, values[k]);
+                    max = Math.max(max, values[k]);
+                }
+                assertEquals(min, mins[p], 0);
+                assertEquals(max, maxs[p], 0);
+            }
+        }
+    }
+
+    @Test
+    public void coarseLevelsKeepSpikes() {
+        TimeSeries series = new TimeSeries(64, 4);
+        for (int k = 0; k < 200000; k++) {
+            series.append(k, k == 150001 ? 1 : k == 150002 ? -1 : 0);
+        }
+        // Only the coarsest level, of buckets of 4096 samples, reaches that far back. Its bucket
+        // with the spikes starts at 147456, in the column of 147000.
+        double[] mins = new double[100];
+        double[] maxs = new double[100];
+        assertEquals(4, series.plot(100000, 200000, mins, maxs));
+        assertEquals(-1, mins[47], 0);
+        assertEquals(1, maxs[47], 0);
+        for (int p = 0; p < 100; p++) {
+            if (p != 47 && !Double.isNaN(mins[p])) {
+                assertEquals(0, maxs[p] - mins[p], 0);
+            }
+        }
+    }
+
+    @Test
+    public void emptyColumnsAreNaN() {
+        TimeSeries series = new TimeSeries(64, 2);
+        series.append(0, 1);
+        series.append(10, 2);
+        double[] mins = new double[10];
+        double[] maxs = new double[10];
+        series.plot(0, 20, mins, maxs);
+        assertEquals(1, mins[0], 0);
+        assertEquals(2, maxs[5], 0);
+        assertTrue(Double.isNaN(mins[3]));
+        assertTrue(Double.isNaN(maxs[9]));
+    }
+
+    @Test
+    public void readersSeeWholeBatches() throws InterruptedException {
+        // Every batch is 8 samples of the same value, and so is every bucket of the coarser level,
+        // which holds every batch, so a column of 8 samples of a consistent plot is one batch.
+        TimeSeries series = new TimeSeries(1 << 15, 1);
+        Thread writer = new Thread(() -> {
+            double[] times = new double[8];
+            double[] values = new double[8];
+            for (int b = 0; b < 20000; b++) {
+                for (int i = 0; i < 8; i++) {
+                    times[i] = 8 * b + i;
+                    values[i] = b;
+                }
+                series.append(times, values, 8);
+            }
+        });
+        writer.start();
+        double[] mins = new double[16];
+        double[] maxs = new double[16];
+        while (writer.isAlive()) {
+            double end = series.lastTime();
+            if (Double.isNaN(end)) {
+                continue;
+            }
+            // Columns of 8 samples, each exactly one batch.
+            double from = end + 1 - 128;
+            if (from < 0) {
+                continue;
+            }
+            series.plot(from, end + 1, mins, maxs);
+            for (int p = 0; p < 16; p++) {
+                if (!Double.isNaN(mins[p])) {
+                    assertEquals(mins[p], maxs[p], 0);
+                    assertEquals(Math.floor((from + 8 * p) / 8), mins[p], 0);
+                }
+            }
+        }
+        writer.join();
+        assertEquals(160000, series.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void samplesMustBeInOrder() {
+        TimeSeries series = new TimeSeries();
+        series.append(1, 0);
+        series.append(0, 0);
+    }
+}
@@ -0,0 +1,81 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class ToleranceAnalysisTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void withoutToleranceMatchesSolve() {
+        Circuit c = CircuitTest.createLadderCircuit(10, 5.0, 100.0, 200.0, LoopDiscovery.NONE);
+
+        ToleranceAnalysis.Result result = new ToleranceAnalysis.Builder(c)
+                .samples(500)
+                .build()
+                .run();
+
+        c.solveNodal();
+        assertEquals(c.branches, result.branches());
+        for (Branch br : c.branches) {
+            ToleranceAnalysis.Statistics s = result.statistics(br);
+            assertEquals(500, s.count());
+            assertEquals(br.current, s.mean(), EPSILON);
+            assertEquals(0, s.standardDeviation(), EPSILON);
+            assertEquals(br.current, s.percentile(50), EPSILON);
+        }
+    }
+
+    @Test
+    public void uniformResistorSpread() {
+        // A single 100 ohm resistor across a 5 volt battery.
+        Circuit c = CircuitTest.createLadderCircuit(1, 5.0, 0.0, 100.0, LoopDiscovery.NONE);
+
+        ToleranceAnalysis.Result result = new ToleranceAnalysis.Builder(c)
+                .resistorTolerance(0.1)
+                .distribution(ToleranceAnalysis.Distribution.UNIFORM)
+                .samples(20000)
+                .seed(7)
+                .build()
+                .run();
+
+        assertEquals(0, result.failures);
+        for (Branch br : result.branches()) {
+            ToleranceAnalysis.Statistics s = result.statistics(br);
+            double low = Math.min(Math.abs(s.min()), Math.abs(s.max()));
+            double high = Math.max(Math.abs(s.min()), Math.abs(s.max()));
+            assertTrue(low >= 5.0 / 110 - EPSILON);
+            assertTrue(high <= 5.0 / 90 + EPSILON);
+            // The mean of V / R for R uniform in [90, 110]
+            assertEquals(5.0 / 20 * Math.log(110.0 / 90), Math.abs(s.mean()), 0.0002);
+            assertEquals(5.0 / 100, Math.abs(s.percentile(50)), 0.0002);
+        }
+    }
+
+    @Test
+    public void reproducibleAcrossThreads() {
+        Circuit c = CircuitTest.createLadderCircuit(20, 5.0, 100.0, 200.0, LoopDiscovery.NONE);
+        ToleranceAnalysis analysis = new ToleranceAnalysis.Builder(c)
+                .resistorTolerance(0.05)
+                .batteryTolerance(0.02)
+                .samples(3000)
+                .seed(42)
+                .build();
+
+        ToleranceAnalysis.Result serial = analysis.run(new ForkJoinPool(1));
+        ToleranceAnalysis.Result parallel = analysis.run(new ForkJoinPool(4));
+
+        for (Branch br : serial.branches()) {
+            ToleranceAnalysis.Statistics a = serial.statistics(br);
+            ToleranceAnalysis.Statistics b = parallel.statistics(br);
+            assertEquals(a.mean(), b.mean(), 0);
+            assertEquals(a.standardDeviation(), b.standardDeviation(), 0);
+            assertEquals(a.percentile(5), b.percentile(5), 0);
+            assertEquals(a.percentile(95), b.percentile(95), 0);
+            assertTrue(a.standardDeviation() > 0);
+        }
+    }
+}
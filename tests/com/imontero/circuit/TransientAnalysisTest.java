@@ -0,0 +1,234 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static com.imontero.circuit.Circuits.*;
+import static org.junit.Assert.*;
+
+public class TransientAnalysisTest {
+    public static final double EPSILON = 0.0000001;
+
+    @Test
+    public void capacitorCharges() {
+        // A 5 volt battery charging a 1 microfarad capacitor through 1 kiloohm, with a time
+        // constant of 1 millisecond.
+        Circuit c = series(battery(5.0), resistor(1000.0), capacitor(1e-6));
+        for (TransientAnalysis.Integration integration : TransientAnalysis.Integration.values()) {
+            TransientAnalysis.Result result = new TransientAnalysis.Builder(c)
+                    .integration(integration)
+                    .step(1e-6)
+                    .steps(5000)
+                    .build()
+                    .run();
+
+            assertEquals(5000, result.samples);
+            double[] current = result.waveform(c.branches.iterator().next());
+            double tolerance = integration == TransientAnalysis.Integration.TRAPEZOIDAL
+                    ? 1e-7 : 1e-5;
+            for (int k = 0; k < result.samples; k += 250) {
+                double expected = 5.0 / 1000.0 * Math.exp(-result.time(k) / 1e-3);
+                assertEquals(expected, Math.abs(current[k]), tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void inductorCurrentRises() {
+        // A 5 volt battery driving a 10 millihenry inductor through 10 ohms, with a time constant
+        // of 1 millisecond.
+        Circuit c = series(battery(5.0), resistor(10.0), inductor(1e-2));
+        TransientAnalysis.Result result = new TransientAnalysis.Builder(c)
+                .step(1e-6)
+                .steps(5000)
+                .interval(10)
+                .build()
+                .run();
+
+        assertEquals(500, result.samples);
+        assertEquals(1e-5, result.interval, 1e-18);
+        double[] current = result.waveform(c.branches.iterator().next());
+        for (int k = 0; k < result.samples; k += 25) {
+            double expected = 5.0 / 10.0 * (1 - Math.exp(-result.time(k) / 1e-3));
+            assertEquals(expected, Math.abs(current[k]), 1e-6);
+        }
+    }
+
+    @Test
+    public void steadyStateMatchesSolveNodal() {
+        // A ladder with a capacitor in parallel with its first shunt resistor and an inductor in
+        // series with its second.
+        Circuit c = CircuitTest.createLadderCircuit(3, 5.0, 100.0, 200.0, LoopDiscovery.NONE);
+        List<CircuitElement> shunts = new ArrayList<>();
+        for (CircuitElement ce : c.elements) {
+            if (ce.resistance == 200.0) {
+                shunts.add(ce);
+            }
+        }
+        shunts.sort(Comparator.comparingInt(ce -> ce.ID));
+        CircuitElement cap = capacitor(1e-6);
+        c.addCircuitElement(cap);
+        CircuitElement first = shunts.get(0);
+        c.addWire(new Wire(first.connections.get(0).next(first), cap));
+        c.addWire(new Wire(cap, first.connections.get(1).next(first)));
+        CircuitElement ind = inductor(1e-3);
+        CircuitElement second = shunts.get(1);
+        Wire w = second.connections.get(1);
+        CircuitElement rail = w.next(second);
+        c.addCircuitElement(ind);
+        c.removeWire(w);
+        c.addWire(new Wire(second, ind));
+        c.addWire(new Wire(ind, rail));
+
+        c.solveNodal();
+        TransientAnalysis.Result result = new TransientAnalysis.Builder(c)
+                .initialState(TransientAnalysis.InitialState.STEADY_STATE)
+                .step(1e-6)
+                .steps(100)
+                .build()
+                .run();
+
+        assertEquals(c.branches, result.branches());
+        for (Branch br : c.branches) {
+            double[] current = result.waveform(br);
+            assertEquals(br.current, current[0], EPSILON);
+            assertEquals(br.current, current[current.length - 1], EPSILON);
+        }
+    }
+
+    @Test
+    public void trapezoidalPreservesOscillations() {
+        // An LC tank rings at 1 / sqrt(LC) = 31623 radians per second, with an amplitude of
+        // V sqrt(C / L).
+        Circuit c = series(battery(1.0), inductor(1e-3), capacitor(1e-6));
+        double amplitude = Math.sqrt(1e-6 / 1e-3);
+        Map<TransientAnalysis.Integration, Double> peaks = new HashMap<>();
+        for (TransientAnalysis.Integration integration : TransientAnalysis.Integration.values()) {
+            double[] current = new TransientAnalysis.Builder(c)
+                    .integration(integration)
+                    .step(1e-6)
+                    .steps(2000)
+                    .build()
+                    .run()
+                    .waveform(c.branches.iterator().next());
+            // The peak over the last period.
+            double peak = 0;
+            for (int k = current.length - 200; k < current.length; k++) {
+                peak = Math.max(peak, Math.abs(current[k]));
+            }
+            peaks.put(integration, peak);
+        }
+        assertEquals(amplitude, peaks.get(TransientAnalysis.Integration.TRAPEZOIDAL),
+                0.01 * amplitude);
+        assertTrue(peaks.get(TransientAnalysis.Integration.BACKWARD_EULER) < 0.5 * amplitude);
+    }
+
+    @Test
+    public void recordsOnlyGivenBranches() {
+        Circuit c = CircuitTest.createLadderCircuit(3, 5.0, 100.0, 200.0, LoopDiscovery.NONE);
+        c.analyze();
+        Branch br = c.branches.iterator().next();
+        TransientAnalysis.Result result = new TransientAnalysis.Builder(c)
+                .branches(Collections.singletonList(br))
+                .steps(10)
+                .build()
+                .run();
+
+        assertEquals(Collections.singleton(br), result.branches());
+    }
+
+    @Test
+    public void adaptiveStepsFollowDecay() {
+        // The capacitor settles after a few milliseconds, and the analysis runs for 50.
+        Circuit c = series(battery(5.0), resistor(1000.0), capacitor(1e-6));
+        for (TransientAnalysis.Integration integration : TransientAnalysis.Integration.values()) {
+            TransientAnalysis.Result result = new TransientAnalysis.Builder(c)
+                    .integration(integration)
+                    .step(1e-6)
+                    .steps(50000)
+                    .adaptive(1e-4)
+                    .build()
+                    .run();
+
+            assertTrue(Double.isNaN(result.interval));
+            assertEquals(result.acceptedSteps, result.samples);
+            assertTrue(result.acceptedSteps < 5000);
+            // Each step size is factored once, however often the step returns to it.
+            assertTrue(result.factorizations <= 12);
+            assertTrue(result.rejectedSteps < result.acceptedSteps / 10);
+            assertEquals(50000 * 1e-6, result.time(result.samples - 1), 0);
+
+            double[] current = result.waveform(c.branches.iterator().next());
+            for (int k = 0; k < result.samples; k++) {
+                double expected = 5.0 / 1000.0 * Math.exp(-result.time(k) / 1e-3);
+                assertEquals(expected, Math.abs(current[k]), 5e-5);
+                if (k > 0) {
+                    assertTrue(result.time(k) > result.time(k - 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fixedStepsReportMetrics() {
+        Circuit c = series(battery(5.0), resistor(1000.0), capacitor(1e-6));
+        TransientAnalysis.Result result = new TransientAnalysis.Builder(c)
+                .steps(100)
+                .build()
+                .run();
+
+        assertEquals(100, result.acceptedSteps);
+        assertEquals(0, result.rejectedSteps);
+        assertEquals(1, result.factorizations);
+    }
+
+    @Test
+    public void adaptiveStepsGrowInSteadyState() {
+        Circuit c = series(battery(5.0), resistor(10.0), inductor(1e-2), capacitor(1e-6));
+        c.solveNodal();
+        TransientAnalysis.Result result = new TransientAnalysis.Builder(c)
+                .initialState(TransientAnalysis.InitialState.STEADY_STATE)
+                .step(1e-6)
+                .steps(100000)
+                .maxStep(1e-4)
+                .adaptive(1e-4)
+                .build()
+                .run();
+
+        assertEquals(0, result.rejectedSteps);
+        // Steps of 64 microseconds after a handful of smaller ones.
+        assertTrue(result.acceptedSteps < 100000 / 64 + 20);
+        for (double current : result.waveform(c.branches.iterator().next())) {
+            assertEquals(0, current, EPSILON);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxStepBelowStep() {
+        new TransientAnalysis.Builder(series(battery(5.0), resistor(1000.0), capacitor(1e-6)))
+                .step(1e-6)
+                .maxStep(1e-7)
+                .adaptive(1e-4)
+                .build();
+    }
+
+    @Test
+    public void solveNodalOpensCapacitors() {
+        Circuit c = series(battery(5.0), resistor(1000.0), capacitor(1e-6));
+        c.solveNodal();
+        assertEquals(0, c.branches.iterator().next().current, EPSILON);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void solveRejectsCapacitors() {
+        Circuit c = series(battery(5.0), resistor(1000.0), capacitor(1e-6));
+        c.solve();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacitanceMustBePositive() {
+        new TransientAnalysis.Builder(series(battery(5.0), resistor(1000.0), capacitor(0)))
+                .build();
+    }
+}
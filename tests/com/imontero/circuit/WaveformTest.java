@@ -0,0 +1,159 @@
+package com.imontero.circuit;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static com.imontero.circuit.Circuits.*;
+import static org.junit.Assert.*;
+
+public class WaveformTest {
+    @Test
+    public void rowsRoundTripAcrossWindows() throws IOException {
+        // Rows of 32 and 24 bytes, written through windows of 64 bytes and read from segments of
+        // 48, so that rows straddle both.
+        for (int columns : new int[]{3, 2}) {
+            List<Branch> branches = new ArrayList<>();
+            for (int i = 0; i < columns; i++) {
+                branches.add(new Branch());
+            }
+            Path path = Files.createTempFile("waveform", ".bin");
+            try {
+                try (WaveformWriter writer = new WaveformWriter(path, branches, 64)) {
+                    double[] row = new double[columns];
+                    for (int k = 0; k < 1000; k++) {
+                        for (int i = 0; i < columns; i++) {
+                            row[i] = value(k, i);
+                        }
+                        writer.append(1e-6 * k, row);
+                    }
+                    assertEquals(1000, writer.rows());
+                }
+                assertEquals(WaveformWriter.dataOffset(columns) + 1000 * 8 * (columns + 1),
+                        Files.size(path));
+
+                try (WaveformReader reader = new WaveformReader(path, 48)) {
+                    assertEquals(1000, reader.rows());
+                    assertEquals(columns, reader.columns());
+                    for (int i = 0; i < columns; i++) {
+                        assertEquals(i, reader.column(branches.get(i)));
+                    }
+                    assertEquals(-1, reader.column(new Branch()));
+                    assertEquals(1e-6 * 999, reader.time(999), 0);
+                    assertEquals(value(500, 1), reader.current(500, 1), 0);
+
+                    double[] signal = new double[100];
+                    reader.signal(columns - 1, 900, signal);
+                    double[] times = new double[100];
+                    reader.times(900, times);
+                    for (int k = 0; k < signal.length; k++) {
+                        assertEquals(value(900 + k, columns - 1), signal[k], 0);
+                        assertEquals(1e-6 * (900 + k), times[k], 0);
+                    }
+                }
+            } finally {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void openFileReadsWrittenRows() throws IOException {
+        Path path = Files.createTempFile("waveform", ".bin");
+        try (WaveformWriter writer = new WaveformWriter(path,
+                Collections.singletonList(new Branch()))) {
+            for (int k = 0; k < 10; k++) {
+                writer.append(k, new double[]{-k});
+            }
+            // The file still ends in the rest of the mapped window.
+            try (WaveformReader reader = new WaveformReader(path)) {
+                assertEquals(10, reader.rows());
+                assertEquals(-9, reader.current(9, 0), 0);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    public void transientAnalysisStreamsWaveforms() throws IOException {
+        Circuit c = series(battery(5.0), resistor(1000.0), capacitor(1e-6));
+        TransientAnalysis analysis = new TransientAnalysis.Builder(c)
+                .step(1e-6)
+                .steps(2000)
+                .interval(4)
+                .build();
+        TransientAnalysis.Result expected = analysis.run();
+
+        Path path = Files.createTempFile("waveform", ".bin");
+        try {
+            TransientAnalysis.Result streamed;
+            try (WaveformWriter writer = new WaveformWriter(path, analysis.branches())) {
+                streamed = analysis.run(writer);
+            }
+            assertEquals(expected.samples, streamed.samples);
+            assertTrue(streamed.branches().isEmpty());
+
+            try (WaveformReader reader = new WaveformReader(path)) {
+                assertEquals(expected.samples, reader.rows());
+                for (Branch br : expected.branches()) {
+                    double[] signal = new double[expected.samples];
+                    reader.signal(reader.column(br), 0, signal);
+                    assertTrue(Arrays.equals(expected.waveform(br), signal));
+                }
+                for (int k = 0; k < expected.samples; k++) {
+                    assertEquals(expected.time(k), reader.time(k), 0);
+                }
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outputMustHaveRecordedBranches() throws IOException {
+        Circuit c = series(battery(5.0), resistor(1000.0), capacitor(1e-6));
+        TransientAnalysis analysis = new TransientAnalysis.Builder(c).build();
+        Path path = Files.createTempFile("waveform", ".bin");
+        try (WaveformWriter writer = new WaveformWriter(path,
+                Collections.singletonList(new Branch()))) {
+            analysis.run(writer);
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        Path path = Files.createTempFile("waveform", ".bin");
+        try {
+            Files.write(path, "Not a waveform, but long enough to hold a header.".getBytes());
+            new WaveformReader(path).close();
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readsOnlyWrittenRows() throws IOException {
+        Path path = Files.createTempFile("waveform", ".bin");
+        try {
+            try (WaveformWriter writer = new WaveformWriter(path,
+                    Collections.singletonList(new Branch()))) {
+                writer.append(0, new double[]{1});
+            }
+            try (WaveformReader reader = new WaveformReader(path)) {
+                reader.signal(0, 0, new double[2]);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    private static double value(int row, int column) {
+        return Math.sin(row + 0.5 * column) * (column + 1);
+    }
+}
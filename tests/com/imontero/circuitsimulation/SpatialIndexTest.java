@@ -0,0 +1,191 @@
+package com.imontero.circuitsimulation;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SpatialIndexTest {
+    @Test
+    public void matchesLinearScan() {
+        Random random = new Random(42);
+        SpatialIndex<Box> index = new SpatialIndex<>();
+        List<Box> boxes = new ArrayList<>();
+        // Enough shapes for the table to rehash several times.
+        for (int i = 0; i < 2000; i++) {
+            Box box = randomBox(random);
+            boxes.add(box);
+            index.put(box);
+        }
+        // A shape whose bounds span many cells, which every query near it must find.
+        Box wide = new Box(-300, -100, 700, 250);
+        boxes.add(wide);
+        index.put(wide);
+        assertEquals(boxes.size(), index.size());
+        assertMatches(index, boxes, random);
+
+        for (int round = 0; round < 5; round++) {
+            // Moved shapes leave the buckets of their old cells, and removed shapes leave all.
+            for (int i = 0; i < 500; i++) {
+                Box box = boxes.get(random.nextInt(boxes.size()));
+                if (random.nextInt(4) == 0) {
+                    boxes.remove(box);
+                    index.remove(box);
+                } else {
+                    box.moveTo(random.nextInt(4000) - 2000, random.nextInt(4000) - 2000);
+                    index.put(box);
+                }
+            }
+            for (int i = 0; i < 200; i++) {
+                Box box = randomBox(random);
+                boxes.add(box);
+                index.put(box);
+            }
+            assertEquals(boxes.size(), index.size());
+            assertMatches(index, boxes, random);
+        }
+        // Shapes that were not indexed, or no longer are, are ignored.
+        index.remove(new Box(0, 0, 1, 1));
+        index.remove(boxes.get(0));
+        index.remove(boxes.get(0));
+        boxes.remove(0);
+        assertEquals(boxes.size(), index.size());
+        assertMatches(index, boxes, random);
+    }
+
+    @Test
+    public void wideShapeIsFoundInEveryCell() {
+        SpatialIndex<Box> index = new SpatialIndex<>();
+        Box wide = new Box(-130, -70, 400, 200);
+        index.put(wide);
+        for (int x = -130; x < 270; x += 7) {
+            for (int y = -70; y < 130; y += 7) {
+                assertSame(wide, index.shapeAt(Vec.of(x, y)));
+            }
+        }
+        assertNull(index.shapeAt(Vec.of(270, 0)));
+        assertNull(index.shapeAt(Vec.of(0, -71)));
+
+        wide.moveTo(1000, 1000);
+        index.put(wide);
+        assertNull(index.shapeAt(Vec.of(0, 0)));
+        assertSame(wide, index.shapeAt(Vec.of(1000, 1000)));
+        assertSame(wide, index.nearest(Vec.of(1000, 1010), 10));
+        assertNull(index.nearest(Vec.of(1000, 1011), 10));
+
+        // A rectangle overlapping many of its cells finds it once.
+        List<Box> in = new ArrayList<>();
+        index.shapesIn(new Rectangle(700, 850, 600, 300), in);
+        assertEquals(Arrays.asList(wide), in);
+        in.clear();
+        index.shapesIn(new Rectangle(0, 0, 790, 890), in);
+        assertTrue(in.isEmpty());
+    }
+
+    private static Box randomBox(Random random) {
+        int width = 1 + random.nextInt(random.nextInt(8) == 0 ? 300 : 40);
+        int height = 1 + random.nextInt(random.nextInt(8) == 0 ? 300 : 40);
+        return new Box(random.nextInt(4000) - 2000, random.nextInt(4000) - 2000, width, height);
+    }
+
+    /**
+     * Checks random queries of the index against a scan of every shape.
+     */
+    private static void assertMatches(SpatialIndex<Box> index, List<Box> boxes, Random random) {
+        for (int q = 0; q < 2000; q++) {
+            Vec p = Vec.of(random.nextInt(4400) - 2200, random.nextInt(4400) - 2200);
+            Box at = index.shapeAt(p);
+            boolean contained = false;
+            for (Box box : boxes) {
+                contained |= box.contains(p);
+            }
+            if (at == null) {
+                assertFalse(p.toString(), contained);
+            } else {
+                assertTrue(p.toString(), at.contains(p));
+                assertTrue(boxes.contains(at));
+            }
+
+            int distance = random.nextInt(100);
+            Box nearest = index.nearest(p, distance);
+            long best = Long.MAX_VALUE;
+            for (Box box : boxes) {
+                long d = squaredDistance(box.getPosition(), p);
+                if (d <= (long) distance * distance) {
+                    best = Math.min(best, d);
+                }
+            }
+            if (nearest == null) {
+                assertEquals(p.toString(), Long.MAX_VALUE, best);
+            } else {
+                // Shapes equally near may be returned either way.
+                assertEquals(p.toString(), best, squaredDistance(nearest.getPosition(), p));
+                assertTrue(boxes.contains(nearest));
+            }
+        }
+
+        for (int q = 0; q < 200; q++) {
+            Rectangle r = new Rectangle(random.nextInt(4400) - 2200, random.nextInt(4400) - 2200,
+                    random.nextInt(600), random.nextInt(600));
+            List<Box> in = new ArrayList<>();
+            index.shapesIn(r, in);
+            Set<Box> expected = new HashSet<>();
+            for (Box box : boxes) {
+                if (box.getBounds().intersects(r)) {
+                    expected.add(box);
+                }
+            }
+            // Each shape is found once.
+            assertEquals(r.toString(), expected.size(), in.size());
+            assertEquals(r.toString(), expected, new HashSet<>(in));
+        }
+    }
+
+    private static long squaredDistance(Vec a, Vec b) {
+        long dx = a.x - b.x;
+        long dy = a.y - b.y;
+        return dx * dx + dy * dy;
+    }
+
+    // A rectangle positioned by its middle, which is also its bounds.
+    private static class Box implements GShape {
+        private int x;
+        private int y;
+        private final int width;
+        private final int height;
+
+        Box(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        void moveTo(int x, int y) {
+            this.x = x - width / 2;
+            this.y = y - height / 2;
+        }
+
+        @Override
+        public Vec getPosition() {
+            return Vec.of(x + width / 2, y + height / 2);
+        }
+
+        @Override
+        public boolean contains(Vec p) {
+            return getBounds().contains(p.x, p.y);
+        }
+
+        @Override
+        public Rectangle getBounds() {
+            return new Rectangle(x, y, width, height);
+        }
+    }
+}